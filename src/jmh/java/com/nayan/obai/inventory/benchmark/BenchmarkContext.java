@@ -0,0 +1,80 @@
+package com.nayan.obai.inventory.benchmark;
+
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.repository.ProductExportRepository;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.repository.StockMovementBatchRepository;
+import com.nayan.obai.inventory.service.ReservationMode;
+import com.nayan.obai.inventory.service.impl.ProcessedOrderRegistry;
+import com.nayan.obai.inventory.service.impl.ProductAvailabilityCache;
+import com.nayan.obai.inventory.service.impl.ProductServiceImpl;
+import com.nayan.obai.inventory.service.impl.ReservationGroupCommitter;
+import com.nayan.obai.inventory.service.impl.ShardedStockEngine;
+import com.nayan.obai.inventory.service.impl.StockMovementJournal;
+import com.nayan.obai.inventory.service.impl.StockOutbox;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceTransactionManagerAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.autoconfigure.transaction.TransactionAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+/*
+ * Smallest Spring context that runs the real ProductServiceImpl: JPA, JDBC and transactions over an in-memory H2
+ * in MySQL mode, locks from LocalRedisson and a SimpleMeterRegistry. No web, Rabbit, Redis, Flyway or schedulers,
+ * the schema is created by Hibernate from the entities.
+ * */
+@SpringBootConfiguration
+@ImportAutoConfiguration({DataSourceAutoConfiguration.class, DataSourceTransactionManagerAutoConfiguration.class, JdbcTemplateAutoConfiguration.class,
+		HibernateJpaAutoConfiguration.class, TransactionAutoConfiguration.class})
+@EnableJpaRepositories(basePackageClasses = ProductRepository.class)
+@EntityScan(basePackageClasses = Product.class)
+@Import({ProductStockBatchRepository.class, StockMovementBatchRepository.class, ProductExportRepository.class, ProcessedOrderRegistry.class,
+		ProductAvailabilityCache.class, StockMovementJournal.class, StockOutbox.class, ReservationGroupCommitter.class, ShardedStockEngine.class,
+		ProductServiceImpl.class})
+class BenchmarkContext
+{
+	@Bean
+	RedissonClient redissonClient()
+	{
+		return LocalRedisson.client();
+	}
+
+	@Bean
+	MeterRegistry meterRegistry()
+	{
+		return new SimpleMeterRegistry();
+	}
+
+	// passed as command line arguments so they win over application.yml, which is on the classpath too
+	static ConfigurableApplicationContext start(final ReservationMode mode, final boolean groupCommit)
+	{
+		return new SpringApplicationBuilder(BenchmarkContext.class)
+				.web(WebApplicationType.NONE)
+				.logStartupInfo(false)
+				.run("--spring.datasource.url=jdbc:h2:mem:inventory-bench;MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=TIMESTAMP,VALUE;DB_CLOSE_DELAY=-1",
+						"--spring.datasource.driver-class-name=org.h2.Driver",
+						"--spring.datasource.username=sa",
+						"--spring.datasource.password=",
+						"--spring.cloud.config.enabled=false",
+						"--spring.flyway.enabled=false",
+						"--spring.jpa.hibernate.ddl-auto=create-drop",
+						"--spring.jpa.show-sql=false",
+						"--spring.jpa.properties.hibernate.type.preferred_uuid_jdbc_type=BINARY",
+						"--inventory.reservation.mode=" + mode,
+						"--inventory.reservation.group-commit.enabled=" + groupCommit,
+						"--inventory.product-cache.near-cache.enabled=false");
+	}
+}
@@ -0,0 +1,162 @@
+package com.nayan.obai.inventory.benchmark;
+
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.rest.OrderProduct;
+import com.nayan.obai.inventory.service.ProductService;
+import com.nayan.obai.inventory.service.ReservationMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Hot paths of ProductServiceImpl against the in-memory stand-ins of BenchmarkContext:
+ *   reserve           validateAndReserveProduct of one order
+ *   getProduct        availability lookup, through ProductAvailabilityCache
+ *   reserveAndCommit  reserve followed by updateProductStockForSuccessfulOrder, the full life of a paid order
+ * SKUs are drawn from a Zipf distribution (zipfSkew 0 is uniform), backlog is the number of open reservations
+ * seeded before measuring, which the reserved counters and the settlement queries run against.
+ *
+ * H2 is not MySQL: absolute numbers say little about production, compare runs of two builds on the same machine.
+ * ./gradlew jmh writes the results as JSON to build/results/jmh/results.json.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(8)
+public class InventoryBenchmark
+{
+	@Param({"1000", "100000"})
+	public int skuCount;
+
+	@Param({"1", "5"})
+	public int linesPerOrder;
+
+	@Param({"0", "1.1"})
+	public double zipfSkew;
+
+	@Param({"0", "100000"})
+	public int backlog;
+
+	@Param({"LOCK", "CONDITIONAL_UPDATE", "SHARDED"})
+	public ReservationMode mode;
+
+	@Param({"false"})
+	public boolean groupCommit;
+
+	// on hand per SKU, large enough that no iteration runs a SKU out of stock
+	private static final int SEEDED_QUANTITY = 1_000_000_000;
+
+	private ConfigurableApplicationContext context;
+
+	private ProductService productService;
+
+	private ZipfSampler sampler;
+
+	private UUID[] productIds;
+
+	@State(Scope.Thread)
+	public static class ThreadRandom
+	{
+		private final SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+	}
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		this.context = BenchmarkContext.start(mode, groupCommit);
+		this.productService = context.getBean(ProductService.class);
+		this.sampler = new ZipfSampler(skuCount, zipfSkew);
+		this.productIds = new UUID[skuCount];
+		final SplittableRandom random = new SplittableRandom(42);
+		for (int i = 0; i < skuCount; i++)
+		{
+			productIds[i] = new UUID(random.nextLong(), random.nextLong());
+		}
+		seed(context.getBean(JdbcTemplate.class), random);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		context.close();
+	}
+
+	@Benchmark
+	public boolean reserve(final ThreadRandom threadRandom)
+	{
+		return productService.validateAndReserveProduct(order(threadRandom.random));
+	}
+
+	@Benchmark
+	public Product getProduct(final ThreadRandom threadRandom)
+	{
+		return productService.getProduct(productIds[sampler.next(threadRandom.random)]);
+	}
+
+	@Benchmark
+	public void reserveAndCommit(final ThreadRandom threadRandom, final Blackhole blackhole)
+	{
+		final OrderProduct order = order(threadRandom.random);
+		blackhole.consume(productService.validateAndReserveProduct(order));
+		productService.updateProductStockForSuccessfulOrder(order.getOrderId());
+	}
+
+	private OrderProduct order(final SplittableRandom random)
+	{
+		final Set<UUID> lines = new LinkedHashSet<>();
+		// a handful of redraws keeps the lines distinct even on a steep skew over few SKUs
+		for (int attempt = 0; lines.size() < linesPerOrder && attempt < linesPerOrder * 8; attempt++)
+		{
+			lines.add(productIds[sampler.next(random)]);
+		}
+		final List<Product> products = new ArrayList<>();
+		lines.forEach(productId -> products.add(Product.builder().productId(productId).quantity(1 + random.nextInt(3)).build()));
+		return OrderProduct.builder().orderId(new UUID(random.nextLong(), random.nextLong())).products(products).build();
+	}
+
+	// plain JDBC batches, the service paths under test are not used to build their own fixture
+	private void seed(final JdbcTemplate jdbcTemplate, final SplittableRandom random)
+	{
+		final List<Object[]> products = new ArrayList<>();
+		for (UUID productId : productIds)
+		{
+			products.add(new Object[]{ProductStockBatchRepository.toBytes(productId), SEEDED_QUANTITY});
+		}
+		jdbcTemplate.batchUpdate("INSERT INTO Product (productId, quantity, reservedQuantity, version, lastUpdated) VALUES (?, ?, 0, 0, NOW())", products);
+
+		// negative ids stay clear of the reservation id sequence used by the service
+		final long timestamp = Instant.now().getEpochSecond();
+		final List<Object[]> reservations = new ArrayList<>();
+		for (int i = 0; i < backlog; i++)
+		{
+			final UUID orderId = new UUID(random.nextLong(), random.nextLong());
+			reservations.add(new Object[]{-(i + 1L), ProductStockBatchRepository.toBytes(orderId), ProductStockBatchRepository.toBytes(productIds[sampler.next(random)]), 1, timestamp});
+		}
+		jdbcTemplate.batchUpdate("INSERT INTO ProductOrderReservation (reservationId, orderId, productId, reservedQuantity, timestamp, state) VALUES (?, ?, ?, ?, ?, 'RESERVED')",
+				reservations);
+		// the counters start out matching the open reservations, as the reconciler would leave them
+		jdbcTemplate.update("UPDATE Product SET reservedQuantity = " +
+				"(SELECT COALESCE(SUM(r.reservedQuantity), 0) FROM ProductOrderReservation r WHERE r.productId = Product.productId AND r.state = 'RESERVED')");
+	}
+}
@@ -0,0 +1,96 @@
+package com.nayan.obai.inventory.benchmark;
+
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * In-process stand-in for the parts of RedissonClient the reservation path uses: getLock and getMultiLock backed by
+ * one ReentrantLock per key. Lease times are ignored. Anything else throws, so a benchmark that wanders onto a
+ * Redis-only path fails loudly instead of measuring nothing.
+ * */
+final class LocalRedisson
+{
+	private LocalRedisson()
+	{
+	}
+
+	static RedissonClient client()
+	{
+		final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+		final InvocationHandler handler = (proxy, method, args) -> switch (method.getName())
+		{
+			case "getLock" -> lock((String) args[0], List.of(locks.computeIfAbsent((String) args[0], name -> new ReentrantLock())));
+			case "getMultiLock" -> multiLock((RLock[]) args[0], locks);
+			case "toString" -> "LocalRedisson";
+			case "hashCode" -> System.identityHashCode(proxy);
+			case "equals" -> proxy == args[0];
+			default -> throw new UnsupportedOperationException("RedissonClient." + method.getName() + " is not available in benchmarks");
+		};
+		return (RedissonClient) Proxy.newProxyInstance(RedissonClient.class.getClassLoader(), new Class<?>[]{RedissonClient.class}, handler);
+	}
+
+	// members are locked in name order, like the keys sorted by productId on the real multi lock
+	private static RLock multiLock(final RLock[] members, final Map<String, ReentrantLock> locks)
+	{
+		final List<ReentrantLock> ordered = new ArrayList<>();
+		Arrays.stream(members)
+				.map(RLock::getName)
+				.sorted(Comparator.naturalOrder())
+				.forEach(name -> ordered.add(locks.computeIfAbsent(name, key -> new ReentrantLock())));
+		return lock("multiLock", ordered);
+	}
+
+	private static RLock lock(final String name, final List<ReentrantLock> members)
+	{
+		final InvocationHandler handler = (proxy, method, args) -> switch (method.getName())
+		{
+			case "getName" -> name;
+			case "tryLock" -> tryLock(members, args == null || args.length < 2 ? 0 : ((TimeUnit) args[args.length - 1]).toNanos((Long) args[0]));
+			case "lock" ->
+			{
+				members.forEach(ReentrantLock::lock);
+				yield null;
+			}
+			case "unlock" ->
+			{
+				members.forEach(ReentrantLock::unlock);
+				yield null;
+			}
+			case "isHeldByCurrentThread" -> members.stream().allMatch(ReentrantLock::isHeldByCurrentThread);
+			case "isLocked" -> members.stream().anyMatch(ReentrantLock::isLocked);
+			case "toString" -> "LocalLock[" + name + "]";
+			case "hashCode" -> System.identityHashCode(proxy);
+			case "equals" -> proxy == args[0];
+			default -> throw new UnsupportedOperationException("RLock." + method.getName() + " is not available in benchmarks");
+		};
+		return (RLock) Proxy.newProxyInstance(RLock.class.getClassLoader(), new Class<?>[]{RLock.class}, handler);
+	}
+
+	// all or nothing within the wait time, what is already taken is released when a later member times out
+	private static boolean tryLock(final List<ReentrantLock> members, final long waitNanos) throws InterruptedException
+	{
+		final long deadline = System.nanoTime() + waitNanos;
+		final List<ReentrantLock> taken = new ArrayList<>();
+		for (ReentrantLock member : members)
+		{
+			if (!member.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+			{
+				taken.forEach(ReentrantLock::unlock);
+				return false;
+			}
+			taken.add(member);
+		}
+		return true;
+	}
+}
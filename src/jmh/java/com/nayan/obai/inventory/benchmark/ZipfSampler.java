@@ -0,0 +1,35 @@
+package com.nayan.obai.inventory.benchmark;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/*
+ * Draws ranks 0..n-1 with probability proportional to 1 / (rank + 1)^skew from a precomputed cumulative table.
+ * Skew 0 is uniform, around 1 a few SKUs take most of the orders like a sale on a handful of products.
+ * */
+final class ZipfSampler
+{
+	private final double[] cumulative;
+
+	ZipfSampler(final int n, final double skew)
+	{
+		this.cumulative = new double[n];
+		double total = 0;
+		for (int rank = 0; rank < n; rank++)
+		{
+			total += 1.0 / Math.pow(rank + 1, skew);
+			cumulative[rank] = total;
+		}
+		for (int rank = 0; rank < n; rank++)
+		{
+			cumulative[rank] /= total;
+		}
+	}
+
+	int next(final SplittableRandom random)
+	{
+		final int found = Arrays.binarySearch(cumulative, random.nextDouble());
+		final int rank = found >= 0 ? found : -found - 1;
+		return Math.min(rank, cumulative.length - 1);
+	}
+}
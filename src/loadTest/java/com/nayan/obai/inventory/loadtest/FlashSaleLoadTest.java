@@ -0,0 +1,323 @@
+package com.nayan.obai.inventory.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nayan.obai.inventory.InventoryServiceApplication;
+import com.nayan.obai.inventory.config.RabbitConfig;
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.event.PaymentResultEvent;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.rest.OrderProduct;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Flash sale against the full stack: the service boots as in production, on containers for MySQL, Redis and
+ * RabbitMQ, and virtual clients send POST /inventory/validate for a few hot SKUs at a fixed arrival rate. Every
+ * accepted order gets its payment result through the payment exchange after a delay, so PaymentResultListener
+ * commits and releases while the sale is still running.
+ *
+ * Latency is measured from the moment a request was due, not when it went out, so a stalled service cannot hide
+ * its queueing delay behind fewer requests (coordinated omission). Once all results are applied each hot SKU is
+ * checked against what the clients saw, see SkuTally. Exits 1 on a correctness violation.
+ * */
+public final class FlashSaleLoadTest
+{
+	static final Logger logger = LogManager.getLogger("FlashSaleLoadTest");
+
+	// latencies above a minute are recorded as a minute
+	private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+	private final LoadProfile profile;
+	private final HttpClient httpClient;
+	private final URI validateUri;
+	private final ObjectMapper objectMapper;
+	private final RabbitTemplate rabbitTemplate;
+	private final AmqpAdmin amqpAdmin;
+	private final JdbcTemplate jdbcTemplate;
+	private final ProductRepository productRepository;
+	private final ProductStockBatchRepository productStockBatchRepository;
+	private final MeterRegistry meterRegistry;
+
+	private final Semaphore inFlight;
+	private final ScheduledExecutorService payments = Executors.newScheduledThreadPool(4);
+	private final Map<UUID, SkuTally> tallies = new LinkedHashMap<>();
+	private final List<UUID> hotSkus = new ArrayList<>();
+
+	private final Histogram latencies = new ConcurrentHistogram(HIGHEST_LATENCY_MICROS, 3);
+	private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder clientSaturated = new LongAdder();
+	private final LongAdder transportErrors = new LongAdder();
+	private final LongAdder acceptedOrders = new LongAdder();
+	private final LongAdder rejectedOrders = new LongAdder();
+	private final LongAdder paymentPublishErrors = new LongAdder();
+
+	private FlashSaleLoadTest(final LoadProfile profile, final ConfigurableApplicationContext context)
+	{
+		this.profile = profile;
+		this.httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+		final int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+		this.validateUri = URI.create("http://localhost:" + port + "/inventory/validate");
+		this.objectMapper = context.getBean(ObjectMapper.class);
+		this.rabbitTemplate = context.getBean(RabbitTemplate.class);
+		this.amqpAdmin = context.getBean(AmqpAdmin.class);
+		this.jdbcTemplate = context.getBean(JdbcTemplate.class);
+		this.productRepository = context.getBean(ProductRepository.class);
+		this.productStockBatchRepository = context.getBean(ProductStockBatchRepository.class);
+		this.meterRegistry = context.getBean(MeterRegistry.class);
+		this.inFlight = new Semaphore(profile.maxInFlight);
+	}
+
+	public static void main(final String[] args) throws Exception
+	{
+		final LoadProfile profile = LoadProfile.fromSystemProperties();
+		logger.info("flash sale load test " + profile);
+		boolean passed;
+		try (LoadTestContainers containers = new LoadTestContainers())
+		{
+			containers.start();
+			final List<String> arguments = new ArrayList<>(containers.applicationArguments());
+			arguments.addAll(List.of(
+					"--server.port=0",
+					"--eureka.client.enabled=false",
+					"--spring.cloud.config.enabled=false",
+					"--spring.jpa.show-sql=false",
+					"--inventory.reservation.mode=" + profile.mode));
+			try (ConfigurableApplicationContext context = new SpringApplicationBuilder(InventoryServiceApplication.class, LoadTestSecurity.class)
+					.run(arguments.toArray(String[]::new)))
+			{
+				passed = new FlashSaleLoadTest(profile, context).run();
+			}
+		}
+		System.exit(passed ? 0 : 1);
+	}
+
+	private boolean run() throws InterruptedException
+	{
+		seed();
+		final long totalOrders = (long) profile.rate * profile.durationSeconds;
+		final long start = System.nanoTime();
+		for (long i = 0; i < totalOrders; i++)
+		{
+			final long due = start + i * TimeUnit.SECONDS.toNanos(1) / profile.rate;
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0)
+			{
+				LockSupport.parkNanos(wait);
+			}
+			// every virtual client is busy: the order is lost on the client side, the service never saw it
+			if (!inFlight.tryAcquire())
+			{
+				clientSaturated.increment();
+				continue;
+			}
+			send(due, order());
+		}
+		if (!inFlight.tryAcquire(profile.maxInFlight, profile.drainTimeoutSeconds, TimeUnit.SECONDS))
+		{
+			logger.warn("requests still in flight after " + profile.drainTimeoutSeconds + "s");
+		}
+		final long elapsedNanos = System.nanoTime() - start;
+		payments.shutdown();
+		if (!payments.awaitTermination(profile.drainTimeoutSeconds, TimeUnit.SECONDS))
+		{
+			logger.warn("payment results still pending after " + profile.drainTimeoutSeconds + "s");
+		}
+		awaitSettled();
+		return report(elapsedNanos);
+	}
+
+	private void seed()
+	{
+		final Map<UUID, Integer> stock = new TreeMap<>();
+		for (int i = 0; i < profile.hotSkus; i++)
+		{
+			final UUID productId = UUID.randomUUID();
+			hotSkus.add(productId);
+			stock.put(productId, profile.stockPerSku);
+			tallies.put(productId, new SkuTally(productId, profile.stockPerSku));
+		}
+		productStockBatchRepository.upsertQuantities(stock);
+	}
+
+	private OrderProduct order()
+	{
+		final List<UUID> skus = new ArrayList<>(hotSkus);
+		Collections.shuffle(skus, ThreadLocalRandom.current());
+		final List<Product> lines = skus.subList(0, profile.linesPerOrder).stream()
+				.map(productId -> Product.builder().productId(productId).quantity(1).build())
+				.toList();
+		return OrderProduct.builder().orderId(UUID.randomUUID()).products(lines).build();
+	}
+
+	private void send(final long due, final OrderProduct order)
+	{
+		final HttpRequest request;
+		try
+		{
+			request = HttpRequest.newBuilder(validateUri)
+					.header(HttpHeaders.AUTHORIZATION, "Bearer load-test")
+					.header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+					.timeout(Duration.ofSeconds(30))
+					.POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(order)))
+					.build();
+		} catch (Exception e)
+		{
+			inFlight.release();
+			throw new IllegalStateException("could not serialize order " + order.getOrderId(), e);
+		}
+		sent.increment();
+		httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+			try
+			{
+				latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due), HIGHEST_LATENCY_MICROS));
+				if (error != null)
+				{
+					transportErrors.increment();
+					return;
+				}
+				statuses.computeIfAbsent(response.statusCode(), status -> new LongAdder()).increment();
+				if (response.statusCode() == 200 && Boolean.parseBoolean(response.body().trim()))
+				{
+					accepted(order);
+				} else if (response.statusCode() == 200)
+				{
+					rejected(order);
+				}
+			} finally
+			{
+				inFlight.release();
+			}
+		});
+	}
+
+	private void accepted(final OrderProduct order)
+	{
+		acceptedOrders.increment();
+		order.getProducts().forEach(line -> tallies.get(line.getProductId()).acceptedUnits.add(line.getQuantity()));
+		final boolean successful = ThreadLocalRandom.current().nextDouble() < profile.paymentSuccessRatio;
+		payments.schedule(() -> publishPaymentResult(order, successful), profile.paymentDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void rejected(final OrderProduct order)
+	{
+		rejectedOrders.increment();
+		if (order.getProducts().size() == 1)
+		{
+			final Product line = order.getProducts().get(0);
+			tallies.get(line.getProductId()).rejectedUnits.add(line.getQuantity());
+		}
+	}
+
+	// counted only once the broker took it, an unpublished result leaves its reservation to the expiry sweep
+	private void publishPaymentResult(final OrderProduct order, final boolean successful)
+	{
+		try
+		{
+			rabbitTemplate.convertAndSend(RabbitConfig.PAYMENT_EXCHANGE, RabbitConfig.PAYMENT_RESULT_ROUTING_KEY, PaymentResultEvent.builder()
+					.orderId(order.getOrderId())
+					.customerId(UUID.randomUUID())
+					.timestamp(Instant.now().toEpochMilli())
+					.isSuccessful(successful)
+					.build());
+			order.getProducts().forEach(line -> {
+				final SkuTally tally = tallies.get(line.getProductId());
+				(successful ? tally.paidUnits : tally.failedUnits).add(line.getQuantity());
+			});
+		} catch (Exception e)
+		{
+			paymentPublishErrors.increment();
+			logger.error("could not publish payment result of order " + order.getOrderId() + ": " + e.getMessage());
+		}
+	}
+
+	// until the payment queue is empty and no reservation is left open, or the drain timeout
+	private void awaitSettled() throws InterruptedException
+	{
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(profile.drainTimeoutSeconds);
+		while (System.nanoTime() < deadline)
+		{
+			final QueueInformation queue = amqpAdmin.getQueueInfo(RabbitConfig.PAYMENT_RESULT_QUEUE);
+			final Integer open = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ProductOrderReservation WHERE state = 'RESERVED'", Integer.class);
+			if ((queue == null || queue.getMessageCount() == 0) && open != null && open == 0)
+			{
+				return;
+			}
+			Thread.sleep(500);
+		}
+		logger.warn("payment results not settled after " + profile.drainTimeoutSeconds + "s");
+	}
+
+	private boolean report(final long elapsedNanos)
+	{
+		final double elapsedSeconds = elapsedNanos / 1e9;
+		final Timer lockTimeouts = meterRegistry.find("inventory.reservation.lock.wait").tag("outcome", "timeout").timer();
+		final StringBuilder report = new StringBuilder("\n==== flash sale load test ====\n")
+				.append(profile).append('\n')
+				.append(String.format("requests    sent=%d completed=%d clientSaturated=%d transportErrors=%d%n",
+						sent.sum(), latencies.getTotalCount() - transportErrors.sum(), clientSaturated.sum(), transportErrors.sum()))
+				.append("statuses    ").append(new TreeMap<>(statuses)).append('\n')
+				.append(String.format("throughput  %.1f req/s over %.1fs%n", latencies.getTotalCount() / elapsedSeconds, elapsedSeconds))
+				.append(String.format("latency     p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+						latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0,
+						latencies.getValueAtPercentile(99.9) / 1000.0, latencies.getMaxValue() / 1000.0))
+				.append(String.format("orders      accepted=%d rejected=%d lockTimeouts=%d%n",
+						acceptedOrders.sum(), rejectedOrders.sum(), lockTimeouts == null ? 0 : lockTimeouts.count()))
+				.append(String.format("payments    publishErrors=%d%n", paymentPublishErrors.sum()));
+
+		boolean passed = true;
+		final Map<UUID, Product> products = new LinkedHashMap<>();
+		productRepository.findAllById(hotSkus).forEach(product -> products.put(product.getProductId(), product));
+		for (SkuTally tally : tallies.values())
+		{
+			final Product product = products.get(tally.productId);
+			final List<String> violations = product == null ? List.of("MISSING product row") : tally.violations(product);
+			passed &= violations.isEmpty();
+			report.append("sku         ").append(tally);
+			if (product != null)
+			{
+				report.append(" quantity=").append(product.getQuantity()).append(" reserved=").append(product.getReservedQuantity());
+			}
+			report.append(violations.isEmpty() ? " OK" : " " + violations).append('\n');
+		}
+		report.append(passed ? "PASSED" : "FAILED");
+		logger.info(report);
+		return passed;
+	}
+}
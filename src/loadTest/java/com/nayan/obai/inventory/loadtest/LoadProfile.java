@@ -0,0 +1,53 @@
+package com.nayan.obai.inventory.loadtest;
+
+import com.nayan.obai.inventory.service.ReservationMode;
+
+/*
+ * Shape of one flash sale run, read from loadtest.* system properties (the loadTest gradle task passes on
+ * -Ploadtest.* project properties). Arrivals are open loop: orders go out at the given rate whatever the latency,
+ * up to maxInFlight concurrent requests, which is the number of virtual clients.
+ * */
+final class LoadProfile
+{
+	final int rate;
+	final int durationSeconds;
+	final int hotSkus;
+	final int stockPerSku;
+	final int linesPerOrder;
+	final int maxInFlight;
+	final double paymentSuccessRatio;
+	final long paymentDelayMillis;
+	final int drainTimeoutSeconds;
+	final ReservationMode mode;
+
+	private LoadProfile()
+	{
+		this.rate = Integer.getInteger("loadtest.rate", 2000);
+		this.durationSeconds = Integer.getInteger("loadtest.duration-seconds", 30);
+		this.hotSkus = Integer.getInteger("loadtest.hot-skus", 5);
+		this.stockPerSku = Integer.getInteger("loadtest.stock-per-sku", 1000);
+		this.linesPerOrder = Integer.getInteger("loadtest.lines-per-order", 1);
+		this.maxInFlight = Integer.getInteger("loadtest.max-in-flight", 2000);
+		this.paymentSuccessRatio = Double.parseDouble(System.getProperty("loadtest.payment-success-ratio", "0.9"));
+		this.paymentDelayMillis = Long.getLong("loadtest.payment-delay-ms", 200);
+		this.drainTimeoutSeconds = Integer.getInteger("loadtest.drain-timeout-seconds", 120);
+		this.mode = ReservationMode.valueOf(System.getProperty("loadtest.mode", ReservationMode.LOCK.name()));
+		if (rate <= 0 || durationSeconds <= 0 || hotSkus <= 0 || linesPerOrder <= 0 || linesPerOrder > hotSkus || maxInFlight <= 0)
+		{
+			throw new IllegalArgumentException("rate, duration, hot SKUs and max in flight must be positive and lines per order at most the hot SKUs");
+		}
+	}
+
+	static LoadProfile fromSystemProperties()
+	{
+		return new LoadProfile();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "mode=" + mode + " rate=" + rate + "/s duration=" + durationSeconds + "s hotSkus=" + hotSkus + " stockPerSku=" + stockPerSku
+				+ " linesPerOrder=" + linesPerOrder + " maxInFlight=" + maxInFlight + " paymentSuccessRatio=" + paymentSuccessRatio
+				+ " paymentDelay=" + paymentDelayMillis + "ms";
+	}
+}
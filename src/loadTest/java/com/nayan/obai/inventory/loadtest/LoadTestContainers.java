@@ -0,0 +1,53 @@
+package com.nayan.obai.inventory.loadtest;
+
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.containers.RabbitMQContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.util.List;
+
+/*
+ * Throwaway MySQL, Redis and RabbitMQ for one load test run. Versions follow what production runs, the schema
+ * comes from the Flyway migrations like on a real deployment.
+ * */
+final class LoadTestContainers implements AutoCloseable
+{
+	private final MySQLContainer<?> mysql = new MySQLContainer<>(DockerImageName.parse("mysql:8.0"))
+			.withDatabaseName("ObviousAI")
+			// the default of 151 would be the bottleneck long before the service is
+			.withCommand("--max-connections=1000");
+
+	private final GenericContainer<?> redis = new GenericContainer<>(DockerImageName.parse("redis:7-alpine"))
+			.withExposedPorts(6379);
+
+	private final RabbitMQContainer rabbit = new RabbitMQContainer(DockerImageName.parse("rabbitmq:3.13-management-alpine"));
+
+	void start()
+	{
+		List.of(mysql, redis, rabbit).parallelStream().forEach(GenericContainer::start);
+	}
+
+	// command line arguments, so they win over application.yml
+	List<String> applicationArguments()
+	{
+		return List.of(
+				"--spring.datasource.url=" + mysql.getJdbcUrl() + "?rewriteBatchedStatements=true",
+				"--spring.datasource.username=" + mysql.getUsername(),
+				"--spring.datasource.password=" + mysql.getPassword(),
+				"--spring.datasource.hikari.maximum-pool-size=50",
+				"--spring.rabbitmq.host=" + rabbit.getHost(),
+				"--spring.rabbitmq.port=" + rabbit.getAmqpPort(),
+				"--spring.rabbitmq.username=" + rabbit.getAdminUsername(),
+				"--spring.rabbitmq.password=" + rabbit.getAdminPassword(),
+				"--inventory.redis.address=redis://" + redis.getHost() + ":" + redis.getMappedPort(6379),
+				"--spring.data.redis.host=" + redis.getHost(),
+				"--spring.data.redis.port=" + redis.getMappedPort(6379));
+	}
+
+	@Override
+	public void close()
+	{
+		List.of(rabbit, redis, mysql).forEach(GenericContainer::stop);
+	}
+}
@@ -0,0 +1,30 @@
+package com.nayan.obai.inventory.loadtest;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+
+import java.time.Instant;
+import java.util.List;
+
+/*
+ * Accepts any bearer token as an internal machine token, so the load test exercises the security filter chain
+ * and the @PreAuthorize checks without calling out to Okta. Replaces the issuer-uri decoder, which is only
+ * created when no JwtDecoder bean exists. Only on the classpath of the loadTest source set.
+ * */
+@Configuration
+public class LoadTestSecurity
+{
+	@Bean
+	public JwtDecoder jwtDecoder()
+	{
+		return token -> Jwt.withTokenValue(token)
+				.header("alg", "none")
+				.subject("load-test")
+				.claim("scp", List.of("internal"))
+				.issuedAt(Instant.now())
+				.expiresAt(Instant.now().plusSeconds(3600))
+				.build();
+	}
+}
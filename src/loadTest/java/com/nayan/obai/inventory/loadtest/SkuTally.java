@@ -0,0 +1,63 @@
+package com.nayan.obai.inventory.loadtest;
+
+import com.nayan.obai.inventory.entity.Product;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * What the clients saw for one hot SKU, in units, checked against the product row once every payment result
+ * has been applied. The service is correct when stock went down by exactly the paid units, nothing is left
+ * reserved and no customer was turned away while the stock they wanted was still there.
+ * */
+final class SkuTally
+{
+	final UUID productId;
+	final int initialStock;
+	final LongAdder acceptedUnits = new LongAdder();
+	// single line orders only, a multi line order rejected for another SKU says nothing about this one
+	final LongAdder rejectedUnits = new LongAdder();
+	final LongAdder paidUnits = new LongAdder();
+	final LongAdder failedUnits = new LongAdder();
+
+	SkuTally(final UUID productId, final int initialStock)
+	{
+		this.productId = productId;
+		this.initialStock = initialStock;
+	}
+
+	// empty when the final row matches what the clients saw
+	List<String> violations(final Product product)
+	{
+		final List<String> violations = new ArrayList<>();
+		final long paid = paidUnits.sum();
+		final int quantity = product.getQuantity();
+		if (paid > initialStock || quantity < 0)
+		{
+			violations.add("OVERSOLD paid " + paid + " of " + initialStock + ", quantity " + quantity);
+		}
+		if (quantity != initialStock - paid)
+		{
+			violations.add("LOST_UPDATE quantity " + quantity + ", expected " + (initialStock - paid));
+		}
+		if (product.getReservedQuantity() != 0)
+		{
+			violations.add("LEAKED " + product.getReservedQuantity() + " units still reserved");
+		}
+		// with no failed payments nothing came back to the shelf, so any rejection with stock left was a lost sale
+		if (quantity > 0 && rejectedUnits.sum() > 0 && failedUnits.sum() == 0)
+		{
+			violations.add("UNDERSOLD " + quantity + " units left while " + rejectedUnits.sum() + " units were rejected");
+		}
+		return violations;
+	}
+
+	@Override
+	public String toString()
+	{
+		return productId + " initial=" + initialStock + " accepted=" + acceptedUnits.sum() + " rejected=" + rejectedUnits.sum()
+				+ " paid=" + paidUnits.sum() + " released=" + failedUnits.sum();
+	}
+}
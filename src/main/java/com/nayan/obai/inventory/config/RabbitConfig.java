@@ -1,18 +1,35 @@
 package com.nayan.obai.inventory.config;
 
+import com.nayan.obai.inventory.listener.PaymentResultDeadLetters;
+import com.nayan.obai.inventory.listener.PaymentResultRecoverer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
 import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueBuilder;
+import org.springframework.amqp.core.TopicExchange;
+import org.springframework.amqp.rabbit.config.RetryInterceptorBuilder;
 import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.retry.MessageBatchRecoverer;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.retry.interceptor.RetryOperationsInterceptor;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+
+import java.util.List;
+import java.util.Map;
 
 @Configuration
 public class RabbitConfig
@@ -21,6 +38,54 @@ public class RabbitConfig
 	public static final String PAYMENT_EXCHANGE = "payment.exchange";
 	public static final String PAYMENT_RESULT_QUEUE = "payment.result.queue";
 	public static final String PAYMENT_RESULT_ROUTING_KEY = "payment.result";
+	// availability changes for search, storefront and other readers, each binds its own queue
+	public static final String INVENTORY_EXCHANGE = "inventory.exchange";
+	public static final String STOCK_CHANGED_ROUTING_KEY = "stock.changed";
+	// asynchronous reservations: ReserveStockCommand in, StockReservedEvent or StockRejectedEvent out
+	public static final String RESERVE_STOCK_QUEUE = "inventory.reserve.queue";
+	public static final String RESERVE_STOCK_ROUTING_KEY = "stock.reserve";
+	public static final String STOCK_RESERVED_ROUTING_KEY = "stock.reserved";
+	public static final String STOCK_REJECTED_ROUTING_KEY = "stock.rejected";
+	// messages whose retries ran out are parked here under their own routing key
+	public static final String DEAD_LETTER_EXCHANGE = "inventory.dead-letter.exchange";
+	public static final String PAYMENT_RESULT_DEAD_LETTER_QUEUE = "payment.result.dlq";
+	public static final String RESERVE_STOCK_DEAD_LETTER_QUEUE = "inventory.reserve.dlq";
+
+	@Value("${inventory.payment-result.concurrency:1}")
+	private int concurrency;
+
+	@Value("${inventory.payment-result.max-concurrency:1}")
+	private int maxConcurrency;
+
+	@Value("${inventory.payment-result.prefetch:250}")
+	private int prefetch;
+
+	@Value("${inventory.payment-result.batch-size:500}")
+	private int batchSize;
+
+	@Value("${inventory.payment-result.batch-receive-timeout-ms:200}")
+	private long batchReceiveTimeoutMillis;
+
+	@Value("${inventory.listener.retry.max-attempts:5}")
+	private int retryMaxAttempts;
+
+	@Value("${inventory.listener.retry.initial-interval-ms:200}")
+	private long retryInitialIntervalMillis;
+
+	@Value("${inventory.listener.retry.max-interval-ms:5000}")
+	private long retryMaxIntervalMillis;
+
+	@Value("${inventory.reserve-command.concurrency:1}")
+	private int reserveConcurrency;
+
+	@Value("${inventory.reserve-command.max-concurrency:1}")
+	private int reserveMaxConcurrency;
+
+	@Value("${inventory.reserve-command.batch-size:100}")
+	private int reserveBatchSize;
+
+	@Value("${inventory.reserve-command.batch-receive-timeout-ms:20}")
+	private long reserveBatchReceiveTimeoutMillis;
 
 	@Bean
 	public DirectExchange paymentExchange()
@@ -28,6 +93,18 @@ public class RabbitConfig
 		return new DirectExchange(PAYMENT_EXCHANGE);
 	}
 
+	@Bean
+	public TopicExchange inventoryExchange()
+	{
+		return new TopicExchange(INVENTORY_EXCHANGE);
+	}
+
+	@Bean
+	public DirectExchange deadLetterExchange()
+	{
+		return new DirectExchange(DEAD_LETTER_EXCHANGE);
+	}
+
 	@Bean
 	public Queue paymentResultQueue()
 	{
@@ -35,6 +112,22 @@ public class RabbitConfig
 		return new Queue(PAYMENT_RESULT_QUEUE, true); // durable
 	}
 
+	// filled by PaymentResultRecoverer, the shared payment result queue keeps its arguments
+	@Bean
+	public Queue paymentResultDeadLetterQueue()
+	{
+		return new Queue(PAYMENT_RESULT_DEAD_LETTER_QUEUE, true); // durable
+	}
+
+	@Bean
+	public Binding paymentResultDeadLetterBinding()
+	{
+		return BindingBuilder
+				.bind(paymentResultDeadLetterQueue())
+				.to(deadLetterExchange())
+				.with(PAYMENT_RESULT_ROUTING_KEY);
+	}
+
 	@Bean
 	public Binding paymentResultBinding()
 	{
@@ -45,6 +138,38 @@ public class RabbitConfig
 				.with(PAYMENT_RESULT_ROUTING_KEY);
 	}
 
+	@Bean
+	public Queue reserveStockQueue()
+	{
+		logger.info("setting reserve stock queue");
+		return QueueBuilder.durable(RESERVE_STOCK_QUEUE).deadLetterExchange(DEAD_LETTER_EXCHANGE).build();
+	}
+
+	@Bean
+	public Queue reserveStockDeadLetterQueue()
+	{
+		return new Queue(RESERVE_STOCK_DEAD_LETTER_QUEUE, true); // durable
+	}
+
+	@Bean
+	public Binding reserveStockDeadLetterBinding()
+	{
+		return BindingBuilder
+				.bind(reserveStockDeadLetterQueue())
+				.to(deadLetterExchange())
+				.with(RESERVE_STOCK_ROUTING_KEY);
+	}
+
+	@Bean
+	public Binding reserveStockBinding()
+	{
+		logger.info("binding reserve stock commands");
+		return BindingBuilder
+				.bind(reserveStockQueue())
+				.to(inventoryExchange())
+				.with(RESERVE_STOCK_ROUTING_KEY);
+	}
+
 	// for message converters
 	@Bean
 	public MessageConverter jsonMessageConverter()
@@ -58,19 +183,110 @@ public class RabbitConfig
 		logger.info("Setting RabbitMQ template");
 		final RabbitTemplate template = new RabbitTemplate(connectionFactory);
 		template.setMessageConverter(jsonMessageConverter());
+		// carries the trace context in the message headers, so a consumer's spans join the publisher's trace
+		template.setObservationEnabled(true);
 		return template;
 	}
 
 	@Bean
 	public SimpleRabbitListenerContainerFactory rabbitListenerContainerFactory(
 			ConnectionFactory connectionFactory,
-			MessageConverter messageConverter
+			MessageConverter messageConverter,
+			RabbitTemplate rabbitTemplate,
+			PaymentResultDeadLetters paymentResultDeadLetters
 	)
 	{
 		logger.info("Setting RabbitMQ connection factory and message converter");
 		final SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
 		factory.setConnectionFactory(connectionFactory);
 		factory.setMessageConverter(messageConverter);
+		factory.setConcurrentConsumers(concurrency);
+		factory.setMaxConcurrentConsumers(maxConcurrency);
+		factory.setPrefetchCount(prefetch);
+		factory.setAdviceChain(retry(new PaymentResultRecoverer(rabbitTemplate, paymentResultDeadLetters)));
+		// continues the trace of the publisher. Spring AMQP does not observe batch listeners
+		factory.setObservationEnabled(true);
 		return factory;
 	}
+
+	// Drains up to batchSize messages per consumer, or whatever arrived within the receive timeout, and hands
+	// them to the listener as one list. With AUTO ack the whole batch is acked only after the listener returns,
+	// i.e. after the DB transaction for the batch committed. A failing batch is retried, then dead-lettered.
+	@Bean
+	public SimpleRabbitListenerContainerFactory batchRabbitListenerContainerFactory(
+			ConnectionFactory connectionFactory,
+			MessageConverter messageConverter,
+			RabbitTemplate rabbitTemplate,
+			PaymentResultDeadLetters paymentResultDeadLetters
+	)
+	{
+		logger.info("Setting RabbitMQ batch listener factory with batchSize=" + batchSize + " concurrency=" + concurrency);
+		final SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+		factory.setConnectionFactory(connectionFactory);
+		factory.setMessageConverter(messageConverter);
+		factory.setBatchListener(true);
+		factory.setConsumerBatchEnabled(true);
+		factory.setBatchSize(batchSize);
+		factory.setReceiveTimeout(batchReceiveTimeoutMillis);
+		factory.setConcurrentConsumers(concurrency);
+		factory.setMaxConcurrentConsumers(maxConcurrency);
+		// prefetch must cover a full batch or the consumer can never fill one
+		factory.setPrefetchCount(Math.max(prefetch, batchSize));
+		factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+		factory.setAdviceChain(retry(new PaymentResultRecoverer(rabbitTemplate, paymentResultDeadLetters)));
+		return factory;
+	}
+
+	// Micro-batches of reserve commands: a short receive timeout keeps the added latency low while a burst of
+	// orders still arrives as one batch, which the service groups by shared products
+	@Bean
+	public SimpleRabbitListenerContainerFactory reserveCommandListenerContainerFactory(
+			ConnectionFactory connectionFactory,
+			MessageConverter messageConverter
+	)
+	{
+		logger.info("Setting RabbitMQ reserve command listener factory with batchSize=" + reserveBatchSize + " concurrency=" + reserveConcurrency);
+		final SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+		factory.setConnectionFactory(connectionFactory);
+		factory.setMessageConverter(messageConverter);
+		factory.setBatchListener(true);
+		factory.setConsumerBatchEnabled(true);
+		factory.setBatchSize(reserveBatchSize);
+		factory.setReceiveTimeout(reserveBatchReceiveTimeoutMillis);
+		factory.setConcurrentConsumers(reserveConcurrency);
+		factory.setMaxConcurrentConsumers(reserveMaxConcurrency);
+		factory.setPrefetchCount(reserveBatchSize);
+		factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+		// a batch that keeps failing would block the queue, after its retries it goes to inventory.reserve.dlq for a replay
+		factory.setDefaultRequeueRejected(false);
+		factory.setAdviceChain(retry(new MessageBatchRecoverer()
+		{
+			@Override
+			public void recover(final Message message, final Throwable cause)
+			{
+				throw new AmqpRejectAndDontRequeueException("Retries exhausted for a reserve command", cause);
+			}
+
+			@Override
+			public void recover(final List<Message> messages, final Throwable cause)
+			{
+				throw new AmqpRejectAndDontRequeueException("Retries exhausted for a batch of " + messages.size() + " reserve commands", cause);
+			}
+		}));
+		return factory;
+	}
+
+	/*
+	 * Stateless retry in the consumer with exponential backoff, so a DB blip, lock timeout or deadlock does not
+	 * dead-letter a message. A message that cannot be converted is not retried. Stateful retry would need a
+	 * message id on every message and does not work for batch listeners.
+	 * */
+	private RetryOperationsInterceptor retry(final MessageRecoverer recoverer)
+	{
+		return RetryInterceptorBuilder.stateless()
+				.retryPolicy(new SimpleRetryPolicy(retryMaxAttempts, Map.<Class<? extends Throwable>, Boolean>of(MessageConversionException.class, false), true, true))
+				.backOffOptions(retryInitialIntervalMillis, 2.0, retryMaxIntervalMillis)
+				.recoverer(recoverer)
+				.build();
+	}
 }
@@ -4,7 +4,11 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import org.redisson.config.Config;
+import org.redisson.config.SingleServerConfig;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.ClassPathResource;
@@ -15,13 +19,53 @@ import java.io.IOException;
 public class RedissonConfig
 {
 	final Logger logger = LogManager.getLogger("RedissonConfig.java");
+
+	// overrides the address of redisson-config.yml, e.g. to point at a throwaway Redis in the load test
+	@Value("${inventory.redis.address:}")
+	private String redisAddress;
+
 	@Bean(destroyMethod = "shutdown")
 	public RedissonClient redissonClient() throws IOException
+	{
+		return Redisson.create(loadConfig());
+	}
+
+	/*
+	 * Redisson does not publish the usage of its connection pools, so the configured sizes are exported to put
+	 * next to hikaricp_connections_* and the lock wait metrics. A lock wait growing while the pool is small is
+	 * the pool, not contention.
+	 * */
+	@Bean
+	public MeterBinder redissonPoolMetrics() throws IOException
+	{
+		final SingleServerConfig server = loadConfig().useSingleServer();
+		return registry -> {
+			Gauge.builder("redisson.pool.max", server, SingleServerConfig::getConnectionPoolSize)
+					.description("Configured size of the Redisson connection pool")
+					.tag("pool", "command")
+					.register(registry);
+			Gauge.builder("redisson.pool.min-idle", server, SingleServerConfig::getConnectionMinimumIdleSize)
+					.description("Configured minimum idle connections of the Redisson connection pool")
+					.tag("pool", "command")
+					.register(registry);
+			Gauge.builder("redisson.pool.max", server, SingleServerConfig::getSubscriptionConnectionPoolSize)
+					.description("Configured size of the Redisson connection pool")
+					.tag("pool", "subscription")
+					.register(registry);
+		};
+	}
+
+	private Config loadConfig() throws IOException
 	{
 		logger.info("loading redisson config");
 		Config config = Config.fromYAML(
 				new ClassPathResource("redisson-config.yml").getInputStream()
 		);
-		return Redisson.create(config);
+		if (!redisAddress.isBlank())
+		{
+			logger.info("using redis address " + redisAddress);
+			config.useSingleServer().setAddress(redisAddress);
+		}
+		return config;
 	}
 }
@@ -1,22 +1,47 @@
 package com.nayan.obai.inventory.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
 import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.rest.HotSku;
 import com.nayan.obai.inventory.rest.OrderProduct;
+import com.nayan.obai.inventory.rest.ProductAvailability;
+import com.nayan.obai.inventory.rest.ProductStockBuckets;
+import com.nayan.obai.inventory.rest.StockAdjustment;
+import com.nayan.obai.inventory.rest.StockAdjustmentResult;
+import com.nayan.obai.inventory.rest.StockImportResult;
+import com.nayan.obai.inventory.rest.StockReplayResult;
 import com.nayan.obai.inventory.service.ProductService;
+import com.nayan.obai.inventory.service.StockImportFormat;
+import com.nayan.obai.inventory.service.StockImportService;
+import com.nayan.obai.inventory.service.StockJournalService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 @RestController
@@ -25,9 +50,24 @@ public class InventoryController
 {
 	final Logger logger = LogManager.getLogger("InventoryController");
 
+	private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+	private static final String NDJSON = "application/x-ndjson";
+
+	private static final String CSV = "text/csv";
+
 	@Autowired
 	private ProductService productService;
 
+	@Autowired
+	private StockImportService stockImportService;
+
+	@Autowired
+	private StockJournalService stockJournalService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
 	@PreAuthorize("hasAuthority('SCOPE_internal') || hasRole('REGULAR_USERS')")
 	@GetMapping("/{productId}")
 	public ResponseEntity<Product> getProduct(@PathVariable UUID productId)
@@ -37,6 +77,28 @@ public class InventoryController
 		return ResponseEntity.ok(product);
 	}
 
+	@PreAuthorize("hasAuthority('SCOPE_internal') || hasRole('REGULAR_USERS')")
+	@PostMapping("/availability")
+	public ResponseEntity<ProductAvailability> getAvailability(@RequestBody List<UUID> productIds)
+	{
+		logger.debug("request for availability of " + productIds.size() + " products");
+		final Map<UUID, Product> products = productService.getAvailableProducts(productIds);
+		final List<Product> found = new ArrayList<>();
+		final List<UUID> missing = new ArrayList<>();
+		for (UUID productId : new LinkedHashSet<>(productIds))
+		{
+			final Product product = products.get(productId);
+			if (product == null)
+			{
+				missing.add(productId);
+			} else
+			{
+				found.add(product);
+			}
+		}
+		return ResponseEntity.ok(ProductAvailability.builder().products(found).missingProductIds(missing).build());
+	}
+
 	@PreAuthorize("hasRole('ADMIN')")
 	@PostMapping("/")
 	public ResponseEntity<Product> saveProduct(@RequestBody Product product)
@@ -54,13 +116,111 @@ public class InventoryController
 		return ResponseEntity.status(HttpStatus.CREATED).body(updatedProduct);
 	}
 
+	// receipts, shrinkage and cycle counts, applied in order, each one accepted or rejected on its own
+	@PreAuthorize("hasAuthority('SCOPE_internal') || hasRole('ADMIN')")
+	@PostMapping("/adjustments")
+	public ResponseEntity<List<StockAdjustmentResult>> adjustStock(@RequestBody List<StockAdjustment> adjustments)
+	{
+		logger.debug("request for " + adjustments.size() + " stock adjustments");
+		final List<StockAdjustmentResult> results = productService.adjustStock(adjustments);
+		return ResponseEntity.ok(results);
+	}
+
+	// bulk stock feed, CSV (productId,quantity) or NDJSON, read while it is uploaded
+	@PreAuthorize("hasAuthority('SCOPE_internal') || hasRole('ADMIN')")
+	@PostMapping(value = "/import", consumes = {CSV, NDJSON})
+	public ResponseEntity<StockImportResult> importStock(@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType, InputStream body)
+	{
+		logger.debug("request for stock import of " + contentType);
+		final StockImportFormat format = contentType.startsWith(CSV) ? StockImportFormat.CSV : StockImportFormat.NDJSON;
+		final StockImportResult result = stockImportService.importStock(body, format);
+		return ResponseEntity.ok(result);
+	}
+
+	// on-hand and reserved quantity rebuilt from the movement journal, as of at (ISO-8601) or now
+	@PreAuthorize("hasAuthority('SCOPE_internal') || hasRole('ADMIN')")
+	@GetMapping("/journal/{productId}")
+	public ResponseEntity<Product> getProductAt(@PathVariable UUID productId, @RequestParam(required = false) Instant at)
+	{
+		logger.debug("request for journal state of productId=" + productId + " at " + at);
+		final Product product = stockJournalService.getProductAt(productId, at);
+		return ResponseEntity.ok(product);
+	}
+
+	// replays the journal over every product and reports the differences, apply=true rewrites the on-hand quantity
+	@PreAuthorize("hasRole('ADMIN')")
+	@PostMapping("/journal/replay")
+	public ResponseEntity<StockReplayResult> replayJournal(@RequestParam(required = false) Instant at, @RequestParam(defaultValue = "false") boolean apply)
+	{
+		logger.debug("request for journal replay at " + at + " apply=" + apply);
+		final StockReplayResult result = stockJournalService.replay(at, apply);
+		return ResponseEntity.ok(result);
+	}
+
+	// streaming top-K of SKUs by reserved lines and lock wait, hottest first. hot=true SKUs skip the product locks
+	@PreAuthorize("hasAuthority('SCOPE_internal') || hasRole('ADMIN')")
+	@GetMapping("/hot-skus")
+	public ResponseEntity<List<HotSku>> getHotSkus()
+	{
+		logger.debug("request for hot SKUs");
+		return ResponseEntity.ok(productService.getHotSkus());
+	}
+
+	// stock of a product on its Product row and in each of its stock buckets
+	@PreAuthorize("hasAuthority('SCOPE_internal') || hasRole('ADMIN')")
+	@GetMapping("/{productId}/stock-buckets")
+	public ResponseEntity<ProductStockBuckets> getStockBuckets(@PathVariable UUID productId)
+	{
+		logger.debug("request for stock buckets of productId=" + productId);
+		return ResponseEntity.ok(productService.getStockBuckets(productId));
+	}
+
+	// splits the stock of an ultra-hot product over count buckets reserved from independently, count=1 undoes it
+	@PreAuthorize("hasRole('ADMIN')")
+	@PutMapping("/{productId}/stock-buckets")
+	public ResponseEntity<ProductStockBuckets> configureStockBuckets(@PathVariable UUID productId, @RequestParam int count)
+	{
+		logger.debug("request for " + count + " stock buckets of productId=" + productId);
+		return ResponseEntity.ok(productService.configureStockBuckets(productId, count));
+	}
+
+	// keyset pagination: pass the X-Next-Cursor header of a page as after to get the next one
 	@PreAuthorize("hasRole('REGULAR_USERS')")
 	@GetMapping("/")
-	public ResponseEntity<List<Product>> getProducts()
+	public ResponseEntity<List<Product>> getProducts(@RequestParam(required = false) UUID after, @RequestParam(defaultValue = "100") int size)
+	{
+		logger.debug("request for get products after=" + after + " size=" + size);
+		final List<Product> products = productService.getProducts(after, size);
+		final ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+		// compared with the capped size the page was read with, a larger size asked for is never filled
+		if (!products.isEmpty() && products.size() >= productService.getPageSize(size))
+		{
+			response.header(NEXT_CURSOR_HEADER, products.get(products.size() - 1).getProductId().toString());
+		}
+		return response.body(products);
+	}
+
+	// whole catalog as one JSON product per line, written while the rows are read
+	@PreAuthorize("hasAuthority('SCOPE_internal') || hasRole('ADMIN')")
+	@GetMapping(value = "/export", produces = NDJSON)
+	public ResponseEntity<StreamingResponseBody> exportProducts()
 	{
-		logger.debug("request for get all products");
-		final List<Product> products = productService.getAllProducts();
-		return ResponseEntity.ok(products);
+		logger.debug("request for product export");
+		final StreamingResponseBody body = outputStream -> {
+			try (SequenceWriter writer = objectMapper.writerFor(Product.class).withRootValueSeparator("\n").writeValues(outputStream))
+			{
+				productService.exportProducts(product -> {
+					try
+					{
+						writer.write(product);
+					} catch (IOException e)
+					{
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+		};
+		return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
 	}
 
 	@PreAuthorize("hasAuthority('SCOPE_internal') || hasRole('REGULAR_USER')")
@@ -0,0 +1,23 @@
+package com.nayan.obai.inventory.entity;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+// Last Redis ledger journal sequence applied to the DB. Updated in the same transaction as the journal entries.
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@Entity
+public class LedgerCheckpoint
+{
+	@Id
+	private String name;
+	private long lastSequence;
+}
@@ -0,0 +1,51 @@
+package com.nayan.obai.inventory.entity;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.Transient;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.domain.Persistable;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+// One row per order whose payment result has been applied. The primary key rejects a second result for the same order.
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@Entity
+public class ProcessedPaymentEvent implements Persistable<UUID>
+{
+	@Id
+	private UUID orderId;
+
+	@Enumerated(EnumType.STRING)
+	private ReservationState outcome;
+
+	private LocalDateTime processedAt;
+
+	// always inserted, never merged, so saving does not issue a SELECT first
+	@Transient
+	@Builder.Default
+	private boolean newEvent = true;
+
+	@Override
+	public UUID getId()
+	{
+		return orderId;
+	}
+
+	@Override
+	public boolean isNew()
+	{
+		return newEvent;
+	}
+}
@@ -6,6 +6,7 @@ import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.Id;
 import jakarta.persistence.PrePersist;
 import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
@@ -42,6 +43,17 @@ public class Product
 	@Column(name = "quantity")
 	private Integer quantity;
 
+	// Running total of open reservations for this product. Maintained only through the atomic
+	// update queries in ProductRepository, so a plain save of a client payload can never overwrite it.
+	@Column(name = "reservedQuantity", insertable = false, updatable = false, columnDefinition = "int not null default 0")
+	private Integer reservedQuantity;
+
+	// bumped by every change of quantity, including the relative updates in ProductRepository, so a cycle count
+	// taken at one version is not applied over a change it has not seen
+	@Version
+	@Column(name = "version", columnDefinition = "bigint not null default 0")
+	private Long version;
+
 	@UpdateTimestamp
 	@Column(name = "lastUpdated")
 	private LocalDateTime lastUpdated;
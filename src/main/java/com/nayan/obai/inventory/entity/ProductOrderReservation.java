@@ -1,8 +1,15 @@
 package com.nayan.obai.inventory.entity;
 
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
 import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
@@ -18,14 +25,29 @@ import java.util.UUID;
 @NoArgsConstructor
 @Builder
 @Entity
+// indexes are created by the Flyway migrations, declared here so the mapping documents what the hot queries rely on
+@Table(indexes = {
+		@Index(name = "idx_reservation_state_timestamp", columnList = "state, timestamp"),
+		@Index(name = "idx_reservation_product_state_quantity", columnList = "productId, state, reservedQuantity"),
+		@Index(name = "idx_reservation_order_state", columnList = "orderId, state")
+})
 @EqualsAndHashCode(of = {"orderId", "productId", "reservedQuantity"})
 public class ProductOrderReservation
 {
+	// pooled sequence (a table on MySQL) hands out ids in blocks, so inserts can be JDBC batched.
+	// IDENTITY would force one round trip per row. Name kept as the one Hibernate generated before.
 	@Id
-	@GeneratedValue
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "reservationIdGenerator")
+	@SequenceGenerator(name = "reservationIdGenerator", sequenceName = "ProductOrderReservation_SEQ", allocationSize = 50)
 	private long reservationId;
 	private UUID orderId;
 	private UUID productId;
 	private int reservedQuantity;
+	// epoch seconds the reservation was made, reservations older than the expiry ttl are released
 	private long timestamp;
+
+	@Enumerated(EnumType.STRING)
+	@Column(columnDefinition = "varchar(16) not null default 'RESERVED'")
+	@Builder.Default
+	private ReservationState state = ReservationState.RESERVED;
 }
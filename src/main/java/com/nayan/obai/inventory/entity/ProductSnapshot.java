@@ -0,0 +1,36 @@
+package com.nayan.obai.inventory.entity;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.UUID;
+
+// State of one product after every movement up to lastMovementId. Replay starts from the latest snapshot instead of the first movement.
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@Entity
+@Table(indexes = @Index(name = "idx_product_snapshot_product_taken_at", columnList = "productId, takenAt"))
+public class ProductSnapshot
+{
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long snapshotId;
+	private UUID productId;
+	private int quantity;
+	private int reservedQuantity;
+	private long lastMovementId;
+	// epoch millis the snapshot describes, point-in-time replay starts from the latest snapshot taken at or before the requested time
+	private long takenAt;
+}
@@ -0,0 +1,46 @@
+package com.nayan.obai.inventory.entity;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/*
+ * One stock bucket of a striped product. The stock parked in the buckets is counted in the reservedQuantity
+ * of the Product row, an order reserving from a bucket draws the bucket down and leaves the Product row alone.
+ * */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@Entity
+@IdClass(ProductStockBucket.Key.class)
+public class ProductStockBucket
+{
+	// rows are written with JDBC by ProductStockBucketRepository, the entity is read by the reconciliation query
+	@Id
+	private UUID productId;
+	@Id
+	private int bucket;
+	private int quantity;
+
+	@Getter
+	@Setter
+	@AllArgsConstructor
+	@NoArgsConstructor
+	@EqualsAndHashCode
+	public static class Key implements Serializable
+	{
+		private UUID productId;
+		private int bucket;
+	}
+}
@@ -0,0 +1,13 @@
+package com.nayan.obai.inventory.entity;
+
+/*
+ * Lifecycle of a ProductOrderReservation row. Rows are created RESERVED and a payment result moves them
+ * to COMMITTED or RELEASED with an UPDATE guarded on RESERVED, so a duplicate or racing result updates no rows.
+ * Settled rows are deleted in the same transaction that settles them.
+ * */
+public enum ReservationState
+{
+	RESERVED,
+	COMMITTED,
+	RELEASED
+}
@@ -0,0 +1,35 @@
+package com.nayan.obai.inventory.entity;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.UUID;
+
+/*
+ * Transactional outbox of availability changes. A row is written in the same transaction as the stock change
+ * and only says which product changed; StockOutboxRelay reads the current availability when it publishes,
+ * so all rows of a product within one relay run collapse into one StockChangedEvent.
+ * */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@Entity
+public class StockChangeOutbox
+{
+	// rows are inserted with JDBC batches or INSERT ... SELECT, never through JPA
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long outboxId;
+	private UUID productId;
+	// epoch millis of the change
+	private long createdAt;
+}
@@ -0,0 +1,50 @@
+package com.nayan.obai.inventory.entity;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.UUID;
+
+/*
+ * One append-only entry of the stock movement journal. Rows are never updated or deleted.
+ * Replaying a product's movements in id order over its latest ProductSnapshot gives its current state.
+ * */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@Entity
+// created by the V4 migration, replay reads the movements of a product after a snapshot's lastMovementId
+@Table(indexes = @Index(name = "idx_stock_movement_product_id", columnList = "productId, movementId"))
+public class StockMovement
+{
+	// rows are inserted with JDBC batches by StockMovementBatchRepository, never through JPA
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long movementId;
+	private UUID productId;
+	// null for ADJUST
+	private UUID orderId;
+
+	@Enumerated(EnumType.STRING)
+	private StockMovementType type;
+
+	private int quantityDelta;
+	private int reservedDelta;
+	// set when the movement overwrote the on-hand quantity (cycle count, import, new product), quantityDelta is then 0
+	private Integer quantityAfter;
+	// epoch millis the change happened
+	private long timestamp;
+}
@@ -0,0 +1,18 @@
+package com.nayan.obai.inventory.entity;
+
+/*
+ * Kind of change a StockMovement records.
+ * RESERVE - reservedQuantity went up for an order
+ * RELEASE - a reservation was given back (failed payment, expiry, rolled back reserve)
+ * COMMIT  - a reservation was paid, it leaves quantity and reservedQuantity
+ * ADJUST  - on-hand quantity changed outside of orders (new product, receipt, shrinkage, cycle count, import)
+ * PARK    - stock moved between a Product row and its stock buckets, parked stock counts as reserved
+ * */
+public enum StockMovementType
+{
+	RESERVE,
+	RELEASE,
+	COMMIT,
+	ADJUST,
+	PARK
+}
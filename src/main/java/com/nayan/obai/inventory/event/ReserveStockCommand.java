@@ -0,0 +1,24 @@
+package com.nayan.obai.inventory.event;
+
+import com.nayan.obai.inventory.entity.Product;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+import java.util.UUID;
+
+// Asynchronous counterpart of POST /inventory/validate, answered with a StockReservedEvent or a StockRejectedEvent for the orderId
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class ReserveStockCommand
+{
+	private UUID orderId;
+	private List<Product> products;
+	private Long timestamp;
+}
@@ -0,0 +1,25 @@
+package com.nayan.obai.inventory.event;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.UUID;
+
+// Published on inventory.exchange with routing key stock.changed. sequence grows with every event published, consumers drop per product an event older than the last one they applied.
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class StockChangedEvent
+{
+	private UUID productId;
+	private int availableQuantity;
+	private int quantity;
+	private int reservedQuantity;
+	private long sequence;
+	private Long timestamp;
+}
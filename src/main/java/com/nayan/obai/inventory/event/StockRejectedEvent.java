@@ -0,0 +1,21 @@
+package com.nayan.obai.inventory.event;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.UUID;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class StockRejectedEvent
+{
+	private UUID orderId;
+	private String reason;
+	private Long timestamp;
+}
@@ -15,4 +15,16 @@ public class GlobalExceptionHandler
 		final ApiResponse response = ApiResponse.builder().message(message).success(true).status(HttpStatus.NOT_FOUND).build();
 		return new ResponseEntity<ApiResponse>(response, HttpStatus.NOT_FOUND);
 	}
+
+	@ExceptionHandler(StockConflictException.class)
+	public ResponseEntity<ApiResponse> handleConflictException(final StockConflictException e) {
+		final ApiResponse response = ApiResponse.builder().message(e.getMessage()).success(false).status(HttpStatus.CONFLICT).build();
+		return new ResponseEntity<ApiResponse>(response, HttpStatus.CONFLICT);
+	}
+
+	@ExceptionHandler(IllegalArgumentException.class)
+	public ResponseEntity<ApiResponse> handleBadRequestException(final IllegalArgumentException e) {
+		final ApiResponse response = ApiResponse.builder().message(e.getMessage()).success(false).status(HttpStatus.BAD_REQUEST).build();
+		return new ResponseEntity<ApiResponse>(response, HttpStatus.BAD_REQUEST);
+	}
 }
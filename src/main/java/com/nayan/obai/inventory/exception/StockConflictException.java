@@ -0,0 +1,10 @@
+package com.nayan.obai.inventory.exception;
+
+// a stock write that lost against a concurrent change or would drop below the reserved stock
+public class StockConflictException extends RuntimeException
+{
+	public StockConflictException(String message)
+	{
+		super(message);
+	}
+}
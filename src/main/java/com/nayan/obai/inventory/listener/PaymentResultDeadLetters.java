@@ -0,0 +1,43 @@
+package com.nayan.obai.inventory.listener;
+
+import org.redisson.api.RSetCache;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+ * Orders whose payment result went to payment.result.dlq after its retries ran out. The result is still owed,
+ * so the expiry sweep leaves their reservations alone until the DLQ is replayed. Entries age out after
+ * retention-hours, by then the replay has settled the order or it was handled by hand.
+ * */
+@Component
+public class PaymentResultDeadLetters
+{
+	private static final String KEY = "inventory:payment-result:dead-lettered";
+
+	private final RSetCache<String> orderIds;
+
+	@Value("${inventory.payment-result.dead-letter-retention-hours:168}")
+	private long retentionHours = 168;
+
+	public PaymentResultDeadLetters(final RedissonClient redissonClient)
+	{
+		this.orderIds = redissonClient.getSetCache(KEY, StringCodec.INSTANCE);
+	}
+
+	public void add(final UUID orderId)
+	{
+		orderIds.add(orderId.toString(), retentionHours, TimeUnit.HOURS);
+	}
+
+	public Set<UUID> orderIds()
+	{
+		return orderIds.readAll().stream().map(UUID::fromString).collect(Collectors.toSet());
+	}
+}
@@ -3,24 +3,113 @@ package com.nayan.obai.inventory.listener;
 import com.nayan.obai.inventory.config.RabbitConfig;
 import com.nayan.obai.inventory.event.PaymentResultEvent;
 import com.nayan.obai.inventory.service.ProductService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.stereotype.Component;
 
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
 @Component
 public class PaymentResultListener
 {
+	final Logger logger = LogManager.getLogger("PaymentResultListener");
+
 	ProductService productService;
 
-	public PaymentResultListener(ProductService productService) {
+	MeterRegistry meterRegistry;
+
+	// time from the payment service stamping the result until it is picked up here
+	private final Timer lag;
+
+	public PaymentResultListener(ProductService productService, MeterRegistry meterRegistry) {
 		this.productService = productService;
+		this.meterRegistry = meterRegistry;
+		this.lag = Timer.builder("inventory.payment-result.lag")
+				.description("Age of a payment result when it is picked up, from its event timestamp")
+				.register(meterRegistry);
 	}
 
-	@RabbitListener(queues = RabbitConfig.PAYMENT_RESULT_QUEUE)
+	// one message at a time, used unless inventory.payment-result.batch-enabled=true
+	@RabbitListener(queues = RabbitConfig.PAYMENT_RESULT_QUEUE, autoStartup = "#{!${inventory.payment-result.batch-enabled:false}}")
 	public void handlePaymentSuccess(final PaymentResultEvent event) {
+		recordLag(event);
+		final long start = System.nanoTime();
+		String outcome = "failed";
+		try
+		{
+			apply(event);
+			outcome = event.isSuccessful() ? "committed" : "released";
+		} finally
+		{
+			processingTimer("single", outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void apply(final PaymentResultEvent event) {
 		if(event.isSuccessful()){
 			productService.updateProductStockForSuccessfulOrder(event.getOrderId());
 		} else {
 			productService.removeReservedProductStock(event.getOrderId());
 		}
 	}
+
+	// batch mode: the whole batch is applied as one set based transaction, grouped by outcome
+	@RabbitListener(queues = RabbitConfig.PAYMENT_RESULT_QUEUE, containerFactory = "batchRabbitListenerContainerFactory",
+			autoStartup = "${inventory.payment-result.batch-enabled:false}")
+	public void handlePaymentResults(final List<PaymentResultEvent> events) {
+		logger.debug("received batch of " + events.size() + " payment results");
+		events.forEach(this::recordLag);
+		final long start = System.nanoTime();
+		final Set<UUID> successfulOrderIds = new LinkedHashSet<>();
+		final Set<UUID> failedOrderIds = new LinkedHashSet<>();
+		for (PaymentResultEvent event : events)
+		{
+			if (event.isSuccessful())
+			{
+				successfulOrderIds.add(event.getOrderId());
+			} else
+			{
+				failedOrderIds.add(event.getOrderId());
+			}
+		}
+		try
+		{
+			productService.applyPaymentResults(successfulOrderIds, failedOrderIds);
+			processingTimer("batch", "applied").record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		} catch (Exception e)
+		{
+			// one bad event must not block the rest of the batch, retry them one by one
+			logger.error("batch of " + events.size() + " payment results failed, falling back to single processing: " + e.getMessage());
+			try
+			{
+				events.forEach(this::apply);
+			} finally
+			{
+				processingTimer("batch", "fallback").record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	// results stamped in the future (clock skew between services) count as no lag
+	private void recordLag(final PaymentResultEvent event) {
+		if (event.getTimestamp() != null)
+		{
+			lag.record(Math.max(0, System.currentTimeMillis() - event.getTimestamp()), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private Timer processingTimer(final String delivery, final String outcome) {
+		return Timer.builder("inventory.payment-result.processing")
+				.description("Time to apply one payment result, or one batch of them")
+				.tag("delivery", delivery)
+				.tag("outcome", outcome)
+				.register(meterRegistry);
+	}
 }
@@ -0,0 +1,77 @@
+package com.nayan.obai.inventory.listener;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nayan.obai.inventory.config.RabbitConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.retry.MessageBatchRecoverer;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+import org.springframework.amqp.rabbit.retry.RepublishMessageRecovererWithConfirms;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Last step for a payment result whose retries ran out, or that cannot be converted: it is republished to
+ * payment.result.dlq with the exception in its headers, after the broker confirmed it the original is acked.
+ * Its order is remembered in PaymentResultDeadLetters first, so the expiry sweep does not hand the stock of a
+ * paid order back while the result waits for a replay. If either step fails the message is requeued instead.
+ * */
+public class PaymentResultRecoverer implements MessageBatchRecoverer
+{
+	final Logger logger = LogManager.getLogger("PaymentResultRecoverer");
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final PaymentResultDeadLetters deadLetters;
+
+	private final MessageRecoverer republish;
+
+	public PaymentResultRecoverer(final RabbitTemplate rabbitTemplate, final PaymentResultDeadLetters deadLetters)
+	{
+		this(new RepublishMessageRecovererWithConfirms(rabbitTemplate, RabbitConfig.DEAD_LETTER_EXCHANGE, RabbitConfig.PAYMENT_RESULT_ROUTING_KEY,
+				CachingConnectionFactory.ConfirmType.SIMPLE), deadLetters);
+	}
+
+	PaymentResultRecoverer(final MessageRecoverer republish, final PaymentResultDeadLetters deadLetters)
+	{
+		this.republish = republish;
+		this.deadLetters = deadLetters;
+	}
+
+	@Override
+	public void recover(final Message message, final Throwable cause)
+	{
+		final UUID orderId = orderId(message);
+		logger.error("payment result of orderId=" + orderId + " dead-lettered: " + (cause == null ? null : cause.getMessage()));
+		if (orderId != null)
+		{
+			deadLetters.add(orderId);
+		}
+		republish.recover(message, cause);
+	}
+
+	@Override
+	public void recover(final List<Message> messages, final Throwable cause)
+	{
+		messages.forEach(message -> recover(message, cause));
+	}
+
+	// read straight from the body, a message the converter rejected may still carry its orderId
+	private UUID orderId(final Message message)
+	{
+		try
+		{
+			final JsonNode orderId = OBJECT_MAPPER.readTree(message.getBody()).path("orderId");
+			return orderId.isTextual() ? UUID.fromString(orderId.asText()) : null;
+		} catch (IOException | IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+}
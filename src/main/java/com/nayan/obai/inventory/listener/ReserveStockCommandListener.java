@@ -0,0 +1,77 @@
+package com.nayan.obai.inventory.listener;
+
+import com.nayan.obai.inventory.config.RabbitConfig;
+import com.nayan.obai.inventory.event.ReserveStockCommand;
+import com.nayan.obai.inventory.event.StockRejectedEvent;
+import com.nayan.obai.inventory.event.StockReservedEvent;
+import com.nayan.obai.inventory.rest.OrderProduct;
+import com.nayan.obai.inventory.service.ProductService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * Message driven counterpart of POST /inventory/validate. Each batch of commands is reserved with
+ * ProductService.reserveOrders and every order is answered on inventory.exchange. The batch is acked only after
+ * the replies are confirmed by the broker; if publishing keeps failing it is dead-lettered to inventory.reserve.dlq. On a
+ * replay, orders that already hold their reservations are answered as reserved again instead of being reserved twice.
+ * */
+@Component
+public class ReserveStockCommandListener
+{
+	final Logger logger = LogManager.getLogger("ReserveStockCommandListener");
+
+	private final ProductService productService;
+
+	private final RabbitTemplate rabbitTemplate;
+
+	@Value("${inventory.reserve-command.confirm-timeout-ms:5000}")
+	private long confirmTimeoutMillis = 5000;
+
+	public ReserveStockCommandListener(final ProductService productService, final RabbitTemplate rabbitTemplate)
+	{
+		this.productService = productService;
+		this.rabbitTemplate = rabbitTemplate;
+	}
+
+	@RabbitListener(queues = RabbitConfig.RESERVE_STOCK_QUEUE, containerFactory = "reserveCommandListenerContainerFactory",
+			autoStartup = "${inventory.reserve-command.enabled:true}")
+	public void handleReserveCommands(final List<ReserveStockCommand> commands)
+	{
+		logger.debug("received batch of " + commands.size() + " reserve commands");
+		final List<OrderProduct> orders = commands.stream()
+				.filter(command -> command.getOrderId() != null)
+				.map(command -> OrderProduct.builder().orderId(command.getOrderId()).products(command.getProducts()).build())
+				.toList();
+		if (orders.size() < commands.size())
+		{
+			logger.warn("dropping " + (commands.size() - orders.size()) + " reserve commands without an orderId");
+		}
+		final Map<UUID, String> outcomes = productService.reserveOrders(orders);
+		final long now = System.currentTimeMillis();
+		rabbitTemplate.invoke(operations -> {
+			outcomes.forEach((orderId, rejection) -> {
+				if (rejection == null)
+				{
+					operations.convertAndSend(RabbitConfig.INVENTORY_EXCHANGE, RabbitConfig.STOCK_RESERVED_ROUTING_KEY,
+							StockReservedEvent.builder().orderId(orderId).timestamp(now).build());
+				} else
+				{
+					operations.convertAndSend(RabbitConfig.INVENTORY_EXCHANGE, RabbitConfig.STOCK_REJECTED_ROUTING_KEY,
+							StockRejectedEvent.builder().orderId(orderId).reason(rejection).timestamp(now).build());
+				}
+			});
+			// throws when a nack or the timeout comes first, the batch is then retried
+			operations.waitForConfirmsOrDie(confirmTimeoutMillis);
+			return null;
+		});
+		logger.debug("answered " + outcomes.size() + " reserve commands");
+	}
+}
@@ -0,0 +1,191 @@
+package com.nayan.obai.inventory.publisher;
+
+import com.nayan.obai.inventory.config.RabbitConfig;
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.entity.StockChangeOutbox;
+import com.nayan.obai.inventory.event.StockChangedEvent;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.StockChangeOutboxRepository;
+import com.nayan.obai.inventory.service.ReservationMode;
+import com.nayan.obai.inventory.service.impl.RedisStockLedger;
+import com.nayan.obai.inventory.service.impl.StockBuckets;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.redisson.api.RAtomicLong;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Publishes the stock change outbox as StockChangedEvents. Every run takes the oldest outbox rows, collapses them
+ * to one event per product carrying its availability at publish time, sends all events over one channel and waits
+ * for the publisher confirms before deleting the rows. A hot product therefore produces at most one event per
+ * relay interval however often it changes. Failed or unconfirmed batches stay in the outbox for the next run, so
+ * delivery is at least once.
+ * A Redisson lock keeps one relay running across instances. Sequences are taken from a Redis counter while it is
+ * held, so an event read later always carries a higher sequence, whichever transaction committed its outbox row first.
+ * */
+@Component
+@ConditionalOnProperty(name = "inventory.stock-events.enabled", havingValue = "true", matchIfMissing = true)
+public class StockOutboxRelay
+{
+	final Logger logger = LogManager.getLogger("StockOutboxRelay");
+
+	private static final String RELAY_LOCK = "lock:stock-outbox-relay";
+
+	private static final String SEQUENCE = "inventory:stock-events:sequence";
+
+	private final StockChangeOutboxRepository stockChangeOutboxRepository;
+
+	private final ProductRepository productRepository;
+
+	private final RabbitTemplate rabbitTemplate;
+
+	private final RedissonClient redissonClient;
+
+	private final TransactionTemplate transactionTemplate;
+
+	private final Counter publishedEvents;
+
+	private final Counter coalescedChanges;
+
+	private final Timer relayTimer;
+
+	@Value("${inventory.stock-events.batch-size:500}")
+	private int batchSize = 500;
+
+	@Value("${inventory.stock-events.max-batches-per-run:20}")
+	private int maxBatchesPerRun = 20;
+
+	@Value("${inventory.stock-events.confirm-timeout-ms:5000}")
+	private long confirmTimeoutMillis = 5000;
+
+	@Value("${inventory.reservation.mode:LOCK}")
+	private ReservationMode reservationMode = ReservationMode.LOCK;
+
+	// only present when inventory.reservation.mode=REDIS_LEDGER
+	@Autowired(required = false)
+	private RedisStockLedger redisStockLedger;
+
+	// only present when inventory.stock-buckets.enabled=true
+	@Autowired(required = false)
+	private StockBuckets stockBuckets;
+
+	public StockOutboxRelay(final StockChangeOutboxRepository stockChangeOutboxRepository, final ProductRepository productRepository,
+			final RabbitTemplate rabbitTemplate, final RedissonClient redissonClient, final TransactionTemplate transactionTemplate, final MeterRegistry meterRegistry)
+	{
+		this.stockChangeOutboxRepository = stockChangeOutboxRepository;
+		this.productRepository = productRepository;
+		this.rabbitTemplate = rabbitTemplate;
+		this.redissonClient = redissonClient;
+		this.transactionTemplate = transactionTemplate;
+		this.publishedEvents = Counter.builder("inventory.stock-events.published").register(meterRegistry);
+		this.coalescedChanges = Counter.builder("inventory.stock-events.coalesced")
+				.description("outbox rows folded into an event of the same product")
+				.register(meterRegistry);
+		this.relayTimer = Timer.builder("inventory.stock-events.relay").register(meterRegistry);
+	}
+
+	// the interval is the coalescing window: every change of a product within it ends up in one event
+	@Scheduled(fixedDelayString = "${inventory.stock-events.relay-interval-ms:500}")
+	public int relay()
+	{
+		final RLock lock = redissonClient.getLock(RELAY_LOCK);
+		if (!lock.tryLock())
+		{
+			return 0;
+		}
+		final long startNanos = System.nanoTime();
+		int published = 0;
+		try
+		{
+			for (int batch = 0; batch < maxBatchesPerRun; batch++)
+			{
+				final List<StockChangeOutbox> entries = stockChangeOutboxRepository.findAllByOrderByOutboxIdAsc(PageRequest.of(0, batchSize));
+				if (entries.isEmpty())
+				{
+					break;
+				}
+				published += publish(entries);
+				if (entries.size() < batchSize)
+				{
+					break;
+				}
+			}
+		} catch (Exception e)
+		{
+			logger.error("stock changed events not published, the outbox keeps them for the next run: " + e.getMessage());
+		} finally
+		{
+			lock.unlock();
+			relayTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+		}
+		return published;
+	}
+
+	private int publish(final List<StockChangeOutbox> entries)
+	{
+		final Set<UUID> productIds = new TreeSet<>();
+		entries.forEach(entry -> productIds.add(entry.getProductId()));
+		final List<StockChangedEvent> events = toEvents(productIds);
+		rabbitTemplate.invoke(operations -> {
+			events.forEach(event -> operations.convertAndSend(RabbitConfig.INVENTORY_EXCHANGE, RabbitConfig.STOCK_CHANGED_ROUTING_KEY, event));
+			// throws when a nack or the timeout comes first, the rows are then left in the outbox
+			operations.waitForConfirmsOrDie(confirmTimeoutMillis);
+			return null;
+		});
+		transactionTemplate.executeWithoutResult(status ->
+				stockChangeOutboxRepository.deleteByOutboxIds(entries.stream().map(StockChangeOutbox::getOutboxId).toList()));
+		publishedEvents.increment(events.size());
+		coalescedChanges.increment(entries.size() - events.size());
+		logger.debug("published " + events.size() + " stock changed events for " + entries.size() + " outbox rows");
+		return events.size();
+	}
+
+	private List<StockChangedEvent> toEvents(final Set<UUID> productIds)
+	{
+		final long now = System.currentTimeMillis();
+		final Map<UUID, Integer> ledgerAvailable = reservationMode == ReservationMode.REDIS_LEDGER
+				? redisStockLedger.getAvailableQuantities(productIds) : Map.of();
+		// stock parked in stock buckets is part of reservedQuantity on the row but available to orders
+		final Map<UUID, Integer> parked = stockBuckets == null ? Map.of() : stockBuckets.parkedQuantities(productIds);
+		// products deleted since are skipped, their outbox rows are still removed
+		final List<Product> products = productRepository.findAllById(productIds);
+		// taken after the availability was read, one block per batch; the outboxId would follow insert order, not commit order
+		final RAtomicLong sequence = redissonClient.getAtomicLong(SEQUENCE);
+		final AtomicLong next = new AtomicLong(sequence.addAndGet(products.size()) - products.size());
+		return products.stream()
+				.map(product -> {
+					final int reserved = (product.getReservedQuantity() == null ? 0 : product.getReservedQuantity())
+							- parked.getOrDefault(product.getProductId(), 0);
+					final int quantity = product.getQuantity() == null ? 0 : product.getQuantity();
+					return StockChangedEvent.builder()
+							.productId(product.getProductId())
+							.quantity(quantity)
+							.reservedQuantity(reserved)
+							.availableQuantity(ledgerAvailable.getOrDefault(product.getProductId(), quantity - reserved))
+							.sequence(next.incrementAndGet())
+							.timestamp(now)
+							.build();
+				})
+				.toList();
+	}
+}
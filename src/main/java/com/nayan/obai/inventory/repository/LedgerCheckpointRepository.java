@@ -0,0 +1,18 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.LedgerCheckpoint;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Optional;
+
+public interface LedgerCheckpointRepository extends JpaRepository<LedgerCheckpoint, String>
+{
+	// row lock so only one instance applies a given journal range at a time
+	@Lock(LockModeType.PESSIMISTIC_WRITE)
+	@Query("SELECT c FROM LedgerCheckpoint c WHERE c.name = :name")
+	Optional<LedgerCheckpoint> findByNameForUpdate(@Param("name") String name);
+}
@@ -0,0 +1,22 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.ProcessedPaymentEvent;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Set;
+import java.util.UUID;
+
+public interface ProcessedPaymentEventRepository extends JpaRepository<ProcessedPaymentEvent, UUID>
+{
+	@Query("SELECT e.orderId FROM ProcessedPaymentEvent e WHERE e.orderId IN :orderIds")
+	Set<UUID> findProcessedOrderIds(@Param("orderIds") Collection<UUID> orderIds);
+
+	@Modifying
+	@Query("DELETE FROM ProcessedPaymentEvent e WHERE e.processedAt < :cutoff")
+	int deleteProcessedBefore(@Param("cutoff") LocalDateTime cutoff);
+}
@@ -0,0 +1,49 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.Product;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.function.Consumer;
+
+/*
+ * Walks the whole Product table with a forward only JDBC cursor, handing each row to the caller as it is read.
+ * With MySQL Connector/J a fetch size of Integer.MIN_VALUE streams rows one by one instead of buffering the
+ * result set, so memory stays flat whatever the catalog size.
+ * */
+@Repository
+public class ProductExportRepository
+{
+	private final JdbcTemplate jdbcTemplate;
+
+	@Value("${inventory.products.export-fetch-size:-2147483648}")
+	private int fetchSize = Integer.MIN_VALUE;
+
+	public ProductExportRepository(final JdbcTemplate jdbcTemplate)
+	{
+		this.jdbcTemplate = jdbcTemplate;
+	}
+
+	public void streamProducts(final Consumer<Product> consumer)
+	{
+		jdbcTemplate.query(connection -> {
+			final PreparedStatement statement = connection.prepareStatement(
+					"SELECT productId, quantity, reservedQuantity, lastUpdated FROM Product ORDER BY productId",
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(fetchSize);
+			return statement;
+		}, resultSet -> {
+			final Timestamp lastUpdated = resultSet.getTimestamp("lastUpdated");
+			consumer.accept(Product.builder()
+					.productId(ProductStockBatchRepository.toUuid(resultSet.getBytes("productId")))
+					.quantity(resultSet.getInt("quantity"))
+					.reservedQuantity(resultSet.getInt("reservedQuantity"))
+					.lastUpdated(lastUpdated == null ? null : lastUpdated.toLocalDateTime())
+					.build());
+		});
+	}
+}
@@ -1,19 +1,60 @@
 package com.nayan.obai.inventory.repository;
 
 import com.nayan.obai.inventory.entity.Product;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 @Repository
 public interface ProductRepository extends JpaRepository<Product, UUID>
 {
+	// keyset pagination on the primary key, the first page and every page after a given productId
+	List<Product> findAllByOrderByProductIdAsc(Pageable pageable);
+
+	List<Product> findByProductIdGreaterThanOrderByProductIdAsc(UUID after, Pageable pageable);
+
+	// reserved quantity counter of one product, used by the ledger journal flush
+	@Modifying
+	@Query(value = "UPDATE Product SET reservedQuantity = reservedQuantity + :quantity WHERE productId = :productId", nativeQuery = true)
+	int reserveQuantityByProductId(@Param("productId") UUID productId, @Param("quantity") int quantity);
+
+	// set based commit of many orders: one statement moves the summed reservations already marked COMMITTED
+	// by ReservationRepository.transitionState out of quantity and reservedQuantity
+	@Modifying
+	@Query(value = "UPDATE Product p SET " +
+			"p.quantity = p.quantity - (SELECT COALESCE(SUM(r.reservedQuantity), 0) FROM ProductOrderReservation r WHERE r.productId = p.productId AND r.orderId IN (:orderIds) AND r.state = 'COMMITTED'), " +
+			"p.reservedQuantity = p.reservedQuantity - (SELECT COALESCE(SUM(r.reservedQuantity), 0) FROM ProductOrderReservation r WHERE r.productId = p.productId AND r.orderId IN (:orderIds) AND r.state = 'COMMITTED'), " +
+			"p.version = p.version + 1 " +
+			"WHERE p.productId IN (SELECT r.productId FROM ProductOrderReservation r WHERE r.orderId IN (:orderIds) AND r.state = 'COMMITTED')", nativeQuery = true)
+	int commitReservedQuantityForOrders(@Param("orderIds") Collection<UUID> orderIds);
+
+	// same for reservations marked RELEASED, only reservedQuantity is given back
+	@Modifying
+	@Query(value = "UPDATE Product p SET " +
+			"p.reservedQuantity = p.reservedQuantity - (SELECT COALESCE(SUM(r.reservedQuantity), 0) FROM ProductOrderReservation r WHERE r.productId = p.productId AND r.orderId IN (:orderIds) AND r.state = 'RELEASED') " +
+			"WHERE p.productId IN (SELECT r.productId FROM ProductOrderReservation r WHERE r.orderId IN (:orderIds) AND r.state = 'RELEASED')", nativeQuery = true)
+	int releaseReservedQuantityForOrders(@Param("orderIds") Collection<UUID> orderIds);
+
+	// used by the reconciliation job to find counters that drifted away from the reservation rows,
+	// plus the stock parked in the buckets of striped products
+	@Query("SELECT p.productId FROM Product p WHERE p.reservedQuantity <> " +
+			"(SELECT COALESCE(SUM(r.reservedQuantity), 0) FROM ProductOrderReservation r WHERE r.productId = p.productId " +
+			"AND r.state = com.nayan.obai.inventory.entity.ReservationState.RESERVED) + " +
+			"(SELECT COALESCE(SUM(b.quantity), 0) FROM ProductStockBucket b WHERE b.productId = p.productId)")
+	List<UUID> findProductIdsWithReservedQuantityDrift();
+
 	@Modifying
-	@Query(value = "UPDATE Product SET quantity = quantity - :quantity WHERE productId = :productId", nativeQuery = true)
-	void deductQuantityByProductId(@Param("productId") UUID productId, @Param("quantity") int quantity);
+	@Query(value = "UPDATE Product SET reservedQuantity = " +
+			"(SELECT COALESCE(SUM(r.reservedQuantity), 0) FROM ProductOrderReservation r WHERE r.productId = :productId AND r.state = 'RESERVED') + " +
+			"(SELECT COALESCE(SUM(b.quantity), 0) FROM ProductStockBucket b WHERE b.productId = :productId) " +
+			"WHERE productId = :productId", nativeQuery = true)
+	int resyncReservedQuantityByProductId(@Param("productId") UUID productId);
 
 }
@@ -0,0 +1,24 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.ProductSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+@Repository
+public interface ProductSnapshotRepository extends JpaRepository<ProductSnapshot, Long>
+{
+	// latest snapshot of each product taken at or before the given epoch millis
+	@Query("SELECT s FROM ProductSnapshot s WHERE s.productId IN :productIds AND s.takenAt = " +
+			"(SELECT MAX(o.takenAt) FROM ProductSnapshot o WHERE o.productId = s.productId AND o.takenAt <= :at)")
+	List<ProductSnapshot> findLatestTakenAtOrBefore(@Param("productIds") Collection<UUID> productIds, @Param("at") long at);
+
+	// journal position the last snapshot run covered
+	@Query("SELECT COALESCE(MAX(s.lastMovementId), 0) FROM ProductSnapshot s")
+	long findLastSnapshotMovementId();
+}
@@ -0,0 +1,145 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.rest.StockAdjustment;
+import com.nayan.obai.inventory.rest.StockAdjustmentType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * JDBC batch counterparts of the counter updates in ProductRepository. Spring Data native @Modifying
+ * queries always run as one statement per call, these send all lines of an order in one batch.
+ * Runs on the connection of the surrounding JPA transaction.
+ * */
+@Repository
+public class ProductStockBatchRepository
+{
+	private final JdbcTemplate jdbcTemplate;
+
+	public ProductStockBatchRepository(final JdbcTemplate jdbcTemplate)
+	{
+		this.jdbcTemplate = jdbcTemplate;
+	}
+
+	public int[] reserveQuantities(final Map<UUID, Integer> quantities)
+	{
+		return jdbcTemplate.batchUpdate("UPDATE Product SET reservedQuantity = reservedQuantity + ? WHERE productId = ?",
+				quantityArgs(quantities));
+	}
+
+	// one update count per entry, 0 means that product is missing or short
+	public int[] reserveQuantitiesIfAvailable(final Map<UUID, Integer> quantities)
+	{
+		final List<Object[]> args = new ArrayList<>();
+		quantities.forEach((productId, quantity) -> args.add(new Object[]{quantity, toBytes(productId), quantity}));
+		return jdbcTemplate.batchUpdate("UPDATE Product SET reservedQuantity = reservedQuantity + ? WHERE productId = ? AND quantity - reservedQuantity >= ?",
+				args);
+	}
+
+	/*
+	 * Inserts unknown products and overwrites the on-hand quantity of known ones, in one batch. An update never
+	 * takes quantity below what is reserved at that moment, such rows keep their current quantity.
+	 * */
+	public int[] upsertQuantities(final Map<UUID, Integer> quantities)
+	{
+		final List<Object[]> args = new ArrayList<>();
+		quantities.forEach((productId, quantity) -> args.add(new Object[]{toBytes(productId), quantity}));
+		return jdbcTemplate.batchUpdate("INSERT INTO Product (productId, quantity, reservedQuantity, lastUpdated) VALUES (?, ?, 0, NOW(6)) " +
+				"ON DUPLICATE KEY UPDATE version = IF(VALUES(quantity) >= reservedQuantity, version + 1, version), " +
+				"quantity = IF(VALUES(quantity) >= reservedQuantity, VALUES(quantity), quantity), lastUpdated = NOW(6)", args);
+	}
+
+	/*
+	 * Applies stock adjustments in order as one batch. RECEIVE/SHRINK are relative updates, SET overwrites and can be
+	 * made conditional on the version. No adjustment takes quantity below what is reserved. One update count per
+	 * adjustment, 0 means the product is missing, the guard failed or the version moved on.
+	 * */
+	public int[] adjustQuantities(final List<StockAdjustment> adjustments)
+	{
+		final List<Object[]> args = new ArrayList<>();
+		for (StockAdjustment adjustment : adjustments)
+		{
+			final Integer absolute = adjustment.getType() == StockAdjustmentType.SET ? adjustment.getQuantity() : null;
+			final int delta = switch (adjustment.getType())
+			{
+				case RECEIVE -> adjustment.getQuantity();
+				case SHRINK -> -adjustment.getQuantity();
+				case SET -> 0;
+			};
+			final Long expectedVersion = adjustment.getType() == StockAdjustmentType.SET ? adjustment.getExpectedVersion() : null;
+			args.add(new Object[]{absolute, delta, toBytes(adjustment.getProductId()), absolute, delta, expectedVersion, expectedVersion});
+		}
+		return jdbcTemplate.batchUpdate("UPDATE Product SET quantity = COALESCE(?, quantity + ?), version = version + 1 " +
+				"WHERE productId = ? AND COALESCE(?, quantity + ?) >= reservedQuantity AND (? IS NULL OR version = ?)", args);
+	}
+
+	// on-hand quantity rebuilt by journal replay, skipped for rows that changed since they were read
+	public int[] overwriteQuantities(final Map<UUID, Integer> quantities, final Map<UUID, Long> expectedVersions)
+	{
+		final List<Object[]> args = new ArrayList<>();
+		quantities.forEach((productId, quantity) -> args.add(new Object[]{quantity, toBytes(productId), expectedVersions.get(productId)}));
+		return jdbcTemplate.batchUpdate("UPDATE Product SET quantity = ?, version = version + 1 WHERE productId = ? AND version = ?", args);
+	}
+
+	// reserved counter of the given products that exist, with one IN query
+	public Map<UUID, Integer> findReservedQuantities(final Collection<UUID> productIds)
+	{
+		return selectReservedQuantities(productIds, "");
+	}
+
+	/*
+	 * Same, with the rows locked until the transaction ends, so no reservation moves the counter between the check
+	 * and the caller's write. Only rows that exist are locked: FOR UPDATE on a missing key takes a gap lock, and two
+	 * transactions inserting into the same gap would deadlock each other.
+	 * */
+	public Map<UUID, Integer> lockReservedQuantities(final Collection<UUID> productIds)
+	{
+		return selectReservedQuantities(findReservedQuantities(productIds).keySet(), " FOR UPDATE");
+	}
+
+	private Map<UUID, Integer> selectReservedQuantities(final Collection<UUID> productIds, final String lockClause)
+	{
+		final Map<UUID, Integer> reserved = new HashMap<>();
+		if (productIds.isEmpty())
+		{
+			return reserved;
+		}
+		final String placeholders = String.join(", ", Collections.nCopies(productIds.size(), "?"));
+		jdbcTemplate.query("SELECT productId, reservedQuantity FROM Product WHERE productId IN (" + placeholders + ")" + lockClause,
+				resultSet -> {
+					reserved.put(toUuid(resultSet.getBytes("productId")), resultSet.getInt("reservedQuantity"));
+				},
+				productIds.stream().map(ProductStockBatchRepository::toBytes).toArray());
+		return reserved;
+	}
+
+	private List<Object[]> quantityArgs(final Map<UUID, Integer> quantities)
+	{
+		final List<Object[]> args = new ArrayList<>();
+		quantities.forEach((productId, quantity) -> args.add(new Object[]{quantity, toBytes(productId)}));
+		return args;
+	}
+
+	// Hibernate stores UUID ids as BINARY(16) on MySQL, most significant bits first
+	public static byte[] toBytes(final UUID uuid)
+	{
+		return ByteBuffer.allocate(16)
+				.putLong(uuid.getMostSignificantBits())
+				.putLong(uuid.getLeastSignificantBits())
+				.array();
+	}
+
+	public static UUID toUuid(final byte[] bytes)
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		return new UUID(buffer.getLong(), buffer.getLong());
+	}
+}
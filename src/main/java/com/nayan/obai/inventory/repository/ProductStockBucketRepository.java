@@ -0,0 +1,131 @@
+package com.nayan.obai.inventory.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * JDBC access to the ProductStockBucket rows of striped products. Runs on the connection of the surrounding
+ * transaction; the locking reads keep their row locks until it ends. Buckets of a product are always locked
+ * in bucket order, before its Product row.
+ * */
+@Repository
+public class ProductStockBucketRepository
+{
+	private final JdbcTemplate jdbcTemplate;
+
+	public ProductStockBucketRepository(final JdbcTemplate jdbcTemplate)
+	{
+		this.jdbcTemplate = jdbcTemplate;
+	}
+
+	// striped products and how many buckets each has
+	public Map<UUID, Integer> findBucketCounts()
+	{
+		final Map<UUID, Integer> counts = new HashMap<>();
+		jdbcTemplate.query("SELECT productId, COUNT(*) AS buckets FROM ProductStockBucket GROUP BY productId",
+				resultSet -> {
+					counts.put(ProductStockBatchRepository.toUuid(resultSet.getBytes("productId")), resultSet.getInt("buckets"));
+				});
+		return counts;
+	}
+
+	// stock parked in the buckets of every striped product
+	public Map<UUID, Integer> findParkedQuantities()
+	{
+		final Map<UUID, Integer> parked = new HashMap<>();
+		jdbcTemplate.query("SELECT productId, SUM(quantity) AS parked FROM ProductStockBucket GROUP BY productId",
+				resultSet -> {
+					parked.put(ProductStockBatchRepository.toUuid(resultSet.getBytes("productId")), resultSet.getInt("parked"));
+				});
+		return parked;
+	}
+
+	// stock parked in the buckets of the given products with one IN query, products without buckets are absent
+	public Map<UUID, Integer> findParkedQuantities(final Collection<UUID> productIds)
+	{
+		final Map<UUID, Integer> parked = new HashMap<>();
+		if (productIds.isEmpty())
+		{
+			return parked;
+		}
+		final String placeholders = String.join(", ", Collections.nCopies(productIds.size(), "?"));
+		jdbcTemplate.query("SELECT productId, SUM(quantity) AS parked FROM ProductStockBucket WHERE productId IN (" + placeholders + ") GROUP BY productId",
+				resultSet -> {
+					parked.put(ProductStockBatchRepository.toUuid(resultSet.getBytes("productId")), resultSet.getInt("parked"));
+				},
+				productIds.stream().map(ProductStockBatchRepository::toBytes).toArray());
+		return parked;
+	}
+
+	public int[] findQuantities(final UUID productId)
+	{
+		return jdbcTemplate.queryForList("SELECT quantity FROM ProductStockBucket WHERE productId = ? ORDER BY bucket",
+				Integer.class, (Object) ProductStockBatchRepository.toBytes(productId)).stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	// bucket quantities in bucket order, locked until the transaction ends. Empty when the product is not striped
+	public int[] lockQuantities(final UUID productId)
+	{
+		return jdbcTemplate.queryForList("SELECT quantity FROM ProductStockBucket WHERE productId = ? ORDER BY bucket FOR UPDATE",
+				Integer.class, (Object) ProductStockBatchRepository.toBytes(productId)).stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	// quantity - reservedQuantity of the Product row, null when it does not exist
+	public Integer findRowAvailableQuantity(final UUID productId)
+	{
+		final List<Integer> available = jdbcTemplate.queryForList("SELECT quantity - reservedQuantity FROM Product WHERE productId = ?",
+				Integer.class, (Object) ProductStockBatchRepository.toBytes(productId));
+		return available.isEmpty() ? null : available.get(0);
+	}
+
+	// same, locked until the transaction ends. null when it does not exist
+	public Integer lockRowAvailableQuantity(final UUID productId)
+	{
+		final List<Integer> available = jdbcTemplate.queryForList("SELECT quantity - reservedQuantity FROM Product WHERE productId = ? FOR UPDATE",
+				Integer.class, (Object) ProductStockBatchRepository.toBytes(productId));
+		return available.isEmpty() ? null : available.get(0);
+	}
+
+	// 1 when the bucket held at least quantity and was drawn down, 0 when it is short
+	public int takeQuantity(final UUID productId, final int bucket, final int quantity)
+	{
+		return jdbcTemplate.update("UPDATE ProductStockBucket SET quantity = quantity - ? WHERE productId = ? AND bucket = ? AND quantity >= ?",
+				quantity, ProductStockBatchRepository.toBytes(productId), bucket, quantity);
+	}
+
+	// overwrites bucket i with quantities[i], as one batch
+	public int[] setQuantities(final UUID productId, final int[] quantities)
+	{
+		final byte[] id = ProductStockBatchRepository.toBytes(productId);
+		final List<Object[]> args = new ArrayList<>();
+		for (int bucket = 0; bucket < quantities.length; bucket++)
+		{
+			args.add(new Object[]{quantities[bucket], id, bucket});
+		}
+		return jdbcTemplate.batchUpdate("UPDATE ProductStockBucket SET quantity = ? WHERE productId = ? AND bucket = ?", args);
+	}
+
+	// replaces the buckets of the product with count empty ones, count 0 removes the striping
+	public void replaceBuckets(final UUID productId, final int count)
+	{
+		final byte[] id = ProductStockBatchRepository.toBytes(productId);
+		jdbcTemplate.update("DELETE FROM ProductStockBucket WHERE productId = ?", (Object) id);
+		final List<Object[]> args = new ArrayList<>();
+		for (int bucket = 0; bucket < count; bucket++)
+		{
+			args.add(new Object[]{id, bucket});
+		}
+		if (!args.isEmpty())
+		{
+			jdbcTemplate.batchUpdate("INSERT INTO ProductStockBucket (productId, bucket, quantity) VALUES (?, ?, 0)", args);
+		}
+	}
+}
@@ -1,19 +1,56 @@
 package com.nayan.obai.inventory.repository;
 
 import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
-public interface ReservationRepository extends JpaRepository<ProductOrderReservation, UUID>
+public interface ReservationRepository extends JpaRepository<ProductOrderReservation, Long>
 {
-	void deleteByOrderId(UUID orderId);
+	List<ProductOrderReservation> findAllByOrderId(UUID orderId);
 
-	@Query("SELECT COALESCE(SUM(r.reservedQuantity), 0) FROM ProductOrderReservation r WHERE r.productId = :productId")
-	int getTotalReservedQuantityByProductId(@Param("productId") UUID productId);
+	@Query("SELECT DISTINCT r.productId FROM ProductOrderReservation r WHERE r.orderId IN :orderIds")
+	List<UUID> findProductIdsByOrderIds(@Param("orderIds") Collection<UUID> orderIds);
 
-	List<ProductOrderReservation> findAllByOrderId(UUID orderId);
+	// orders of the given ones that hold reservations in the given state, used to answer redelivered reserve commands
+	@Query("SELECT DISTINCT r.orderId FROM ProductOrderReservation r WHERE r.orderId IN :orderIds AND r.state = :state")
+	List<UUID> findOrderIdsInState(@Param("orderIds") Collection<UUID> orderIds, @Param("state") ReservationState state);
+
+	// the rows a settlement just moved, read before they are deleted
+	List<ProductOrderReservation> findAllByOrderIdInAndState(Collection<UUID> orderIds, ReservationState state);
+
+	// guarded transition, rows already moved by a duplicate or racing payment result are not matched again
+	@Modifying
+	@Query("UPDATE ProductOrderReservation r SET r.state = :to WHERE r.orderId IN :orderIds AND r.state = :from")
+	int transitionState(@Param("orderIds") Collection<UUID> orderIds, @Param("from") ReservationState from, @Param("to") ReservationState to);
+
+	// single DELETE statement for the settled reservations of many orders
+	@Modifying
+	@Query("DELETE FROM ProductOrderReservation r WHERE r.orderId IN :orderIds AND r.state = :state")
+	int deleteAllByOrderIdInAndState(@Param("orderIds") Collection<UUID> orderIds, @Param("state") ReservationState state);
+
+	// the given rows while still RESERVED, for a write given back right after it committed
+	@Modifying
+	@Query("DELETE FROM ProductOrderReservation r WHERE r.reservationId IN :reservationIds " +
+			"AND r.state = com.nayan.obai.inventory.entity.ReservationState.RESERVED")
+	int deleteReservedByReservationIds(@Param("reservationIds") Collection<Long> reservationIds);
+
+	// orders holding a reservation older than the cutoff (epoch seconds), oldest first. Served by the (state, timestamp) index.
+	@Query("SELECT r.orderId FROM ProductOrderReservation r " +
+			"WHERE r.state = com.nayan.obai.inventory.entity.ReservationState.RESERVED AND r.timestamp < :cutoff " +
+			"GROUP BY r.orderId ORDER BY MIN(r.timestamp)")
+	List<UUID> findOrderIdsReservedBefore(@Param("cutoff") long cutoff, Pageable pageable);
+
+	// same, leaving out the given orders
+	@Query("SELECT r.orderId FROM ProductOrderReservation r " +
+			"WHERE r.state = com.nayan.obai.inventory.entity.ReservationState.RESERVED AND r.timestamp < :cutoff AND r.orderId NOT IN :excludedOrderIds " +
+			"GROUP BY r.orderId ORDER BY MIN(r.timestamp)")
+	List<UUID> findOrderIdsReservedBeforeExcluding(@Param("cutoff") long cutoff, @Param("excludedOrderIds") Collection<UUID> excludedOrderIds, Pageable pageable);
 }
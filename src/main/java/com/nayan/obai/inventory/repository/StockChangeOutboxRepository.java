@@ -0,0 +1,29 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.StockChangeOutbox;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+@Repository
+public interface StockChangeOutboxRepository extends JpaRepository<StockChangeOutbox, Long>
+{
+	// products of the given orders' reservations in the given state, one row per product, before the reservations are deleted
+	@Modifying
+	@Query(value = "INSERT INTO StockChangeOutbox (productId, createdAt) " +
+			"SELECT DISTINCT r.productId, :createdAt FROM ProductOrderReservation r WHERE r.orderId IN (:orderIds) AND r.state = :state", nativeQuery = true)
+	int insertForOrders(@Param("orderIds") Collection<UUID> orderIds, @Param("state") String state, @Param("createdAt") long createdAt);
+
+	List<StockChangeOutbox> findAllByOrderByOutboxIdAsc(Pageable pageable);
+
+	@Modifying
+	@Query("DELETE FROM StockChangeOutbox o WHERE o.outboxId IN :outboxIds")
+	int deleteByOutboxIds(@Param("outboxIds") Collection<Long> outboxIds);
+}
@@ -0,0 +1,57 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.ProductSnapshot;
+import com.nayan.obai.inventory.entity.StockMovement;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * JDBC batch inserts of journal, snapshot and outbox rows. These tables use AUTO_INCREMENT ids, which JPA would
+ * insert one statement per row. Runs on the connection of the surrounding transaction, if there is one.
+ * */
+@Repository
+public class StockMovementBatchRepository
+{
+	private final JdbcTemplate jdbcTemplate;
+
+	public StockMovementBatchRepository(final JdbcTemplate jdbcTemplate)
+	{
+		this.jdbcTemplate = jdbcTemplate;
+	}
+
+	public void insertMovements(final List<StockMovement> movements)
+	{
+		final List<Object[]> args = new ArrayList<>();
+		for (StockMovement movement : movements)
+		{
+			args.add(new Object[]{ProductStockBatchRepository.toBytes(movement.getProductId()),
+					movement.getOrderId() == null ? null : ProductStockBatchRepository.toBytes(movement.getOrderId()),
+					movement.getType().name(), movement.getQuantityDelta(), movement.getReservedDelta(), movement.getQuantityAfter(), movement.getTimestamp()});
+		}
+		jdbcTemplate.batchUpdate("INSERT INTO StockMovement (productId, orderId, type, quantityDelta, reservedDelta, quantityAfter, `timestamp`) " +
+				"VALUES (?, ?, ?, ?, ?, ?, ?)", args);
+	}
+
+	public void insertSnapshots(final List<ProductSnapshot> snapshots)
+	{
+		final List<Object[]> args = new ArrayList<>();
+		for (ProductSnapshot snapshot : snapshots)
+		{
+			args.add(new Object[]{ProductStockBatchRepository.toBytes(snapshot.getProductId()), snapshot.getQuantity(),
+					snapshot.getReservedQuantity(), snapshot.getLastMovementId(), snapshot.getTakenAt()});
+		}
+		jdbcTemplate.batchUpdate("INSERT INTO ProductSnapshot (productId, quantity, reservedQuantity, lastMovementId, takenAt) VALUES (?, ?, ?, ?, ?)", args);
+	}
+
+	public void insertOutboxEntries(final Collection<UUID> productIds, final long createdAt)
+	{
+		final List<Object[]> args = new ArrayList<>();
+		productIds.forEach(productId -> args.add(new Object[]{ProductStockBatchRepository.toBytes(productId), createdAt}));
+		jdbcTemplate.batchUpdate("INSERT INTO StockChangeOutbox (productId, createdAt) VALUES (?, ?)", args);
+	}
+}
@@ -0,0 +1,37 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.StockMovement;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+@Repository
+public interface StockMovementRepository extends JpaRepository<StockMovement, Long>
+{
+	// journals settled reservations set based, before ReservationRepository.deleteAllByOrderIdInAndState removes them
+	@Modifying
+	@Query(value = "INSERT INTO StockMovement (productId, orderId, type, quantityDelta, reservedDelta, `timestamp`) " +
+			"SELECT r.productId, r.orderId, 'COMMIT', -r.reservedQuantity, -r.reservedQuantity, :timestamp FROM ProductOrderReservation r " +
+			"WHERE r.orderId IN (:orderIds) AND r.state = 'COMMITTED'", nativeQuery = true)
+	int journalCommittedReservations(@Param("orderIds") Collection<UUID> orderIds, @Param("timestamp") long timestamp);
+
+	@Modifying
+	@Query(value = "INSERT INTO StockMovement (productId, orderId, type, quantityDelta, reservedDelta, `timestamp`) " +
+			"SELECT r.productId, r.orderId, 'RELEASE', 0, -r.reservedQuantity, :timestamp FROM ProductOrderReservation r " +
+			"WHERE r.orderId IN (:orderIds) AND r.state = 'RELEASED'", nativeQuery = true)
+	int journalReleasedReservations(@Param("orderIds") Collection<UUID> orderIds, @Param("timestamp") long timestamp);
+
+	List<StockMovement> findByProductIdInAndMovementIdGreaterThanOrderByMovementIdAsc(Collection<UUID> productIds, long movementId);
+
+	@Query("SELECT COALESCE(MAX(m.movementId), 0) FROM StockMovement m WHERE m.timestamp < :before")
+	long findLastMovementIdBefore(@Param("before") long before);
+
+	@Query("SELECT DISTINCT m.productId FROM StockMovement m WHERE m.movementId > :afterId AND m.movementId <= :upToId")
+	List<UUID> findProductIdsMovedBetween(@Param("afterId") long afterId, @Param("upToId") long upToId);
+}
@@ -0,0 +1,26 @@
+package com.nayan.obai.inventory.rest;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.UUID;
+
+// one entry of the hot SKU ranking. score may overestimate by up to error, a counter inherits the score it evicted
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class HotSku
+{
+	private UUID productId;
+	private long score;
+	private long error;
+	private long reservedLines;
+	private long lockWaitMillis;
+	private boolean hot;
+
+}
@@ -0,0 +1,24 @@
+package com.nayan.obai.inventory.rest;
+
+import com.nayan.obai.inventory.entity.Product;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+import java.util.UUID;
+
+// bulk availability answer, requested productIds that do not exist are listed instead of failing the whole lookup
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class ProductAvailability
+{
+	private List<Product> products;
+	private List<UUID> missingProductIds;
+
+}
@@ -0,0 +1,25 @@
+package com.nayan.obai.inventory.rest;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+import java.util.UUID;
+
+// stock of a product as split between its Product row and its stock buckets, buckets is empty when it is not striped
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class ProductStockBuckets
+{
+	private UUID productId;
+	private int rowQuantity;
+	private List<Integer> buckets;
+	private int availableQuantity;
+
+}
@@ -0,0 +1,24 @@
+package com.nayan.obai.inventory.rest;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.UUID;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class StockAdjustment
+{
+	private UUID productId;
+	private StockAdjustmentType type;
+	private int quantity;
+	// SET only: Product.version the count was taken at, null applies the count unconditionally
+	private Long expectedVersion;
+
+}
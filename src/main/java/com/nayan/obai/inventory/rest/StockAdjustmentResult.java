@@ -0,0 +1,24 @@
+package com.nayan.obai.inventory.rest;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.UUID;
+
+// outcome of one adjustment of a batch, rejected adjustments carry the reason
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class StockAdjustmentResult
+{
+	private UUID productId;
+	private StockAdjustmentType type;
+	private boolean applied;
+	private String reason;
+
+}
@@ -0,0 +1,13 @@
+package com.nayan.obai.inventory.rest;
+
+/*
+ * RECEIVE - adds quantity to on-hand stock (restock, returns)
+ * SHRINK  - removes quantity from on-hand stock (damage, loss), never below what is reserved
+ * SET     - cycle count, sets on-hand stock to quantity, optionally only if the product is still at expectedVersion
+ * */
+public enum StockAdjustmentType
+{
+	RECEIVE,
+	SHRINK,
+	SET
+}
@@ -0,0 +1,19 @@
+package com.nayan.obai.inventory.rest;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class StockImportError
+{
+	private long line;
+	private String message;
+
+}
@@ -0,0 +1,26 @@
+package com.nayan.obai.inventory.rest;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+// summary of one bulk stock import. errors holds the first rejected rows, rowsFailed counts all of them
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class StockImportResult
+{
+	private long rowsRead;
+	private long rowsUpserted;
+	private long rowsFailed;
+	private long durationMillis;
+	private double rowsPerSecond;
+	private List<StockImportError> errors;
+
+}
@@ -0,0 +1,23 @@
+package com.nayan.obai.inventory.rest;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+// summary of one journal replay: how many products differ from the journal and how many were rewritten
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class StockReplayResult
+{
+	private long productsReplayed;
+	private long quantityMismatches;
+	private long reservedQuantityMismatches;
+	private long productsUpdated;
+	private long durationMillis;
+
+}
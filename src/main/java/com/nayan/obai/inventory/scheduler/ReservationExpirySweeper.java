@@ -0,0 +1,97 @@
+package com.nayan.obai.inventory.scheduler;
+
+import com.nayan.obai.inventory.listener.PaymentResultDeadLetters;
+import com.nayan.obai.inventory.repository.ReservationRepository;
+import com.nayan.obai.inventory.service.ProductService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Releases reservations whose payment result never arrived within the ttl, so leaked holds stop counting
+ * against available stock. Expired orders are found through the (state, timestamp) index and released in
+ * bounded batches, one transaction per batch, through the same guarded release path as a failed payment.
+ * Orders whose payment result sits in payment.result.dlq are left alone, the result is still owed.
+ * */
+@Component
+public class ReservationExpirySweeper
+{
+	final Logger logger = LogManager.getLogger("ReservationExpirySweeper");
+
+	private final ReservationRepository reservationRepository;
+
+	private final ProductService productService;
+
+	private final PaymentResultDeadLetters paymentResultDeadLetters;
+
+	private final Counter expiredOrders;
+
+	private final Timer sweepTimer;
+
+	@Value("${inventory.reservation.expiry.ttl-seconds:900}")
+	private long ttlSeconds = 900;
+
+	@Value("${inventory.reservation.expiry.batch-size:500}")
+	private int batchSize = 500;
+
+	// caps the work of one run, whatever is left is picked up by the next run
+	@Value("${inventory.reservation.expiry.max-batches-per-run:20}")
+	private int maxBatchesPerRun = 20;
+
+	public ReservationExpirySweeper(final ReservationRepository reservationRepository, final ProductService productService,
+			final PaymentResultDeadLetters paymentResultDeadLetters, final MeterRegistry meterRegistry)
+	{
+		this.reservationRepository = reservationRepository;
+		this.productService = productService;
+		this.paymentResultDeadLetters = paymentResultDeadLetters;
+		this.expiredOrders = Counter.builder("inventory.reservation.expired")
+				.description("orders whose reservations were released because no payment result arrived within the ttl")
+				.register(meterRegistry);
+		this.sweepTimer = Timer.builder("inventory.reservation.expiry.sweep").register(meterRegistry);
+	}
+
+	@Scheduled(initialDelayString = "${inventory.reservation.expiry.sweep-interval-ms:60000}", fixedDelayString = "${inventory.reservation.expiry.sweep-interval-ms:60000}")
+	public int sweep()
+	{
+		final long startNanos = System.nanoTime();
+		final long cutoff = Instant.now().getEpochSecond() - ttlSeconds;
+		// left out by the query itself, so they never fill a batch and stall the sweep
+		final Set<UUID> deadLettered = paymentResultDeadLetters.orderIds();
+		int expired = 0;
+		for (int batch = 0; batch < maxBatchesPerRun; batch++)
+		{
+			final List<UUID> orderIds = deadLettered.isEmpty()
+					? reservationRepository.findOrderIdsReservedBefore(cutoff, PageRequest.of(0, batchSize))
+					: reservationRepository.findOrderIdsReservedBeforeExcluding(cutoff, deadLettered, PageRequest.of(0, batchSize));
+			if (orderIds.isEmpty())
+			{
+				break;
+			}
+			final int released = productService.expireReservations(orderIds);
+			expiredOrders.increment(released);
+			expired += released;
+			if (orderIds.size() < batchSize)
+			{
+				break;
+			}
+		}
+		sweepTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+		if (expired > 0)
+		{
+			logger.warn("released reservations of " + expired + " orders older than " + ttlSeconds + "s without a payment result");
+		}
+		return expired;
+	}
+}
@@ -0,0 +1,55 @@
+package com.nayan.obai.inventory.scheduler;
+
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.service.impl.ProductAvailabilityCache;
+import com.nayan.obai.inventory.service.impl.StockOutbox;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Verifies the maintained Product.reservedQuantity counter against the open reservation rows (plus the stock
+ * parked in the buckets of striped products).
+ * Reserve, commit and release keep the counter in step transactionally, so drift should only come
+ * from manual DB edits or rows written before the counter existed. Drifted counters are resynced.
+ * */
+@Component
+public class ReservedQuantityReconciler
+{
+	final Logger logger = LogManager.getLogger("ReservedQuantityReconciler");
+
+	private final ProductRepository productRepository;
+
+	private final ProductAvailabilityCache productAvailabilityCache;
+
+	private final StockOutbox stockOutbox;
+
+	public ReservedQuantityReconciler(final ProductRepository productRepository, final ProductAvailabilityCache productAvailabilityCache, final StockOutbox stockOutbox)
+	{
+		this.productRepository = productRepository;
+		this.productAvailabilityCache = productAvailabilityCache;
+		this.stockOutbox = stockOutbox;
+	}
+
+	@Transactional
+	@Scheduled(initialDelayString = "${inventory.reservation.reconcile-interval-ms:300000}", fixedDelayString = "${inventory.reservation.reconcile-interval-ms:300000}")
+	public int reconcile()
+	{
+		logger.debug("reconciling reserved quantity counters");
+		final List<UUID> driftedProductIds = productRepository.findProductIdsWithReservedQuantityDrift();
+		for (UUID productId : driftedProductIds)
+		{
+			logger.warn("reserved quantity counter drifted for productId=" + productId + ", resyncing from reservations");
+			productRepository.resyncReservedQuantityByProductId(productId);
+		}
+		productAvailabilityCache.evictAll(driftedProductIds);
+		stockOutbox.productsChanged(driftedProductIds);
+		logger.debug("reconciled reserved quantity counters, drifted=" + driftedProductIds.size());
+		return driftedProductIds.size();
+	}
+}
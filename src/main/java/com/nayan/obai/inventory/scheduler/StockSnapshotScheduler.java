@@ -0,0 +1,28 @@
+package com.nayan.obai.inventory.scheduler;
+
+import com.nayan.obai.inventory.service.StockJournalService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+// Periodically folds the stock movement journal into per product snapshots so replays only read recent movements.
+@Component
+public class StockSnapshotScheduler
+{
+	final Logger logger = LogManager.getLogger("StockSnapshotScheduler");
+
+	private final StockJournalService stockJournalService;
+
+	public StockSnapshotScheduler(final StockJournalService stockJournalService)
+	{
+		this.stockJournalService = stockJournalService;
+	}
+
+	@Scheduled(initialDelayString = "${inventory.journal.snapshot.interval-ms:600000}", fixedDelayString = "${inventory.journal.snapshot.interval-ms:600000}")
+	public int snapshot()
+	{
+		logger.debug("taking product snapshots from the stock movement journal");
+		return stockJournalService.takeSnapshots();
+	}
+}
@@ -1,23 +1,52 @@
 package com.nayan.obai.inventory.service;
 
 import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.rest.HotSku;
 import com.nayan.obai.inventory.rest.OrderProduct;
+import com.nayan.obai.inventory.rest.ProductStockBuckets;
+import com.nayan.obai.inventory.rest.StockAdjustment;
+import com.nayan.obai.inventory.rest.StockAdjustmentResult;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 public interface ProductService
 {
 	Product getProduct(UUID productId);
 
+	Map<UUID, Product> getAvailableProducts(Collection<UUID> productIds);
+
 	List<Product> getAllProducts();
 
+	List<Product> getProducts(UUID after, int size);
+
+	int getPageSize(int size);
+
+	void exportProducts(Consumer<Product> consumer);
+
 	Product saveProduct(Product product);
 
+	List<StockAdjustmentResult> adjustStock(List<StockAdjustment> adjustments);
+
 	boolean validateAndReserveProduct(OrderProduct orderProduct);
 
+	Map<UUID, String> reserveOrders(List<OrderProduct> orderProducts);
+
 	void updateProductStockForSuccessfulOrder(final UUID orderId);
 
 	void removeReservedProductStock(final UUID orderId);
 
+	void applyPaymentResults(final Collection<UUID> successfulOrderIds, final Collection<UUID> failedOrderIds);
+
+	int expireReservations(final Collection<UUID> orderIds);
+
+	List<HotSku> getHotSkus();
+
+	ProductStockBuckets getStockBuckets(final UUID productId);
+
+	ProductStockBuckets configureStockBuckets(final UUID productId, final int count);
+
 }
@@ -0,0 +1,16 @@
+package com.nayan.obai.inventory.service;
+
+/*
+ * How validateAndReserveProduct reserves stock. Selected with inventory.reservation.mode.
+ * LOCK               - one Redisson lock per product, then read-check-insert
+ * CONDITIONAL_UPDATE - one conditional UPDATE per line inside a single DB transaction, no Redis on the critical path
+ * REDIS_LEDGER       - counters live in Redis, one Lua script reserves the whole order, the DB is written behind
+ * SHARDED            - counters live in in-process single writer shards, orders are written in group commits
+ * */
+public enum ReservationMode
+{
+	LOCK,
+	CONDITIONAL_UPDATE,
+	REDIS_LEDGER,
+	SHARDED
+}
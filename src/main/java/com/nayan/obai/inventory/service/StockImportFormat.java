@@ -0,0 +1,12 @@
+package com.nayan.obai.inventory.service;
+
+/*
+ * Body formats of the bulk stock import.
+ * CSV    - productId,quantity per line, an optional header line starting with productId
+ * NDJSON - one {"productId": ..., "quantity": ...} object per line
+ * */
+public enum StockImportFormat
+{
+	CSV,
+	NDJSON
+}
@@ -0,0 +1,11 @@
+package com.nayan.obai.inventory.service;
+
+import com.nayan.obai.inventory.rest.StockImportResult;
+
+import java.io.InputStream;
+
+public interface StockImportService
+{
+	StockImportResult importStock(InputStream body, StockImportFormat format);
+
+}
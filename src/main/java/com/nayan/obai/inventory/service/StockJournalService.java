@@ -0,0 +1,17 @@
+package com.nayan.obai.inventory.service;
+
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.rest.StockReplayResult;
+
+import java.time.Instant;
+import java.util.UUID;
+
+public interface StockJournalService
+{
+	Product getProductAt(UUID productId, Instant at);
+
+	StockReplayResult replay(Instant at, boolean apply);
+
+	int takeSnapshots();
+
+}
@@ -0,0 +1,263 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.rest.HotSku;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+ * Streaming top-K of SKUs by load, with space-saving counters: at most capacity SKUs are counted, a SKU not
+ * counted yet takes over the counter with the lowest score and inherits that score as its error, so a score is
+ * never under the true one and overestimates by at most error. Memory stays fixed however many SKUs there are.
+ *
+ * A reserved order line scores 1 and every lockWaitUnitMillis spent waiting for its lock scores 1 more, so SKUs
+ * that are both busy and contended rank first. Every windowMillis the ranking is taken and all scores are halved,
+ * a SKU cools down within a few windows once its sale is over. A SKU is hot while its guaranteed score
+ * (score - error) reaches minScore and it is in the top K.
+ *
+ * recordReserve runs on every reservation, so the counters are striped: a thread counts into the stripe picked by
+ * its id, a space-saving summary of capacity counters under its own monitor, and rotate merges the stripes by
+ * adding them up. Threads only meet on a stripe when there are more of them than stripes. Reads of the hot set are a volatile read.
+ *
+ * Counts are per instance. Behind a load balancer every instance sees its share of a hot SKU and finds it hot too.
+ * */
+@Component
+@ConditionalOnProperty(name = "inventory.hot-sku.enabled", havingValue = "true", matchIfMissing = true)
+public class HotSkuDetector
+{
+	final Logger logger = LogManager.getLogger("HotSkuDetector");
+
+	private final int topK;
+	private final long minScore;
+	private final long lockWaitUnitNanos;
+
+	private final Stripe[] stripes;
+
+	private volatile Set<UUID> hotSkus = Set.of();
+
+	private volatile List<HotSku> ranking = List.of();
+
+	public HotSkuDetector(final MeterRegistry meterRegistry,
+			@Value("${inventory.hot-sku.capacity:256}") final int capacity,
+			@Value("${inventory.hot-sku.top-k:10}") final int topK,
+			@Value("${inventory.hot-sku.min-score:100}") final long minScore,
+			@Value("${inventory.hot-sku.lock-wait-unit-ms:10}") final long lockWaitUnitMillis)
+	{
+		this.topK = topK;
+		this.minScore = minScore;
+		this.lockWaitUnitNanos = TimeUnit.MILLISECONDS.toNanos(lockWaitUnitMillis);
+		this.stripes = new Stripe[Runtime.getRuntime().availableProcessors() * 2];
+		for (int i = 0; i < stripes.length; i++)
+		{
+			stripes[i] = new Stripe(capacity);
+		}
+		Gauge.builder("inventory.hot-sku.count", this, detector -> detector.hotSkus.size())
+				.description("SKUs currently detected as hot")
+				.register(meterRegistry);
+	}
+
+	public void recordReserve(final Collection<UUID> productIds)
+	{
+		final Stripe stripe = stripe();
+		synchronized (stripe)
+		{
+			productIds.forEach(productId -> stripe.add(productId, 1, 0));
+		}
+	}
+
+	// the wait of a multi lock is charged in full to every product it covered
+	public void recordLockWait(final Collection<UUID> productIds, final long waitNanos)
+	{
+		final long weight = waitNanos / lockWaitUnitNanos;
+		if (weight == 0)
+		{
+			return;
+		}
+		final Stripe stripe = stripe();
+		synchronized (stripe)
+		{
+			productIds.forEach(productId -> stripe.add(productId, weight, waitNanos));
+		}
+	}
+
+	private Stripe stripe()
+	{
+		return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+	}
+
+	public boolean isHot(final UUID productId)
+	{
+		return hotSkus.contains(productId);
+	}
+
+	public boolean anyHot(final Collection<UUID> productIds)
+	{
+		final Set<UUID> hot = hotSkus;
+		if (hot.isEmpty())
+		{
+			return false;
+		}
+		for (UUID productId : productIds)
+		{
+			if (hot.contains(productId))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the top K of the last window, hottest first
+	public List<HotSku> getRanking()
+	{
+		return ranking;
+	}
+
+	/*
+	 * Closes a window: merges the stripes, ranks the merged counters, publishes the hot set, then halves every
+	 * score. Counters that decayed to nothing are dropped so the long tail does not keep the capacity filled with
+	 * stale SKUs. Each stripe is held only while it is merged and halved.
+	 * */
+	@Scheduled(initialDelayString = "${inventory.hot-sku.window-ms:10000}", fixedDelayString = "${inventory.hot-sku.window-ms:10000}")
+	public void rotate()
+	{
+		final Map<UUID, SkuCounter> merged = new HashMap<>();
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				stripe.counters.forEach((productId, counter) -> merged.computeIfAbsent(productId, id -> new SkuCounter(0)).add(counter));
+				stripe.decay();
+			}
+		}
+		final List<HotSku> top = merged.entrySet().stream()
+				.sorted(Map.Entry.<UUID, SkuCounter>comparingByValue(Comparator.comparingLong(counter -> counter.score)).reversed())
+				.limit(topK)
+				.map(entry -> entry.getValue().toHotSku(entry.getKey(), entry.getValue().score - entry.getValue().error >= minScore))
+				.toList();
+		final Set<UUID> hot = top.stream().filter(HotSku::isHot).map(HotSku::getProductId).collect(Collectors.toUnmodifiableSet());
+		if (!hot.equals(hotSkus))
+		{
+			logger.info("hot SKUs changed to " + hot);
+		}
+		this.ranking = top;
+		this.hotSkus = hot;
+	}
+
+	// one space-saving summary, only touched under its own monitor
+	private static final class Stripe
+	{
+		private final int capacity;
+		private final Map<UUID, SkuCounter> counters = new HashMap<>();
+
+		private Stripe(final int capacity)
+		{
+			this.capacity = capacity;
+		}
+
+		private void add(final UUID productId, final long weight, final long waitNanos)
+		{
+			SkuCounter counter = counters.get(productId);
+			if (counter == null)
+			{
+				long inherited = 0;
+				if (counters.size() >= capacity)
+				{
+					UUID evicted = null;
+					for (Map.Entry<UUID, SkuCounter> entry : counters.entrySet())
+					{
+						if (evicted == null || entry.getValue().score < inherited)
+						{
+							evicted = entry.getKey();
+							inherited = entry.getValue().score;
+						}
+					}
+					counters.remove(evicted);
+				}
+				counter = new SkuCounter(inherited);
+				counters.put(productId, counter);
+			}
+			counter.score += weight;
+			if (waitNanos == 0)
+			{
+				counter.reservedLines++;
+			} else
+			{
+				counter.lockWaitNanos += waitNanos;
+			}
+		}
+
+		private void decay()
+		{
+			final Iterator<SkuCounter> decaying = counters.values().iterator();
+			while (decaying.hasNext())
+			{
+				final SkuCounter counter = decaying.next();
+				counter.halve();
+				if (counter.score == 0)
+				{
+					decaying.remove();
+				}
+			}
+		}
+	}
+
+	private static final class SkuCounter
+	{
+		private long score;
+		private long error;
+		private long reservedLines;
+		private long lockWaitNanos;
+
+		private SkuCounter(final long inherited)
+		{
+			this.score = inherited;
+			this.error = inherited;
+		}
+
+		private void add(final SkuCounter other)
+		{
+			score += other.score;
+			error += other.error;
+			reservedLines += other.reservedLines;
+			lockWaitNanos += other.lockWaitNanos;
+		}
+
+		private void halve()
+		{
+			score /= 2;
+			error /= 2;
+			reservedLines /= 2;
+			lockWaitNanos /= 2;
+		}
+
+		private HotSku toHotSku(final UUID productId, final boolean hot)
+		{
+			return HotSku.builder()
+					.productId(productId)
+					.score(score)
+					.error(error)
+					.reservedLines(reservedLines)
+					.lockWaitMillis(TimeUnit.NANOSECONDS.toMillis(lockWaitNanos))
+					.hot(hot)
+					.build();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.ProcessedPaymentEvent;
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.repository.ProcessedPaymentEventRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/*
+ * Remembers which orders already had their payment result applied.
+ * The DB table is the source of truth; a bounded LRU of recently processed orderIds in front of it
+ * rejects the common case (Rabbit redelivery shortly after processing) without a DB hit.
+ * */
+@Component
+public class ProcessedOrderRegistry
+{
+	final Logger logger = LogManager.getLogger("ProcessedOrderRegistry");
+
+	private final ProcessedPaymentEventRepository processedPaymentEventRepository;
+
+	private final Map<UUID, Boolean> recentlyProcessed;
+
+	@Value("${inventory.payment-result.processed-retention-days:30}")
+	private int retentionDays = 30;
+
+	public ProcessedOrderRegistry(final ProcessedPaymentEventRepository processedPaymentEventRepository,
+			@Value("${inventory.payment-result.processed-cache-size:100000}") final int cacheSize)
+	{
+		this.processedPaymentEventRepository = processedPaymentEventRepository;
+		this.recentlyProcessed = Collections.synchronizedMap(new LinkedHashMap<>(1024, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<UUID, Boolean> eldest)
+			{
+				return size() > cacheSize;
+			}
+		});
+	}
+
+	// the orderIds that have not been processed yet, in their original order
+	public Set<UUID> filterUnprocessed(final Collection<UUID> orderIds)
+	{
+		final Set<UUID> unprocessed = new LinkedHashSet<>();
+		for (UUID orderId : orderIds)
+		{
+			if (!recentlyProcessed.containsKey(orderId))
+			{
+				unprocessed.add(orderId);
+			}
+		}
+		if (unprocessed.isEmpty())
+		{
+			return unprocessed;
+		}
+		final Set<UUID> processedInDb = processedPaymentEventRepository.findProcessedOrderIds(unprocessed);
+		processedInDb.forEach(orderId -> recentlyProcessed.put(orderId, Boolean.TRUE));
+		unprocessed.removeAll(processedInDb);
+		return unprocessed;
+	}
+
+	/*
+	 * Inserts the processed markers in the caller's transaction. A concurrent consumer applying the same
+	 * order fails on the primary key and rolls back. The LRU is only filled once the transaction commits.
+	 * */
+	public void markProcessed(final Collection<UUID> orderIds, final ReservationState outcome)
+	{
+		if (orderIds.isEmpty())
+		{
+			return;
+		}
+		final LocalDateTime now = LocalDateTime.now();
+		final List<ProcessedPaymentEvent> events = orderIds.stream()
+				.map(orderId -> ProcessedPaymentEvent.builder().orderId(orderId).outcome(outcome).processedAt(now).build())
+				.toList();
+		processedPaymentEventRepository.saveAll(events);
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization()
+			{
+				@Override
+				public void afterCommit()
+				{
+					orderIds.forEach(orderId -> recentlyProcessed.put(orderId, Boolean.TRUE));
+				}
+			});
+		} else
+		{
+			orderIds.forEach(orderId -> recentlyProcessed.put(orderId, Boolean.TRUE));
+		}
+	}
+
+	@Transactional
+	@Scheduled(cron = "${inventory.payment-result.processed-purge-cron:0 30 3 * * *}")
+	public void purgeExpired()
+	{
+		final int purged = processedPaymentEventRepository.deleteProcessedBefore(LocalDateTime.now().minusDays(retentionDays));
+		logger.info("purged " + purged + " processed payment events older than " + retentionDays + " days");
+	}
+}
@@ -0,0 +1,210 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nayan.obai.inventory.entity.Product;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.redisson.api.LocalCachedMapOptions;
+import org.redisson.api.RLocalCachedMap;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/*
+ * Read-through cache of the available quantity shown by getProduct. Tier one is a bounded Caffeine cache per
+ * instance, tier two an optional Redisson near cache (RLocalCachedMap) shared by all instances.
+ * Entries are evicted whenever reserve, commit, release, expiry or saveProduct touch the product, both right away and
+ * again after the surrounding transaction commits, so a reader racing the write cannot keep the old value.
+ * Values are "approximately available" for browsing: bounded by the ttl at worst. The reserve paths never read
+ * through here, they always load the product rows themselves.
+ * */
+@Component
+public class ProductAvailabilityCache
+{
+	final Logger logger = LogManager.getLogger("ProductAvailabilityCache");
+
+	private static final String NEAR_CACHE_NAME = "inventory:product-availability";
+
+	private final boolean enabled;
+
+	private final long ttlMillis;
+
+	private final Cache<UUID, Product> localCache;
+
+	// null unless inventory.product-cache.near-cache.enabled
+	private final RLocalCachedMap<String, String> nearCache;
+
+	public ProductAvailabilityCache(final RedissonClient redissonClient, final MeterRegistry meterRegistry,
+			@Value("${inventory.product-cache.enabled:true}") final boolean enabled,
+			@Value("${inventory.product-cache.max-size:100000}") final long maxSize,
+			@Value("${inventory.product-cache.ttl-ms:1000}") final long ttlMillis,
+			@Value("${inventory.product-cache.near-cache.enabled:false}") final boolean nearCacheEnabled)
+	{
+		this.enabled = enabled;
+		this.ttlMillis = ttlMillis;
+		this.localCache = Caffeine.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(Duration.ofMillis(ttlMillis))
+				.recordStats()
+				.build();
+		// exports cache.gets{result=hit|miss}, cache.evictions and friends tagged cache=productAvailability
+		CaffeineCacheMetrics.monitor(meterRegistry, localCache, "productAvailability");
+		if (enabled && nearCacheEnabled)
+		{
+			final LocalCachedMapOptions<String, String> options = LocalCachedMapOptions.<String, String>defaults()
+					.cacheSize((int) Math.min(maxSize, Integer.MAX_VALUE))
+					.timeToLive(ttlMillis)
+					.syncStrategy(LocalCachedMapOptions.SyncStrategy.INVALIDATE)
+					.evictionPolicy(LocalCachedMapOptions.EvictionPolicy.LRU);
+			this.nearCache = redissonClient.getLocalCachedMap(NEAR_CACHE_NAME, StringCodec.INSTANCE, options);
+		} else
+		{
+			this.nearCache = null;
+		}
+	}
+
+	public Product get(final UUID productId, final Function<UUID, Product> loader)
+	{
+		if (!enabled)
+		{
+			return loader.apply(productId);
+		}
+		return localCache.get(productId, id -> loadFromNearCache(id, loader));
+	}
+
+	private Product loadFromNearCache(final UUID productId, final Function<UUID, Product> loader)
+	{
+		if (nearCache == null)
+		{
+			return loader.apply(productId);
+		}
+		final Product cached = decode(productId, nearCache.get(productId.toString()));
+		if (cached != null)
+		{
+			return cached;
+		}
+		final Product loaded = loader.apply(productId);
+		nearCache.fastPut(productId.toString(), encode(loaded));
+		return loaded;
+	}
+
+	// products missing from the loader's result are left out of the returned map and are not cached
+	public Map<UUID, Product> getAll(final Collection<UUID> productIds, final Function<Collection<UUID>, Map<UUID, Product>> loader)
+	{
+		if (!enabled)
+		{
+			return loader.apply(productIds);
+		}
+		return localCache.getAll(productIds, missing -> loadAllFromNearCache(Set.copyOf(missing), loader));
+	}
+
+	private Map<UUID, Product> loadAllFromNearCache(final Set<UUID> productIds, final Function<Collection<UUID>, Map<UUID, Product>> loader)
+	{
+		if (nearCache == null)
+		{
+			return loader.apply(productIds);
+		}
+		final Map<UUID, Product> found = new HashMap<>();
+		nearCache.getAll(productIds.stream().map(UUID::toString).collect(Collectors.toSet())).forEach((key, value) -> {
+			final Product cached = decode(UUID.fromString(key), value);
+			if (cached != null)
+			{
+				found.put(cached.getProductId(), cached);
+			}
+		});
+		final Set<UUID> missing = new HashSet<>(productIds);
+		missing.removeAll(found.keySet());
+		if (!missing.isEmpty())
+		{
+			final Map<UUID, Product> loaded = loader.apply(missing);
+			final Map<String, String> encoded = new HashMap<>();
+			loaded.forEach((productId, product) -> encoded.put(productId.toString(), encode(product)));
+			nearCache.putAll(encoded);
+			found.putAll(loaded);
+		}
+		return found;
+	}
+
+	public void evict(final UUID productId)
+	{
+		evictAll(List.of(productId));
+	}
+
+	public void evictAll(final Collection<UUID> productIds)
+	{
+		if (!enabled || productIds.isEmpty())
+		{
+			return;
+		}
+		invalidate(productIds);
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization()
+			{
+				@Override
+				public void afterCommit()
+				{
+					invalidate(productIds);
+				}
+			});
+		}
+	}
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	private void invalidate(final Collection<UUID> productIds)
+	{
+		localCache.invalidateAll(productIds);
+		if (nearCache != null)
+		{
+			nearCache.fastRemove(productIds.stream().map(UUID::toString).toArray(String[]::new));
+		}
+	}
+
+	// quantity|reservedQuantity|lastUpdated|loadedAtMillis, the Redis side of the near cache has no ttl of its own
+	private String encode(final Product product)
+	{
+		return product.getQuantity() + "|" + product.getReservedQuantity() + "|"
+				+ (product.getLastUpdated() == null ? "" : product.getLastUpdated().toString()) + "|" + System.currentTimeMillis();
+	}
+
+	private Product decode(final UUID productId, final String value)
+	{
+		if (value == null)
+		{
+			return null;
+		}
+		final String[] parts = value.split("\\|", -1);
+		if (System.currentTimeMillis() - Long.parseLong(parts[3]) > ttlMillis)
+		{
+			return null;
+		}
+		return Product.builder()
+				.productId(productId)
+				.quantity(Integer.valueOf(parts[0]))
+				.reservedQuantity(Integer.valueOf(parts[1]))
+				.lastUpdated(parts[2].isEmpty() ? null : LocalDateTime.parse(parts[2]))
+				.build();
+	}
+}
@@ -2,26 +2,61 @@ package com.nayan.obai.inventory.service.impl;
 
 import com.nayan.obai.inventory.entity.Product;
 import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.entity.StockMovement;
 import com.nayan.obai.inventory.exception.InventoryServiceException;
+import com.nayan.obai.inventory.exception.StockConflictException;
+import com.nayan.obai.inventory.repository.ProductExportRepository;
 import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
 import com.nayan.obai.inventory.repository.ReservationRepository;
+import com.nayan.obai.inventory.rest.HotSku;
 import com.nayan.obai.inventory.rest.OrderProduct;
+import com.nayan.obai.inventory.rest.ProductStockBuckets;
+import com.nayan.obai.inventory.rest.StockAdjustment;
+import com.nayan.obai.inventory.rest.StockAdjustmentResult;
+import com.nayan.obai.inventory.rest.StockAdjustmentType;
 import com.nayan.obai.inventory.service.ProductService;
+import com.nayan.obai.inventory.service.ReservationMode;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
+import jakarta.annotation.PostConstruct;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.text.MessageFormat;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Service
 public class ProductServiceImpl implements ProductService
@@ -37,6 +72,80 @@ public class ProductServiceImpl implements ProductService
 	@Autowired
 	private ReservationRepository reservationRepository;
 
+	@Autowired
+	private ProductStockBatchRepository productStockBatchRepository;
+
+	@Autowired
+	private ProcessedOrderRegistry processedOrderRegistry;
+
+	@Autowired
+	private ProductAvailabilityCache productAvailabilityCache;
+
+	@Autowired
+	private ProductExportRepository productExportRepository;
+
+	@Autowired
+	private StockMovementJournal stockMovementJournal;
+
+	@Autowired
+	private StockOutbox stockOutbox;
+
+	@Autowired
+	private TransactionTemplate transactionTemplate;
+
+	@Value("${inventory.reservation.mode:LOCK}")
+	private ReservationMode reservationMode = ReservationMode.LOCK;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${inventory.products.max-page-size:1000}")
+	private int maxPageSize = 1000;
+
+	@Value("${inventory.products.max-bulk-size:200}")
+	private int maxBulkSize = 200;
+
+	@Value("${inventory.reservation.lock.wait-ms:3000}")
+	private long lockWaitMillis = 3000;
+
+	@Value("${inventory.reservation.lock.lease-ms:10000}")
+	private long lockLeaseMillis = 10000;
+
+	// orders currently waiting for product locks, exported as the lock contention gauge
+	private final AtomicInteger lockWaiters = new AtomicInteger();
+
+	// spans around the lock and the steps of a reservation, NOOP unless a tracing bridge is configured.
+	// Metric tags stay low cardinality (mode, outcome, reason, state), the orderId only goes on spans
+	@Autowired(required = false)
+	private Tracer tracer = Tracer.NOOP;
+
+	// LOCK and CONDITIONAL_UPDATE: reservation writes of concurrent orders share one transaction
+	@Value("${inventory.reservation.group-commit.enabled:false}")
+	private boolean groupCommitEnabled = false;
+
+	@Autowired(required = false)
+	private ReservationGroupCommitter reservationGroupCommitter;
+
+	// only present when inventory.reservation.mode=REDIS_LEDGER
+	@Autowired(required = false)
+	private RedisStockLedger redisStockLedger;
+
+	// only present when inventory.reservation.mode=SHARDED
+	@Autowired(required = false)
+	private ShardedStockEngine shardedStockEngine;
+
+	// only present when inventory.hot-sku.enabled=true
+	@Autowired(required = false)
+	private HotSkuDetector hotSkuDetector;
+
+	// LOCK mode: orders with a hot SKU skip the Redis locks and reserve with conditional updates
+	@Value("${inventory.hot-sku.routing-enabled:true}")
+	private boolean hotSkuRoutingEnabled = true;
+
+	// only present when inventory.stock-buckets.enabled=true
+	@Autowired(required = false)
+	private StockBuckets stockBuckets;
+
 	public ProductServiceImpl(){}
 
 	@Autowired
@@ -46,120 +155,986 @@ public class ProductServiceImpl implements ProductService
 		this.redissonClient = redissonClient;
 	}
 
-	public ProductServiceImpl(final ProductRepository productRepository, final ReservationRepository reservationRepository, final RedissonClient redissonClient, final RLock rLock)
+	public ProductServiceImpl(final ProductRepository productRepository, final ReservationRepository reservationRepository, final ProductStockBatchRepository productStockBatchRepository,
+			final ProcessedOrderRegistry processedOrderRegistry, final ProductAvailabilityCache productAvailabilityCache, final StockMovementJournal stockMovementJournal,
+			final StockOutbox stockOutbox, final RedissonClient redissonClient, final RLock rLock, final TransactionTemplate transactionTemplate, final MeterRegistry meterRegistry)
 	{
-		logger.debug("injecting all dependencies(ProductRepository, ReservationRepository, RedissonClient, RLock) in Product Service");
+		logger.debug("injecting all dependencies(ProductRepository, ReservationRepository, ProductStockBatchRepository, ProcessedOrderRegistry, ProductAvailabilityCache, StockMovementJournal, StockOutbox, RedissonClient, RLock, TransactionTemplate, MeterRegistry) in Product Service");
 		this.productRepository = productRepository;
 		this.reservationRepository = reservationRepository;
+		this.productStockBatchRepository = productStockBatchRepository;
+		this.processedOrderRegistry = processedOrderRegistry;
+		this.productAvailabilityCache = productAvailabilityCache;
+		this.stockMovementJournal = stockMovementJournal;
+		this.stockOutbox = stockOutbox;
 		this.redissonClient = redissonClient;
 		this.rLock = rLock;
+		this.transactionTemplate = transactionTemplate;
+		this.meterRegistry = meterRegistry;
+		registerLockGauge();
+	}
+
+	@PostConstruct
+	void registerLockGauge()
+	{
+		Gauge.builder("inventory.reservation.lock.waiting", lockWaiters, AtomicInteger::get)
+				.description("Orders currently waiting for product locks")
+				.register(meterRegistry);
 	}
 
+	// browsing read, served from the availability cache. Reservations never go through here.
 	@Override
 	public Product getProduct(final UUID productId)
 	{
 		logger.info("fetching product for productId=" + productId);
+		final Product availableProduct = productAvailabilityCache.get(productId, this::loadAvailableProduct);
+		logger.info("Product:" + availableProduct);
+		return availableProduct;
+	}
+
+	private Product loadAvailableProduct(final UUID productId)
+	{
 		final Product product = productRepository.findById(productId).orElseThrow(() -> new InventoryServiceException("The product you are trying to search does not exist in the inventory."));
-		int reservedStocks = reservationRepository.getTotalReservedQuantityByProductId(productId);
-		// setting available stocks
-		product.setQuantity(product.getQuantity() - reservedStocks);
-		logger.info("Product:" + product);
-		return product;
+		// available stock comes from the maintained reservedQuantity counter, no SUM over reservations needed
+		final Product availableProduct = withBucketAvailability(List.of(toAvailableProduct(product))).get(0);
+		if (reservationMode == ReservationMode.REDIS_LEDGER)
+		{
+			// the ledger is ahead of the write-behind DB counters
+			final Integer ledgerAvailable = redisStockLedger.getAvailableQuantity(productId);
+			if (ledgerAvailable != null)
+			{
+				availableProduct.setQuantity(ledgerAvailable);
+			}
+		}
+		return availableProduct;
 	}
 
+	/*
+	 * Available quantity of many products at once: cached entries first, the rest with one IN query over the
+	 * reservedQuantity counter column (no per product SUM) and, in REDIS_LEDGER mode, one pipelined ledger read.
+	 * Unknown productIds are simply absent from the result.
+	 * */
+	@Override
+	public Map<UUID, Product> getAvailableProducts(final Collection<UUID> productIds)
+	{
+		final Set<UUID> requested = new LinkedHashSet<>(productIds);
+		if (requested.size() > maxBulkSize)
+		{
+			throw new IllegalArgumentException("At most " + maxBulkSize + " productIds can be looked up at once, got " + requested.size());
+		}
+		logger.info("fetching availability of " + requested.size() + " products");
+		if (requested.isEmpty())
+		{
+			return Map.of();
+		}
+		return productAvailabilityCache.getAll(requested, this::loadAvailableProducts);
+	}
+
+	private Map<UUID, Product> loadAvailableProducts(final Collection<UUID> productIds)
+	{
+		final List<Product> products = withLedgerAvailability(withBucketAvailability(productRepository.findAllById(productIds).stream().map(this::toAvailableProduct).toList()));
+		return products.stream().collect(Collectors.toMap(Product::getProductId, product -> product));
+	}
+
+	// Copy instead of mutating the entity so the available quantity can never be flushed back as on-hand stock
+	private Product toAvailableProduct(final Product product)
+	{
+		final int reservedStocks = product.getReservedQuantity() == null ? 0 : product.getReservedQuantity();
+		return Product.builder()
+				.productId(product.getProductId())
+				.quantity(product.getQuantity() - reservedStocks)
+				.reservedQuantity(reservedStocks)
+				.lastUpdated(product.getLastUpdated())
+				.build();
+	}
+
+	// new products are inserted, for an existing product the payload is a cycle count of its on-hand stock
 	@Override
 	public Product saveProduct(final Product product)
 	{
 		logger.info("saving product=" + product);
-		final Product savedProduct = productRepository.save(product);
+		if (product.getProductId() == null)
+		{
+			final Product savedProduct = transactionTemplate.execute(status -> {
+				final Product inserted = productRepository.save(product);
+				stockMovementJournal.append(List.of(StockMovementJournal.overwritten(inserted.getProductId(), inserted.getQuantity())));
+				stockOutbox.productsChanged(List.of(inserted.getProductId()));
+				return inserted;
+			});
+			if (reservationMode == ReservationMode.REDIS_LEDGER)
+			{
+				redisStockLedger.syncOnHandQuantity(savedProduct.getProductId(), savedProduct.getQuantity());
+			}
+			if (reservationMode == ReservationMode.SHARDED)
+			{
+				shardedStockEngine.syncOnHandQuantity(savedProduct.getProductId(), savedProduct.getQuantity());
+			}
+			logger.debug("saved product");
+			return savedProduct;
+		}
+		final StockAdjustmentResult result = adjustStock(List.of(StockAdjustment.builder()
+				.productId(product.getProductId())
+				.type(StockAdjustmentType.SET)
+				.quantity(product.getQuantity())
+				.expectedVersion(product.getVersion())
+				.build())).get(0);
+		if (!result.isApplied())
+		{
+			if (!productRepository.existsById(product.getProductId()))
+			{
+				throw new InventoryServiceException("The product you are trying to search does not exist in the inventory. productId=" + product.getProductId());
+			}
+			// the count was taken at another version or is below the reserved stock, the client re-reads and counts again
+			throw new StockConflictException("Stock of productId=" + product.getProductId() + " not updated: version changed or quantity below reserved stock");
+		}
 		logger.debug("saved product");
-		return product;
+		return productRepository.findById(product.getProductId()).orElseThrow();
+	}
+
+	/*
+	 * Applies receipts, shrinkage and cycle counts as relative or version checked updates in one JDBC batch,
+	 * in the given order. No Redisson lock is taken: the row lock of each UPDATE serializes writers, so a
+	 * restock can no longer overwrite a concurrent deduction. Every adjustment succeeds or fails on its own.
+	 * */
+	@Transactional
+	@Override
+	public List<StockAdjustmentResult> adjustStock(final List<StockAdjustment> adjustments)
+	{
+		logger.info("applying " + adjustments.size() + " stock adjustments");
+		for (StockAdjustment adjustment : adjustments)
+		{
+			if (adjustment.getProductId() == null || adjustment.getType() == null || adjustment.getQuantity() < 0)
+			{
+				throw new IllegalArgumentException("Every adjustment needs a productId, a type and a non negative quantity");
+			}
+		}
+		if (stockBuckets != null)
+		{
+			// the guards below see parked stock as reserved, it goes back to the rows until the next rebalance
+			stockBuckets.drain(adjustments.stream().map(StockAdjustment::getProductId).collect(Collectors.toSet()));
+		}
+		final int[] updated = adjustments.isEmpty() ? new int[0] : productStockBatchRepository.adjustQuantities(adjustments);
+		final List<StockAdjustmentResult> results = new ArrayList<>();
+		final Set<UUID> adjustedProductIds = new LinkedHashSet<>();
+		final List<StockMovement> movements = new ArrayList<>();
+		for (int i = 0; i < adjustments.size(); i++)
+		{
+			final StockAdjustment adjustment = adjustments.get(i);
+			final boolean applied = updated[i] != 0;
+			if (applied)
+			{
+				adjustedProductIds.add(adjustment.getProductId());
+				movements.add(switch (adjustment.getType())
+				{
+					case RECEIVE -> StockMovementJournal.adjusted(adjustment.getProductId(), adjustment.getQuantity());
+					case SHRINK -> StockMovementJournal.adjusted(adjustment.getProductId(), -adjustment.getQuantity());
+					case SET -> StockMovementJournal.overwritten(adjustment.getProductId(), adjustment.getQuantity());
+				});
+			}
+			results.add(StockAdjustmentResult.builder()
+					.productId(adjustment.getProductId())
+					.type(adjustment.getType())
+					.applied(applied)
+					.reason(applied ? null : "product missing, quantity would drop below reserved stock or version changed")
+					.build());
+		}
+		// same transaction and order as the updates, a cycle count must land after the changes it overwrote
+		stockMovementJournal.append(movements);
+		stockOutbox.productsChanged(adjustedProductIds);
+		if (reservationMode == ReservationMode.REDIS_LEDGER && !adjustedProductIds.isEmpty())
+		{
+			// the ledger keeps absolute on-hand values, the new ones are pushed once this transaction commits
+			productRepository.findAllById(adjustedProductIds).forEach(product ->
+					redisStockLedger.syncOnHandQuantity(product.getProductId(), product.getQuantity()));
+		}
+		if (reservationMode == ReservationMode.SHARDED && !adjustedProductIds.isEmpty())
+		{
+			// applied to the shard counters once this transaction commits
+			productRepository.findAllById(adjustedProductIds).forEach(product ->
+					shardedStockEngine.syncOnHandQuantity(product.getProductId(), product.getQuantity()));
+		}
+		productAvailabilityCache.evictAll(adjustedProductIds);
+		return results;
 	}
 
 	@Override
 	public List<Product> getAllProducts()
 	{
 		logger.info("fetching all the products");
-		return productRepository.findAll();
+		return withLedgerAvailability(withBucketAvailability(productRepository.findAll().stream().map(this::toAvailableProduct).toList()));
+	}
+
+	// keyset page ordered by productId, null after starts at the beginning. Size is capped at maxPageSize.
+	@Override
+	public List<Product> getProducts(final UUID after, final int size)
+	{
+		final Pageable pageable = PageRequest.of(0, getPageSize(size));
+		logger.info("fetching products after=" + after + " size=" + pageable.getPageSize());
+		final List<Product> products = after == null
+				? productRepository.findAllByOrderByProductIdAsc(pageable)
+				: productRepository.findByProductIdGreaterThanOrderByProductIdAsc(after, pageable);
+		return withLedgerAvailability(withBucketAvailability(products.stream().map(this::toAvailableProduct).toList()));
+	}
+
+	// the size getProducts really returns, a full page of it means there may be more
+	@Override
+	public int getPageSize(final int size)
+	{
+		return Math.max(1, Math.min(size, maxPageSize));
+	}
+
+	// streams every product with its available quantity from a JDBC cursor, nothing is collected in memory
+	@Override
+	public void exportProducts(final Consumer<Product> consumer)
+	{
+		logger.info("exporting all the products");
+		if (reservationMode == ReservationMode.REDIS_LEDGER)
+		{
+			// the ledger is ahead of the DB counters, rows get its values maxBulkSize at a time with one pipelined read each
+			final List<Product> chunk = new ArrayList<>();
+			productExportRepository.streamProducts(product -> {
+				chunk.add(toAvailableProduct(product));
+				if (chunk.size() >= maxBulkSize)
+				{
+					withLedgerAvailability(chunk).forEach(consumer);
+					chunk.clear();
+				}
+			});
+			withLedgerAvailability(chunk).forEach(consumer);
+			return;
+		}
+		final Map<UUID, Integer> parked = stockBuckets == null ? Map.of() : stockBuckets.parkedQuantities();
+		productExportRepository.streamProducts(product -> consumer.accept(withParkedStock(toAvailableProduct(product), parked.get(product.getProductId()))));
+	}
+
+	// stock parked in stock buckets counts as reserved on the Product row, for orders it is available
+	private List<Product> withBucketAvailability(final List<Product> products)
+	{
+		if (stockBuckets != null && !products.isEmpty())
+		{
+			// large listings read the few striped products whole instead of sending every productId
+			final Map<UUID, Integer> parked = products.size() > maxBulkSize ? stockBuckets.parkedQuantities()
+					: stockBuckets.parkedQuantities(products.stream().map(Product::getProductId).toList());
+			products.forEach(product -> withParkedStock(product, parked.get(product.getProductId())));
+		}
+		return products;
+	}
+
+	private Product withParkedStock(final Product availableProduct, final Integer parked)
+	{
+		if (parked != null)
+		{
+			availableProduct.setQuantity(availableProduct.getQuantity() + parked);
+			availableProduct.setReservedQuantity(availableProduct.getReservedQuantity() - parked);
+		}
+		return availableProduct;
+	}
+
+	// same override as getProduct: in REDIS_LEDGER mode the ledger is ahead of the DB counters
+	private List<Product> withLedgerAvailability(final List<Product> products)
+	{
+		if (reservationMode == ReservationMode.REDIS_LEDGER && !products.isEmpty())
+		{
+			final Map<UUID, Integer> ledgerAvailable = redisStockLedger.getAvailableQuantities(products.stream().map(Product::getProductId).toList());
+			products.forEach(product -> {
+				final Integer available = ledgerAvailable.get(product.getProductId());
+				if (available != null)
+				{
+					product.setQuantity(available);
+				}
+			});
+		}
+		return products;
 	}
 
 	@Override
 	public boolean validateAndReserveProduct(final OrderProduct orderProduct)
 	{
-		logger.debug("validating and locking stocks");
-		final Map<String, RLock> acquiredLocks = new HashMap<>();
+		final Span span = tracer.nextSpan().name("inventory.reservation")
+				.tag("mode", reservationMode.name())
+				.tag("orderId", String.valueOf(orderProduct.getOrderId()))
+				.start();
+		final long start = System.nanoTime();
+		boolean reserved = false;
+		try (Tracer.SpanInScope ignored = tracer.withSpan(span))
+		{
+			reserved = reserve(orderProduct);
+			return reserved;
+		} finally
+		{
+			final String outcome = reserved ? "reserved" : "rejected";
+			Timer.builder("inventory.reservation")
+					.description("Time to reserve or reject one order")
+					.tag("mode", reservationMode.name())
+					.tag("outcome", outcome)
+					.register(meterRegistry)
+					.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			span.tag("outcome", outcome);
+			span.end();
+		}
+	}
+
+	private boolean reserve(final OrderProduct orderProduct)
+	{
+		final List<UUID> productIds = orderProduct.getProducts() == null ? List.of()
+				: orderProduct.getProducts().stream().map(Product::getProductId).toList();
+		if (hotSkuDetector != null)
+		{
+			hotSkuDetector.recordReserve(productIds);
+		}
+		if (reservationMode == ReservationMode.CONDITIONAL_UPDATE)
+		{
+			return reserveWithConditionalUpdate(orderProduct);
+		}
+		if (reservationMode == ReservationMode.REDIS_LEDGER)
+		{
+			return reserveWithRedisLedger(orderProduct);
+		}
+		if (reservationMode == ReservationMode.SHARDED)
+		{
+			return reserveWithShardedEngine(orderProduct);
+		}
+		if (hotSkuDetector != null && hotSkuRoutingEnabled && hotSkuDetector.anyHot(productIds))
+		{
+			// every order on a hot SKU would queue on the same lock, the row lock of the guarded UPDATE is enough
+			meterRegistry.counter("inventory.hot-sku.routed").increment();
+			return reserveWithConditionalUpdate(orderProduct);
+		}
+		if (stockBuckets != null && stockBuckets.anyStriped(productIds))
+		{
+			// the lines of a striped product are spread over its bucket rows, a product lock would queue them again
+			return reserveWithConditionalUpdate(orderProduct);
+		}
+		return reserveWithLocks(orderProduct);
+	}
+
+	/*
+	 * With hot SKUs routed around the locks, a SKU can have conditional writers next to locked ones (it just
+	 * turned hot or cold), so the locked path guards its counter updates the same way. Holding the lock no
+	 * longer means nobody else reserves that product. The same goes for striped products, and for the
+	 * rebalancing of their buckets, which parks stock on the Product row without the product lock.
+	 * */
+	private boolean lockFreeWriters()
+	{
+		return (hotSkuDetector != null && hotSkuRoutingEnabled) || stockBuckets != null;
+	}
+
+	@Override
+	public List<HotSku> getHotSkus()
+	{
+		return hotSkuDetector == null ? List.of() : hotSkuDetector.getRanking();
+	}
+
+	@Override
+	public ProductStockBuckets getStockBuckets(final UUID productId)
+	{
+		return requireStockBuckets().getBuckets(productId);
+	}
+
+	@Override
+	public ProductStockBuckets configureStockBuckets(final UUID productId, final int count)
+	{
+		logger.info("striping productId=" + productId + " over " + count + " stock buckets");
+		return requireStockBuckets().configure(productId, count);
+	}
+
+	/*
+	 * READ COMMITTED for reservations that may touch stock buckets: a conditional UPDATE that matched nothing
+	 * then releases its row lock, so a drain that follows only waits on locks it can get in bucket order.
+	 * */
+	private TransactionTemplate bucketTransactions()
+	{
+		final TransactionTemplate bucketTransactions = new TransactionTemplate(transactionTemplate.getTransactionManager(), transactionTemplate);
+		bucketTransactions.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+		return bucketTransactions;
+	}
+
+	private StockBuckets requireStockBuckets()
+	{
+		if (stockBuckets == null)
+		{
+			throw new IllegalArgumentException("Stock buckets are disabled, set inventory.stock-buckets.enabled=true");
+		}
+		return stockBuckets;
+	}
+
+	private boolean reserveWithRedisLedger(final OrderProduct orderProduct)
+	{
 		try
 		{
-			final List<Product> items = orderProduct.getProducts();
-			// Acquire locks
-			logger.debug("trying to acquire locks for order " + orderProduct.getOrderId());
-			for (Product item : items)
+			// the script trusts its quantities, a negative line would add stock
+			final Map<UUID, Integer> requested = requestedQuantities(orderProduct);
+			final boolean reserved = redisStockLedger.reserve(orderProduct.getOrderId(), requested);
+			if (reserved)
+			{
+				productAvailabilityCache.evictAll(requested.keySet());
+			}
+			return reserved;
+		} catch (Exception e)
+		{
+			logger.error(e.getMessage());
+			return false;
+		}
+	}
+
+	// no lock and no DB read: the shards owning the products check and hold the lines, the write is group committed
+	private boolean reserveWithShardedEngine(final OrderProduct orderProduct)
+	{
+		try
+		{
+			final Map<UUID, Integer> requested = requestedQuantities(orderProduct);
+			final String rejection = shardedStockEngine.reserve(orderProduct.getOrderId(), requested);
+			if (rejection != null)
 			{
-				final String lockKey = "lock:stock:" + item.getProductId().toString();
-				logger.info("trying to get lock instance for " + lockKey);
-				final RLock lock = redissonClient.getLock(lockKey);
-				logger.info("trying to get lock for " + lockKey);
-				final boolean success = lock.tryLock(3, 10, TimeUnit.SECONDS);
-				if (!success)
+				logger.info("orderId=" + orderProduct.getOrderId() + " not reserved: " + rejection);
+				return false;
+			}
+			productAvailabilityCache.evictAll(requested.keySet());
+			return true;
+		} catch (Exception e)
+		{
+			logger.error(e.getMessage());
+			return false;
+		}
+	}
+
+	/*
+	 * Each line is reserved with a single UPDATE that only succeeds when enough stock is available.
+	 * All lines run in one transaction, so the first short line rolls back the whole order.
+	 * No distributed lock is needed because the row lock taken by the UPDATE serializes writers.
+	 * */
+	private boolean reserveWithConditionalUpdate(final OrderProduct orderProduct)
+	{
+		logger.debug("reserving stock with conditional updates for orderId=" + orderProduct.getOrderId());
+		try
+		{
+			// merged and sorted by productId so concurrent transactions lock Product rows in the same sequence
+			final Map<UUID, Integer> requested = requestedQuantities(orderProduct);
+			// lines of striped products are drawn from their buckets in this transaction, not by the committer
+			final boolean striped = stockBuckets != null && stockBuckets.anyStriped(requested.keySet());
+			if (groupCommitEnabled && !striped)
+			{
+				// the conditional updates run in the committer's shared transaction, a short order is rejected on its own
+				final String rejection = reservationGroupCommitter.reserve(orderProduct.getOrderId(), requested, true);
+				if (rejection != null)
+				{
+					throw new InventoryServiceException(rejection);
+				}
+				productAvailabilityCache.evictAll(requested.keySet());
+				logger.debug("Reserved Stock for orderId=" + orderProduct.getOrderId());
+				return true;
+			}
+			step("inventory.reservation.write", () -> (stockBuckets != null ? bucketTransactions() : transactionTemplate).execute(status -> {
+				// all conditional updates on Product rows go out as one JDBC batch, striped lines go to their buckets
+				final Map<UUID, Integer> rowLines = new TreeMap<>(requested);
+				if (striped)
+				{
+					rowLines.keySet().removeIf(stockBuckets::isStriped);
+				}
+				final int[] updated = rowLines.isEmpty() ? new int[0] : productStockBatchRepository.reserveQuantitiesIfAvailable(rowLines);
+				int line = 0;
+				for (Map.Entry<UUID, Integer> item : requested.entrySet())
 				{
-					throw new IllegalStateException("Could not acquire lock for product " + item.getProductId());
+					final boolean reserved = rowLines.containsKey(item.getKey())
+							? updated[line++] != 0 || (stockBuckets != null && stockBuckets.reserveAfterShortRow(item.getKey(), item.getValue()))
+							: stockBuckets.reserve(item.getKey(), item.getValue());
+					if (!reserved)
+					{
+						final String errorMsg = MessageFormat.format("Insufficient stock for productId={0}. Requested {1} stock", item.getKey(), item.getValue());
+						throw new InventoryServiceException(errorMsg);
+					}
 				}
-				acquiredLocks.put(item.getProductId().toString(), lock);
-				logger.info("acquired lock for " + lockKey);
+				reservationRepository.saveAll(reservationsFor(orderProduct.getOrderId(), requested));
+				stockMovementJournal.record(StockMovementJournal.reserved(orderProduct.getOrderId(), requested));
+				stockOutbox.productsChanged(requested.keySet());
+				return requested;
+			}));
+			productAvailabilityCache.evictAll(requested.keySet());
+			logger.debug("Reserved Stock for orderId=" + orderProduct.getOrderId());
+			return true;
+		} catch (Exception e)
+		{
+			// the transaction rollback already undid every line of this order
+			logger.error(e.getMessage());
+			countRollback(e);
+			return false;
+		}
+	}
+
+	private boolean reserveWithLocks(final OrderProduct orderProduct)
+	{
+		logger.debug("validating and locking stocks");
+		RLock acquiredLock = null;
+		try
+		{
+			final Map<UUID, Integer> requested = requestedQuantities(orderProduct);
+			// Acquire all locks of the order in one multi lock over keys sorted by productId, so two orders
+			// sharing products always lock them in the same sequence and cannot stall each other
+			logger.debug("trying to acquire locks for order " + orderProduct.getOrderId());
+			final RLock[] locks = requested.keySet().stream()
+					.map(productId -> redissonClient.getLock("lock:stock:" + productId))
+					.toArray(RLock[]::new);
+			final RLock multiLock = redissonClient.getMultiLock(locks);
+			if (!acquire(multiLock, requested.keySet()))
+			{
+				throw new IllegalStateException("Could not acquire locks for products of orderId=" + orderProduct.getOrderId());
 			}
-			logger.debug("acquired locks for prodcts of orderId=" + orderProduct.getOrderId());
+			acquiredLock = multiLock;
+			logger.debug("acquired " + locks.length + " locks for prodcts of orderId=" + orderProduct.getOrderId());
 
 			logger.debug("Validating stock for products of orderId=" + orderProduct.getOrderId());
-			// Validate and reserve
-			for (Product item : items)
-			{
-				final Product stock = getProduct(item.getProductId());
-				// get the product reserved quantity and minus it from item.quantity to get the available quantity
-				if (stock.getQuantity() < item.getQuantity())
+			// Validate with one IN query for all products of the order
+			step("inventory.reservation.validate", () -> {
+				final Map<UUID, Product> stocks = productRepository.findAllById(requested.keySet()).stream()
+						.collect(Collectors.toMap(Product::getProductId, this::toAvailableProduct));
+				for (Map.Entry<UUID, Integer> item : requested.entrySet())
 				{
-					final String errorMsg = MessageFormat.format("Insufficient stock for productId={0}. Requested {1} stock but has {2}", item.getProductId(), item.getQuantity(), stock.getQuantity());
-					throw new IllegalArgumentException(errorMsg);
+					final Product stock = stocks.get(item.getKey());
+					if (stock == null)
+					{
+						throw new InventoryServiceException("The product you are trying to search does not exist in the inventory. productId=" + item.getKey());
+					}
+					if (stock.getQuantity() < item.getValue())
+					{
+						final String errorMsg = MessageFormat.format("Insufficient stock for productId={0}. Requested {1} stock but has {2}", item.getKey(), item.getValue(), stock.getQuantity());
+						throw new IllegalArgumentException(errorMsg);
+					}
 				}
-			}
+				return stocks;
+			});
 			logger.debug("Stock validated. We have sufficient stock for orderId=" + orderProduct.getOrderId());
 
 			logger.debug("Reserving Stock for orderId=" + orderProduct.getOrderId());
-			for (Product item : items)
+			// reservation rows and reserved counters are written in one transaction while the locks are still held,
+			// each as a single JDBC batch
+			if (groupCommitEnabled)
 			{
-				reservationRepository.save(ProductOrderReservation.builder()
-						.productId(item.getProductId())
-						.orderId(orderProduct.getOrderId())
-						.reservedQuantity(item.getQuantity())
-						.timestamp(Instant.now().getEpochSecond())
-						.build());
+				// shared with the writes of other orders. Always guarded: a write still queued when the wait times out
+				// commits after the locks are released, past orders validated without it
+				final String rejection = reservationGroupCommitter.reserve(orderProduct.getOrderId(), requested, true);
+				if (rejection != null)
+				{
+					throw new InventoryServiceException(rejection);
+				}
+			} else
+			{
+				step("inventory.reservation.write", () -> transactionTemplate.execute(status -> {
+					reservationRepository.saveAll(reservationsFor(orderProduct.getOrderId(), requested));
+					if (lockFreeWriters())
+					{
+						for (int updated : productStockBatchRepository.reserveQuantitiesIfAvailable(requested))
+						{
+							if (updated == 0)
+							{
+								throw new InventoryServiceException("Stock changed while the order was validated. orderId=" + orderProduct.getOrderId());
+							}
+						}
+					} else
+					{
+						productStockBatchRepository.reserveQuantities(requested);
+					}
+					stockMovementJournal.record(StockMovementJournal.reserved(orderProduct.getOrderId(), requested));
+					stockOutbox.productsChanged(requested.keySet());
+					return requested;
+				}));
 			}
+			productAvailabilityCache.evictAll(requested.keySet());
 			logger.debug("Reserved Stock for orderId=" + orderProduct.getOrderId());
 			return true;
 
 		} catch (Exception e)
 		{
+			// the write is one transaction, its rollback already undid this attempt. Reservations the order holds
+			// from an earlier attempt are left alone, a retried validate must not release them
 			logger.error(e.getMessage());
-			// Rollback any partial reservations
-			logger.info("Rollback reservations");
-			removeReservedProductStock(orderProduct.getOrderId());
-			logger.info("Rollback reservation complete");
+			countRollback(e);
 			return false;
 
 		} finally
 		{
 			// Always release locks
 			logger.debug("Releasing locks");
-			for (RLock lock : acquiredLocks.values())
+			if (acquiredLock != null)
 			{
-				if (lock.isHeldByCurrentThread())
+				try
 				{
-					lock.unlock();
+					acquiredLock.unlock();
+				} catch (IllegalMonitorStateException e)
+				{
+					// lease ran out before we got here, the locks are already gone
+					logger.warn("locks expired before release for orderId=" + orderProduct.getOrderId());
 				}
 			}
 			logger.debug("locks released");
 		}
 	}
 
+	/*
+	 * Micro-batch of reserve commands. Orders sharing a product are grouped, and each group is validated against
+	 * one read of its products and reserved with one batch of counter updates and one batch of reservation rows,
+	 * under one multi lock in LOCK mode. Orders are admitted in arrival order; an order that no longer fits is
+	 * rejected on its own, every order stays all or nothing as in validateAndReserveProduct.
+	 * Orders that already hold reservations (a redelivered command) are answered as reserved again, orders that
+	 * already got a payment result are rejected. Returns the rejection reason per orderId, null when reserved.
+	 * */
+	@Override
+	public Map<UUID, String> reserveOrders(final List<OrderProduct> orderProducts)
+	{
+		logger.debug("reserving a batch of " + orderProducts.size() + " orders");
+		final Map<UUID, String> outcomes = new LinkedHashMap<>();
+		final Set<UUID> orderIds = orderProducts.stream().map(OrderProduct::getOrderId).collect(Collectors.toCollection(LinkedHashSet::new));
+		if (orderIds.isEmpty())
+		{
+			return outcomes;
+		}
+		final Set<UUID> alreadyReserved = Set.copyOf(reservationRepository.findOrderIdsInState(orderIds, ReservationState.RESERVED));
+		final Set<UUID> unprocessed = processedOrderRegistry.filterUnprocessed(orderIds);
+		final List<OrderProduct> pending = new ArrayList<>();
+		final Set<UUID> seen = new HashSet<>();
+		for (OrderProduct orderProduct : orderProducts)
+		{
+			final UUID orderId = orderProduct.getOrderId();
+			if (!seen.add(orderId))
+			{
+				// the same command twice in one batch
+				continue;
+			}
+			if (alreadyReserved.contains(orderId))
+			{
+				outcomes.put(orderId, null);
+			} else if (!unprocessed.contains(orderId))
+			{
+				outcomes.put(orderId, "Order already has a payment result. orderId=" + orderId);
+			} else
+			{
+				pending.add(orderProduct);
+			}
+		}
+		if (reservationMode == ReservationMode.REDIS_LEDGER || reservationMode == ReservationMode.SHARDED)
+		{
+			// one Lua call or one round of shard holds per order already, nothing to gain from grouping
+			pending.forEach(order -> outcomes.put(order.getOrderId(), validateAndReserveProduct(order) ? null : "Insufficient stock or unknown product"));
+			return outcomes;
+		}
+		final List<OrderProduct> grouped = new ArrayList<>();
+		for (OrderProduct orderProduct : pending)
+		{
+			if (stockBuckets != null && orderProduct.getProducts() != null
+					&& stockBuckets.anyStriped(orderProduct.getProducts().stream().map(Product::getProductId).toList()))
+			{
+				// a striped product is reserved from its buckets line by line, one read of its row does not see them
+				outcomes.put(orderProduct.getOrderId(), validateAndReserveProduct(orderProduct) ? null : "Insufficient stock or unknown product");
+			} else
+			{
+				grouped.add(orderProduct);
+			}
+		}
+		if (hotSkuDetector != null)
+		{
+			// the orders sent through validateAndReserveProduct above were already counted there
+			grouped.stream().filter(order -> order.getProducts() != null)
+					.forEach(order -> hotSkuDetector.recordReserve(order.getProducts().stream().map(Product::getProductId).toList()));
+		}
+		for (List<OrderProduct> group : groupBySharedProducts(grouped))
+		{
+			reserveGroup(group, outcomes);
+		}
+		return outcomes;
+	}
+
+	// orders that share a product end up in the same group, groups keep the arrival order of their orders
+	private List<List<OrderProduct>> groupBySharedProducts(final List<OrderProduct> orderProducts)
+	{
+		final int[] parent = new int[orderProducts.size()];
+		final Map<UUID, Integer> firstOrderOfProduct = new HashMap<>();
+		for (int i = 0; i < orderProducts.size(); i++)
+		{
+			parent[i] = i;
+			final List<Product> lines = orderProducts.get(i).getProducts() == null ? List.of() : orderProducts.get(i).getProducts();
+			for (Product line : lines)
+			{
+				final Integer other = firstOrderOfProduct.putIfAbsent(line.getProductId(), i);
+				if (other != null)
+				{
+					parent[root(parent, i)] = root(parent, other);
+				}
+			}
+		}
+		final Map<Integer, List<OrderProduct>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < orderProducts.size(); i++)
+		{
+			groups.computeIfAbsent(root(parent, i), group -> new ArrayList<>()).add(orderProducts.get(i));
+		}
+		return new ArrayList<>(groups.values());
+	}
+
+	private int root(final int[] parent, int i)
+	{
+		while (parent[i] != i)
+		{
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private void reserveGroup(final List<OrderProduct> group, final Map<UUID, String> outcomes)
+	{
+		final Map<UUID, Map<UUID, Integer>> requestedByOrder = new LinkedHashMap<>();
+		for (OrderProduct orderProduct : group)
+		{
+			try
+			{
+				if (orderProduct.getProducts() == null || orderProduct.getProducts().isEmpty())
+				{
+					throw new IllegalArgumentException("Order has no products. orderId=" + orderProduct.getOrderId());
+				}
+				requestedByOrder.put(orderProduct.getOrderId(), requestedQuantities(orderProduct));
+			} catch (RuntimeException e)
+			{
+				// a malformed command is answered on its own instead of failing the batch
+				outcomes.put(orderProduct.getOrderId(), e.getMessage());
+			}
+		}
+		if (requestedByOrder.isEmpty())
+		{
+			return;
+		}
+		final Set<UUID> productIds = new TreeSet<>();
+		requestedByOrder.values().forEach(requested -> productIds.addAll(requested.keySet()));
+
+		final Map<UUID, Map<UUID, Integer>> admitted = new LinkedHashMap<>();
+		final Map<UUID, Integer> total = new TreeMap<>();
+		boolean fallBack = false;
+		RLock acquiredLock = null;
+		try
+		{
+			if (reservationMode == ReservationMode.LOCK)
+			{
+				final RLock multiLock = redissonClient.getMultiLock(productIds.stream()
+						.map(productId -> redissonClient.getLock("lock:stock:" + productId))
+						.toArray(RLock[]::new));
+				if (!acquire(multiLock, productIds))
+				{
+					requestedByOrder.keySet().forEach(orderId -> outcomes.put(orderId, "Could not acquire locks for products of orderId=" + orderId));
+					return;
+				}
+				acquiredLock = multiLock;
+			}
+			// one read for the whole group, then orders are admitted in arrival order against what is left
+			step("inventory.reservation.validate", () -> {
+				final Map<UUID, Integer> available = new HashMap<>();
+				productRepository.findAllById(productIds).forEach(product -> available.put(product.getProductId(), toAvailableProduct(product).getQuantity()));
+				for (Map.Entry<UUID, Map<UUID, Integer>> order : requestedByOrder.entrySet())
+				{
+					final String rejection = firstShortLine(order.getValue(), available);
+					if (rejection != null)
+					{
+						outcomes.put(order.getKey(), rejection);
+						continue;
+					}
+					order.getValue().forEach((productId, quantity) -> {
+						available.merge(productId, -quantity, Integer::sum);
+						total.merge(productId, quantity, Integer::sum);
+					});
+					admitted.put(order.getKey(), order.getValue());
+				}
+				return available;
+			});
+			if (admitted.isEmpty())
+			{
+				return;
+			}
+			try
+			{
+				step("inventory.reservation.write", () -> transactionTemplate.execute(status -> {
+					if (reservationMode == ReservationMode.CONDITIONAL_UPDATE || lockFreeWriters())
+					{
+						// without locks (or next to lock free writers) the rows may have moved since they were read, the guard catches it
+						for (int updated : productStockBatchRepository.reserveQuantitiesIfAvailable(total))
+						{
+							if (updated == 0)
+							{
+								throw new InventoryServiceException("Stock changed while the group was validated");
+							}
+						}
+					} else
+					{
+						productStockBatchRepository.reserveQuantities(total);
+					}
+					final List<ProductOrderReservation> reservations = new ArrayList<>();
+					admitted.forEach((orderId, requested) -> {
+						reservations.addAll(reservationsFor(orderId, requested));
+						stockMovementJournal.record(StockMovementJournal.reserved(orderId, requested));
+					});
+					reservationRepository.saveAll(reservations);
+					stockOutbox.productsChanged(total.keySet());
+					return reservations;
+				}));
+				admitted.keySet().forEach(orderId -> outcomes.put(orderId, null));
+				productAvailabilityCache.evictAll(total.keySet());
+			} catch (Exception e)
+			{
+				logger.warn("group reservation of " + admitted.size() + " orders rolled back, reserving them one by one: " + e.getMessage());
+				countRollback(e);
+				fallBack = true;
+			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			requestedByOrder.keySet().forEach(orderId -> outcomes.put(orderId, "Interrupted while reserving orderId=" + orderId));
+		} finally
+		{
+			if (acquiredLock != null)
+			{
+				try
+				{
+					acquiredLock.unlock();
+				} catch (IllegalMonitorStateException e)
+				{
+					logger.warn("locks expired before release for a group of " + requestedByOrder.size() + " orders");
+				}
+			}
+		}
+		if (fallBack)
+		{
+			group.stream()
+					.filter(orderProduct -> admitted.containsKey(orderProduct.getOrderId()))
+					.forEach(orderProduct -> outcomes.put(orderProduct.getOrderId(),
+							validateAndReserveProduct(orderProduct) ? null : "Insufficient stock or unknown product"));
+		}
+	}
+
+	private String firstShortLine(final Map<UUID, Integer> requested, final Map<UUID, Integer> available)
+	{
+		for (Map.Entry<UUID, Integer> item : requested.entrySet())
+		{
+			final Integer stock = available.get(item.getKey());
+			if (stock == null)
+			{
+				return "The product you are trying to search does not exist in the inventory. productId=" + item.getKey();
+			}
+			if (stock < item.getValue())
+			{
+				return MessageFormat.format("Insufficient stock for productId={0}. Requested {1} stock but has {2}", item.getKey(), item.getValue(), stock);
+			}
+		}
+		return null;
+	}
+
+	// requested quantity per product, repeated lines merged and sorted by productId
+	private Map<UUID, Integer> requestedQuantities(final OrderProduct orderProduct)
+	{
+		if (orderProduct.getProducts() == null || orderProduct.getProducts().isEmpty())
+		{
+			throw new IllegalArgumentException("An order needs at least one product. orderId=" + orderProduct.getOrderId());
+		}
+		final Map<UUID, Integer> requested = new TreeMap<>();
+		for (Product item : orderProduct.getProducts())
+		{
+			if (item.getQuantity() == null || item.getQuantity() <= 0)
+			{
+				throw new IllegalArgumentException("Requested quantity must be positive for productId=" + item.getProductId());
+			}
+			requested.merge(item.getProductId(), item.getQuantity(), Integer::sum);
+		}
+		return requested;
+	}
+
+	private List<ProductOrderReservation> reservationsFor(final UUID orderId, final Map<UUID, Integer> requested)
+	{
+		final long timestamp = Instant.now().getEpochSecond();
+		return requested.entrySet().stream()
+				.map(item -> ProductOrderReservation.builder()
+						.productId(item.getKey())
+						.orderId(orderId)
+						.reservedQuantity(item.getValue())
+						.timestamp(timestamp)
+						.build())
+				.toList();
+	}
+
+	private Timer lockWaitTimer(final String outcome)
+	{
+		return Timer.builder("inventory.reservation.lock.wait")
+				.description("Time spent acquiring the product locks of an order")
+				.tag("outcome", outcome)
+				.register(meterRegistry);
+	}
+
+	// takes all locks of the multi lock within lockWaitMillis. The Redis round trips show up under one span
+	private boolean acquire(final RLock multiLock, final Collection<UUID> productIds) throws InterruptedException
+	{
+		DistributionSummary.builder("inventory.reservation.lock.keys")
+				.description("Product locks taken together by one multi lock")
+				.register(meterRegistry)
+				.record(productIds.size());
+		final Span span = tracer.nextSpan().name("inventory.reservation.lock").tag("keys", String.valueOf(productIds.size())).start();
+		lockWaiters.incrementAndGet();
+		final long waitStart = System.nanoTime();
+		boolean success = false;
+		try (Tracer.SpanInScope ignored = tracer.withSpan(span))
+		{
+			success = multiLock.tryLock(lockWaitMillis, lockLeaseMillis, TimeUnit.MILLISECONDS);
+			return success;
+		} finally
+		{
+			lockWaiters.decrementAndGet();
+			final long waited = System.nanoTime() - waitStart;
+			final String outcome = success ? "acquired" : "timeout";
+			lockWaitTimer(outcome).record(waited, TimeUnit.NANOSECONDS);
+			if (hotSkuDetector != null)
+			{
+				hotSkuDetector.recordLockWait(productIds, waited);
+			}
+			span.tag("outcome", outcome);
+			span.end();
+		}
+	}
+
+	// one step of a reservation as a child span, timed as <name>{mode, outcome=ok|failed}
+	private <T> T step(final String name, final Supplier<T> work)
+	{
+		final Span span = tracer.nextSpan().name(name).start();
+		final long start = System.nanoTime();
+		String outcome = "failed";
+		try (Tracer.SpanInScope ignored = tracer.withSpan(span))
+		{
+			final T result = work.get();
+			outcome = "ok";
+			return result;
+		} catch (RuntimeException e)
+		{
+			span.error(e);
+			throw e;
+		} finally
+		{
+			Timer.builder(name)
+					.tag("mode", reservationMode.name())
+					.tag("outcome", outcome)
+					.register(meterRegistry)
+					.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			span.end();
+		}
+	}
+
+	// orders whose reservation was undone, by cause. Rejections for stock are counted as well, they roll back too
+	private void countRollback(final Exception e)
+	{
+		final String reason;
+		if (e instanceof InventoryServiceException || e instanceof IllegalArgumentException)
+		{
+			reason = "rejected";
+		} else if (e instanceof IllegalStateException)
+		{
+			reason = "lock_timeout";
+		} else
+		{
+			reason = "error";
+		}
+		meterRegistry.counter("inventory.reservation.rollbacks", "mode", reservationMode.name(), "reason", reason).increment();
+	}
+
 	/*
 	 * on payment success
 	 * Deduct the stock from Product.quantity with ReserveProductOrder.reserveQuantity
@@ -174,28 +1149,140 @@ public class ProductServiceImpl implements ProductService
 	public void updateProductStockForSuccessfulOrder(final UUID orderId)
 	{
 		logger.debug("Update stock for successful order");
-		// get all the products of the reserved order
-		final List<ProductOrderReservation> productOrderReservations = reservationRepository.findAllByOrderId(orderId);
-
-		// update product stock
-		logger.debug("Deduct the product quantity for successful operation");
-		productOrderReservations.forEach((productOrderReservation -> {
-			productRepository.deductQuantityByProductId(productOrderReservation.getProductId(), productOrderReservation.getReservedQuantity());
-		}));
-
-		// remove reserved stock
-		logger.debug("Remove reserved stock");
-		removeReservedProductStock(orderId);
+		applyPaymentResults(List.of(orderId), List.of());
 	}
 
+	@Transactional
 	@Override
 	public void removeReservedProductStock(final UUID orderId)
 	{
 		logger.info("Remove reservations for orderId=" + orderId);
-		// remove reserved stock
-		reservationRepository.deleteByOrderId(orderId);
+		applyPaymentResults(List.of(), List.of(orderId));
 		logger.info("Rollback reservation complete for orderId=" + orderId);
+	}
+
+	/*
+	 * Applies payment results for many orders. Each outcome is one guarded state transition, one set based
+	 * UPDATE and one DELETE, all in one transaction.
+	 * An order only ever gets one outcome: orders already recorded in the processed registry are skipped, and
+	 * the registry insert fails on its primary key if another consumer is applying the same order right now.
+	 * */
+	@Transactional
+	@Override
+	public void applyPaymentResults(final Collection<UUID> successfulOrderIds, final Collection<UUID> failedOrderIds)
+	{
+		logger.debug("Apply payment results successful=" + successfulOrderIds.size() + " failed=" + failedOrderIds.size());
+		final Set<UUID> allOrderIds = new LinkedHashSet<>(successfulOrderIds);
+		allOrderIds.addAll(failedOrderIds);
+		final Set<UUID> unprocessed = processedOrderRegistry.filterUnprocessed(allOrderIds);
+		if (unprocessed.size() < allOrderIds.size())
+		{
+			logger.info("Skipping " + (allOrderIds.size() - unprocessed.size()) + " already processed payment results");
+		}
+		final Set<UUID> toCommit = new LinkedHashSet<>(successfulOrderIds);
+		toCommit.retainAll(unprocessed);
+		// a success and a failure for the same order in one batch, the success wins
+		final Set<UUID> toRelease = new LinkedHashSet<>(failedOrderIds);
+		toRelease.retainAll(unprocessed);
+		toRelease.removeAll(toCommit);
+		if (toCommit.isEmpty() && toRelease.isEmpty())
+		{
+			return;
+		}
+
+		processedOrderRegistry.markProcessed(toCommit, ReservationState.COMMITTED);
+		processedOrderRegistry.markProcessed(toRelease, ReservationState.RELEASED);
+		settle(toCommit, toRelease);
+		logger.debug("Applied payment results");
+	}
+
+	/*
+	 * Releases reservations whose payment result never arrived. Orders without a result yet are recorded as
+	 * RELEASED, so a payment result arriving after expiry is skipped instead of committing stock that was
+	 * already handed back. Orders that do have a result only get their leftover RESERVED rows released.
+	 * */
+	@Transactional
+	@Override
+	public int expireReservations(final Collection<UUID> orderIds)
+	{
+		final Set<UUID> toRelease = new LinkedHashSet<>(orderIds);
+		if (toRelease.isEmpty())
+		{
+			return 0;
+		}
+		final Set<UUID> unprocessed = processedOrderRegistry.filterUnprocessed(toRelease);
+		processedOrderRegistry.markProcessed(unprocessed, ReservationState.RELEASED);
+		settle(Set.of(), toRelease);
+		logger.info("Expired reservations of " + toRelease.size() + " orders");
+		return toRelease.size();
+	}
 
+	private void evictProductsOfOrders(final Set<UUID> toCommit, final Set<UUID> toRelease)
+	{
+		if (!productAvailabilityCache.isEnabled())
+		{
+			return;
+		}
+		final Set<UUID> orderIds = new LinkedHashSet<>(toCommit);
+		orderIds.addAll(toRelease);
+		if (!orderIds.isEmpty())
+		{
+			productAvailabilityCache.evictAll(reservationRepository.findProductIdsByOrderIds(orderIds));
+		}
+	}
+
+	// guarded state transition, one set based counter UPDATE and one DELETE per outcome
+	private void settle(final Set<UUID> toCommit, final Set<UUID> toRelease)
+	{
+		recordSettlementBatch(toCommit, ReservationState.COMMITTED);
+		recordSettlementBatch(toRelease, ReservationState.RELEASED);
+		evictProductsOfOrders(toCommit, toRelease);
+		if (reservationMode == ReservationMode.REDIS_LEDGER)
+		{
+			// once this transaction commits, the DB side is brought up to date by the ledger journal flush
+			toCommit.forEach(redisStockLedger::commit);
+			toRelease.forEach(redisStockLedger::release);
+			return;
+		}
+		if (!toCommit.isEmpty())
+		{
+			reservationRepository.transitionState(toCommit, ReservationState.RESERVED, ReservationState.COMMITTED);
+			productRepository.commitReservedQuantityForOrders(toCommit);
+			stockMovementJournal.journalSettlement(toCommit, ReservationState.COMMITTED);
+			stockOutbox.ordersSettled(toCommit, ReservationState.COMMITTED);
+			settleShardCounters(toCommit, ReservationState.COMMITTED);
+			reservationRepository.deleteAllByOrderIdInAndState(toCommit, ReservationState.COMMITTED);
+		}
+		if (!toRelease.isEmpty())
+		{
+			reservationRepository.transitionState(toRelease, ReservationState.RESERVED, ReservationState.RELEASED);
+			productRepository.releaseReservedQuantityForOrders(toRelease);
+			stockMovementJournal.journalSettlement(toRelease, ReservationState.RELEASED);
+			stockOutbox.ordersSettled(toRelease, ReservationState.RELEASED);
+			settleShardCounters(toRelease, ReservationState.RELEASED);
+			reservationRepository.deleteAllByOrderIdInAndState(toRelease, ReservationState.RELEASED);
+		}
+	}
+
+	private void recordSettlementBatch(final Set<UUID> orderIds, final ReservationState state)
+	{
+		if (!orderIds.isEmpty())
+		{
+			DistributionSummary.builder("inventory.settlement.batch-size")
+					.description("Orders committed or released by one settlement")
+					.tag("state", state.name())
+					.register(meterRegistry)
+					.record(orderIds.size());
+		}
+	}
+
+	// the shards follow exactly the rows the guarded transition moved, after the transaction commits
+	private void settleShardCounters(final Set<UUID> orderIds, final ReservationState state)
+	{
+		if (reservationMode == ReservationMode.SHARDED)
+		{
+			shardedStockEngine.settle(reservationRepository.findAllByOrderIdInAndState(orderIds, state), state);
+		}
 	}
 
 }
@@ -0,0 +1,516 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nayan.obai.inventory.entity.LedgerCheckpoint;
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.entity.StockMovement;
+import com.nayan.obai.inventory.entity.StockMovementType;
+import com.nayan.obai.inventory.repository.LedgerCheckpointRepository;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.ReservationRepository;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.redisson.api.RBatch;
+import org.redisson.api.RFuture;
+import org.redisson.api.RList;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/*
+ * Redis resident stock ledger used when inventory.reservation.mode=REDIS_LEDGER.
+ *
+ * Every product has a hash inventory:stock:{productId} holding "available" and "reserved".
+ * Reserving an order is one Lua script call that checks every line and applies all of them or none,
+ * so no RLock is needed. Each reserve/commit/release also appends a sequenced entry to the
+ * inventory:journal list in the same script, and flushJournal applies those entries to MySQL
+ * (write-behind). The applied sequence is checkpointed in the DB transaction, so replays are skipped.
+ *
+ * Entries the flush cannot read are moved to inventory:journal:dead instead of blocking the entries behind them.
+ *
+ * The scripts address product keys built from the order hash, so this expects a single Redis node
+ * (or a deployment where all inventory keys live on one slot).
+ * */
+@Component
+@ConditionalOnProperty(name = "inventory.reservation.mode", havingValue = "REDIS_LEDGER")
+public class RedisStockLedger
+{
+	final Logger logger = LogManager.getLogger("RedisStockLedger");
+
+	static final String STOCK_KEY_PREFIX = "inventory:stock:";
+	static final String ORDER_KEY_PREFIX = "inventory:order:";
+	static final String JOURNAL_KEY = "inventory:journal";
+	static final String JOURNAL_SEQUENCE_KEY = "inventory:journal:seq";
+	static final String DEAD_LETTER_KEY = "inventory:journal:dead";
+	private static final String CHECKPOINT_NAME = "redis-ledger";
+
+	// KEYS[1] order key, KEYS[2] journal, KEYS[3] journal sequence, KEYS[4..] stock keys
+	// ARGV[1] orderId, ARGV[2] epoch seconds, then one productId/quantity pair per stock key
+	// returns 1 when reserved (or already reserved for this order), 0 when a line is short, -1 when a product is not loaded
+	static final String RESERVE_SCRIPT = String.join("\n",
+			"if redis.call('exists', KEYS[1]) == 1 then return 1 end",
+			"for i = 4, #KEYS do",
+			"  local argIndex = 3 + (i - 4) * 2",
+			"  local available = redis.call('hget', KEYS[i], 'available')",
+			"  if not available then return -1 end",
+			"  if tonumber(available) < tonumber(ARGV[argIndex + 1]) then return 0 end",
+			"end",
+			"local lines = {}",
+			"for i = 4, #KEYS do",
+			"  local argIndex = 3 + (i - 4) * 2",
+			"  local quantity = tonumber(ARGV[argIndex + 1])",
+			"  redis.call('hincrby', KEYS[i], 'available', -quantity)",
+			"  redis.call('hincrby', KEYS[i], 'reserved', quantity)",
+			"  redis.call('hset', KEYS[1], ARGV[argIndex], quantity)",
+			"  table.insert(lines, {productId = ARGV[argIndex], quantity = quantity})",
+			"end",
+			"local sequence = redis.call('incr', KEYS[3])",
+			"redis.call('rpush', KEYS[2], cjson.encode({type = 'RESERVE', sequence = sequence, orderId = ARGV[1], timestamp = tonumber(ARGV[2]), lines = lines}))",
+			"return 1");
+
+	// KEYS[1] order key, KEYS[2] journal, KEYS[3] journal sequence
+	// ARGV[1] orderId, ARGV[2] COMMIT or RELEASE, ARGV[3] stock key prefix
+	// returns 1 when settled, 0 when the order holds nothing
+	static final String SETTLE_SCRIPT = String.join("\n",
+			"local order = redis.call('hgetall', KEYS[1])",
+			"if #order == 0 then return 0 end",
+			"for i = 1, #order, 2 do",
+			"  local stockKey = ARGV[3] .. order[i]",
+			"  local quantity = tonumber(order[i + 1])",
+			"  redis.call('hincrby', stockKey, 'reserved', -quantity)",
+			"  if ARGV[2] == 'RELEASE' then redis.call('hincrby', stockKey, 'available', quantity) end",
+			"end",
+			"redis.call('del', KEYS[1])",
+			"local sequence = redis.call('incr', KEYS[3])",
+			"redis.call('rpush', KEYS[2], cjson.encode({type = ARGV[2], sequence = sequence, orderId = ARGV[1]}))",
+			"return 1");
+
+	// KEYS stock keys, ARGV one available/reserved pair per key. Keys already present are left alone
+	// so a restarting instance never overwrites live counters.
+	private static final String WARM_UP_SCRIPT = String.join("\n",
+			"local loaded = 0",
+			"for i = 1, #KEYS do",
+			"  if redis.call('exists', KEYS[i]) == 0 then",
+			"    redis.call('hset', KEYS[i], 'available', ARGV[i * 2 - 1], 'reserved', ARGV[i * 2])",
+			"    loaded = loaded + 1",
+			"  end",
+			"end",
+			"return loaded");
+
+	// KEYS[1] stock key, ARGV[1] new on-hand quantity. Available is recomputed against the live reserved counter.
+	private static final String SYNC_ON_HAND_SCRIPT = String.join("\n",
+			"local reserved = tonumber(redis.call('hget', KEYS[1], 'reserved') or '0')",
+			"redis.call('hset', KEYS[1], 'available', tonumber(ARGV[1]) - reserved, 'reserved', reserved)",
+			"return 1");
+
+	// KEYS[1] journal, ARGV[1] last applied sequence. Pops only entries the DB already has.
+	static final String TRIM_JOURNAL_SCRIPT = String.join("\n",
+			"local removed = 0",
+			"while true do",
+			"  local head = redis.call('lindex', KEYS[1], 0)",
+			"  if not head then break end",
+			"  if cjson.decode(head).sequence > tonumber(ARGV[1]) then break end",
+			"  redis.call('lpop', KEYS[1])",
+			"  removed = removed + 1",
+			"end",
+			"return removed");
+
+	// KEYS[1] journal, KEYS[2] dead letter list, ARGV unreadable entries. Moves each one over once.
+	static final String DEAD_LETTER_SCRIPT = String.join("\n",
+			"local moved = 0",
+			"for i = 1, #ARGV do",
+			"  if redis.call('lrem', KEYS[1], 1, ARGV[i]) > 0 then",
+			"    redis.call('rpush', KEYS[2], ARGV[i])",
+			"    moved = moved + 1",
+			"  end",
+			"end",
+			"return moved");
+
+	private final RedissonClient redissonClient;
+	private final ProductRepository productRepository;
+	private final ReservationRepository reservationRepository;
+	private final LedgerCheckpointRepository ledgerCheckpointRepository;
+	private final StockMovementJournal stockMovementJournal;
+	private final StockOutbox stockOutbox;
+	private final TransactionTemplate transactionTemplate;
+	private final ObjectMapper objectMapper;
+
+	@Value("${inventory.reservation.redis-ledger.flush-batch-size:500}")
+	private int flushBatchSize = 500;
+
+	@Value("${inventory.reservation.redis-ledger.warm-up-page-size:1000}")
+	private int warmUpPageSize = 1000;
+
+	public RedisStockLedger(final RedissonClient redissonClient, final ProductRepository productRepository, final ReservationRepository reservationRepository,
+			final LedgerCheckpointRepository ledgerCheckpointRepository, final StockMovementJournal stockMovementJournal, final StockOutbox stockOutbox,
+			final TransactionTemplate transactionTemplate, final ObjectMapper objectMapper)
+	{
+		this.redissonClient = redissonClient;
+		this.productRepository = productRepository;
+		this.reservationRepository = reservationRepository;
+		this.ledgerCheckpointRepository = ledgerCheckpointRepository;
+		this.stockMovementJournal = stockMovementJournal;
+		this.stockOutbox = stockOutbox;
+		this.transactionTemplate = transactionTemplate;
+		this.objectMapper = objectMapper;
+	}
+
+	/*
+	 * requested holds the merged, positive quantities of the order (ProductServiceImpl.requestedQuantities), so the
+	 * availability check sees the full quantity of a product. An order without lines is refused: the script would
+	 * journal its lines as {}, which cjson encodes as an object and the flush cannot read.
+	 * */
+	public boolean reserve(final UUID orderId, final Map<UUID, Integer> requested)
+	{
+		logger.debug("reserving stock in redis ledger for orderId=" + orderId);
+		if (requested.isEmpty())
+		{
+			throw new IllegalArgumentException("An order needs at least one product. orderId=" + orderId);
+		}
+
+		final List<Object> keys = new ArrayList<>();
+		keys.add(ORDER_KEY_PREFIX + orderId);
+		keys.add(JOURNAL_KEY);
+		keys.add(JOURNAL_SEQUENCE_KEY);
+		final List<Object> args = new ArrayList<>();
+		args.add(orderId.toString());
+		args.add(String.valueOf(Instant.now().getEpochSecond()));
+		new TreeMap<>(requested).forEach((productId, quantity) -> {
+			keys.add(STOCK_KEY_PREFIX + productId);
+			args.add(productId.toString());
+			args.add(String.valueOf(quantity));
+		});
+
+		final Long result = script().eval(RScript.Mode.READ_WRITE, RESERVE_SCRIPT, RScript.ReturnType.INTEGER, keys, args.toArray());
+		if (result == -1)
+		{
+			logger.warn("orderId=" + orderId + " references a product that is not loaded in the redis ledger");
+		}
+		logger.debug("redis ledger reserve result=" + result + " for orderId=" + orderId);
+		return result == 1;
+	}
+
+	public void commit(final UUID orderId)
+	{
+		logger.debug("committing redis ledger reservation for orderId=" + orderId);
+		afterCommit(() -> settle(orderId, "COMMIT"));
+	}
+
+	public void release(final UUID orderId)
+	{
+		logger.debug("releasing redis ledger reservation for orderId=" + orderId);
+		afterCommit(() -> settle(orderId, "RELEASE"));
+	}
+
+	private void settle(final UUID orderId, final String type)
+	{
+		final List<Object> keys = List.of(ORDER_KEY_PREFIX + orderId, JOURNAL_KEY, JOURNAL_SEQUENCE_KEY);
+		final Long result = script().eval(RScript.Mode.READ_WRITE, SETTLE_SCRIPT, RScript.ReturnType.INTEGER, keys, orderId.toString(), type, STOCK_KEY_PREFIX);
+		if (result == 0)
+		{
+			logger.info("no redis ledger reservation to " + type + " for orderId=" + orderId);
+		}
+	}
+
+	public Integer getAvailableQuantity(final UUID productId)
+	{
+		final String available = redissonClient.<String, String>getMap(STOCK_KEY_PREFIX + productId, StringCodec.INSTANCE).get("available");
+		return available == null ? null : Integer.valueOf(available);
+	}
+
+	// available quantity of many products in one pipelined round trip, products missing from the ledger are left out
+	public Map<UUID, Integer> getAvailableQuantities(final Collection<UUID> productIds)
+	{
+		final RBatch batch = redissonClient.createBatch();
+		final Map<UUID, RFuture<String>> futures = new HashMap<>();
+		productIds.forEach(productId -> futures.put(productId,
+				batch.<String, String>getMap(STOCK_KEY_PREFIX + productId, StringCodec.INSTANCE).getAsync("available")));
+		batch.execute();
+		final Map<UUID, Integer> available = new HashMap<>();
+		futures.forEach((productId, future) -> {
+			final String value = future.toCompletableFuture().join();
+			if (value != null)
+			{
+				available.put(productId, Integer.valueOf(value));
+			}
+		});
+		return available;
+	}
+
+	// keeps the ledger in step after the on-hand quantity is overwritten through saveProduct
+	public void syncOnHandQuantity(final UUID productId, final int quantity)
+	{
+		afterCommit(() -> script().eval(RScript.Mode.READ_WRITE, SYNC_ON_HAND_SCRIPT, RScript.ReturnType.INTEGER,
+				List.of(STOCK_KEY_PREFIX + productId), String.valueOf(quantity)));
+	}
+
+	// a rolled back settlement or adjustment must not reach the ledger, which has no way to take it back
+	private void afterCommit(final Runnable action)
+	{
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization()
+			{
+				@Override
+				public void afterCommit()
+				{
+					try
+					{
+						action.run();
+					} catch (Exception e)
+					{
+						// the DB side is committed already, the drift shows up in the next reconciliation
+						logger.error("redis ledger not updated after commit: " + e.getMessage());
+					}
+				}
+			});
+		} else
+		{
+			action.run();
+		}
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void warmUp()
+	{
+		logger.info("warming up redis stock ledger from the product table");
+		int loaded = 0;
+		Pageable pageable = PageRequest.of(0, warmUpPageSize, Sort.by("productId"));
+		Page<Product> products;
+		do
+		{
+			products = productRepository.findAll(pageable);
+			if (products.hasContent())
+			{
+				loaded += loadCounters(products.getContent());
+			}
+			pageable = pageable.next();
+		} while (products.hasNext());
+		logger.info("redis stock ledger warm up loaded " + loaded + " products");
+	}
+
+	private int loadCounters(final List<Product> products)
+	{
+		final List<Object> keys = new ArrayList<>();
+		final List<Object> args = new ArrayList<>();
+		for (Product product : products)
+		{
+			final int reserved = product.getReservedQuantity() == null ? 0 : product.getReservedQuantity();
+			keys.add(STOCK_KEY_PREFIX + product.getProductId());
+			args.add(String.valueOf(product.getQuantity() - reserved));
+			args.add(String.valueOf(reserved));
+		}
+		final Long loaded = script().eval(RScript.Mode.READ_WRITE, WARM_UP_SCRIPT, RScript.ReturnType.INTEGER, keys, args.toArray());
+		return loaded.intValue();
+	}
+
+	@Scheduled(fixedDelayString = "${inventory.reservation.redis-ledger.flush-interval-ms:200}")
+	public void flushJournal()
+	{
+		final RList<String> journal = redissonClient.getList(JOURNAL_KEY, StringCodec.INSTANCE);
+		final List<String> entries = journal.range(0, flushBatchSize - 1);
+		if (entries.isEmpty())
+		{
+			return;
+		}
+		logger.debug("applying " + entries.size() + " redis ledger journal entries to the DB");
+		final List<String> unreadable = new ArrayList<>();
+		final Long lastSequence = transactionTemplate.execute(status -> applyJournal(entries, unreadable));
+		if (!unreadable.isEmpty())
+		{
+			// out of the way of the trim, which stops at the first entry it has not applied
+			script().eval(RScript.Mode.READ_WRITE, DEAD_LETTER_SCRIPT, RScript.ReturnType.INTEGER, List.of(JOURNAL_KEY, DEAD_LETTER_KEY), unreadable.toArray());
+		}
+		// trimmed only after the DB commit; a crash in between replays the entries and the checkpoint skips them
+		script().eval(RScript.Mode.READ_WRITE, TRIM_JOURNAL_SCRIPT, RScript.ReturnType.INTEGER, List.of(JOURNAL_KEY), String.valueOf(lastSequence));
+	}
+
+	private long applyJournal(final List<String> entries, final List<String> unreadable)
+	{
+		final LedgerCheckpoint checkpoint = ledgerCheckpointRepository.findByNameForUpdate(CHECKPOINT_NAME)
+				.orElseGet(() -> ledgerCheckpointRepository.save(LedgerCheckpoint.builder().name(CHECKPOINT_NAME).lastSequence(0).build()));
+		// settlements are collected and applied set based after the reservations of this batch,
+		// an order's RESERVE entry always comes before its COMMIT or RELEASE
+		final Set<UUID> committedOrderIds = new LinkedHashSet<>();
+		final Set<UUID> releasedOrderIds = new LinkedHashSet<>();
+		final List<StockMovement> reserveMovements = new ArrayList<>();
+		for (String rawEntry : entries)
+		{
+			final JournalEntry entry = readEntry(rawEntry);
+			if (entry == null)
+			{
+				unreadable.add(rawEntry);
+				continue;
+			}
+			if (entry.getSequence() <= checkpoint.getLastSequence())
+			{
+				continue;
+			}
+			switch (entry.getType())
+			{
+				case "RESERVE" -> entry.getLines().forEach(line -> {
+					reserveMovements.add(StockMovement.builder()
+							.productId(line.getProductId())
+							.orderId(entry.getOrderId())
+							.type(StockMovementType.RESERVE)
+							.reservedDelta(line.getQuantity())
+							.timestamp(entry.getTimestamp() * 1000)
+							.build());
+					reservationRepository.save(ProductOrderReservation.builder()
+							.productId(line.getProductId())
+							.orderId(entry.getOrderId())
+							.reservedQuantity(line.getQuantity())
+							.timestamp(entry.getTimestamp())
+							.build());
+					productRepository.reserveQuantityByProductId(line.getProductId(), line.getQuantity());
+				});
+				case "COMMIT" -> committedOrderIds.add(entry.getOrderId());
+				case "RELEASE" -> releasedOrderIds.add(entry.getOrderId());
+				default -> logger.error("unknown redis ledger journal entry type " + entry.getType());
+			}
+			checkpoint.setLastSequence(entry.getSequence());
+		}
+		// the flush is already write-behind, so its movements go into the journal with the same transaction
+		stockMovementJournal.append(reserveMovements);
+		stockOutbox.productsChanged(reserveMovements.stream().map(StockMovement::getProductId).collect(Collectors.toSet()));
+		if (!committedOrderIds.isEmpty())
+		{
+			reservationRepository.transitionState(committedOrderIds, ReservationState.RESERVED, ReservationState.COMMITTED);
+			productRepository.commitReservedQuantityForOrders(committedOrderIds);
+			stockMovementJournal.journalSettlement(committedOrderIds, ReservationState.COMMITTED);
+			stockOutbox.ordersSettled(committedOrderIds, ReservationState.COMMITTED);
+			reservationRepository.deleteAllByOrderIdInAndState(committedOrderIds, ReservationState.COMMITTED);
+		}
+		if (!releasedOrderIds.isEmpty())
+		{
+			reservationRepository.transitionState(releasedOrderIds, ReservationState.RESERVED, ReservationState.RELEASED);
+			productRepository.releaseReservedQuantityForOrders(releasedOrderIds);
+			stockMovementJournal.journalSettlement(releasedOrderIds, ReservationState.RELEASED);
+			stockOutbox.ordersSettled(releasedOrderIds, ReservationState.RELEASED);
+			reservationRepository.deleteAllByOrderIdInAndState(releasedOrderIds, ReservationState.RELEASED);
+		}
+		return checkpoint.getLastSequence();
+	}
+
+	// null when the entry cannot be read, it is then dead lettered
+	private JournalEntry readEntry(final String rawEntry)
+	{
+		try
+		{
+			return objectMapper.readValue(rawEntry, JournalEntry.class);
+		} catch (IOException e)
+		{
+			logger.error("unreadable redis ledger journal entry, moving it to " + DEAD_LETTER_KEY + ": " + rawEntry + " " + e.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * Compares the ledger with MySQL. Only meaningful when the journal is drained, otherwise the DB is
+	 * expected to lag behind. Drift is reported, not repaired, because Redis is the source of truth in this mode.
+	 * */
+	@Scheduled(initialDelayString = "${inventory.reservation.redis-ledger.reconcile-interval-ms:300000}", fixedDelayString = "${inventory.reservation.redis-ledger.reconcile-interval-ms:300000}")
+	public int reconcile()
+	{
+		if (!redissonClient.getList(JOURNAL_KEY, StringCodec.INSTANCE).isEmpty())
+		{
+			logger.debug("redis ledger journal not drained, skipping reconciliation");
+			return 0;
+		}
+		int drifted = 0;
+		Pageable pageable = PageRequest.of(0, warmUpPageSize, Sort.by("productId"));
+		Page<Product> products;
+		do
+		{
+			products = productRepository.findAll(pageable);
+			drifted += compareCounters(products.getContent());
+			pageable = pageable.next();
+		} while (products.hasNext());
+		logger.info("redis ledger reconciliation finished, drifted products=" + drifted);
+		return drifted;
+	}
+
+	private int compareCounters(final List<Product> products)
+	{
+		final RBatch batch = redissonClient.createBatch();
+		final Map<Product, RFuture<Map<String, String>>> counters = new HashMap<>();
+		products.forEach(product -> counters.put(product,
+				batch.<String, String>getMap(STOCK_KEY_PREFIX + product.getProductId(), StringCodec.INSTANCE).readAllMapAsync()));
+		batch.execute();
+
+		int drifted = 0;
+		for (Map.Entry<Product, RFuture<Map<String, String>>> counter : counters.entrySet())
+		{
+			final Product product = counter.getKey();
+			final Map<String, String> ledger = counter.getValue().toCompletableFuture().join();
+			final int reserved = product.getReservedQuantity() == null ? 0 : product.getReservedQuantity();
+			final int available = product.getQuantity() - reserved;
+			if (ledger.isEmpty()
+					|| Integer.parseInt(ledger.get("available")) != available
+					|| Integer.parseInt(ledger.get("reserved")) != reserved)
+			{
+				drifted++;
+				logger.warn("redis ledger drift for productId=" + product.getProductId() + " ledger=" + ledger
+						+ " db available=" + available + " reserved=" + reserved);
+			}
+		}
+		return drifted;
+	}
+
+	private RScript script()
+	{
+		return redissonClient.getScript(StringCodec.INSTANCE);
+	}
+
+	@Getter
+	@Setter
+	@NoArgsConstructor
+	static class JournalEntry
+	{
+		private String type;
+		private long sequence;
+		private UUID orderId;
+		private long timestamp;
+		private List<JournalLine> lines = new ArrayList<>();
+	}
+
+	@Getter
+	@Setter
+	@NoArgsConstructor
+	static class JournalLine
+	{
+		private UUID productId;
+		private int quantity;
+	}
+}
@@ -0,0 +1,480 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.StockMovement;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.repository.ReservationRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Group commit stage for reservation writes. Callers queue the reservation of one order and wait on its future;
+ * a single committer thread takes the first queued order, keeps collecting for at most maxDelayMillis or until
+ * batchSize orders are in hand, and writes all of them in one transaction, so many reservations share one
+ * commit (and one fsync). The queue is bounded: when it stays full for offerTimeoutMillis the order is turned
+ * away instead of queueing without limit.
+ *
+ * A conditional write checks availability with the guarded UPDATE; an order that comes up short gives back the
+ * lines it already took, in the same transaction, and is rejected on its own. Any other failure rolls the batch
+ * back and its orders are written again one transaction each, so one bad order cannot fail its neighbours.
+ *
+ * A caller that stops waiting at the timeout is answered with a rejection, so the write must not stand: an order
+ * still queued is cancelled and skipped by the committer, one that was already being written is released again
+ * in its own transaction right after the commit.
+ * */
+@Component
+public class ReservationGroupCommitter
+{
+	final Logger logger = LogManager.getLogger("ReservationGroupCommitter");
+
+	private final ReservationRepository reservationRepository;
+	private final ProductStockBatchRepository productStockBatchRepository;
+	private final StockMovementJournal stockMovementJournal;
+	private final StockOutbox stockOutbox;
+	private final TransactionTemplate transactionTemplate;
+
+	private final BlockingQueue<PendingReservation> queue;
+
+	private final DistributionSummary batchSizes;
+	private final Timer commitTimer;
+	private final Timer waitTimer;
+	private final Counter rejectedOrders;
+	private final Counter abandonedOrders;
+
+	static final String CANCELLED = "Reservation write cancelled, its caller gave up waiting";
+
+	private volatile boolean running;
+
+	private Thread committer;
+
+	@Value("${inventory.reservation.group-commit.batch-size:200}")
+	private int batchSize = 200;
+
+	@Value("${inventory.reservation.group-commit.max-delay-ms:2}")
+	private long maxDelayMillis = 2;
+
+	@Value("${inventory.reservation.group-commit.offer-timeout-ms:1000}")
+	private long offerTimeoutMillis = 1000;
+
+	@Value("${inventory.reservation.group-commit.timeout-ms:3000}")
+	private long timeoutMillis = 3000;
+
+	public ReservationGroupCommitter(final ReservationRepository reservationRepository, final ProductStockBatchRepository productStockBatchRepository,
+			final StockMovementJournal stockMovementJournal, final StockOutbox stockOutbox, final TransactionTemplate transactionTemplate,
+			final MeterRegistry meterRegistry, @Value("${inventory.reservation.group-commit.queue-capacity:10000}") final int queueCapacity)
+	{
+		this.reservationRepository = reservationRepository;
+		this.productStockBatchRepository = productStockBatchRepository;
+		this.stockMovementJournal = stockMovementJournal;
+		this.stockOutbox = stockOutbox;
+		this.transactionTemplate = transactionTemplate;
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.batchSizes = DistributionSummary.builder("inventory.reservation.group-commit.batch-size")
+				.description("orders written by one group commit")
+				.register(meterRegistry);
+		this.commitTimer = Timer.builder("inventory.reservation.group-commit.duration")
+				.description("time to write and commit one group of reservations")
+				.register(meterRegistry);
+		this.waitTimer = Timer.builder("inventory.reservation.group-commit.wait")
+				.description("time an order waits from queueing until its group committed")
+				.register(meterRegistry);
+		this.rejectedOrders = Counter.builder("inventory.reservation.group-commit.rejected")
+				.description("orders turned away because the group commit queue stayed full")
+				.register(meterRegistry);
+		this.abandonedOrders = Counter.builder("inventory.reservation.group-commit.abandoned")
+				.description("orders released because their write committed after the caller gave up")
+				.register(meterRegistry);
+		Gauge.builder("inventory.reservation.group-commit.queued", queue, BlockingQueue::size)
+				.description("orders waiting for the next group commit")
+				.register(meterRegistry);
+	}
+
+	@PostConstruct
+	public void start()
+	{
+		running = true;
+		committer = new Thread(this::commitLoop, "reservation-group-committer");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	// orders already queued are still written
+	@PreDestroy
+	public void stop() throws InterruptedException
+	{
+		running = false;
+		committer.join(timeoutMillis);
+	}
+
+	// completes with the rejection reason, or null once the reservation is committed. Fails when the queue stays full.
+	public CompletableFuture<String> submit(final UUID orderId, final Map<UUID, Integer> requested, final boolean conditional)
+	{
+		return enqueue(orderId, requested, conditional, () -> {}).result;
+	}
+
+	private PendingReservation enqueue(final UUID orderId, final Map<UUID, Integer> requested, final boolean conditional, final Runnable onGivenBack)
+	{
+		final PendingReservation pending = new PendingReservation(orderId, requested, conditional, onGivenBack);
+		try
+		{
+			if (!queue.offer(pending, offerTimeoutMillis, TimeUnit.MILLISECONDS))
+			{
+				rejectedOrders.increment();
+				pending.result.completeExceptionally(new RejectedExecutionException("reservation group commit queue full"));
+			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			pending.result.completeExceptionally(e);
+		}
+		return pending;
+	}
+
+	/*
+	 * Blocking form of submit, returns the rejection reason or null when committed. At the timeout the write is
+	 * given up: cancelled while queued, released right after its commit when it was already running. Either way
+	 * nothing stays reserved for an order the caller reports as rejected.
+	 * */
+	public String reserve(final UUID orderId, final Map<UUID, Integer> requested, final boolean conditional)
+	{
+		return reserve(orderId, requested, conditional, () -> {});
+	}
+
+	/*
+	 * Same, for callers that hold stock of their own for the order. onGivenBack runs once when the order ends up
+	 * rejected and the DB holds nothing for it: before this returns, or for a write that committed after the
+	 * caller gave up, once its release committed. A release that fails leaves it to the expiry sweep instead.
+	 * */
+	public String reserve(final UUID orderId, final Map<UUID, Integer> requested, final boolean conditional, final Runnable onGivenBack)
+	{
+		final PendingReservation pending = enqueue(orderId, requested, conditional, onGivenBack);
+		final String rejection = await(pending);
+		if (rejection != null && !pending.isAbandoned())
+		{
+			onGivenBack.run();
+		}
+		return rejection;
+	}
+
+	private String await(final PendingReservation pending)
+	{
+		try
+		{
+			return pending.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return pending.giveUp() ? "Interrupted while waiting for the reservation write" : outcome(pending);
+		} catch (TimeoutException e)
+		{
+			return pending.giveUp() ? "Reservation write not confirmed within " + timeoutMillis + " ms" : outcome(pending);
+		} catch (Exception e)
+		{
+			return "Reservation not written: " + (e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+		}
+	}
+
+	// the write finished just as the caller gave up, its result is about to be completed
+	private String outcome(final PendingReservation pending)
+	{
+		try
+		{
+			return pending.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return "Interrupted while waiting for the reservation write";
+		} catch (Exception e)
+		{
+			return "Reservation not written: " + (e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+		}
+	}
+
+	private void commitLoop()
+	{
+		final List<PendingReservation> batch = new ArrayList<>();
+		while (running || !queue.isEmpty())
+		{
+			try
+			{
+				final PendingReservation first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+				{
+					continue;
+				}
+				batch.add(first);
+				// collect for at most maxDelayMillis after the first order, or until the batch is full
+				final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+				while (batch.size() < batchSize)
+				{
+					queue.drainTo(batch, batchSize - batch.size());
+					final long remaining = deadline - System.nanoTime();
+					if (batch.size() >= batchSize || remaining <= 0)
+					{
+						break;
+					}
+					final PendingReservation next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null)
+					{
+						break;
+					}
+					batch.add(next);
+				}
+				commit(batch);
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e)
+			{
+				logger.error("reservation group commit loop failed: " + e.getMessage());
+				batch.forEach(pending -> pending.result.completeExceptionally(e));
+			} finally
+			{
+				batch.clear();
+			}
+		}
+	}
+
+	private void commit(final List<PendingReservation> batch)
+	{
+		batchSizes.record(batch.size());
+		final long commitStart = System.nanoTime();
+		final List<PendingReservation> abandoned = new ArrayList<>();
+		try
+		{
+			final List<String> rejections = transactionTemplate.execute(status -> write(batch));
+			for (int i = 0; i < batch.size(); i++)
+			{
+				complete(batch.get(i), rejections.get(i), abandoned);
+			}
+		} catch (Exception e)
+		{
+			logger.error("group commit of " + batch.size() + " reservations failed, writing them one by one: " + e.getMessage());
+			for (PendingReservation pending : batch)
+			{
+				try
+				{
+					complete(pending, transactionTemplate.execute(status -> write(List.of(pending))).get(0), abandoned);
+				} catch (Exception single)
+				{
+					pending.result.completeExceptionally(single);
+				}
+			}
+		} finally
+		{
+			commitTimer.record(System.nanoTime() - commitStart, TimeUnit.NANOSECONDS);
+		}
+		if (!abandoned.isEmpty())
+		{
+			release(abandoned);
+		}
+	}
+
+	// a committed order whose caller already gave up is collected for release instead of being reported
+	private void complete(final PendingReservation pending, final String rejection, final List<PendingReservation> abandoned)
+	{
+		waitTimer.record(System.nanoTime() - pending.queuedAt, TimeUnit.NANOSECONDS);
+		if (!pending.finish() && rejection == null)
+		{
+			abandoned.add(pending);
+			pending.result.complete(CANCELLED);
+			return;
+		}
+		pending.result.complete(rejection);
+	}
+
+	/*
+	 * Gives back orders that committed after their caller gave up, in one transaction. Only the rows this stage
+	 * wrote are removed, a later attempt of the same order keeps its own. Whatever fails here is left to the
+	 * expiry sweep.
+	 * */
+	private void release(final List<PendingReservation> abandoned)
+	{
+		try
+		{
+			final List<PendingReservation> givenBack = new ArrayList<>();
+			transactionTemplate.executeWithoutResult(status -> {
+				final Map<UUID, Integer> released = new TreeMap<>();
+				final List<StockMovement> movements = new ArrayList<>();
+				for (PendingReservation pending : abandoned)
+				{
+					final List<Long> reservationIds = pending.reservations.stream().map(ProductOrderReservation::getReservationId).toList();
+					// rows already settled by someone else are not given back twice
+					if (reservationRepository.deleteReservedByReservationIds(reservationIds) == reservationIds.size())
+					{
+						pending.requested.forEach((productId, quantity) -> released.merge(productId, -quantity, Integer::sum));
+						movements.addAll(StockMovementJournal.released(pending.orderId, pending.requested));
+						givenBack.add(pending);
+					}
+				}
+				if (!released.isEmpty())
+				{
+					productStockBatchRepository.reserveQuantities(released);
+					stockMovementJournal.append(movements);
+					stockOutbox.productsChanged(released.keySet());
+				}
+			});
+			givenBack.forEach(pending -> pending.onGivenBack.run());
+			abandonedOrders.increment(abandoned.size());
+			logger.warn("released " + abandoned.size() + " reservations committed after their caller gave up");
+		} catch (Exception e)
+		{
+			logger.error("releasing " + abandoned.size() + " reservations committed after their caller gave up failed, left to the expiry sweep: " + e.getMessage());
+		}
+	}
+
+	// one rejection reason (or null) per order, in batch order
+	private List<String> write(final List<PendingReservation> batch)
+	{
+		final long timestamp = Instant.now().getEpochSecond();
+		final List<String> rejections = new ArrayList<>();
+		final Map<UUID, Integer> unconditional = new TreeMap<>();
+		final Set<UUID> changedProductIds = new LinkedHashSet<>();
+		final List<ProductOrderReservation> reservations = new ArrayList<>();
+		for (PendingReservation pending : batch)
+		{
+			if (!pending.claim())
+			{
+				rejections.add(CANCELLED);
+				continue;
+			}
+			if (pending.conditional)
+			{
+				final String rejection = reserveIfAvailable(pending.requested);
+				rejections.add(rejection);
+				if (rejection != null)
+				{
+					continue;
+				}
+			} else
+			{
+				// availability was already checked by the caller, the counters only follow
+				rejections.add(null);
+				pending.requested.forEach((productId, quantity) -> unconditional.merge(productId, quantity, Integer::sum));
+			}
+			pending.reservations = new ArrayList<>();
+			pending.requested.forEach((productId, quantity) -> pending.reservations.add(ProductOrderReservation.builder()
+					.productId(productId)
+					.orderId(pending.orderId)
+					.reservedQuantity(quantity)
+					.timestamp(timestamp)
+					.build()));
+			reservations.addAll(pending.reservations);
+			changedProductIds.addAll(pending.requested.keySet());
+			stockMovementJournal.record(StockMovementJournal.reserved(pending.orderId, pending.requested));
+		}
+		if (!unconditional.isEmpty())
+		{
+			productStockBatchRepository.reserveQuantities(unconditional);
+		}
+		reservationRepository.saveAll(reservations);
+		stockOutbox.productsChanged(changedProductIds);
+		return rejections;
+	}
+
+	// the lines taken before a short one are given back right away, the order is all or nothing
+	private String reserveIfAvailable(final Map<UUID, Integer> requested)
+	{
+		final int[] updated = productStockBatchRepository.reserveQuantitiesIfAvailable(requested);
+		final Map<UUID, Integer> taken = new TreeMap<>();
+		String rejection = null;
+		int line = 0;
+		for (Map.Entry<UUID, Integer> item : requested.entrySet())
+		{
+			if (updated[line++] == 0)
+			{
+				if (rejection == null)
+				{
+					rejection = MessageFormat.format("Insufficient stock for productId={0}. Requested {1} stock", item.getKey(), item.getValue());
+				}
+			} else
+			{
+				taken.put(item.getKey(), -item.getValue());
+			}
+		}
+		if (rejection != null && !taken.isEmpty())
+		{
+			productStockBatchRepository.reserveQuantities(taken);
+		}
+		return rejection;
+	}
+
+	private enum Stage
+	{
+		QUEUED, WRITING, DONE, CANCELLED, ABANDONED
+	}
+
+	// QUEUED -> WRITING -> DONE, or CANCELLED while queued and ABANDONED while written when the caller gives up
+	private static final class PendingReservation
+	{
+		private final UUID orderId;
+		private final Map<UUID, Integer> requested;
+		private final boolean conditional;
+		private final long queuedAt = System.nanoTime();
+		private final CompletableFuture<String> result = new CompletableFuture<>();
+		private final Runnable onGivenBack;
+		private final AtomicReference<Stage> stage = new AtomicReference<>(Stage.QUEUED);
+		// the rows of the last write attempt, ids assigned once saved
+		private List<ProductOrderReservation> reservations = List.of();
+
+		private PendingReservation(final UUID orderId, final Map<UUID, Integer> requested, final boolean conditional, final Runnable onGivenBack)
+		{
+			this.orderId = orderId;
+			this.requested = requested;
+			this.conditional = conditional;
+			this.onGivenBack = onGivenBack;
+		}
+
+		// false once the caller gave up, a rolled back group writing its orders again still holds WRITING
+		private boolean claim()
+		{
+			return stage.compareAndSet(Stage.QUEUED, Stage.WRITING) || stage.get() == Stage.WRITING;
+		}
+
+		// false when the caller gave up while the order was being written
+		private boolean finish()
+		{
+			return stage.compareAndSet(Stage.WRITING, Stage.DONE);
+		}
+
+		// false when the write already finished and its result stands
+		private boolean giveUp()
+		{
+			return stage.compareAndSet(Stage.QUEUED, Stage.CANCELLED) || stage.compareAndSet(Stage.WRITING, Stage.ABANDONED);
+		}
+
+		// given up mid write, the release after the commit takes care of it
+		private boolean isAbandoned()
+		{
+			return stage.get() == Stage.ABANDONED;
+		}
+	}
+}
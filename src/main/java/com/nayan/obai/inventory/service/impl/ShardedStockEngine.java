@@ -0,0 +1,416 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/*
+ * In-process stock engine used when inventory.reservation.mode=SHARDED.
+ *
+ * productId is hashed to one of a fixed number of shards. Each shard is a single thread draining a bounded
+ * inbox and is the only writer of the available/reserved counters of its products, so reserve, commit and
+ * release need no lock. An order is reserved in two phases: every shard it touches holds its lines or
+ * rejects, and only when all of them held is the order written to the DB. A rejection, a failed write or a
+ * write the caller gave up on gives the held lines back. Writes go through the ReservationGroupCommitter, so
+ * concurrent orders share one transaction and a reservation is durable once it is confirmed.
+ *
+ * Counters are loaded from the product table at start up and on first use, and settlements and on-hand
+ * changes are applied after their transaction commits. The counters are only authoritative while this
+ * instance is the only one reserving its products: run it on one instance, or partition the traffic by
+ * productId so every product is always served by the same instance.
+ * */
+@Component
+@ConditionalOnProperty(name = "inventory.reservation.mode", havingValue = "SHARDED")
+public class ShardedStockEngine
+{
+	final Logger logger = LogManager.getLogger("ShardedStockEngine");
+
+	private final ProductRepository productRepository;
+	private final ReservationGroupCommitter reservationGroupCommitter;
+
+	private final Shard[] shards;
+
+	private final Counter rejectedOrders;
+
+	private volatile boolean running;
+
+	@Value("${inventory.reservation.sharded.timeout-ms:3000}")
+	private long timeoutMillis = 3000;
+
+	@Value("${inventory.reservation.sharded.warm-up-page-size:1000}")
+	private int warmUpPageSize = 1000;
+
+	public ShardedStockEngine(final ProductRepository productRepository, final ReservationGroupCommitter reservationGroupCommitter, final MeterRegistry meterRegistry,
+			@Value("${inventory.reservation.sharded.shards:0}") final int shardCount,
+			@Value("${inventory.reservation.sharded.inbox-capacity:10000}") final int inboxCapacity)
+	{
+		this.productRepository = productRepository;
+		this.reservationGroupCommitter = reservationGroupCommitter;
+		// 0 means one shard per core
+		this.shards = new Shard[shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors()];
+		for (int i = 0; i < shards.length; i++)
+		{
+			shards[i] = new Shard(i, inboxCapacity);
+			Gauge.builder("inventory.sharded.inbox", shards[i].inbox, BlockingQueue::size)
+					.description("tasks waiting for a stock shard")
+					.tag("shard", String.valueOf(i))
+					.register(meterRegistry);
+		}
+		this.rejectedOrders = Counter.builder("inventory.sharded.rejected")
+				.description("orders turned away because a shard inbox stayed full")
+				.register(meterRegistry);
+	}
+
+	@PostConstruct
+	public void start()
+	{
+		running = true;
+		for (Shard shard : shards)
+		{
+			shard.thread.start();
+		}
+		logger.info("started sharded stock engine with " + shards.length + " shards");
+	}
+
+	// waits for queued shard tasks
+	@PreDestroy
+	public void stop() throws InterruptedException
+	{
+		running = false;
+		for (Shard shard : shards)
+		{
+			shard.thread.join(timeoutMillis);
+		}
+	}
+
+	// requested quantity per product, already merged and validated. Returns the rejection reason, null when reserved.
+	public String reserve(final UUID orderId, final Map<UUID, Integer> requested)
+	{
+		final Map<Shard, Map<UUID, Integer>> linesByShard = new LinkedHashMap<>();
+		requested.forEach((productId, quantity) -> linesByShard.computeIfAbsent(shardOf(productId), shard -> new TreeMap<>()).put(productId, quantity));
+
+		// phase one: every shard of the order holds its lines or rejects
+		final Map<Shard, CompletableFuture<String>> votes = new LinkedHashMap<>();
+		linesByShard.forEach((shard, lines) -> votes.put(shard, shard.ask(() -> shard.hold(lines))));
+		String rejection = null;
+		for (CompletableFuture<String> vote : votes.values())
+		{
+			final String reason = await(vote);
+			if (reason != null && rejection == null)
+			{
+				rejection = reason;
+			}
+		}
+		if (rejection != null)
+		{
+			// phase two, abort: shards that held give their lines back, also the ones that answer late
+			votes.forEach((shard, vote) -> vote.thenAccept(reason -> {
+				if (reason == null)
+				{
+					shard.tell(() -> shard.giveBack(linesByShard.get(shard)));
+				}
+			}));
+			return rejection;
+		}
+
+		// phase two, commit: the held lines become a reservation once they are written. A rejected or timed out
+		// write gives the holds back once the DB holds nothing for the order, a write that still commits after the
+		// timeout is released by the committer first
+		return reservationGroupCommitter.reserve(orderId, requested, false,
+				() -> linesByShard.forEach((shard, lines) -> shard.tell(() -> shard.giveBack(lines))));
+	}
+
+	private String await(final CompletableFuture<String> future)
+	{
+		try
+		{
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return "Interrupted while reserving";
+		} catch (TimeoutException e)
+		{
+			return "Stock shard did not answer within " + timeoutMillis + " ms";
+		} catch (Exception e)
+		{
+			return "Reservation failed: " + (e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+		}
+	}
+
+	// applied to the counters once the settling transaction commits, with the rows that transaction moved
+	public void settle(final Collection<ProductOrderReservation> reservations, final ReservationState state)
+	{
+		if (reservations.isEmpty())
+		{
+			return;
+		}
+		final Map<Shard, Map<UUID, Integer>> linesByShard = new LinkedHashMap<>();
+		reservations.forEach(reservation -> linesByShard.computeIfAbsent(shardOf(reservation.getProductId()), shard -> new HashMap<>())
+				.merge(reservation.getProductId(), reservation.getReservedQuantity(), Integer::sum));
+		afterCommit(() -> linesByShard.forEach((shard, lines) -> shard.tell(state == ReservationState.COMMITTED
+				? () -> shard.commit(lines)
+				: () -> shard.giveBack(lines))));
+	}
+
+	// keeps the counters in step after the on-hand quantity is overwritten
+	public void syncOnHandQuantity(final UUID productId, final int quantity)
+	{
+		final Shard shard = shardOf(productId);
+		afterCommit(() -> shard.tell(() -> shard.sync(productId, quantity)));
+	}
+
+	private void afterCommit(final Runnable action)
+	{
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization()
+			{
+				@Override
+				public void afterCommit()
+				{
+					action.run();
+				}
+			});
+		} else
+		{
+			action.run();
+		}
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void warmUp()
+	{
+		logger.info("warming up sharded stock engine from the product table");
+		int loaded = 0;
+		Pageable pageable = PageRequest.of(0, warmUpPageSize, Sort.by("productId"));
+		Page<Product> products;
+		do
+		{
+			products = productRepository.findAll(pageable);
+			final Map<Shard, List<Product>> productsByShard = new HashMap<>();
+			products.forEach(product -> productsByShard.computeIfAbsent(shardOf(product.getProductId()), shard -> new ArrayList<>()).add(product));
+			productsByShard.forEach((shard, page) -> shard.tell(() -> page.forEach(shard::load)));
+			loaded += products.getNumberOfElements();
+			pageable = pageable.next();
+		} while (products.hasNext());
+		logger.info("sharded stock engine warm up queued " + loaded + " products");
+	}
+
+	Shard shardOf(final UUID productId)
+	{
+		return shards[Math.floorMod(productId.hashCode(), shards.length)];
+	}
+
+	// available quantity as the owning shard sees it, null when the product is not loaded
+	public Integer getAvailableQuantity(final UUID productId)
+	{
+		final Shard shard = shardOf(productId);
+		final CompletableFuture<Integer> answer = shard.ask(() -> shard.available(productId));
+		try
+		{
+			return answer.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	// the counters are only read and written by the shard thread
+	final class Shard
+	{
+		private final BlockingQueue<Runnable> inbox;
+		private final Map<UUID, int[]> counters = new HashMap<>();
+		private final Thread thread;
+
+		private Shard(final int index, final int inboxCapacity)
+		{
+			this.inbox = new ArrayBlockingQueue<>(inboxCapacity);
+			this.thread = new Thread(this::run, "stock-shard-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		private void run()
+		{
+			while (running || !inbox.isEmpty())
+			{
+				try
+				{
+					final Runnable task = inbox.poll(100, TimeUnit.MILLISECONDS);
+					if (task != null)
+					{
+						task.run();
+					}
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				} catch (Exception e)
+				{
+					logger.error("stock shard task failed: " + e.getMessage());
+				}
+			}
+		}
+
+		// new work waits at most timeoutMillis for room, so a full shard pushes back on its callers
+		private <T> CompletableFuture<T> ask(final Supplier<T> task)
+		{
+			final CompletableFuture<T> answer = new CompletableFuture<>();
+			try
+			{
+				final Runnable wrapped = () -> {
+					try
+					{
+						answer.complete(task.get());
+					} catch (RuntimeException e)
+					{
+						answer.completeExceptionally(e);
+					}
+				};
+				if (!inbox.offer(wrapped, timeoutMillis, TimeUnit.MILLISECONDS))
+				{
+					rejectedOrders.increment();
+					answer.completeExceptionally(new RejectedExecutionException("stock shard inbox full"));
+				}
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				answer.completeExceptionally(e);
+			}
+			return answer;
+		}
+
+		// give backs and settlements are never dropped, they wait for room
+		private void tell(final Runnable task)
+		{
+			try
+			{
+				inbox.put(task);
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				logger.error("interrupted while queueing a stock shard update, counters may drift until restart");
+			}
+		}
+
+		// every line of this shard or none of them, returns the rejection reason
+		String hold(final Map<UUID, Integer> lines)
+		{
+			loadMissing(lines.keySet());
+			for (Map.Entry<UUID, Integer> line : lines.entrySet())
+			{
+				final int[] counter = counters.get(line.getKey());
+				if (counter == null)
+				{
+					return "The product you are trying to search does not exist in the inventory. productId=" + line.getKey();
+				}
+				if (counter[0] < line.getValue())
+				{
+					return MessageFormat.format("Insufficient stock for productId={0}. Requested {1} stock but has {2}", line.getKey(), line.getValue(), counter[0]);
+				}
+			}
+			lines.forEach((productId, quantity) -> {
+				final int[] counter = counters.get(productId);
+				counter[0] -= quantity;
+				counter[1] += quantity;
+			});
+			return null;
+		}
+
+		// abort of a hold and release of a reservation
+		void giveBack(final Map<UUID, Integer> lines)
+		{
+			lines.forEach((productId, quantity) -> {
+				final int[] counter = counters.get(productId);
+				if (counter != null)
+				{
+					counter[0] += quantity;
+					counter[1] -= quantity;
+				}
+			});
+		}
+
+		// committed stock leaves on-hand and reserved together, available does not move
+		void commit(final Map<UUID, Integer> lines)
+		{
+			lines.forEach((productId, quantity) -> {
+				final int[] counter = counters.get(productId);
+				if (counter != null)
+				{
+					counter[1] -= quantity;
+				}
+			});
+		}
+
+		void sync(final UUID productId, final int quantity)
+		{
+			final int[] counter = counters.get(productId);
+			if (counter != null)
+			{
+				counter[0] = quantity - counter[1];
+			}
+		}
+
+		// products already loaded keep their live counters
+		void load(final Product product)
+		{
+			final int reserved = product.getReservedQuantity() == null ? 0 : product.getReservedQuantity();
+			counters.putIfAbsent(product.getProductId(), new int[]{product.getQuantity() - reserved, reserved});
+		}
+
+		Integer available(final UUID productId)
+		{
+			final int[] counter = counters.get(productId);
+			return counter == null ? null : counter[0];
+		}
+
+		private void loadMissing(final Collection<UUID> productIds)
+		{
+			final List<UUID> missing = productIds.stream().filter(productId -> !counters.containsKey(productId)).toList();
+			if (!missing.isEmpty())
+			{
+				productRepository.findAllById(missing).forEach(this::load);
+			}
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.exception.InventoryServiceException;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.repository.ProductStockBucketRepository;
+import com.nayan.obai.inventory.rest.ProductStockBuckets;
+import com.nayan.obai.inventory.service.ReservationMode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Striped stock for ultra-hot products: the available stock of a product is split over K ProductStockBucket
+ * rows, so its reservations queue on K row locks instead of the one Product row. K is set per product.
+ *
+ * Stock in the buckets is parked: it counts as reserved on the Product row, so the guards and settlements on
+ * Product stay exactly as they are. A line reserved from a bucket only draws the bucket down, the stock moves
+ * from parked to reserved and reservedQuantity does not change. Commit and release settle on the Product row
+ * as always; released stock lands on the row and is parked again by the next rebalance. The available stock
+ * of a product is quantity - reservedQuantity + the sum of its buckets.
+ *
+ * A line tries the bucket picked round robin, then up to neighbours buckets after it without wrapping, each one
+ * conditional UPDATE. When none of them holds the line, all buckets are drained back into the Product row under
+ * their row locks and the line is reserved there, so a product is never short while it has the stock in total and
+ * never oversold. Every rebalance-interval-ms the stock of the row and the buckets is spread evenly again; below
+ * min-bucket-quantity per bucket it stays on the row. Buckets are locked in bucket order, before the Product row.
+ * Reservations run at READ COMMITTED, so a probe that comes up short keeps no lock on its bucket and the drain
+ * never waits for a bucket below one its own transaction still holds.
+ * Moves between the row and the buckets are journaled as PARK movements, so a replay stays exact.
+ *
+ * Only for the LOCK and CONDITIONAL_UPDATE modes, REDIS_LEDGER and SHARDED keep their own counters.
+ * */
+@Component
+@ConditionalOnProperty(name = "inventory.stock-buckets.enabled", havingValue = "true")
+public class StockBuckets
+{
+	final Logger logger = LogManager.getLogger("StockBuckets");
+
+	private final ProductStockBucketRepository productStockBucketRepository;
+
+	private final ProductStockBatchRepository productStockBatchRepository;
+
+	private final StockMovementJournal stockMovementJournal;
+
+	private final TransactionTemplate transactionTemplate;
+
+	private final Counter bucketLines;
+
+	private final Counter rowLines;
+
+	private final Counter rebalancedProducts;
+
+	private final AtomicInteger cursor = new AtomicInteger();
+
+	// bucket count of every striped product, refreshed by every rebalance and on configure
+	private volatile Map<UUID, Integer> bucketCounts = Map.of();
+
+	@Value("${inventory.stock-buckets.max-buckets:64}")
+	private int maxBuckets = 64;
+
+	@Value("${inventory.stock-buckets.neighbours:2}")
+	private int neighbours = 2;
+
+	@Value("${inventory.stock-buckets.min-bucket-quantity:10}")
+	private int minBucketQuantity = 10;
+
+	public StockBuckets(final ProductStockBucketRepository productStockBucketRepository, final ProductStockBatchRepository productStockBatchRepository,
+			final StockMovementJournal stockMovementJournal, final TransactionTemplate transactionTemplate, final MeterRegistry meterRegistry,
+			@Value("${inventory.reservation.mode:LOCK}") final ReservationMode reservationMode)
+	{
+		if (reservationMode == ReservationMode.REDIS_LEDGER || reservationMode == ReservationMode.SHARDED)
+		{
+			throw new IllegalStateException("inventory.stock-buckets needs inventory.reservation.mode LOCK or CONDITIONAL_UPDATE, not " + reservationMode);
+		}
+		this.productStockBucketRepository = productStockBucketRepository;
+		this.productStockBatchRepository = productStockBatchRepository;
+		this.stockMovementJournal = stockMovementJournal;
+		this.transactionTemplate = transactionTemplate;
+		this.bucketLines = Counter.builder("inventory.stock-buckets.lines").tag("from", "bucket")
+				.description("order lines of striped products by where they were reserved")
+				.register(meterRegistry);
+		this.rowLines = Counter.builder("inventory.stock-buckets.lines").tag("from", "row")
+				.description("order lines of striped products by where they were reserved")
+				.register(meterRegistry);
+		this.rebalancedProducts = Counter.builder("inventory.stock-buckets.rebalanced")
+				.description("striped products whose stock was spread over their buckets again")
+				.register(meterRegistry);
+	}
+
+	public boolean isStriped(final UUID productId)
+	{
+		return bucketCounts.containsKey(productId);
+	}
+
+	public boolean anyStriped(final Collection<UUID> productIds)
+	{
+		final Map<UUID, Integer> counts = bucketCounts;
+		if (counts.isEmpty())
+		{
+			return false;
+		}
+		for (UUID productId : productIds)
+		{
+			if (counts.containsKey(productId))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Reserves one line of a striped product in the caller's transaction. false when the product does not have
+	 * the quantity in total, the caller then rolls back the order.
+	 * */
+	public boolean reserve(final UUID productId, final int quantity)
+	{
+		final Integer count = bucketCounts.get(productId);
+		if (count != null)
+		{
+			// ascending like the drain, the last buckets get fewer probes
+			final int first = Math.floorMod(cursor.getAndIncrement(), count);
+			for (int bucket = first; bucket < count && bucket <= first + neighbours; bucket++)
+			{
+				if (productStockBucketRepository.takeQuantity(productId, bucket, quantity) == 1)
+				{
+					// parked -> reserved, the RESERVE movement of the order adds it back
+					stockMovementJournal.record(List.of(StockMovementJournal.parked(productId, -quantity)));
+					bucketLines.increment();
+					return true;
+				}
+			}
+		}
+		return reserveFromRow(productId, quantity, false);
+	}
+
+	/*
+	 * Second chance for a line whose conditional update on the Product row came up short: the product may have
+	 * been striped since this instance last refreshed, its parked stock is then drained back to the row first.
+	 * */
+	public boolean reserveAfterShortRow(final UUID productId, final int quantity)
+	{
+		return reserveFromRow(productId, quantity, true);
+	}
+
+	private boolean reserveFromRow(final UUID productId, final int quantity, final boolean rowTried)
+	{
+		final int drained = drain(productId, false);
+		if (rowTried && drained == 0)
+		{
+			return false;
+		}
+		final boolean reserved = productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(productId, quantity))[0] != 0;
+		if (reserved)
+		{
+			rowLines.increment();
+		}
+		return reserved;
+	}
+
+	/*
+	 * Moves the parked stock of the given products back to their Product rows in the caller's transaction, ahead
+	 * of stock adjustments and imports that are checked against reservedQuantity. The next rebalance parks it again.
+	 * */
+	public void drain(final Collection<UUID> productIds)
+	{
+		final Map<UUID, Integer> parked = productStockBucketRepository.findParkedQuantities(productIds);
+		// sorted, so two drains lock their buckets in the same sequence
+		new TreeSet<>(parked.keySet()).forEach(productId -> {
+			if (parked.get(productId) > 0)
+			{
+				drain(productId, true);
+			}
+		});
+	}
+
+	// returns how much was parked in the buckets
+	private int drain(final UUID productId, final boolean inline)
+	{
+		final int[] quantities = productStockBucketRepository.lockQuantities(productId);
+		final int parked = Arrays.stream(quantities).sum();
+		if (parked > 0)
+		{
+			productStockBucketRepository.setQuantities(productId, new int[quantities.length]);
+			park(productId, -parked, inline);
+		}
+		return parked;
+	}
+
+	// stock parked in the buckets of the given products, products without buckets are absent
+	public Map<UUID, Integer> parkedQuantities(final Collection<UUID> productIds)
+	{
+		return productStockBucketRepository.findParkedQuantities(productIds);
+	}
+
+	// stock parked in the buckets of every striped product
+	public Map<UUID, Integer> parkedQuantities()
+	{
+		return productStockBucketRepository.findParkedQuantities();
+	}
+
+	/*
+	 * Splits the stock of the product over count buckets, count 1 puts it all back on the Product row.
+	 * The stock is spread right away.
+	 * */
+	public ProductStockBuckets configure(final UUID productId, final int count)
+	{
+		if (count < 1 || count > maxBuckets)
+		{
+			throw new IllegalArgumentException("Bucket count must be between 1 and " + maxBuckets + ", got " + count);
+		}
+		transactionTemplate.executeWithoutResult(status -> {
+			drain(productId, true);
+			if (productStockBucketRepository.lockRowAvailableQuantity(productId) == null)
+			{
+				throw new InventoryServiceException("The product you are trying to search does not exist in the inventory. productId=" + productId);
+			}
+			productStockBucketRepository.replaceBuckets(productId, count == 1 ? 0 : count);
+			rebalance(productId);
+		});
+		final Map<UUID, Integer> counts = new HashMap<>(bucketCounts);
+		if (count == 1)
+		{
+			counts.remove(productId);
+		} else
+		{
+			counts.put(productId, count);
+		}
+		bucketCounts = Map.copyOf(counts);
+		logger.info("productId=" + productId + " striped over " + count + " stock buckets");
+		return getBuckets(productId);
+	}
+
+	public ProductStockBuckets getBuckets(final UUID productId)
+	{
+		final int[] quantities = productStockBucketRepository.findQuantities(productId);
+		final Integer rowQuantity = productStockBucketRepository.findRowAvailableQuantity(productId);
+		if (rowQuantity == null)
+		{
+			throw new InventoryServiceException("The product you are trying to search does not exist in the inventory. productId=" + productId);
+		}
+		return ProductStockBuckets.builder()
+				.productId(productId)
+				.rowQuantity(rowQuantity)
+				.buckets(Arrays.stream(quantities).boxed().toList())
+				.availableQuantity(rowQuantity + Arrays.stream(quantities).sum())
+				.build();
+	}
+
+	// each product in its own short transaction, so reservations wait on its locks for one product at a time
+	@Scheduled(initialDelayString = "${inventory.stock-buckets.rebalance-interval-ms:1000}", fixedDelayString = "${inventory.stock-buckets.rebalance-interval-ms:1000}")
+	public void rebalance()
+	{
+		final Map<UUID, Integer> counts = productStockBucketRepository.findBucketCounts();
+		bucketCounts = Map.copyOf(counts);
+		for (UUID productId : counts.keySet())
+		{
+			try
+			{
+				transactionTemplate.executeWithoutResult(status -> rebalance(productId));
+			} catch (Exception e)
+			{
+				logger.warn("rebalancing stock buckets of productId=" + productId + " failed: " + e.getMessage());
+			}
+		}
+	}
+
+	private void rebalance(final UUID productId)
+	{
+		final int[] current = productStockBucketRepository.lockQuantities(productId);
+		if (current.length == 0)
+		{
+			return;
+		}
+		final Integer rowQuantity = productStockBucketRepository.lockRowAvailableQuantity(productId);
+		if (rowQuantity == null)
+		{
+			return;
+		}
+		final int parked = Arrays.stream(current).sum();
+		final int[] target = spread(rowQuantity + parked, current.length);
+		if (Arrays.equals(target, current))
+		{
+			return;
+		}
+		productStockBucketRepository.setQuantities(productId, target);
+		park(productId, Arrays.stream(target).sum() - parked, true);
+		rebalancedProducts.increment();
+	}
+
+	// even split, the first total % count buckets take one more. Nothing is parked below minBucketQuantity a bucket
+	int[] spread(final int total, final int count)
+	{
+		final int[] target = new int[count];
+		if (total < (long) count * minBucketQuantity)
+		{
+			return target;
+		}
+		for (int bucket = 0; bucket < count; bucket++)
+		{
+			target[bucket] = total / count + (bucket < total % count ? 1 : 0);
+		}
+		return target;
+	}
+
+	// parked stock counts as reserved on the Product row
+	private void park(final UUID productId, final int delta, final boolean inline)
+	{
+		if (delta == 0)
+		{
+			return;
+		}
+		productStockBatchRepository.reserveQuantities(Map.of(productId, delta));
+		if (inline)
+		{
+			stockMovementJournal.append(List.of(StockMovementJournal.parked(productId, delta)));
+		} else
+		{
+			stockMovementJournal.record(List.of(StockMovementJournal.parked(productId, delta)));
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.rest.StockImportError;
+import com.nayan.obai.inventory.rest.StockImportResult;
+import com.nayan.obai.inventory.service.ReservationMode;
+import com.nayan.obai.inventory.service.StockImportFormat;
+import com.nayan.obai.inventory.service.StockImportService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Bulk stock load for warehouse and catalog feeds. The body is read line by line and written in chunks of
+ * chunkSize rows, each chunk as one upsert batch in its own transaction, up to parallelism chunks at a time.
+ * At most 2 * parallelism chunks are held in memory, so a feed of any size streams through.
+ * A row whose quantity is below the stock currently reserved for that product is rejected, as are rows that
+ * do not parse. Rejected rows are reported by line number and never abort the rest of the load.
+ * A productId is expected once per feed; repeated within one chunk the last row wins.
+ * */
+@Service
+public class StockImportServiceImpl implements StockImportService
+{
+	final Logger logger = LogManager.getLogger("StockImportServiceImpl");
+
+	private final ProductStockBatchRepository productStockBatchRepository;
+
+	private final TransactionTemplate transactionTemplate;
+
+	private final ObjectMapper objectMapper;
+
+	private final ProductAvailabilityCache productAvailabilityCache;
+
+	private final StockMovementJournal stockMovementJournal;
+
+	private final StockOutbox stockOutbox;
+
+	private final Counter upsertedRows;
+
+	private final Counter failedRows;
+
+	private final Timer importTimer;
+
+	private final DistributionSummary importThroughput;
+
+	@Value("${inventory.import.chunk-size:1000}")
+	private int chunkSize = 1000;
+
+	@Value("${inventory.import.parallelism:4}")
+	private int parallelism = 4;
+
+	@Value("${inventory.import.max-reported-errors:1000}")
+	private int maxReportedErrors = 1000;
+
+	@Value("${inventory.reservation.mode:LOCK}")
+	private ReservationMode reservationMode = ReservationMode.LOCK;
+
+	// only present when inventory.reservation.mode=REDIS_LEDGER
+	@Autowired(required = false)
+	private RedisStockLedger redisStockLedger;
+
+	// only present when inventory.reservation.mode=SHARDED
+	@Autowired(required = false)
+	private ShardedStockEngine shardedStockEngine;
+
+	// only present when inventory.stock-buckets.enabled=true
+	@Autowired(required = false)
+	private StockBuckets stockBuckets;
+
+	public StockImportServiceImpl(final ProductStockBatchRepository productStockBatchRepository, final TransactionTemplate transactionTemplate,
+			final ObjectMapper objectMapper, final ProductAvailabilityCache productAvailabilityCache, final StockMovementJournal stockMovementJournal,
+			final StockOutbox stockOutbox, final MeterRegistry meterRegistry)
+	{
+		this.productStockBatchRepository = productStockBatchRepository;
+		this.transactionTemplate = transactionTemplate;
+		this.objectMapper = objectMapper;
+		this.productAvailabilityCache = productAvailabilityCache;
+		this.stockMovementJournal = stockMovementJournal;
+		this.stockOutbox = stockOutbox;
+		this.upsertedRows = Counter.builder("inventory.import.rows").tag("outcome", "upserted").register(meterRegistry);
+		this.failedRows = Counter.builder("inventory.import.rows").tag("outcome", "failed").register(meterRegistry);
+		this.importTimer = Timer.builder("inventory.import.duration").register(meterRegistry);
+		this.importThroughput = DistributionSummary.builder("inventory.import.throughput")
+				.description("rows per second of each bulk stock import")
+				.baseUnit("rows/s")
+				.register(meterRegistry);
+	}
+
+	@Override
+	public StockImportResult importStock(final InputStream body, final StockImportFormat format)
+	{
+		logger.info("starting " + format + " stock import, chunkSize=" + chunkSize + " parallelism=" + parallelism);
+		final long startNanos = System.nanoTime();
+		final ImportProgress progress = new ImportProgress();
+		final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		final Semaphore chunksInFlight = new Semaphore(parallelism * 2);
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8)))
+		{
+			Chunk chunk = new Chunk();
+			String line;
+			long lineNumber = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				if (line.isBlank() || (lineNumber == 1 && format == StockImportFormat.CSV && line.startsWith("productId")))
+				{
+					continue;
+				}
+				progress.rowsRead.incrementAndGet();
+				try
+				{
+					final StockRow row = parse(line, format);
+					if (row.getProductId() == null || row.getQuantity() == null || row.getQuantity() < 0)
+					{
+						throw new IllegalArgumentException("productId and a non negative quantity are required");
+					}
+					final Long supersededLine = chunk.add(row, lineNumber);
+					if (supersededLine != null)
+					{
+						progress.fail(supersededLine, "superseded by line " + lineNumber + " for the same productId");
+					}
+				} catch (Exception e)
+				{
+					progress.fail(lineNumber, "unreadable row: " + e.getMessage());
+					continue;
+				}
+				if (chunk.size() >= chunkSize)
+				{
+					submit(executor, chunksInFlight, chunk, progress);
+					chunk = new Chunk();
+				}
+			}
+			if (chunk.size() > 0)
+			{
+				submit(executor, chunksInFlight, chunk, progress);
+			}
+		} catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("stock import interrupted", e);
+		} finally
+		{
+			executor.shutdown();
+			awaitChunks(executor);
+		}
+
+		final long durationNanos = System.nanoTime() - startNanos;
+		final double seconds = Math.max(durationNanos, 1) / 1_000_000_000d;
+		final double rowsPerSecond = progress.rowsRead.get() / seconds;
+		importTimer.record(durationNanos, TimeUnit.NANOSECONDS);
+		importThroughput.record(rowsPerSecond);
+		logger.info("stock import done, read=" + progress.rowsRead.get() + " upserted=" + progress.rowsUpserted.get()
+				+ " failed=" + progress.rowsFailed.get() + " rowsPerSecond=" + Math.round(rowsPerSecond));
+		return StockImportResult.builder()
+				.rowsRead(progress.rowsRead.get())
+				.rowsUpserted(progress.rowsUpserted.get())
+				.rowsFailed(progress.rowsFailed.get())
+				.durationMillis(TimeUnit.NANOSECONDS.toMillis(durationNanos))
+				.rowsPerSecond(rowsPerSecond)
+				.errors(progress.errors())
+				.build();
+	}
+
+	private StockRow parse(final String line, final StockImportFormat format) throws IOException
+	{
+		if (format == StockImportFormat.NDJSON)
+		{
+			return objectMapper.readValue(line, StockRow.class);
+		}
+		final String[] columns = line.split(",");
+		if (columns.length != 2)
+		{
+			throw new IllegalArgumentException("expected productId,quantity");
+		}
+		final StockRow row = new StockRow();
+		row.setProductId(UUID.fromString(columns[0].trim()));
+		row.setQuantity(Integer.valueOf(columns[1].trim()));
+		return row;
+	}
+
+	private void submit(final ExecutorService executor, final Semaphore chunksInFlight, final Chunk chunk, final ImportProgress progress) throws InterruptedException
+	{
+		// blocks the reader while enough chunks are queued, so the body is not read faster than it is written
+		chunksInFlight.acquire();
+		executor.execute(() -> {
+			try
+			{
+				writeChunk(chunk, progress);
+			} finally
+			{
+				chunksInFlight.release();
+			}
+		});
+	}
+
+	private void writeChunk(final Chunk chunk, final ImportProgress progress)
+	{
+		final Map<UUID, Integer> accepted = new TreeMap<>();
+		final Map<Long, String> rejected = new TreeMap<>();
+		try
+		{
+			transactionTemplate.executeWithoutResult(status -> {
+				if (stockBuckets != null)
+				{
+					// parked stock would count as reserved below, it goes back to the rows until the next rebalance
+					stockBuckets.drain(chunk.quantities.keySet());
+				}
+				// locked, so the check below still holds when the upsert runs and every accepted row really is overwritten
+				final Map<UUID, Integer> reserved = productStockBatchRepository.lockReservedQuantities(chunk.quantities.keySet());
+				chunk.quantities.forEach((productId, quantity) -> {
+					final Integer reservedQuantity = reserved.get(productId);
+					if (reservedQuantity != null && quantity < reservedQuantity)
+					{
+						rejected.put(chunk.lines.get(productId), "quantity " + quantity + " is below the " + reservedQuantity + " currently reserved for productId=" + productId);
+					} else
+					{
+						accepted.put(productId, quantity);
+					}
+				});
+				// sorted by productId so parallel chunks lock rows in the same sequence
+				productStockBatchRepository.upsertQuantities(accepted);
+				stockMovementJournal.append(accepted.entrySet().stream()
+						.map(row -> StockMovementJournal.overwritten(row.getKey(), row.getValue()))
+						.toList());
+				stockOutbox.productsChanged(accepted.keySet());
+			});
+		} catch (Exception e)
+		{
+			logger.error("stock import chunk failed: " + e.getMessage());
+			chunk.lines.values().forEach(lineNumber -> progress.fail(lineNumber, "chunk failed: " + e.getMessage()));
+			return;
+		}
+		rejected.forEach(progress::fail);
+		if (reservationMode == ReservationMode.REDIS_LEDGER)
+		{
+			accepted.forEach(redisStockLedger::syncOnHandQuantity);
+		}
+		if (reservationMode == ReservationMode.SHARDED)
+		{
+			accepted.forEach(shardedStockEngine::syncOnHandQuantity);
+		}
+		productAvailabilityCache.evictAll(accepted.keySet());
+		progress.rowsUpserted.addAndGet(accepted.size());
+		upsertedRows.increment(accepted.size());
+	}
+
+	private void awaitChunks(final ExecutorService executor)
+	{
+		try
+		{
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+			{
+				logger.info("waiting for stock import chunks to finish");
+			}
+		} catch (InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Getter
+	@Setter
+	@NoArgsConstructor
+	static class StockRow
+	{
+		private UUID productId;
+		private Integer quantity;
+	}
+
+	private static class Chunk
+	{
+		private final Map<UUID, Integer> quantities = new HashMap<>();
+		private final Map<UUID, Long> lines = new HashMap<>();
+
+		// line of the row this one replaces, if the productId was already in the chunk
+		Long add(final StockRow row, final long lineNumber)
+		{
+			quantities.put(row.getProductId(), row.getQuantity());
+			return lines.put(row.getProductId(), lineNumber);
+		}
+
+		int size()
+		{
+			return quantities.size();
+		}
+	}
+
+	private class ImportProgress
+	{
+		private final AtomicLong rowsRead = new AtomicLong();
+		private final AtomicLong rowsUpserted = new AtomicLong();
+		private final AtomicLong rowsFailed = new AtomicLong();
+		private final List<StockImportError> errors = new ArrayList<>();
+
+		void fail(final long lineNumber, final String message)
+		{
+			rowsFailed.incrementAndGet();
+			failedRows.increment();
+			synchronized (errors)
+			{
+				if (errors.size() < maxReportedErrors)
+				{
+					errors.add(StockImportError.builder().line(lineNumber).message(message).build());
+				}
+			}
+		}
+
+		List<StockImportError> errors()
+		{
+			synchronized (errors)
+			{
+				return new ArrayList<>(errors);
+			}
+		}
+	}
+}
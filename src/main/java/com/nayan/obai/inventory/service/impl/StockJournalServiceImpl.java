@@ -0,0 +1,345 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.entity.ProductSnapshot;
+import com.nayan.obai.inventory.entity.StockMovement;
+import com.nayan.obai.inventory.exception.InventoryServiceException;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.ProductSnapshotRepository;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.repository.StockMovementBatchRepository;
+import com.nayan.obai.inventory.repository.StockMovementRepository;
+import com.nayan.obai.inventory.rest.StockReplayResult;
+import com.nayan.obai.inventory.service.ReservationMode;
+import com.nayan.obai.inventory.service.StockJournalService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Rebuilds product stock from the movement journal: the latest ProductSnapshot at or before the requested time,
+ * then every later movement in movementId order. A movement with quantityAfter overwrites the on-hand quantity,
+ * every other one adds its deltas. Products without a snapshot start from zero.
+ *
+ * replay() walks the whole catalog in productId pages, replaying up to parallelism pages at a time, and can write
+ * the rebuilt on-hand quantity back. Every movement is journaled in the transaction of its change, so the rebuilt
+ * quantity and reservedQuantity are exact; reservedQuantity is only reported.
+ * */
+@Service
+public class StockJournalServiceImpl implements StockJournalService
+{
+	final Logger logger = LogManager.getLogger("StockJournalServiceImpl");
+
+	private final ProductRepository productRepository;
+
+	private final ProductSnapshotRepository productSnapshotRepository;
+
+	private final StockMovementRepository stockMovementRepository;
+
+	private final StockMovementBatchRepository stockMovementBatchRepository;
+
+	private final ProductStockBatchRepository productStockBatchRepository;
+
+	private final ProductAvailabilityCache productAvailabilityCache;
+
+	private final StockOutbox stockOutbox;
+
+	private final TransactionTemplate transactionTemplate;
+
+	@Value("${inventory.journal.replay.page-size:1000}")
+	private int pageSize = 1000;
+
+	@Value("${inventory.journal.replay.parallelism:4}")
+	private int parallelism = 4;
+
+	// snapshots stay this far behind the newest movement, so no journal write older than that is still uncommitted
+	@Value("${inventory.journal.snapshot.lag-ms:30000}")
+	private long snapshotLagMillis = 30000;
+
+	@Value("${inventory.reservation.mode:LOCK}")
+	private ReservationMode reservationMode = ReservationMode.LOCK;
+
+	// only present when inventory.reservation.mode=REDIS_LEDGER
+	@Autowired(required = false)
+	private RedisStockLedger redisStockLedger;
+
+	// only present when inventory.reservation.mode=SHARDED
+	@Autowired(required = false)
+	private ShardedStockEngine shardedStockEngine;
+
+	public StockJournalServiceImpl(final ProductRepository productRepository, final ProductSnapshotRepository productSnapshotRepository,
+			final StockMovementRepository stockMovementRepository, final StockMovementBatchRepository stockMovementBatchRepository,
+			final ProductStockBatchRepository productStockBatchRepository, final ProductAvailabilityCache productAvailabilityCache,
+			final StockOutbox stockOutbox, final TransactionTemplate transactionTemplate)
+	{
+		this.productRepository = productRepository;
+		this.productSnapshotRepository = productSnapshotRepository;
+		this.stockMovementRepository = stockMovementRepository;
+		this.stockMovementBatchRepository = stockMovementBatchRepository;
+		this.productStockBatchRepository = productStockBatchRepository;
+		this.productAvailabilityCache = productAvailabilityCache;
+		this.stockOutbox = stockOutbox;
+		this.transactionTemplate = transactionTemplate;
+	}
+
+	// on-hand quantity and reservedQuantity of the product as of the given time, now when at is null
+	@Override
+	public Product getProductAt(final UUID productId, final Instant at)
+	{
+		logger.info("rebuilding productId=" + productId + " from the journal at " + at);
+		final ReplayedStock stock = rebuild(List.of(productId), toMillis(at), Long.MAX_VALUE).get(productId);
+		if (stock == null)
+		{
+			throw new InventoryServiceException("The product has no snapshot or movement in the journal. productId=" + productId);
+		}
+		return Product.builder()
+				.productId(productId)
+				.quantity(stock.quantity)
+				.reservedQuantity(stock.reservedQuantity)
+				.build();
+	}
+
+	@Override
+	public StockReplayResult replay(final Instant at, final boolean apply)
+	{
+		if (apply && at != null)
+		{
+			throw new IllegalArgumentException("Only the current state can be applied, a point in time replay is read only");
+		}
+		logger.info("replaying the stock journal at " + at + " apply=" + apply + " parallelism=" + parallelism);
+		final long startNanos = System.nanoTime();
+		final long atMillis = toMillis(at);
+		final ReplayProgress progress = new ReplayProgress();
+		final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		final Semaphore pagesInFlight = new Semaphore(parallelism * 2);
+		try
+		{
+			final Pageable pageable = PageRequest.of(0, pageSize);
+			List<Product> page = productRepository.findAllByOrderByProductIdAsc(pageable);
+			while (!page.isEmpty())
+			{
+				final List<Product> products = page;
+				// blocks the reader while enough pages are queued
+				pagesInFlight.acquire();
+				executor.execute(() -> {
+					try
+					{
+						replayPage(products, atMillis, apply, progress);
+					} catch (Exception e)
+					{
+						logger.error("stock journal replay of a page failed: " + e.getMessage());
+					} finally
+					{
+						pagesInFlight.release();
+					}
+				});
+				page = page.size() < pageSize ? List.of()
+						: productRepository.findByProductIdGreaterThanOrderByProductIdAsc(page.get(page.size() - 1).getProductId(), pageable);
+			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("stock journal replay interrupted", e);
+		} finally
+		{
+			executor.shutdown();
+			awaitPages(executor);
+		}
+		final long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		logger.info("stock journal replay done, products=" + progress.replayed.get() + " quantityMismatches=" + progress.quantityMismatches.get()
+				+ " reservedMismatches=" + progress.reservedMismatches.get() + " updated=" + progress.updated.get());
+		return StockReplayResult.builder()
+				.productsReplayed(progress.replayed.get())
+				.quantityMismatches(progress.quantityMismatches.get())
+				.reservedQuantityMismatches(progress.reservedMismatches.get())
+				.productsUpdated(progress.updated.get())
+				.durationMillis(durationMillis)
+				.build();
+	}
+
+	private void replayPage(final List<Product> products, final long atMillis, final boolean apply, final ReplayProgress progress)
+	{
+		final Map<UUID, ReplayedStock> rebuilt = rebuild(products.stream().map(Product::getProductId).toList(), atMillis, Long.MAX_VALUE);
+		final Map<UUID, Integer> corrections = new TreeMap<>();
+		final Map<UUID, Long> versions = new HashMap<>();
+		for (Product product : products)
+		{
+			final ReplayedStock stock = rebuilt.get(product.getProductId());
+			if (stock == null)
+			{
+				continue;
+			}
+			progress.replayed.incrementAndGet();
+			final int reserved = product.getReservedQuantity() == null ? 0 : product.getReservedQuantity();
+			if (product.getQuantity() == null || product.getQuantity() != stock.quantity)
+			{
+				progress.quantityMismatches.incrementAndGet();
+				corrections.put(product.getProductId(), stock.quantity);
+				versions.put(product.getProductId(), product.getVersion());
+			}
+			if (reserved != stock.reservedQuantity)
+			{
+				progress.reservedMismatches.incrementAndGet();
+			}
+		}
+		if (!apply || corrections.isEmpty())
+		{
+			return;
+		}
+		logger.warn("rewriting on-hand quantity of " + corrections.size() + " products from the journal");
+		// version checked: a product that moved after its page was read keeps its quantity
+		final int[] updated = transactionTemplate.execute(status -> {
+			stockOutbox.productsChanged(corrections.keySet());
+			return productStockBatchRepository.overwriteQuantities(corrections, versions);
+		});
+		final Map<UUID, Integer> applied = new TreeMap<>();
+		int line = 0;
+		for (Map.Entry<UUID, Integer> correction : corrections.entrySet())
+		{
+			if (updated[line++] != 0)
+			{
+				applied.put(correction.getKey(), correction.getValue());
+			}
+		}
+		if (reservationMode == ReservationMode.REDIS_LEDGER)
+		{
+			applied.forEach(redisStockLedger::syncOnHandQuantity);
+		}
+		if (reservationMode == ReservationMode.SHARDED)
+		{
+			applied.forEach(shardedStockEngine::syncOnHandQuantity);
+		}
+		productAvailabilityCache.evictAll(applied.keySet());
+		progress.updated.addAndGet(applied.size());
+	}
+
+	/*
+	 * Folds the journal of every product moved since the last snapshot run into a new snapshot. Later replays
+	 * start from there. Returns the number of snapshots written.
+	 * */
+	@Override
+	public int takeSnapshots()
+	{
+		final long takenAt = System.currentTimeMillis() - snapshotLagMillis;
+		final long upToMovementId = stockMovementRepository.findLastMovementIdBefore(takenAt);
+		final long afterMovementId = productSnapshotRepository.findLastSnapshotMovementId();
+		if (upToMovementId <= afterMovementId)
+		{
+			return 0;
+		}
+		final List<UUID> productIds = stockMovementRepository.findProductIdsMovedBetween(afterMovementId, upToMovementId);
+		int written = 0;
+		for (int from = 0; from < productIds.size(); from += pageSize)
+		{
+			final Map<UUID, ReplayedStock> rebuilt = rebuild(productIds.subList(from, Math.min(from + pageSize, productIds.size())), Long.MAX_VALUE, upToMovementId);
+			final List<ProductSnapshot> snapshots = rebuilt.entrySet().stream()
+					.map(stock -> ProductSnapshot.builder()
+							.productId(stock.getKey())
+							.quantity(stock.getValue().quantity)
+							.reservedQuantity(stock.getValue().reservedQuantity)
+							.lastMovementId(upToMovementId)
+							.takenAt(takenAt)
+							.build())
+					.toList();
+			transactionTemplate.executeWithoutResult(status -> stockMovementBatchRepository.insertSnapshots(snapshots));
+			written += snapshots.size();
+		}
+		logger.info("took " + written + " product snapshots up to movementId=" + upToMovementId);
+		return written;
+	}
+
+	// one snapshot query and one movement query for all given products. Movements after atMillis or upToMovementId are ignored
+	private Map<UUID, ReplayedStock> rebuild(final Collection<UUID> productIds, final long atMillis, final long upToMovementId)
+	{
+		final Map<UUID, ReplayedStock> rebuilt = new HashMap<>();
+		for (ProductSnapshot snapshot : productSnapshotRepository.findLatestTakenAtOrBefore(productIds, atMillis))
+		{
+			final ReplayedStock current = rebuilt.get(snapshot.getProductId());
+			if (current == null || current.lastMovementId < snapshot.getLastMovementId())
+			{
+				rebuilt.put(snapshot.getProductId(), new ReplayedStock(snapshot.getQuantity(), snapshot.getReservedQuantity(), snapshot.getLastMovementId()));
+			}
+		}
+		final long firstMovementId = rebuilt.size() < productIds.size() ? 0
+				: rebuilt.values().stream().mapToLong(stock -> stock.lastMovementId).min().orElse(0);
+		final Map<UUID, Long> snapshotMovementIds = new HashMap<>();
+		rebuilt.forEach((productId, stock) -> snapshotMovementIds.put(productId, stock.lastMovementId));
+		for (StockMovement movement : stockMovementRepository.findByProductIdInAndMovementIdGreaterThanOrderByMovementIdAsc(productIds, firstMovementId))
+		{
+			if (movement.getMovementId() > upToMovementId || movement.getTimestamp() > atMillis
+					|| movement.getMovementId() <= snapshotMovementIds.getOrDefault(movement.getProductId(), 0L))
+			{
+				continue;
+			}
+			rebuilt.computeIfAbsent(movement.getProductId(), productId -> new ReplayedStock(0, 0, 0)).apply(movement);
+		}
+		return rebuilt;
+	}
+
+	private long toMillis(final Instant at)
+	{
+		return at == null ? Long.MAX_VALUE : at.toEpochMilli();
+	}
+
+	private void awaitPages(final ExecutorService executor)
+	{
+		try
+		{
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+			{
+				logger.info("waiting for stock journal replay pages to finish");
+			}
+		} catch (InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class ReplayedStock
+	{
+		private int quantity;
+		private int reservedQuantity;
+		private long lastMovementId;
+
+		ReplayedStock(final int quantity, final int reservedQuantity, final long lastMovementId)
+		{
+			this.quantity = quantity;
+			this.reservedQuantity = reservedQuantity;
+			this.lastMovementId = lastMovementId;
+		}
+
+		void apply(final StockMovement movement)
+		{
+			quantity = movement.getQuantityAfter() != null ? movement.getQuantityAfter() : quantity + movement.getQuantityDelta();
+			reservedQuantity += movement.getReservedDelta();
+			lastMovementId = movement.getMovementId();
+		}
+	}
+
+	private static class ReplayProgress
+	{
+		private final AtomicLong replayed = new AtomicLong();
+		private final AtomicLong quantityMismatches = new AtomicLong();
+		private final AtomicLong reservedMismatches = new AtomicLong();
+		private final AtomicLong updated = new AtomicLong();
+	}
+}
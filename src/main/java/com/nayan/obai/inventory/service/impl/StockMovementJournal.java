@@ -0,0 +1,175 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.entity.StockMovement;
+import com.nayan.obai.inventory.entity.StockMovementType;
+import com.nayan.obai.inventory.repository.StockMovementBatchRepository;
+import com.nayan.obai.inventory.repository.StockMovementRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * Writes the append-only stock movement journal, always in the caller's transaction.
+ *
+ * record() is for the reserve hot path: movements recorded while a transaction is open are collected and
+ * written with one JDBC batch just before it commits. A transaction that reserves many lines or orders pays one
+ * extra statement, and a movement is stored exactly when the change it describes is.
+ *
+ * append() and journalSettlement() write right away. They are used where the change is already a batch
+ * (settlements, adjustments, imports) and for on-hand overwrites, whose order matters.
+ * */
+@Component
+public class StockMovementJournal
+{
+	final Logger logger = LogManager.getLogger("StockMovementJournal");
+
+	private final StockMovementBatchRepository stockMovementBatchRepository;
+
+	private final StockMovementRepository stockMovementRepository;
+
+	private final Counter recordedMovements;
+
+	private final Counter inlineMovements;
+
+	public StockMovementJournal(final StockMovementBatchRepository stockMovementBatchRepository, final StockMovementRepository stockMovementRepository,
+			final MeterRegistry meterRegistry)
+	{
+		this.stockMovementBatchRepository = stockMovementBatchRepository;
+		this.stockMovementRepository = stockMovementRepository;
+		this.recordedMovements = Counter.builder("inventory.journal.movements").tag("write", "recorded").register(meterRegistry);
+		this.inlineMovements = Counter.builder("inventory.journal.movements").tag("write", "inline").register(meterRegistry);
+	}
+
+	// written before the surrounding transaction commits, together with everything else it recorded
+	public void record(final List<StockMovement> movements)
+	{
+		if (movements.isEmpty())
+		{
+			return;
+		}
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			append(movements);
+			return;
+		}
+		// the synchronizations belong to the current transaction only, a suspended outer one keeps its own
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations())
+		{
+			if (synchronization instanceof RecordedMovements recorded)
+			{
+				recorded.movements.addAll(movements);
+				return;
+			}
+		}
+		final RecordedMovements recorded = new RecordedMovements();
+		recorded.movements.addAll(movements);
+		TransactionSynchronizationManager.registerSynchronization(recorded);
+	}
+
+	// written in the caller's transaction
+	public void append(final List<StockMovement> movements)
+	{
+		if (!movements.isEmpty())
+		{
+			stockMovementBatchRepository.insertMovements(movements);
+			inlineMovements.increment(movements.size());
+		}
+	}
+
+	// copies the reservations just moved to COMMITTED or RELEASED into the journal, before they are deleted
+	public void journalSettlement(final Collection<UUID> orderIds, final ReservationState state)
+	{
+		if (orderIds.isEmpty())
+		{
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		final int journaled = state == ReservationState.COMMITTED
+				? stockMovementRepository.journalCommittedReservations(orderIds, now)
+				: stockMovementRepository.journalReleasedReservations(orderIds, now);
+		inlineMovements.increment(journaled);
+	}
+
+	public static List<StockMovement> reserved(final UUID orderId, final Map<UUID, Integer> quantities)
+	{
+		final long now = System.currentTimeMillis();
+		final List<StockMovement> movements = new ArrayList<>();
+		quantities.forEach((productId, quantity) -> movements.add(StockMovement.builder()
+				.productId(productId)
+				.orderId(orderId)
+				.type(StockMovementType.RESERVE)
+				.reservedDelta(quantity)
+				.timestamp(now)
+				.build()));
+		return movements;
+	}
+
+	// a reservation given back before it was settled, e.g. one that committed after its caller gave up
+	public static List<StockMovement> released(final UUID orderId, final Map<UUID, Integer> quantities)
+	{
+		final long now = System.currentTimeMillis();
+		final List<StockMovement> movements = new ArrayList<>();
+		quantities.forEach((productId, quantity) -> movements.add(StockMovement.builder()
+				.productId(productId)
+				.orderId(orderId)
+				.type(StockMovementType.RELEASE)
+				.reservedDelta(-quantity)
+				.timestamp(now)
+				.build()));
+		return movements;
+	}
+
+	public static StockMovement adjusted(final UUID productId, final int quantityDelta)
+	{
+		return StockMovement.builder()
+				.productId(productId)
+				.type(StockMovementType.ADJUST)
+				.quantityDelta(quantityDelta)
+				.timestamp(System.currentTimeMillis())
+				.build();
+	}
+
+	public static StockMovement overwritten(final UUID productId, final int quantityAfter)
+	{
+		return StockMovement.builder()
+				.productId(productId)
+				.type(StockMovementType.ADJUST)
+				.quantityAfter(quantityAfter)
+				.timestamp(System.currentTimeMillis())
+				.build();
+	}
+
+	// reservedDelta is the change of the stock parked in the buckets of the product
+	public static StockMovement parked(final UUID productId, final int reservedDelta)
+	{
+		return StockMovement.builder()
+				.productId(productId)
+				.type(StockMovementType.PARK)
+				.reservedDelta(reservedDelta)
+				.timestamp(System.currentTimeMillis())
+				.build();
+	}
+
+	private class RecordedMovements implements TransactionSynchronization
+	{
+		private final List<StockMovement> movements = new ArrayList<>();
+
+		@Override
+		public void beforeCommit(final boolean readOnly)
+		{
+			stockMovementBatchRepository.insertMovements(movements);
+			recordedMovements.increment(movements.size());
+		}
+	}
+}
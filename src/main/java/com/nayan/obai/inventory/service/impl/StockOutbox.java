@@ -0,0 +1,49 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.repository.StockChangeOutboxRepository;
+import com.nayan.obai.inventory.repository.StockMovementBatchRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.UUID;
+
+/*
+ * Writes StockChangeOutbox rows in the caller's transaction, so an availability change and its event commit or
+ * roll back together. Nothing is written when inventory.stock-events.enabled=false.
+ * */
+@Component
+public class StockOutbox
+{
+	private final StockMovementBatchRepository stockMovementBatchRepository;
+
+	private final StockChangeOutboxRepository stockChangeOutboxRepository;
+
+	private final boolean enabled;
+
+	public StockOutbox(final StockMovementBatchRepository stockMovementBatchRepository, final StockChangeOutboxRepository stockChangeOutboxRepository,
+			@Value("${inventory.stock-events.enabled:true}") final boolean enabled)
+	{
+		this.stockMovementBatchRepository = stockMovementBatchRepository;
+		this.stockChangeOutboxRepository = stockChangeOutboxRepository;
+		this.enabled = enabled;
+	}
+
+	public void productsChanged(final Collection<UUID> productIds)
+	{
+		if (enabled && !productIds.isEmpty())
+		{
+			stockMovementBatchRepository.insertOutboxEntries(productIds, System.currentTimeMillis());
+		}
+	}
+
+	// products of orders whose reservations were just moved to COMMITTED or RELEASED, before they are deleted
+	public void ordersSettled(final Collection<UUID> orderIds, final ReservationState state)
+	{
+		if (enabled && !orderIds.isEmpty())
+		{
+			stockChangeOutboxRepository.insertForOrders(orderIds, state.name(), System.currentTimeMillis());
+		}
+	}
+}
@@ -0,0 +1,27 @@
+-- Columns and tables that came with the reserved quantity counter, the Redis ledger and idempotent payment results.
+-- Runs on baselined databases too, they only have the V1 schema.
+
+ALTER TABLE Product ADD COLUMN reservedQuantity INT NOT NULL DEFAULT 0;
+
+-- every reservation that exists before the state column is still open
+ALTER TABLE ProductOrderReservation ADD COLUMN state VARCHAR(16) NOT NULL DEFAULT 'RESERVED';
+
+CREATE INDEX idx_reservation_state_timestamp ON ProductOrderReservation (state, `timestamp`);
+
+CREATE TABLE LedgerCheckpoint (
+    name VARCHAR(255) NOT NULL,
+    lastSequence BIGINT NOT NULL,
+    PRIMARY KEY (name)
+) ENGINE = InnoDB;
+
+CREATE TABLE ProcessedPaymentEvent (
+    orderId BINARY(16) NOT NULL,
+    outcome VARCHAR(16),
+    processedAt DATETIME(6),
+    PRIMARY KEY (orderId)
+) ENGINE = InnoDB;
+
+-- open reservations of existing orders, so availability is right from the first request and not only after the reconciler ran
+UPDATE Product p SET p.reservedQuantity = (
+    SELECT COALESCE(SUM(r.reservedQuantity), 0) FROM ProductOrderReservation r
+    WHERE r.productId = p.productId AND r.state = 'RESERVED');
@@ -0,0 +1,25 @@
+-- Schema as Hibernate ddl-auto produced it before migrations were introduced.
+-- Existing databases are baselined at this version (spring.flyway.baseline-on-migrate) and skip it.
+
+CREATE TABLE Product (
+    productId BINARY(16) NOT NULL,
+    quantity INT,
+    lastUpdated DATETIME(6),
+    PRIMARY KEY (productId)
+) ENGINE = InnoDB;
+
+CREATE TABLE ProductOrderReservation (
+    reservationId BIGINT NOT NULL,
+    orderId BINARY(16),
+    productId BINARY(16),
+    reservedQuantity INT NOT NULL,
+    `timestamp` BIGINT NOT NULL,
+    PRIMARY KEY (reservationId)
+) ENGINE = InnoDB;
+
+-- pooled id generator of ProductOrderReservation, MySQL has no sequences so Hibernate keeps it in a table
+CREATE TABLE ProductOrderReservation_SEQ (
+    next_val BIGINT
+) ENGINE = InnoDB;
+
+INSERT INTO ProductOrderReservation_SEQ VALUES (1);
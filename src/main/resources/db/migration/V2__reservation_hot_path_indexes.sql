@@ -0,0 +1,8 @@
+-- SUM of open reservations per product (getTotalReservedQuantityByProductId, reconciliation) is answered from the index alone
+CREATE INDEX idx_reservation_product_state_quantity ON ProductOrderReservation (productId, state, reservedQuantity);
+
+-- findAllByOrderId, deleteByOrderId and the per order state transitions / deletes of payment results
+CREATE INDEX idx_reservation_order_state ON ProductOrderReservation (orderId, state);
+
+-- retention purge of processed payment events
+CREATE INDEX idx_processed_payment_event_processed_at ON ProcessedPaymentEvent (processedAt);
@@ -0,0 +1,2 @@
+-- optimistic version of Product, bumped by every change of the on-hand quantity
+ALTER TABLE Product ADD COLUMN version BIGINT NOT NULL DEFAULT 0;
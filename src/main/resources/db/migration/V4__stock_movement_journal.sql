@@ -0,0 +1,30 @@
+-- append-only journal of every stock change, written by StockMovementJournal and the settlement statements
+CREATE TABLE StockMovement (
+    movementId BIGINT NOT NULL AUTO_INCREMENT,
+    productId BINARY(16) NOT NULL,
+    orderId BINARY(16),
+    type VARCHAR(16) NOT NULL,
+    quantityDelta INT NOT NULL DEFAULT 0,
+    reservedDelta INT NOT NULL DEFAULT 0,
+    quantityAfter INT,
+    `timestamp` BIGINT NOT NULL,
+    PRIMARY KEY (movementId)
+) ENGINE = InnoDB;
+
+CREATE INDEX idx_stock_movement_product_id ON StockMovement (productId, movementId);
+
+CREATE TABLE ProductSnapshot (
+    snapshotId BIGINT NOT NULL AUTO_INCREMENT,
+    productId BINARY(16) NOT NULL,
+    quantity INT NOT NULL,
+    reservedQuantity INT NOT NULL,
+    lastMovementId BIGINT NOT NULL,
+    takenAt BIGINT NOT NULL,
+    PRIMARY KEY (snapshotId)
+) ENGINE = InnoDB;
+
+CREATE INDEX idx_product_snapshot_product_taken_at ON ProductSnapshot (productId, takenAt);
+
+-- products that exist before the journal do not have movements, their current state is the starting point of replay
+INSERT INTO ProductSnapshot (productId, quantity, reservedQuantity, lastMovementId, takenAt)
+SELECT productId, COALESCE(quantity, 0), reservedQuantity, 0, ROUND(UNIX_TIMESTAMP(NOW(3)) * 1000) FROM Product;
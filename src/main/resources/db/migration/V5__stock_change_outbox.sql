@@ -0,0 +1,7 @@
+-- availability changes waiting to be published as StockChangedEvent, deleted once the broker confirmed them
+CREATE TABLE StockChangeOutbox (
+    outboxId BIGINT NOT NULL AUTO_INCREMENT,
+    productId BINARY(16) NOT NULL,
+    createdAt BIGINT NOT NULL,
+    PRIMARY KEY (outboxId)
+) ENGINE = InnoDB;
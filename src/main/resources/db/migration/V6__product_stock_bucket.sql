@@ -0,0 +1,8 @@
+-- stock of a striped product split over buckets 0..K-1, reserved from one bucket row at a time by StockBuckets.
+-- Stock in the buckets is counted as reserved on its Product row until an order takes it
+CREATE TABLE ProductStockBucket (
+    productId BINARY(16) NOT NULL,
+    bucket INT NOT NULL,
+    quantity INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (productId, bucket)
+) ENGINE = InnoDB;
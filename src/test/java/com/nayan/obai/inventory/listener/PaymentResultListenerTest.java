@@ -2,14 +2,19 @@ package com.nayan.obai.inventory.listener;
 
 import com.nayan.obai.inventory.event.PaymentResultEvent;
 import com.nayan.obai.inventory.service.ProductService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 @ExtendWith(MockitoExtension.class)
 class PaymentResultListenerTest
@@ -17,13 +22,15 @@ class PaymentResultListenerTest
 	@Mock
 	private ProductService productService;
 
-	@InjectMocks
+	private SimpleMeterRegistry meterRegistry;
+
 	private PaymentResultListener listener;
 
-//	@BeforeEach
-//	void setUp() {
-//		listener = new PaymentResultListener(productService);
-//	}
+	@BeforeEach
+	void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		listener = new PaymentResultListener(productService, meterRegistry);
+	}
 
 	@Test
 	void testHandlePaymentSuccessWhenSuccessful() {
@@ -52,4 +59,54 @@ class PaymentResultListenerTest
 		Mockito.verify(productService, Mockito.times(1)).removeReservedProductStock(orderId);
 		Mockito.verify(productService, Mockito.never()).updateProductStockForSuccessfulOrder(orderId);
 	}
-}
\ No newline at end of file
+
+	@Test
+	void testHandlePaymentResultsGroupsBatchByOutcome() {
+		// Arrange
+		final UUID successfulOrderId = UUID.randomUUID();
+		final UUID failedOrderId = UUID.randomUUID();
+		final List<PaymentResultEvent> events = List.of(
+				PaymentResultEvent.builder().orderId(successfulOrderId).isSuccessful(true).build(),
+				PaymentResultEvent.builder().orderId(failedOrderId).isSuccessful(false).build(),
+				PaymentResultEvent.builder().orderId(successfulOrderId).isSuccessful(true).build());
+
+		// Act
+		listener.handlePaymentResults(events);
+
+		// Assert
+		Mockito.verify(productService, Mockito.times(1)).applyPaymentResults(Set.of(successfulOrderId), Set.of(failedOrderId));
+		Mockito.verify(productService, Mockito.never()).updateProductStockForSuccessfulOrder(successfulOrderId);
+	}
+
+	@Test
+	void testHandlePaymentResultsFallsBackToSingleProcessingWhenBatchFails() {
+		// Arrange
+		final UUID successfulOrderId = UUID.randomUUID();
+		final UUID failedOrderId = UUID.randomUUID();
+		final List<PaymentResultEvent> events = List.of(
+				PaymentResultEvent.builder().orderId(successfulOrderId).isSuccessful(true).build(),
+				PaymentResultEvent.builder().orderId(failedOrderId).isSuccessful(false).build());
+		Mockito.doThrow(new IllegalStateException("batch failed")).when(productService).applyPaymentResults(Mockito.anyCollection(), Mockito.anyCollection());
+
+		// Act
+		listener.handlePaymentResults(events);
+
+		// Assert
+		Mockito.verify(productService, Mockito.times(1)).updateProductStockForSuccessfulOrder(successfulOrderId);
+		Mockito.verify(productService, Mockito.times(1)).removeReservedProductStock(failedOrderId);
+	}
+
+	@Test
+	void testHandlePaymentSuccessRecordsLagAndProcessingTime() {
+		// Arrange
+		final PaymentResultEvent event = PaymentResultEvent.builder().orderId(UUID.randomUUID()).isSuccessful(true)
+				.timestamp(System.currentTimeMillis() - 5000).build();
+
+		// Act
+		listener.handlePaymentSuccess(event);
+
+		// Assert
+		Assertions.assertTrue(meterRegistry.get("inventory.payment-result.lag").timer().totalTime(TimeUnit.MILLISECONDS) >= 5000);
+		Assertions.assertEquals(1, meterRegistry.get("inventory.payment-result.processing").tag("delivery", "single").tag("outcome", "committed").timer().count());
+	}
+}
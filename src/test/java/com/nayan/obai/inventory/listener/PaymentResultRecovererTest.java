@@ -0,0 +1,91 @@
+package com.nayan.obai.inventory.listener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+
+@ExtendWith(MockitoExtension.class)
+class PaymentResultRecovererTest
+{
+	@Mock
+	private MessageRecoverer republish;
+
+	@Mock
+	private PaymentResultDeadLetters deadLetters;
+
+	private PaymentResultRecoverer recoverer;
+
+	@BeforeEach
+	void setup()
+	{
+		this.recoverer = new PaymentResultRecoverer(republish, deadLetters);
+	}
+
+	// the sweep must know about the order before the result leaves the queue
+	@Test
+	void shouldRememberTheOrderBeforeRepublishing()
+	{
+		final UUID orderId = UUID.randomUUID();
+		final Message message = message("{\"orderId\":\"" + orderId + "\",\"successful\":true}");
+		final RuntimeException cause = new RuntimeException("Lock wait timeout exceeded");
+
+		recoverer.recover(message, cause);
+
+		final InOrder inOrder = Mockito.inOrder(deadLetters, republish);
+		inOrder.verify(deadLetters).add(orderId);
+		inOrder.verify(republish).recover(message, cause);
+	}
+
+	@Test
+	void shouldRepublishEveryMessageOfABatch()
+	{
+		final UUID first = UUID.randomUUID();
+		final UUID second = UUID.randomUUID();
+
+		recoverer.recover(List.of(message("{\"orderId\":\"" + first + "\"}"), message("{\"orderId\":\"" + second + "\"}")), new RuntimeException("deadlock"));
+
+		Mockito.verify(deadLetters).add(first);
+		Mockito.verify(deadLetters).add(second);
+		Mockito.verify(republish, Mockito.times(2)).recover(ArgumentMatchers.any(Message.class), ArgumentMatchers.any());
+	}
+
+	@Test
+	void shouldRepublishUnreadableMessageWithoutAnOrder()
+	{
+		final Message message = message("not json");
+
+		recoverer.recover(message, new RuntimeException("conversion failed"));
+
+		Mockito.verifyNoInteractions(deadLetters);
+		Mockito.verify(republish).recover(ArgumentMatchers.eq(message), ArgumentMatchers.any());
+	}
+
+	// an unconfirmed republish fails the delivery, so the message is requeued rather than lost
+	@Test
+	void shouldFailWhenTheRepublishIsNotConfirmed()
+	{
+		final Message message = message("{\"orderId\":\"" + UUID.randomUUID() + "\"}");
+		Mockito.doThrow(new AmqpException("nack")).when(republish).recover(ArgumentMatchers.eq(message), ArgumentMatchers.any());
+
+		Assertions.assertThrows(AmqpException.class, () -> recoverer.recover(message, new RuntimeException("deadlock")));
+	}
+
+	private static Message message(final String body)
+	{
+		return new Message(body.getBytes(StandardCharsets.UTF_8), new MessageProperties());
+	}
+}
@@ -0,0 +1,82 @@
+package com.nayan.obai.inventory.listener;
+
+import com.nayan.obai.inventory.config.RabbitConfig;
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.event.ReserveStockCommand;
+import com.nayan.obai.inventory.event.StockRejectedEvent;
+import com.nayan.obai.inventory.event.StockReservedEvent;
+import com.nayan.obai.inventory.service.ProductService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+@ExtendWith(MockitoExtension.class)
+class ReserveStockCommandListenerTest
+{
+	@Mock
+	private ProductService productService;
+
+	@Mock
+	private RabbitTemplate rabbitTemplate;
+
+	@Mock
+	private RabbitOperations rabbitOperations;
+
+	private ReserveStockCommandListener listener;
+
+	private final UUID reservedOrderId = UUID.randomUUID();
+
+	private final UUID rejectedOrderId = UUID.randomUUID();
+
+	@BeforeEach
+	void setup()
+	{
+		this.listener = new ReserveStockCommandListener(productService, rabbitTemplate);
+		final Map<UUID, String> outcomes = new LinkedHashMap<>();
+		outcomes.put(reservedOrderId, null);
+		outcomes.put(rejectedOrderId, "Insufficient stock");
+		Mockito.when(productService.reserveOrders(ArgumentMatchers.anyList())).thenReturn(outcomes);
+		Mockito.when(rabbitTemplate.invoke(ArgumentMatchers.any())).thenAnswer(invocation ->
+				invocation.<RabbitOperations.OperationsCallback<Object>>getArgument(0).doInRabbit(rabbitOperations));
+	}
+
+	@Test
+	void shouldReserveBatchAndAnswerEveryOrder()
+	{
+		final UUID productId = UUID.randomUUID();
+		listener.handleReserveCommands(List.of(
+				ReserveStockCommand.builder().orderId(reservedOrderId).products(List.of(Product.builder().productId(productId).quantity(1).build())).build(),
+				ReserveStockCommand.builder().orderId(rejectedOrderId).products(List.of(Product.builder().productId(productId).quantity(9).build())).build()));
+
+		Mockito.verify(productService).reserveOrders(ArgumentMatchers.argThat(orders -> orders.size() == 2
+				&& orders.get(0).getOrderId().equals(reservedOrderId) && orders.get(1).getOrderId().equals(rejectedOrderId)));
+		Mockito.verify(rabbitOperations).convertAndSend(ArgumentMatchers.eq(RabbitConfig.INVENTORY_EXCHANGE), ArgumentMatchers.eq(RabbitConfig.STOCK_RESERVED_ROUTING_KEY),
+				ArgumentMatchers.<Object>argThat(event -> event instanceof StockReservedEvent reserved && reserved.getOrderId().equals(reservedOrderId)));
+		Mockito.verify(rabbitOperations).convertAndSend(ArgumentMatchers.eq(RabbitConfig.INVENTORY_EXCHANGE), ArgumentMatchers.eq(RabbitConfig.STOCK_REJECTED_ROUTING_KEY),
+				ArgumentMatchers.<Object>argThat(event -> event instanceof StockRejectedEvent rejected && rejected.getOrderId().equals(rejectedOrderId)
+						&& rejected.getReason().equals("Insufficient stock")));
+		Mockito.verify(rabbitOperations).waitForConfirmsOrDie(ArgumentMatchers.anyLong());
+	}
+
+	@Test
+	void shouldFailBatchWhenRepliesAreNotConfirmed()
+	{
+		Mockito.doThrow(new AmqpException("nack")).when(rabbitOperations).waitForConfirmsOrDie(ArgumentMatchers.anyLong());
+
+		Assertions.assertThrows(AmqpException.class, () -> listener.handleReserveCommands(List.of(
+				ReserveStockCommand.builder().orderId(reservedOrderId).products(List.of()).build())));
+	}
+}
@@ -0,0 +1,124 @@
+package com.nayan.obai.inventory.publisher;
+
+import com.nayan.obai.inventory.config.RabbitConfig;
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.entity.StockChangeOutbox;
+import com.nayan.obai.inventory.event.StockChangedEvent;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.StockChangeOutboxRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.redisson.api.RAtomicLong;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.UUID;
+
+@ExtendWith(MockitoExtension.class)
+class StockOutboxRelayTest
+{
+	@Mock
+	private StockChangeOutboxRepository stockChangeOutboxRepository;
+
+	@Mock
+	private ProductRepository productRepository;
+
+	@Mock
+	private RabbitTemplate rabbitTemplate;
+
+	@Mock
+	private RabbitOperations rabbitOperations;
+
+	@Mock
+	private RedissonClient redissonClient;
+
+	@Mock
+	private RLock rLock;
+
+	@Mock
+	private RAtomicLong sequence;
+
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	private StockOutboxRelay relay;
+
+	private final UUID hotProductId = UUID.randomUUID();
+
+	@BeforeEach
+	void setup()
+	{
+		this.meterRegistry = new SimpleMeterRegistry();
+		this.relay = new StockOutboxRelay(stockChangeOutboxRepository, productRepository, rabbitTemplate, redissonClient,
+				new TransactionTemplate(transactionManager), meterRegistry);
+		Mockito.when(redissonClient.getLock(ArgumentMatchers.anyString())).thenReturn(rLock);
+		Mockito.when(rLock.tryLock()).thenReturn(true);
+		Mockito.when(redissonClient.getAtomicLong(ArgumentMatchers.anyString())).thenReturn(sequence);
+		Mockito.when(sequence.addAndGet(1)).thenReturn(41L, 42L);
+		// three changes of the same product within one window
+		Mockito.when(stockChangeOutboxRepository.findAllByOrderByOutboxIdAsc(ArgumentMatchers.any())).thenReturn(List.of(
+				StockChangeOutbox.builder().outboxId(1).productId(hotProductId).build(),
+				StockChangeOutbox.builder().outboxId(2).productId(hotProductId).build(),
+				StockChangeOutbox.builder().outboxId(3).productId(hotProductId).build()));
+		Mockito.when(productRepository.findAllById(ArgumentMatchers.anyIterable()))
+				.thenReturn(List.of(Product.builder().productId(hotProductId).quantity(10).reservedQuantity(4).build()));
+		Mockito.when(rabbitTemplate.invoke(ArgumentMatchers.any())).thenAnswer(invocation ->
+				invocation.<RabbitOperations.OperationsCallback<Object>>getArgument(0).doInRabbit(rabbitOperations));
+	}
+
+	@Test
+	void shouldCoalesceChangesOfOneProductIntoOneConfirmedEvent()
+	{
+		Assertions.assertEquals(1, relay.relay());
+
+		Mockito.verify(rabbitOperations).convertAndSend(ArgumentMatchers.eq(RabbitConfig.INVENTORY_EXCHANGE), ArgumentMatchers.eq(RabbitConfig.STOCK_CHANGED_ROUTING_KEY),
+				ArgumentMatchers.<Object>argThat(event -> ((StockChangedEvent) event).getAvailableQuantity() == 6 && ((StockChangedEvent) event).getSequence() == 41));
+		Mockito.verify(rabbitOperations).waitForConfirmsOrDie(ArgumentMatchers.anyLong());
+		Mockito.verify(stockChangeOutboxRepository).deleteByOutboxIds(List.of(1L, 2L, 3L));
+		Assertions.assertEquals(2, meterRegistry.get("inventory.stock-events.coalesced").counter().count());
+		Mockito.verify(rLock).unlock();
+	}
+
+	// a transaction that got its outbox row first but committed last is still published with a newer sequence
+	@Test
+	void shouldSequenceEventsInPublishOrderNotOutboxOrder()
+	{
+		relay.relay();
+		Mockito.when(stockChangeOutboxRepository.findAllByOrderByOutboxIdAsc(ArgumentMatchers.any())).thenReturn(List.of(
+				StockChangeOutbox.builder().outboxId(2).productId(hotProductId).build()));
+
+		relay.relay();
+
+		final ArgumentCaptor<Object> events = ArgumentCaptor.forClass(Object.class);
+		Mockito.verify(rabbitOperations, Mockito.times(2)).convertAndSend(ArgumentMatchers.eq(RabbitConfig.INVENTORY_EXCHANGE),
+				ArgumentMatchers.eq(RabbitConfig.STOCK_CHANGED_ROUTING_KEY), events.capture());
+		Assertions.assertTrue(((StockChangedEvent) events.getAllValues().get(1)).getSequence() > ((StockChangedEvent) events.getAllValues().get(0)).getSequence());
+	}
+
+	@Test
+	void shouldKeepOutboxRowsWhenBrokerDoesNotConfirm()
+	{
+		Mockito.doThrow(new AmqpException("nack")).when(rabbitOperations).waitForConfirmsOrDie(ArgumentMatchers.anyLong());
+
+		Assertions.assertEquals(0, relay.relay());
+
+		Mockito.verify(stockChangeOutboxRepository, Mockito.never()).deleteByOutboxIds(ArgumentMatchers.any());
+		Mockito.verify(rLock).unlock();
+	}
+}
@@ -1,12 +1,20 @@
 package com.nayan.obai.inventory.repository;
 
 import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
 import jakarta.persistence.EntityManager;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -21,6 +29,9 @@ class ProductRepositoryTest
 	@Autowired
 	private ProductRepository productRepository;
 
+	@Autowired
+	private ReservationRepository reservationRepository;
+
 	@Test
 	@Disabled
 	void simpleTestToCheckJUnitInMyLocal()
@@ -42,27 +53,91 @@ class ProductRepositoryTest
 	}
 
 	@Test
-	void deductQuantityByProductId()
+	void reserveQuantityByProductId()
 	{
 		final Product product = Product.builder()
-				.quantity(123)
+				.quantity(100)
 				.build();
 		final Product savedProduct = productRepository.save(product);
-		int quantity = 10;
 		entityManager.flush();
 
-		productRepository.deductQuantityByProductId(savedProduct.getProductId(), quantity);
+		productRepository.reserveQuantityByProductId(savedProduct.getProductId(), 10);
+		productRepository.reserveQuantityByProductId(savedProduct.getProductId(), -4);
+		entityManager.clear();
 
-		// flush not required as the updating query already mentions @Modifying at the top of it which commits the transaction
-		// entityManager.flush();
+		final Product actualProduct = productRepository.findById(savedProduct.getProductId()).orElseThrow();
 
-		// Clear persistence context to avoid Hibernate cache. Else find byId will return result form cache and not find correct results.
+		assertEquals(100, actualProduct.getQuantity());
+		assertEquals(6, actualProduct.getReservedQuantity());
+	}
+
+	@Test
+	void saveDoesNotOverwriteReservedQuantity()
+	{
+		final Product savedProduct = productRepository.save(Product.builder().quantity(50).build());
+		entityManager.flush();
+		productRepository.reserveQuantityByProductId(savedProduct.getProductId(), 7);
+		entityManager.clear();
+
+		// client payloads carry no reserved quantity, saving them must keep the counter intact
+		productRepository.save(Product.builder().productId(savedProduct.getProductId()).version(savedProduct.getVersion()).quantity(60).build());
+		entityManager.flush();
+		entityManager.clear();
+
+		final Product actualProduct = productRepository.findById(savedProduct.getProductId()).orElseThrow();
+		assertEquals(60, actualProduct.getQuantity());
+		assertEquals(7, actualProduct.getReservedQuantity());
+	}
+
+	@Test
+	void commitAndReleaseReservedQuantityForOrders()
+	{
+		final Product savedProduct = productRepository.save(Product.builder().quantity(100).build());
+		entityManager.flush();
+		final UUID paidOrder1 = UUID.randomUUID();
+		final UUID paidOrder2 = UUID.randomUUID();
+		final UUID failedOrder = UUID.randomUUID();
+		for (UUID orderId : List.of(paidOrder1, paidOrder2, failedOrder))
+		{
+			reservationRepository.save(ProductOrderReservation.builder().orderId(orderId).productId(savedProduct.getProductId()).reservedQuantity(5).build());
+			productRepository.reserveQuantityByProductId(savedProduct.getProductId(), 5);
+		}
+		entityManager.flush();
+
+		assertEquals(2, reservationRepository.transitionState(List.of(paidOrder1, paidOrder2), ReservationState.RESERVED, ReservationState.COMMITTED));
+		productRepository.commitReservedQuantityForOrders(List.of(paidOrder1, paidOrder2));
+		assertEquals(1, reservationRepository.transitionState(List.of(failedOrder), ReservationState.RESERVED, ReservationState.RELEASED));
+		productRepository.releaseReservedQuantityForOrders(List.of(failedOrder));
+		// a late failure for an order that was already paid must not move it again
+		assertEquals(0, reservationRepository.transitionState(List.of(paidOrder1), ReservationState.RESERVED, ReservationState.RELEASED));
+		productRepository.releaseReservedQuantityForOrders(List.of(paidOrder1));
 		entityManager.clear();
 
 		final Product actualProduct = productRepository.findById(savedProduct.getProductId()).orElseThrow();
+		assertEquals(90, actualProduct.getQuantity());
+		assertEquals(0, actualProduct.getReservedQuantity());
+	}
+
+	@Test
+	void keysetPagesCoverEveryProductOnce()
+	{
+		final List<UUID> savedIds = productRepository.saveAll(List.of(
+				Product.builder().quantity(1).build(),
+				Product.builder().quantity(2).build(),
+				Product.builder().quantity(3).build())).stream().map(Product::getProductId).toList();
+		entityManager.flush();
+		entityManager.clear();
+
+		final List<UUID> seen = new ArrayList<>();
+		List<Product> page = productRepository.findAllByOrderByProductIdAsc(PageRequest.of(0, 2));
+		while (!page.isEmpty())
+		{
+			page.forEach(product -> seen.add(product.getProductId()));
+			page = productRepository.findByProductIdGreaterThanOrderByProductIdAsc(page.get(page.size() - 1).getProductId(), PageRequest.of(0, 2));
+		}
 
-		int expectedQuantity = savedProduct.getQuantity() - quantity;
-		assertEquals(expectedQuantity, actualProduct.getQuantity());
+		assertTrue(seen.containsAll(savedIds));
+		assertEquals(seen.size(), new HashSet<>(seen).size());
 	}
 
 	@Test
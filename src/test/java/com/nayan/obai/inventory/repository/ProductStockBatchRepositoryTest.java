@@ -0,0 +1,113 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.rest.StockAdjustment;
+import com.nayan.obai.inventory.rest.StockAdjustmentType;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(ProductStockBatchRepository.class)
+class ProductStockBatchRepositoryTest
+{
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private ProductRepository productRepository;
+
+	@Autowired
+	private ProductStockBatchRepository productStockBatchRepository;
+
+	@Test
+	void reserveQuantitiesUpdatesEveryProduct()
+	{
+		final Product first = productRepository.save(Product.builder().quantity(10).build());
+		final Product second = productRepository.save(Product.builder().quantity(20).build());
+		entityManager.flush();
+
+		final int[] updated = productStockBatchRepository.reserveQuantities(new TreeMap<>(Map.of(first.getProductId(), 3, second.getProductId(), 4)));
+		entityManager.clear();
+
+		assertArrayEquals(new int[]{1, 1}, updated);
+		assertEquals(3, productRepository.findById(first.getProductId()).orElseThrow().getReservedQuantity());
+		assertEquals(4, productRepository.findById(second.getProductId()).orElseThrow().getReservedQuantity());
+	}
+
+	@Test
+	void reserveQuantitiesIfAvailableSkipsShortProducts()
+	{
+		final Product available = productRepository.save(Product.builder().quantity(10).build());
+		final Product shortProduct = productRepository.save(Product.builder().quantity(2).build());
+		entityManager.flush();
+
+		final Map<UUID, Integer> requested = new TreeMap<>(Map.of(available.getProductId(), 5, shortProduct.getProductId(), 5));
+		final int[] updated = productStockBatchRepository.reserveQuantitiesIfAvailable(requested);
+		entityManager.clear();
+
+		int line = 0;
+		for (UUID productId : requested.keySet())
+		{
+			assertEquals(productId.equals(available.getProductId()) ? 1 : 0, updated[line++]);
+		}
+		assertEquals(5, productRepository.findById(available.getProductId()).orElseThrow().getReservedQuantity());
+		assertEquals(0, productRepository.findById(shortProduct.getProductId()).orElseThrow().getReservedQuantity());
+	}
+
+	@Test
+	void upsertQuantitiesInsertsNewAndKeepsQuantityAboveReserved()
+	{
+		final Product reserved = productRepository.save(Product.builder().quantity(10).build());
+		entityManager.flush();
+		productRepository.reserveQuantityByProductId(reserved.getProductId(), 6);
+		final UUID newProductId = UUID.randomUUID();
+
+		productStockBatchRepository.upsertQuantities(new TreeMap<>(Map.of(reserved.getProductId(), 4, newProductId, 7)));
+		entityManager.clear();
+
+		assertEquals(10, productRepository.findById(reserved.getProductId()).orElseThrow().getQuantity());
+		assertEquals(7, productRepository.findById(newProductId).orElseThrow().getQuantity());
+		assertEquals(Map.of(reserved.getProductId(), 6, newProductId, 0), productStockBatchRepository.findReservedQuantities(List.of(reserved.getProductId(), newProductId)));
+		assertEquals(Map.of(reserved.getProductId(), 6), productStockBatchRepository.lockReservedQuantities(List.of(reserved.getProductId(), UUID.randomUUID())));
+
+		productStockBatchRepository.upsertQuantities(Map.of(reserved.getProductId(), 15));
+		entityManager.clear();
+		assertEquals(15, productRepository.findById(reserved.getProductId()).orElseThrow().getQuantity());
+	}
+
+	@Test
+	void adjustQuantitiesAppliesInOrderAndNeverBelowReserved()
+	{
+		final Product savedProduct = productRepository.save(Product.builder().quantity(10).build());
+		entityManager.flush();
+		final UUID productId = savedProduct.getProductId();
+		productRepository.reserveQuantityByProductId(productId, 4);
+
+		final int[] updated = productStockBatchRepository.adjustQuantities(List.of(
+				StockAdjustment.builder().productId(productId).type(StockAdjustmentType.RECEIVE).quantity(5).build(),
+				StockAdjustment.builder().productId(productId).type(StockAdjustmentType.SHRINK).quantity(12).build(),
+				StockAdjustment.builder().productId(productId).type(StockAdjustmentType.SHRINK).quantity(11).build(),
+				// a cycle count taken before the two changes above is rejected
+				StockAdjustment.builder().productId(productId).type(StockAdjustmentType.SET).quantity(20).expectedVersion(0L).build(),
+				StockAdjustment.builder().productId(productId).type(StockAdjustmentType.SET).quantity(20).expectedVersion(2L).build()));
+		entityManager.clear();
+
+		assertArrayEquals(new int[]{1, 0, 1, 0, 1}, updated);
+		final Product actualProduct = productRepository.findById(productId).orElseThrow();
+		assertEquals(20, actualProduct.getQuantity());
+		assertEquals(3, actualProduct.getVersion());
+	}
+}
@@ -0,0 +1,77 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.Product;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import({ProductStockBucketRepository.class, ProductStockBatchRepository.class})
+class ProductStockBucketRepositoryTest
+{
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private ProductRepository productRepository;
+
+	@Autowired
+	private ProductStockBucketRepository productStockBucketRepository;
+
+	@Autowired
+	private ProductStockBatchRepository productStockBatchRepository;
+
+	@Test
+	void takeQuantityOnlyDrawsDownABucketThatHoldsIt()
+	{
+		final UUID productId = UUID.randomUUID();
+		productStockBucketRepository.replaceBuckets(productId, 3);
+		productStockBucketRepository.setQuantities(productId, new int[]{4, 2, 0});
+
+		assertEquals(1, productStockBucketRepository.takeQuantity(productId, 0, 3));
+		assertEquals(0, productStockBucketRepository.takeQuantity(productId, 1, 3));
+		assertEquals(0, productStockBucketRepository.takeQuantity(productId, 2, 1));
+
+		assertArrayEquals(new int[]{1, 2, 0}, productStockBucketRepository.lockQuantities(productId));
+		assertEquals(Map.of(productId, 3), productStockBucketRepository.findParkedQuantities(List.of(productId, UUID.randomUUID())));
+		assertEquals(3, productStockBucketRepository.findBucketCounts().get(productId));
+	}
+
+	@Test
+	void replaceBucketsWithNoneRemovesTheStriping()
+	{
+		final UUID productId = UUID.randomUUID();
+		productStockBucketRepository.replaceBuckets(productId, 4);
+
+		productStockBucketRepository.replaceBuckets(productId, 0);
+
+		assertEquals(0, productStockBucketRepository.findQuantities(productId).length);
+		assertFalse(productStockBucketRepository.findBucketCounts().containsKey(productId));
+	}
+
+	// parked stock is part of reservedQuantity, so the reconciler must not see it as drift
+	@Test
+	void parkedStockIsNotReservedQuantityDrift()
+	{
+		final Product product = productRepository.save(Product.builder().quantity(10).build());
+		entityManager.flush();
+		productStockBucketRepository.replaceBuckets(product.getProductId(), 2);
+		productStockBucketRepository.setQuantities(product.getProductId(), new int[]{3, 3});
+		productStockBatchRepository.reserveQuantities(Map.of(product.getProductId(), 6));
+
+		assertEquals(4, productStockBucketRepository.lockRowAvailableQuantity(product.getProductId()));
+		assertFalse(productRepository.findProductIdsWithReservedQuantityDrift().contains(product.getProductId()));
+		assertNull(productStockBucketRepository.findRowAvailableQuantity(UUID.randomUUID()));
+	}
+}
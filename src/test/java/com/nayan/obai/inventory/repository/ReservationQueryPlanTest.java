@@ -0,0 +1,105 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Fails when a hot reservation query stops using the index the V2 migration created for it.
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class ReservationQueryPlanTest
+{
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private ReservationRepository reservationRepository;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	private final List<UUID> productIds = new ArrayList<>();
+
+	private final List<UUID> orderIds = new ArrayList<>();
+
+	@BeforeEach
+	void setup()
+	{
+		// enough spread over products and orders that the optimizer prefers the index over a scan
+		final List<ProductOrderReservation> reservations = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+		{
+			productIds.add(UUID.randomUUID());
+			orderIds.add(UUID.randomUUID());
+		}
+		for (int i = 0; i < 200; i++)
+		{
+			reservations.add(ProductOrderReservation.builder()
+					.orderId(orderIds.get(i % orderIds.size()))
+					.productId(productIds.get(i % productIds.size()))
+					.reservedQuantity(1)
+					.timestamp(i)
+					.build());
+		}
+		reservationRepository.saveAll(reservations);
+		entityManager.flush();
+	}
+
+	@Test
+	void totalReservedQuantityIsCoveredByProductIndex()
+	{
+		final Map<String, Object> plan = explain("SELECT COALESCE(SUM(reservedQuantity), 0) FROM ProductOrderReservation WHERE productId = ? AND state = 'RESERVED'",
+				ProductStockBatchRepository.toBytes(productIds.get(0)));
+
+		assertEquals("idx_reservation_product_state_quantity", plan.get("key"));
+		assertTrue(String.valueOf(plan.get("Extra")).contains("Using index"), "expected a covering index read, got " + plan);
+	}
+
+	@Test
+	void findAllByOrderIdUsesOrderIndex()
+	{
+		final Map<String, Object> plan = explain("SELECT * FROM ProductOrderReservation WHERE orderId = ?",
+				ProductStockBatchRepository.toBytes(orderIds.get(0)));
+
+		assertEquals("idx_reservation_order_state", plan.get("key"));
+	}
+
+	@Test
+	void settledDeleteUsesOrderIndex()
+	{
+		final Map<String, Object> plan = explain("DELETE FROM ProductOrderReservation WHERE orderId IN (?, ?) AND state = 'COMMITTED'",
+				ProductStockBatchRepository.toBytes(orderIds.get(0)), ProductStockBatchRepository.toBytes(orderIds.get(1)));
+
+		assertEquals("idx_reservation_order_state", plan.get("key"));
+	}
+
+	@Test
+	void expirySweepCanUseStateTimestampIndex()
+	{
+		// a range on a small table may still be scanned, so only check the index is a candidate
+		final Map<String, Object> plan = explain("SELECT orderId FROM ProductOrderReservation WHERE state = 'RESERVED' AND `timestamp` < ? " +
+				"GROUP BY orderId ORDER BY MIN(`timestamp`) LIMIT 500", 10L);
+
+		assertTrue(String.valueOf(plan.get("possible_keys")).contains("idx_reservation_state_timestamp"), "expected the expiry index as candidate, got " + plan);
+	}
+
+	private Map<String, Object> explain(final String sql, final Object... args)
+	{
+		final List<Map<String, Object>> rows = jdbcTemplate.queryForList("EXPLAIN " + sql, args);
+		assertFalse(rows.isEmpty());
+		return rows.get(0);
+	}
+}
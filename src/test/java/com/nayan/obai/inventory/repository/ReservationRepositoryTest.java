@@ -1,13 +1,16 @@
 package com.nayan.obai.inventory.repository;
 
 import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
 import jakarta.persistence.EntityManager;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
 
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -23,55 +26,6 @@ class ReservationRepositoryTest
 	@Autowired
 	private ReservationRepository reservationRepository;
 
-	@Test
-	void testTotalReservedQuantityIfNotReserved(){
-		assertTrue(reservationRepository.getTotalReservedQuantityByProductId(UUID.randomUUID()) == 0);
-	}
-
-	@Test
-	void testTotalReservedQuantityIfReservedWithOneOrder(){
-		final UUID productId = UUID.randomUUID();
-		int reservedQuantityForOrder = 10;
-		final ProductOrderReservation productReservationForOrder = ProductOrderReservation.builder()
-				.orderId(UUID.randomUUID())
-				.productId(productId)
-				.reservedQuantity(reservedQuantityForOrder)
-				.build();
-		reservationRepository.save(productReservationForOrder);
-
-		flushAndClear();
-
-		int expectedReservedQuantity = reservedQuantityForOrder;
-		int actualReservedQuantity = reservationRepository.getTotalReservedQuantityByProductId(productId);
-		assertEquals(expectedReservedQuantity, actualReservedQuantity);
-	}
-
-	@Test
-	void testTotalReservedQuantityIfReservedWithMultipleOrders(){
-		final UUID productId = UUID.randomUUID();
-		int reservedQuantityForOrder1 = 10;
-		final ProductOrderReservation productReservationForOrder1 = ProductOrderReservation.builder()
-				.orderId(UUID.randomUUID())
-				.productId(productId)
-				.reservedQuantity(reservedQuantityForOrder1)
-				.build();
-		reservationRepository.save(productReservationForOrder1);
-
-		int reservedQuantityForOrder2 = 25;
-		final ProductOrderReservation productReservationForOrder2 = ProductOrderReservation.builder()
-				.orderId(UUID.randomUUID())
-				.productId(productId)
-				.reservedQuantity(reservedQuantityForOrder2)
-				.build();
-		reservationRepository.save(productReservationForOrder2);
-
-		flushAndClear();
-
-		int expectedReservedQuantity = reservedQuantityForOrder1 + reservedQuantityForOrder2;
-		int actualReservedQuantity = reservationRepository.getTotalReservedQuantityByProductId(productId);
-		assertEquals(expectedReservedQuantity, actualReservedQuantity);
-	}
-
 	@Test
 	void testFindAllByOrderIdIfNoOrder() {
 		assertTrue(reservationRepository.findAllByOrderId(UUID.randomUUID()).isEmpty());
@@ -103,35 +57,41 @@ class ReservationRepositoryTest
 		assertEquals(expectedReservations, actualProductOrderReservationList);
 	}
 
-
 	@Test
-	void deleteByOrderId(){
-		final UUID orderId = UUID.randomUUID();
-		int reservedQuantityForOrder1 = 10;
-		final ProductOrderReservation productReservationForOrder1 = ProductOrderReservation.builder()
-				.orderId(orderId)
-				.productId(UUID.randomUUID())
-				.reservedQuantity(reservedQuantityForOrder1)
-				.build();
-		reservationRepository.save(productReservationForOrder1);
-
-		int reservedQuantityForOrder2 = 25;
-		final ProductOrderReservation productReservationForOrder2 = ProductOrderReservation.builder()
-				.orderId(orderId)
-				.productId(UUID.randomUUID())
-				.reservedQuantity(reservedQuantityForOrder2)
-				.build();
-		reservationRepository.save(productReservationForOrder2);
+	void findOrderIdsReservedBeforeReturnsOldestOpenReservationsFirst() {
+		final UUID olderOrderId = UUID.randomUUID();
+		final UUID oldOrderId = UUID.randomUUID();
+		final UUID recentOrderId = UUID.randomUUID();
+		final UUID committedOrderId = UUID.randomUUID();
+		reservationRepository.save(ProductOrderReservation.builder().orderId(oldOrderId).productId(UUID.randomUUID()).reservedQuantity(1).timestamp(200).build());
+		reservationRepository.save(ProductOrderReservation.builder().orderId(olderOrderId).productId(UUID.randomUUID()).reservedQuantity(1).timestamp(100).build());
+		reservationRepository.save(ProductOrderReservation.builder().orderId(olderOrderId).productId(UUID.randomUUID()).reservedQuantity(1).timestamp(100).build());
+		reservationRepository.save(ProductOrderReservation.builder().orderId(recentOrderId).productId(UUID.randomUUID()).reservedQuantity(1).timestamp(1000).build());
+		reservationRepository.save(ProductOrderReservation.builder().orderId(committedOrderId).productId(UUID.randomUUID()).reservedQuantity(1).timestamp(100)
+				.state(ReservationState.COMMITTED).build());
 
 		flushAndClear();
 
-		reservationRepository.deleteByOrderId(orderId);;
+		final List<UUID> expiredOrderIds = reservationRepository.findOrderIdsReservedBefore(500, PageRequest.of(0, 1000));
+		assertTrue(expiredOrderIds.indexOf(olderOrderId) >= 0);
+		assertTrue(expiredOrderIds.indexOf(olderOrderId) < expiredOrderIds.indexOf(oldOrderId));
+		assertEquals(1, expiredOrderIds.stream().filter(olderOrderId::equals).count());
+		assertFalse(expiredOrderIds.contains(recentOrderId));
+		assertFalse(expiredOrderIds.contains(committedOrderId));
+	}
 
-		flushAndClear();
+	@Test
+	void findOrderIdsReservedBeforeExcludingLeavesOutTheGivenOrders() {
+		final UUID parkedOrderId = UUID.randomUUID();
+		final UUID expiredOrderId = UUID.randomUUID();
+		reservationRepository.save(ProductOrderReservation.builder().orderId(parkedOrderId).productId(UUID.randomUUID()).reservedQuantity(1).timestamp(100).build());
+		reservationRepository.save(ProductOrderReservation.builder().orderId(expiredOrderId).productId(UUID.randomUUID()).reservedQuantity(1).timestamp(200).build());
 
-		List<ProductOrderReservation> actualProductOrderReservationList = reservationRepository.findAllByOrderId(orderId);
+		flushAndClear();
 
-		assertTrue(actualProductOrderReservationList.isEmpty());
+		final List<UUID> expiredOrderIds = reservationRepository.findOrderIdsReservedBeforeExcluding(500, Set.of(parkedOrderId), PageRequest.of(0, 1000));
+		assertFalse(expiredOrderIds.contains(parkedOrderId));
+		assertTrue(expiredOrderIds.contains(expiredOrderId));
 	}
 
 	private void flushAndClear() {
@@ -0,0 +1,53 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.entity.StockChangeOutbox;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class StockChangeOutboxRepositoryTest
+{
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private ReservationRepository reservationRepository;
+
+	@Autowired
+	private StockChangeOutboxRepository stockChangeOutboxRepository;
+
+	@Test
+	void settledOrdersAddOneRowPerProductAndPublishedRowsAreDeleted()
+	{
+		final UUID productId = UUID.randomUUID();
+		final UUID firstOrder = UUID.randomUUID();
+		final UUID secondOrder = UUID.randomUUID();
+		reservationRepository.saveAll(List.of(
+				ProductOrderReservation.builder().orderId(firstOrder).productId(productId).reservedQuantity(1).state(ReservationState.COMMITTED).build(),
+				ProductOrderReservation.builder().orderId(secondOrder).productId(productId).reservedQuantity(2).state(ReservationState.COMMITTED).build(),
+				ProductOrderReservation.builder().orderId(secondOrder).productId(UUID.randomUUID()).reservedQuantity(2).state(ReservationState.RESERVED).build()));
+		entityManager.flush();
+
+		assertEquals(1, stockChangeOutboxRepository.insertForOrders(List.of(firstOrder, secondOrder), ReservationState.COMMITTED.name(), 1000L));
+
+		final List<StockChangeOutbox> pending = stockChangeOutboxRepository.findAllByOrderByOutboxIdAsc(PageRequest.of(0, 10));
+		assertEquals(1, pending.size());
+		assertEquals(productId, pending.get(0).getProductId());
+
+		assertEquals(1, stockChangeOutboxRepository.deleteByOutboxIds(List.of(pending.get(0).getOutboxId())));
+		assertTrue(stockChangeOutboxRepository.findAllByOrderByOutboxIdAsc(PageRequest.of(0, 10)).isEmpty());
+	}
+}
@@ -0,0 +1,78 @@
+package com.nayan.obai.inventory.repository;
+
+import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.entity.StockMovement;
+import com.nayan.obai.inventory.entity.StockMovementType;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(StockMovementBatchRepository.class)
+class StockMovementRepositoryTest
+{
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private ReservationRepository reservationRepository;
+
+	@Autowired
+	private StockMovementRepository stockMovementRepository;
+
+	@Autowired
+	private StockMovementBatchRepository stockMovementBatchRepository;
+
+	@Test
+	void settledReservationsAreJournaledWithTheirDeltas()
+	{
+		final UUID productId = UUID.randomUUID();
+		final UUID committedOrder = UUID.randomUUID();
+		final UUID releasedOrder = UUID.randomUUID();
+		reservationRepository.saveAll(List.of(
+				ProductOrderReservation.builder().orderId(committedOrder).productId(productId).reservedQuantity(4).state(ReservationState.COMMITTED).build(),
+				ProductOrderReservation.builder().orderId(releasedOrder).productId(productId).reservedQuantity(6).state(ReservationState.RELEASED).build()));
+		entityManager.flush();
+
+		assertEquals(1, stockMovementRepository.journalCommittedReservations(List.of(committedOrder, releasedOrder), 1000L));
+		assertEquals(1, stockMovementRepository.journalReleasedReservations(List.of(committedOrder, releasedOrder), 2000L));
+		entityManager.clear();
+
+		final List<StockMovement> movements = stockMovementRepository.findByProductIdInAndMovementIdGreaterThanOrderByMovementIdAsc(List.of(productId), 0);
+		assertEquals(2, movements.size());
+		assertEquals(StockMovementType.COMMIT, movements.get(0).getType());
+		assertEquals(-4, movements.get(0).getQuantityDelta());
+		assertEquals(-4, movements.get(0).getReservedDelta());
+		assertEquals(committedOrder, movements.get(0).getOrderId());
+		assertEquals(StockMovementType.RELEASE, movements.get(1).getType());
+		assertEquals(0, movements.get(1).getQuantityDelta());
+		assertEquals(-6, movements.get(1).getReservedDelta());
+	}
+
+	@Test
+	void batchInsertedMovementsKeepOverwrites()
+	{
+		final UUID productId = UUID.randomUUID();
+		stockMovementBatchRepository.insertMovements(List.of(
+				StockMovement.builder().productId(productId).type(StockMovementType.ADJUST).quantityAfter(30).timestamp(1000).build(),
+				StockMovement.builder().productId(productId).type(StockMovementType.ADJUST).quantityDelta(-2).timestamp(2000).build()));
+
+		final List<StockMovement> movements = stockMovementRepository.findByProductIdInAndMovementIdGreaterThanOrderByMovementIdAsc(List.of(productId), 0);
+		assertEquals(2, movements.size());
+		assertEquals(30, movements.get(0).getQuantityAfter());
+		assertNull(movements.get(1).getQuantityAfter());
+		assertNull(movements.get(0).getOrderId());
+		assertTrue(movements.get(1).getMovementId() > stockMovementRepository.findLastMovementIdBefore(2000));
+	}
+}
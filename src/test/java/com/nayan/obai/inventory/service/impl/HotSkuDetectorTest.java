@@ -0,0 +1,122 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.rest.HotSku;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+class HotSkuDetectorTest
+{
+	private SimpleMeterRegistry meterRegistry;
+
+	private HotSkuDetector detector;
+
+	@BeforeEach
+	void setup()
+	{
+		this.meterRegistry = new SimpleMeterRegistry();
+		// 8 counters, top 2, hot from 50 points, one point per 10 ms of lock wait
+		this.detector = new HotSkuDetector(meterRegistry, 8, 2, 50, 10);
+	}
+
+	@Test
+	void shouldFindHotSkuInALongTail()
+	{
+		final UUID hotProductId = UUID.randomUUID();
+		for (int i = 0; i < 1000; i++)
+		{
+			detector.recordReserve(List.of(UUID.randomUUID()));
+			if (i % 3 == 0)
+			{
+				detector.recordReserve(List.of(hotProductId));
+			}
+		}
+
+		detector.rotate();
+
+		Assertions.assertTrue(detector.isHot(hotProductId));
+		final List<HotSku> ranking = detector.getRanking();
+		Assertions.assertEquals(hotProductId, ranking.get(0).getProductId());
+		Assertions.assertTrue(ranking.get(0).isHot());
+		// the long tail only ever inherits scores, none of it is guaranteed enough to be hot
+		Assertions.assertFalse(ranking.get(1).isHot());
+		Assertions.assertEquals(1, meterRegistry.get("inventory.hot-sku.count").gauge().value());
+	}
+
+	@Test
+	void shouldRankContendedSkuByLockWait()
+	{
+		final UUID busyProductId = UUID.randomUUID();
+		final UUID contendedProductId = UUID.randomUUID();
+		for (int i = 0; i < 40; i++)
+		{
+			detector.recordReserve(List.of(busyProductId));
+			detector.recordReserve(List.of(contendedProductId));
+			detector.recordLockWait(List.of(contendedProductId), TimeUnit.MILLISECONDS.toNanos(30));
+		}
+
+		detector.rotate();
+
+		Assertions.assertTrue(detector.isHot(contendedProductId));
+		Assertions.assertFalse(detector.isHot(busyProductId));
+		Assertions.assertEquals(1200, detector.getRanking().get(0).getLockWaitMillis());
+	}
+
+	// threads count into their own stripes, the window adds them up without losing a line
+	@Test
+	void shouldMergeCountsFromConcurrentThreads() throws Exception
+	{
+		final UUID productId = UUID.randomUUID();
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		final List<Future<?>> recorders = new ArrayList<>();
+		for (int thread = 0; thread < 8; thread++)
+		{
+			recorders.add(executor.submit(() -> {
+				for (int i = 0; i < 1000; i++)
+				{
+					detector.recordReserve(List.of(productId));
+				}
+			}));
+		}
+		for (Future<?> recorder : recorders)
+		{
+			recorder.get(10, TimeUnit.SECONDS);
+		}
+		executor.shutdown();
+
+		detector.rotate();
+
+		final HotSku hotSku = detector.getRanking().get(0);
+		Assertions.assertEquals(8000, hotSku.getScore());
+		Assertions.assertEquals(8000, hotSku.getReservedLines());
+		Assertions.assertEquals(0, hotSku.getError());
+		Assertions.assertTrue(detector.isHot(productId));
+	}
+
+	@Test
+	void shouldCoolDownOnceTheLoadIsGone()
+	{
+		final UUID productId = UUID.randomUUID();
+		for (int i = 0; i < 100; i++)
+		{
+			detector.recordReserve(List.of(productId));
+		}
+		detector.rotate();
+		Assertions.assertTrue(detector.anyHot(List.of(UUID.randomUUID(), productId)));
+
+		// 100 halves to 50 and stays hot one more window, then drops below
+		detector.rotate();
+		detector.rotate();
+
+		Assertions.assertFalse(detector.anyHot(List.of(productId)));
+	}
+}
@@ -1,26 +1,50 @@
 package com.nayan.obai.inventory.service.impl;
 
+import com.nayan.obai.inventory.entity.ProcessedPaymentEvent;
 import com.nayan.obai.inventory.entity.Product;
 import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.entity.StockMovement;
+import com.nayan.obai.inventory.entity.StockMovementType;
 import com.nayan.obai.inventory.exception.InventoryServiceException;
+import com.nayan.obai.inventory.exception.StockConflictException;
+import com.nayan.obai.inventory.repository.ProcessedPaymentEventRepository;
+import com.nayan.obai.inventory.repository.ProductExportRepository;
 import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
 import com.nayan.obai.inventory.repository.ReservationRepository;
 import com.nayan.obai.inventory.rest.OrderProduct;
+import com.nayan.obai.inventory.rest.StockAdjustment;
+import com.nayan.obai.inventory.rest.StockAdjustmentResult;
+import com.nayan.obai.inventory.rest.StockAdjustmentType;
+import com.nayan.obai.inventory.service.ReservationMode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentMatchers;
-import org.mockito.InjectMocks;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @ExtendWith(MockitoExtension.class)
 class ProductServiceImplTest
@@ -32,20 +56,40 @@ class ProductServiceImplTest
 	@Mock
 	private ReservationRepository reservationRepository;
 
+	@Mock
+	private ProductStockBatchRepository productStockBatchRepository;
+
+	@Mock
+	private ProcessedPaymentEventRepository processedPaymentEventRepository;
+
+	@Mock
+	private StockMovementJournal stockMovementJournal;
+
+	@Mock
+	private StockOutbox stockOutbox;
+
 	@Mock
 	private RedissonClient redissonClient;
 
 	@Mock
 	private RLock rLock;
 
-	@InjectMocks
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	private SimpleMeterRegistry meterRegistry;
+
 	private ProductServiceImpl productService;
 
-//	@BeforeEach
-//	void setup()
-//	{
-//		this.productService = new ProductServiceImpl(productRepository, reservationRepository, redissonClient, rLock);
-//	}
+	@BeforeEach
+	void setup()
+	{
+		// real template over a mocked manager so the transactional callbacks still run
+		this.meterRegistry = new SimpleMeterRegistry();
+		this.productService = new ProductServiceImpl(productRepository, reservationRepository, productStockBatchRepository,
+				new ProcessedOrderRegistry(processedPaymentEventRepository, 1000),
+				new ProductAvailabilityCache(redissonClient, meterRegistry, true, 1000, 60000, false), stockMovementJournal, stockOutbox, redissonClient, rLock, new TransactionTemplate(transactionManager), meterRegistry);
+	}
 
 	@Test
 	void shouldReturnEmptyListWhenNoProductsExist() {
@@ -88,22 +132,63 @@ class ProductServiceImplTest
 	void shouldReturnProductWithAvailableQuantity() {
 		UUID productId = UUID.randomUUID();
 		final int currentQuantity = 10;
-		final Product product = Product.builder().productId(productId).quantity(currentQuantity).build();
-
 		final int reservedQuantity = 3;
+		final Product product = Product.builder().productId(productId).quantity(currentQuantity).reservedQuantity(reservedQuantity).build();
+
 		Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(product));
-		Mockito.when(reservationRepository.getTotalReservedQuantityByProductId(productId)).thenReturn(reservedQuantity);
 
 		final Product result = productService.getProduct(productId);
 
 		final int expectedQuantity = currentQuantity - reservedQuantity;
 		Assertions.assertEquals(expectedQuantity, result.getQuantity());
+		// reserved quantity comes from the counter column, not from summing reservations
+		Mockito.verifyNoInteractions(reservationRepository);
+		// the loaded entity must not be mutated with the available quantity
+		Assertions.assertEquals(currentQuantity, product.getQuantity());
+	}
+
+	// Test getProduct() is served from the availability cache until the product changes
+	@Test
+	void shouldServeRepeatedGetProductFromCacheUntilSaved() {
+		final UUID productId = UUID.randomUUID();
+		final Product product = Product.builder().productId(productId).quantity(10).reservedQuantity(0).build();
+
+		Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(product));
+		Mockito.when(productStockBatchRepository.adjustQuantities(ArgumentMatchers.anyList())).thenReturn(new int[]{1});
+
+		productService.getProduct(productId);
+		productService.getProduct(productId);
+		Mockito.verify(productRepository, Mockito.times(1)).findById(productId);
+
+		// saveProduct reloads the row once, the next getProduct has to load it again
+		productService.saveProduct(product);
+		productService.getProduct(productId);
+		Mockito.verify(productRepository, Mockito.times(3)).findById(productId);
+		Assertions.assertEquals(1, meterRegistry.get("cache.gets").tag("cache", "productAvailability").tag("result", "hit").functionCounter().count());
+	}
+
+	// Test a reservation evicts the cached availability of its products
+	@Test
+	void shouldEvictCachedAvailabilityWhenStockIsReserved() {
+		ReflectionTestUtils.setField(productService, "reservationMode", ReservationMode.CONDITIONAL_UPDATE);
+		final UUID productId = UUID.randomUUID();
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(UUID.randomUUID())
+				.products(List.of(Product.builder().productId(productId).quantity(5).build())).build();
+
+		Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(Product.builder().productId(productId).quantity(10).reservedQuantity(0).build()));
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(productId, 5))).thenReturn(new int[]{1});
+
+		productService.getProduct(productId);
+		Assertions.assertTrue(productService.validateAndReserveProduct(orderProduct));
+		productService.getProduct(productId);
+
+		Mockito.verify(productRepository, Mockito.times(2)).findById(productId);
 	}
 
 	// Test for saveProduct()
 	@Test
 	void shouldSaveAndReturnProduct() {
-		final Product product = Product.builder().productId(UUID.randomUUID()).quantity(10).build();
+		final Product product = Product.builder().quantity(10).build();
 
 		Mockito.when(productRepository.save(product)).thenReturn(product);
 
@@ -112,6 +197,68 @@ class ProductServiceImplTest
 		Assertions.assertEquals(product, result);
 	}
 
+	// Test saveProduct() of an existing product is a version checked cycle count, not a full row write
+	@Test
+	void shouldSaveExistingProductAsVersionCheckedCount() {
+		final UUID productId = UUID.randomUUID();
+		final Product product = Product.builder().productId(productId).quantity(7).version(4L).build();
+
+		Mockito.when(productStockBatchRepository.adjustQuantities(ArgumentMatchers.anyList())).thenReturn(new int[]{0});
+		Mockito.when(productRepository.existsById(productId)).thenReturn(true);
+
+		Assertions.assertThrows(StockConflictException.class, () -> productService.saveProduct(product));
+
+		Mockito.verify(productStockBatchRepository).adjustQuantities(ArgumentMatchers.<List<StockAdjustment>>argThat(adjustments ->
+				adjustments.get(0).getType() == StockAdjustmentType.SET && adjustments.get(0).getQuantity() == 7
+						&& Long.valueOf(4L).equals(adjustments.get(0).getExpectedVersion())));
+		Mockito.verify(productRepository, Mockito.never()).save(ArgumentMatchers.any());
+	}
+
+	// a count of an unknown product stays a not found, only a lost count is a conflict
+	@Test
+	void shouldReportCountOfMissingProductAsNotFound() {
+		final UUID productId = UUID.randomUUID();
+		final Product product = Product.builder().productId(productId).quantity(7).version(4L).build();
+
+		Mockito.when(productStockBatchRepository.adjustQuantities(ArgumentMatchers.anyList())).thenReturn(new int[]{0});
+		Mockito.when(productRepository.existsById(productId)).thenReturn(false);
+
+		Assertions.assertThrows(InventoryServiceException.class, () -> productService.saveProduct(product));
+	}
+
+	// Test for adjustStock()
+	@Test
+	void shouldReportEachAdjustmentAndEvictOnlyAppliedProducts() {
+		final UUID received = UUID.randomUUID();
+		final UUID shrunk = UUID.randomUUID();
+		final List<StockAdjustment> adjustments = List.of(
+				StockAdjustment.builder().productId(received).type(StockAdjustmentType.RECEIVE).quantity(5).build(),
+				StockAdjustment.builder().productId(shrunk).type(StockAdjustmentType.SHRINK).quantity(50).build());
+
+		Mockito.when(productStockBatchRepository.adjustQuantities(adjustments)).thenReturn(new int[]{1, 0});
+		Mockito.when(productRepository.findById(shrunk)).thenReturn(Optional.of(Product.builder().productId(shrunk).quantity(10).reservedQuantity(0).build()));
+
+		productService.getProduct(shrunk);
+		final List<StockAdjustmentResult> results = productService.adjustStock(adjustments);
+		productService.getProduct(shrunk);
+
+		Assertions.assertTrue(results.get(0).isApplied());
+		Assertions.assertFalse(results.get(1).isApplied());
+		Assertions.assertNotNull(results.get(1).getReason());
+		// the rejected product kept its cached availability
+		Mockito.verify(productRepository, Mockito.times(1)).findById(shrunk);
+		Mockito.verify(stockMovementJournal).append(ArgumentMatchers.<List<StockMovement>>argThat(movements -> movements.size() == 1
+				&& received.equals(movements.get(0).getProductId()) && movements.get(0).getQuantityDelta() == 5));
+	}
+
+	@Test
+	void shouldRejectNegativeAdjustmentQuantity() {
+		final List<StockAdjustment> adjustments = List.of(StockAdjustment.builder().productId(UUID.randomUUID()).type(StockAdjustmentType.RECEIVE).quantity(-1).build());
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> productService.adjustStock(adjustments));
+		Mockito.verifyNoInteractions(productStockBatchRepository);
+	}
+
 	// Test for getAllProducts()
 	@Test
 	void shouldReturnAllProducts() {
@@ -126,26 +273,118 @@ class ProductServiceImplTest
 		Assertions.assertEquals(products, result);
 	}
 
+	// Test for getProducts()
+	@Test
+	void shouldReturnKeysetPageWithAvailableQuantityAndCappedSize() {
+		final UUID after = UUID.randomUUID();
+		final Product product = Product.builder().productId(UUID.randomUUID()).quantity(10).reservedQuantity(4).build();
+
+		Mockito.when(productRepository.findByProductIdGreaterThanOrderByProductIdAsc(ArgumentMatchers.eq(after), ArgumentMatchers.any())).thenReturn(List.of(product));
+
+		final List<Product> result = productService.getProducts(after, 1_000_000);
+
+		Assertions.assertEquals(6, result.get(0).getQuantity());
+		Mockito.verify(productRepository).findByProductIdGreaterThanOrderByProductIdAsc(after, PageRequest.of(0, 1000));
+		Assertions.assertEquals(1000, productService.getPageSize(1_000_000));
+	}
+
+	// Test for getAvailableProducts()
+	@Test
+	void shouldLookUpAvailabilityWithOneQueryAndLeaveOutUnknownProducts() {
+		final UUID cachedProductId = UUID.randomUUID();
+		final UUID productId = UUID.randomUUID();
+		final UUID unknownProductId = UUID.randomUUID();
+
+		Mockito.when(productRepository.findById(cachedProductId)).thenReturn(Optional.of(Product.builder().productId(cachedProductId).quantity(5).reservedQuantity(0).build()));
+		Mockito.when(productRepository.findAllById(ArgumentMatchers.anyIterable())).thenReturn(List.of(Product.builder().productId(productId).quantity(10).reservedQuantity(2).build()));
+		productService.getProduct(cachedProductId);
+
+		final Map<UUID, Product> result = productService.getAvailableProducts(List.of(cachedProductId, productId, unknownProductId));
+
+		Assertions.assertEquals(5, result.get(cachedProductId).getQuantity());
+		Assertions.assertEquals(8, result.get(productId).getQuantity());
+		Assertions.assertFalse(result.containsKey(unknownProductId));
+		// only the products not in the cache are fetched
+		Mockito.verify(productRepository).findAllById(Set.of(productId, unknownProductId));
+	}
+
+	@Test
+	void shouldRejectTooLargeAvailabilityLookup() {
+		final List<UUID> productIds = new ArrayList<>();
+		for (int i = 0; i <= 200; i++)
+		{
+			productIds.add(UUID.randomUUID());
+		}
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> productService.getAvailableProducts(productIds));
+		Mockito.verifyNoInteractions(productRepository);
+	}
+
+	// Test for exportProducts()
+	@Test
+	void shouldExportProductsWithAvailableQuantity() {
+		final ProductExportRepository productExportRepository = Mockito.mock(ProductExportRepository.class);
+		ReflectionTestUtils.setField(productService, "productExportRepository", productExportRepository);
+		Mockito.doAnswer(invocation -> {
+			invocation.<Consumer<Product>>getArgument(0).accept(Product.builder().productId(UUID.randomUUID()).quantity(10).reservedQuantity(3).build());
+			return null;
+		}).when(productExportRepository).streamProducts(ArgumentMatchers.any());
+
+		final List<Product> exported = new ArrayList<>();
+		productService.exportProducts(exported::add);
+
+		Assertions.assertEquals(1, exported.size());
+		Assertions.assertEquals(7, exported.get(0).getQuantity());
+	}
+
+	// Test exportProducts() in REDIS_LEDGER mode reports the ledger's availability, one pipelined read per chunk
+	@Test
+	void shouldExportProductsWithLedgerAvailability() {
+		final ProductExportRepository productExportRepository = Mockito.mock(ProductExportRepository.class);
+		final RedisStockLedger redisStockLedger = Mockito.mock(RedisStockLedger.class);
+		ReflectionTestUtils.setField(productService, "productExportRepository", productExportRepository);
+		ReflectionTestUtils.setField(productService, "redisStockLedger", redisStockLedger);
+		ReflectionTestUtils.setField(productService, "reservationMode", ReservationMode.REDIS_LEDGER);
+		ReflectionTestUtils.setField(productService, "maxBulkSize", 2);
+		final List<UUID> productIds = List.of(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+		Mockito.doAnswer(invocation -> {
+			productIds.forEach(productId -> invocation.<Consumer<Product>>getArgument(0).accept(Product.builder().productId(productId).quantity(10).reservedQuantity(3).build()));
+			return null;
+		}).when(productExportRepository).streamProducts(ArgumentMatchers.any());
+		Mockito.when(redisStockLedger.getAvailableQuantities(ArgumentMatchers.anyCollection()))
+				.thenReturn(Map.of(productIds.get(0), 4, productIds.get(2), 1));
+
+		final List<Product> exported = new ArrayList<>();
+		productService.exportProducts(exported::add);
+
+		Assertions.assertEquals(List.of(4, 7, 1), exported.stream().map(Product::getQuantity).toList());
+		Mockito.verify(redisStockLedger, Mockito.times(2)).getAvailableQuantities(ArgumentMatchers.anyCollection());
+	}
+
 	// Test for validateAndReserveProduct() (Happy Path)
 	@Test
 	void shouldValidateAndReserveProductSuccessfully() throws Exception {
 		final UUID productId = UUID.randomUUID();
 		final UUID orderId = UUID.randomUUID();
 		final Product requestProduct = Product.builder().productId(productId).quantity(5).build();
-		final Product dbProduct = Product.builder().productId(productId).quantity(10).build();
+		final Product dbProduct = Product.builder().productId(productId).quantity(10).reservedQuantity(2).build();
 
 		final OrderProduct orderProduct = OrderProduct.builder().orderId(orderId).products(List.of(requestProduct)).build();
 
 		Mockito.when(redissonClient.getLock(ArgumentMatchers.anyString())).thenReturn(rLock);
+		Mockito.when(redissonClient.getMultiLock(ArgumentMatchers.any(RLock[].class))).thenReturn(rLock);
 		Mockito.when(rLock.tryLock(ArgumentMatchers.anyLong(), ArgumentMatchers.anyLong(), ArgumentMatchers.any())).thenReturn(true);
-		Mockito.when(rLock.isHeldByCurrentThread()).thenReturn(true);
-		Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(dbProduct));
-		Mockito.when(reservationRepository.getTotalReservedQuantityByProductId(productId)).thenReturn(2);
+		Mockito.when(productRepository.findAllById(ArgumentMatchers.anyIterable())).thenReturn(List.of(dbProduct));
 
 		final boolean result = productService.validateAndReserveProduct(orderProduct);
 
 		Assertions.assertTrue(result);
-		Mockito.verify(reservationRepository).save(ArgumentMatchers.any(ProductOrderReservation.class));
+		Mockito.verify(reservationRepository).saveAll(ArgumentMatchers.<List<ProductOrderReservation>>argThat(reservations -> reservations.size() == 1));
+		Mockito.verify(productStockBatchRepository).reserveQuantities(Map.of(productId, 5));
+		Mockito.verify(stockMovementJournal).record(ArgumentMatchers.<List<StockMovement>>argThat(movements -> movements.size() == 1
+				&& movements.get(0).getType() == StockMovementType.RESERVE && movements.get(0).getReservedDelta() == 5 && orderId.equals(movements.get(0).getOrderId())));
+		Mockito.verify(stockOutbox).productsChanged(Set.of(productId));
+		Mockito.verify(productRepository, Mockito.never()).findById(productId);
 		Mockito.verify(rLock).unlock();
 	}
 
@@ -155,20 +394,20 @@ class ProductServiceImplTest
 		final UUID productId = UUID.randomUUID();
 		final UUID orderId = UUID.randomUUID();
 		final Product requestProduct = Product.builder().productId(productId).quantity(8).build();
-		final Product dbProduct = Product.builder().productId(productId).quantity(10).build();
+		final Product dbProduct = Product.builder().productId(productId).quantity(10).reservedQuantity(5).build();
 
 		final OrderProduct orderProduct = OrderProduct.builder().orderId(orderId).products(List.of(requestProduct)).build();
 
 		Mockito.when(redissonClient.getLock(ArgumentMatchers.anyString())).thenReturn(rLock);
+		Mockito.when(redissonClient.getMultiLock(ArgumentMatchers.any(RLock[].class))).thenReturn(rLock);
 		Mockito.when(rLock.tryLock(ArgumentMatchers.anyLong(), ArgumentMatchers.anyLong(), ArgumentMatchers.any())).thenReturn(true);
-		Mockito.when(rLock.isHeldByCurrentThread()).thenReturn(true);
-		Mockito.when(productRepository.findById(productId)).thenReturn(Optional.of(dbProduct));
-		Mockito.when(reservationRepository.getTotalReservedQuantityByProductId(productId)).thenReturn(5);
+		Mockito.when(productRepository.findAllById(ArgumentMatchers.anyIterable())).thenReturn(List.of(dbProduct));
 
 		final boolean result = productService.validateAndReserveProduct(orderProduct);
 
 		Assertions.assertFalse(result);
-		Mockito.verify(reservationRepository).deleteByOrderId(orderId);
+		Mockito.verify(productStockBatchRepository, Mockito.never()).reserveQuantities(ArgumentMatchers.any());
+		Mockito.verify(reservationRepository, Mockito.never()).deleteAllByOrderIdInAndState(ArgumentMatchers.any(), ArgumentMatchers.any());
 		Mockito.verify(rLock).unlock();
 	}
 
@@ -182,43 +421,407 @@ class ProductServiceImplTest
 		final OrderProduct orderProduct = OrderProduct.builder().orderId(orderId).products(List.of(requestProduct)).build();
 
 		Mockito.when(redissonClient.getLock(ArgumentMatchers.anyString())).thenReturn(rLock);
+		Mockito.when(redissonClient.getMultiLock(ArgumentMatchers.any(RLock[].class))).thenReturn(rLock);
 		Mockito.when(rLock.tryLock(ArgumentMatchers.anyLong(), ArgumentMatchers.anyLong(), ArgumentMatchers.any())).thenReturn(false);
 
 		final boolean result = productService.validateAndReserveProduct(orderProduct);
 
 		Assertions.assertFalse(result);
-		Mockito.verify(reservationRepository).deleteByOrderId(orderId);
+		Mockito.verify(reservationRepository, Mockito.never()).deleteAllByOrderIdInAndState(ArgumentMatchers.any(), ArgumentMatchers.any());
+		Mockito.verify(rLock, Mockito.never()).unlock();
+		Assertions.assertEquals(1, meterRegistry.get("inventory.reservation.lock.wait").tag("outcome", "timeout").timer().count());
 	}
 
-	// Test for updateProductStockForSuccessfulOrder()
+	// Test validateAndReserveProduct() takes every lock of the order at once, in productId order
 	@Test
-	void shouldUpdateStockAndDeleteReservationOnSuccess() {
+	void shouldAcquireAllLocksInOneMultiLockSortedByProductId() throws Exception {
+		final UUID firstProductId = new UUID(0, 1);
+		final UUID secondProductId = new UUID(0, 2);
+		final RLock firstLock = Mockito.mock(RLock.class);
+		final RLock secondLock = Mockito.mock(RLock.class);
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(UUID.randomUUID()).products(List.of(
+				Product.builder().productId(secondProductId).quantity(1).build(),
+				Product.builder().productId(firstProductId).quantity(1).build())).build();
+
+		Mockito.when(redissonClient.getLock("lock:stock:" + firstProductId)).thenReturn(firstLock);
+		Mockito.when(redissonClient.getLock("lock:stock:" + secondProductId)).thenReturn(secondLock);
+		Mockito.when(redissonClient.getMultiLock(firstLock, secondLock)).thenReturn(rLock);
+		Mockito.when(rLock.tryLock(ArgumentMatchers.anyLong(), ArgumentMatchers.anyLong(), ArgumentMatchers.any())).thenReturn(true);
+		Mockito.when(productRepository.findAllById(ArgumentMatchers.anyIterable())).thenReturn(List.of(
+				Product.builder().productId(firstProductId).quantity(5).build(),
+				Product.builder().productId(secondProductId).quantity(5).build()));
+
+		Assertions.assertTrue(productService.validateAndReserveProduct(orderProduct));
+
+		Mockito.verify(rLock).unlock();
+		Mockito.verify(firstLock, Mockito.never()).tryLock(ArgumentMatchers.anyLong(), ArgumentMatchers.anyLong(), ArgumentMatchers.any());
+		Assertions.assertEquals(1, meterRegistry.get("inventory.reservation.lock.wait").tag("outcome", "acquired").timer().count());
+	}
+
+	// Test validateAndReserveProduct() with conditional updates (Happy Path)
+	@Test
+	void shouldReserveWithConditionalUpdateWithoutLocks() {
+		ReflectionTestUtils.setField(productService, "reservationMode", ReservationMode.CONDITIONAL_UPDATE);
+		final UUID productId = UUID.randomUUID();
+		final UUID orderId = UUID.randomUUID();
+		final Product requestProduct = Product.builder().productId(productId).quantity(5).build();
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(orderId).products(List.of(requestProduct)).build();
+
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(productId, 5))).thenReturn(new int[]{1});
+
+		final boolean result = productService.validateAndReserveProduct(orderProduct);
+
+		Assertions.assertTrue(result);
+		Mockito.verify(reservationRepository).saveAll(ArgumentMatchers.<List<ProductOrderReservation>>argThat(reservations -> reservations.size() == 1));
+		Mockito.verifyNoInteractions(redissonClient);
+	}
+
+	// Test validateAndReserveProduct() with conditional updates for Failure (Insufficient Stock)
+	@Test
+	void shouldRollBackConditionalReservationWhenAnyLineIsShort() {
+		ReflectionTestUtils.setField(productService, "reservationMode", ReservationMode.CONDITIONAL_UPDATE);
+		final UUID orderId = UUID.randomUUID();
+		final Product availableProduct = Product.builder().productId(new UUID(0, 1)).quantity(5).build();
+		final Product shortProduct = Product.builder().productId(new UUID(0, 2)).quantity(8).build();
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(orderId).products(List.of(shortProduct, availableProduct)).build();
+
+		// results come back in productId order, the short product sorts last
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(ArgumentMatchers.anyMap())).thenReturn(new int[]{1, 0});
+
+		final boolean result = productService.validateAndReserveProduct(orderProduct);
+
+		Assertions.assertFalse(result);
+		Mockito.verify(transactionManager).rollback(ArgumentMatchers.any());
+		Mockito.verify(reservationRepository, Mockito.never()).saveAll(ArgumentMatchers.any());
+		Mockito.verify(transactionManager, Mockito.never()).commit(ArgumentMatchers.any());
+		Mockito.verifyNoInteractions(redissonClient);
+	}
+
+	// Test validateAndReserveProduct() in LOCK mode sends an order on a hot SKU past the locks
+	@Test
+	void shouldReserveHotSkuWithConditionalUpdateInLockMode() {
+		final UUID hotProductId = UUID.randomUUID();
+		final HotSkuDetector hotSkuDetector = new HotSkuDetector(meterRegistry, 16, 4, 1, 10);
+		hotSkuDetector.recordReserve(List.of(hotProductId));
+		hotSkuDetector.rotate();
+		ReflectionTestUtils.setField(productService, "hotSkuDetector", hotSkuDetector);
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(UUID.randomUUID())
+				.products(List.of(Product.builder().productId(hotProductId).quantity(2).build())).build();
+
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(hotProductId, 2))).thenReturn(new int[]{1});
+
+		Assertions.assertTrue(productService.validateAndReserveProduct(orderProduct));
+		Mockito.verifyNoInteractions(redissonClient);
+		Mockito.verify(productStockBatchRepository, Mockito.never()).reserveQuantities(ArgumentMatchers.any());
+		Assertions.assertEquals(1, meterRegistry.get("inventory.hot-sku.routed").counter().count());
+	}
+
+	// Test validateAndReserveProduct() keeps cold SKUs on the locks, guarded against the lock free writers of hot SKUs
+	@Test
+	void shouldGuardLockedReservationWhileHotSkusAreRouted() throws Exception {
+		ReflectionTestUtils.setField(productService, "hotSkuDetector", new HotSkuDetector(meterRegistry, 16, 4, 1, 10));
+		final UUID productId = UUID.randomUUID();
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(UUID.randomUUID())
+				.products(List.of(Product.builder().productId(productId).quantity(2).build())).build();
+
+		Mockito.when(redissonClient.getLock(ArgumentMatchers.anyString())).thenReturn(rLock);
+		Mockito.when(redissonClient.getMultiLock(ArgumentMatchers.any(RLock[].class))).thenReturn(rLock);
+		Mockito.when(rLock.tryLock(ArgumentMatchers.anyLong(), ArgumentMatchers.anyLong(), ArgumentMatchers.any())).thenReturn(true);
+		Mockito.when(productRepository.findAllById(ArgumentMatchers.anyIterable())).thenReturn(List.of(
+				Product.builder().productId(productId).quantity(5).reservedQuantity(0).build()));
+		// a conditional writer took the stock between the validation read and the write
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(productId, 2))).thenReturn(new int[]{0});
+
+		Assertions.assertFalse(productService.validateAndReserveProduct(orderProduct));
+		Mockito.verify(transactionManager).rollback(ArgumentMatchers.any());
+		Mockito.verify(productStockBatchRepository, Mockito.never()).reserveQuantities(ArgumentMatchers.any());
+		Mockito.verify(rLock).unlock();
+	}
+
+	// Test validateAndReserveProduct() in LOCK mode keeps a group committed write guarded when it commits after the locks are gone
+	@Test
+	void shouldGuardGroupCommittedWriteThatCommitsAfterTheTimeout() throws Exception {
+		final ReservationGroupCommitter committer = new ReservationGroupCommitter(reservationRepository, productStockBatchRepository, stockMovementJournal, stockOutbox,
+				new TransactionTemplate(transactionManager), meterRegistry, 10);
+		ReflectionTestUtils.setField(committer, "timeoutMillis", 50L);
+		ReflectionTestUtils.setField(productService, "groupCommitEnabled", true);
+		ReflectionTestUtils.setField(productService, "reservationGroupCommitter", committer);
+		final UUID productId = UUID.randomUUID();
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(UUID.randomUUID())
+				.products(List.of(Product.builder().productId(productId).quantity(2).build())).build();
+		final CountDownLatch lateWrite = new CountDownLatch(1);
+
+		Mockito.when(redissonClient.getLock(ArgumentMatchers.anyString())).thenReturn(rLock);
+		Mockito.when(redissonClient.getMultiLock(ArgumentMatchers.any(RLock[].class))).thenReturn(rLock);
+		Mockito.when(rLock.tryLock(ArgumentMatchers.anyLong(), ArgumentMatchers.anyLong(), ArgumentMatchers.any())).thenReturn(true);
+		Mockito.when(productRepository.findAllById(ArgumentMatchers.anyIterable())).thenReturn(List.of(
+				Product.builder().productId(productId).quantity(5).reservedQuantity(0).build()));
+		// the write runs only after the caller gave up, by then other orders took the stock
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(productId, 2))).thenAnswer(invocation -> {
+			lateWrite.await(5, TimeUnit.SECONDS);
+			return new int[]{0};
+		});
+		committer.start();
+		try
+		{
+			Assertions.assertFalse(productService.validateAndReserveProduct(orderProduct));
+			Mockito.verify(rLock).unlock();
+
+			lateWrite.countDown();
+			Mockito.verify(transactionManager, Mockito.timeout(5000)).commit(ArgumentMatchers.any());
+			Mockito.verify(productStockBatchRepository, Mockito.never()).reserveQuantities(ArgumentMatchers.any());
+			Mockito.verify(reservationRepository, Mockito.never()).saveAll(ArgumentMatchers.<List<ProductOrderReservation>>argThat(reservations -> !reservations.isEmpty()));
+		} finally
+		{
+			lateWrite.countDown();
+			committer.stop();
+		}
+	}
+
+	// Test validateAndReserveProduct() in LOCK mode draws a striped product from its buckets, past the locks
+	@Test
+	void shouldReserveStripedProductFromItsStockBuckets() {
+		final StockBuckets stockBuckets = Mockito.mock(StockBuckets.class);
+		ReflectionTestUtils.setField(productService, "stockBuckets", stockBuckets);
+		final UUID stripedProductId = new UUID(0, 1);
+		final UUID plainProductId = new UUID(0, 2);
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(UUID.randomUUID()).products(List.of(
+				Product.builder().productId(stripedProductId).quantity(2).build(),
+				Product.builder().productId(plainProductId).quantity(1).build())).build();
+
+		Mockito.when(stockBuckets.anyStriped(ArgumentMatchers.anyCollection())).thenReturn(true);
+		Mockito.when(stockBuckets.isStriped(ArgumentMatchers.any())).thenAnswer(invocation -> stripedProductId.equals(invocation.getArgument(0)));
+		Mockito.when(stockBuckets.reserve(stripedProductId, 2)).thenReturn(true);
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(plainProductId, 1))).thenReturn(new int[]{1});
+
+		Assertions.assertTrue(productService.validateAndReserveProduct(orderProduct));
+		Mockito.verifyNoInteractions(redissonClient);
+		Mockito.verify(reservationRepository).saveAll(ArgumentMatchers.<List<ProductOrderReservation>>argThat(reservations -> reservations.size() == 2));
+		Mockito.verify(stockMovementJournal).record(ArgumentMatchers.<List<StockMovement>>argThat(movements -> movements.size() == 2));
+	}
+
+	// Test reserveOrders() reserves a group of orders sharing a product in one batch and rejects the one that no longer fits
+	@Test
+	void shouldReserveOrdersSharingAProductTogether() {
+		ReflectionTestUtils.setField(productService, "reservationMode", ReservationMode.CONDITIONAL_UPDATE);
+		final HotSkuDetector hotSkuDetector = new HotSkuDetector(meterRegistry, 16, 4, 1, 10);
+		ReflectionTestUtils.setField(productService, "hotSkuDetector", hotSkuDetector);
+		final UUID productId = UUID.randomUUID();
+		final UUID firstOrderId = UUID.randomUUID();
+		final UUID secondOrderId = UUID.randomUUID();
+		final UUID shortOrderId = UUID.randomUUID();
+		final List<OrderProduct> orders = List.of(
+				OrderProduct.builder().orderId(firstOrderId).products(List.of(Product.builder().productId(productId).quantity(3).build())).build(),
+				OrderProduct.builder().orderId(secondOrderId).products(List.of(Product.builder().productId(productId).quantity(4).build())).build(),
+				OrderProduct.builder().orderId(shortOrderId).products(List.of(Product.builder().productId(productId).quantity(5).build())).build());
+
+		Mockito.when(productRepository.findAllById(Set.of(productId)))
+				.thenReturn(List.of(Product.builder().productId(productId).quantity(10).reservedQuantity(2).build()));
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(productId, 7))).thenReturn(new int[]{1});
+
+		final Map<UUID, String> outcomes = productService.reserveOrders(orders);
+
+		Assertions.assertNull(outcomes.get(firstOrderId));
+		Assertions.assertNull(outcomes.get(secondOrderId));
+		Assertions.assertTrue(outcomes.get(shortOrderId).contains("Insufficient stock"));
+		Mockito.verify(productStockBatchRepository, Mockito.times(1)).reserveQuantitiesIfAvailable(ArgumentMatchers.anyMap());
+		Mockito.verify(reservationRepository).saveAll(ArgumentMatchers.<List<ProductOrderReservation>>argThat(reservations -> reservations.size() == 2));
+		Mockito.verify(stockMovementJournal, Mockito.times(2)).record(ArgumentMatchers.anyList());
+		Mockito.verifyNoInteractions(redissonClient);
+		// asynchronous orders count towards hot SKUs like synchronous ones
+		hotSkuDetector.rotate();
+		Assertions.assertEquals(3, hotSkuDetector.getRanking().get(0).getReservedLines());
+	}
+
+	// Test a redelivered reserve command is answered as reserved without reserving again
+	@Test
+	void shouldAnswerRedeliveredReserveCommandFromExistingReservations() {
+		final UUID orderId = UUID.randomUUID();
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(orderId)
+				.products(List.of(Product.builder().productId(UUID.randomUUID()).quantity(1).build())).build();
+
+		Mockito.when(reservationRepository.findOrderIdsInState(Set.of(orderId), ReservationState.RESERVED)).thenReturn(List.of(orderId));
+
+		final Map<UUID, String> outcomes = productService.reserveOrders(List.of(orderProduct));
+
+		Assertions.assertTrue(outcomes.containsKey(orderId));
+		Assertions.assertNull(outcomes.get(orderId));
+		Mockito.verifyNoInteractions(productStockBatchRepository, redissonClient);
+		Mockito.verify(reservationRepository, Mockito.never()).saveAll(ArgumentMatchers.any());
+	}
+
+	// Test validateAndReserveProduct() and payment results with the redis ledger
+	@Test
+	void shouldDelegateToRedisLedgerWhenConfigured() {
+		final RedisStockLedger redisStockLedger = Mockito.mock(RedisStockLedger.class);
+		ReflectionTestUtils.setField(productService, "reservationMode", ReservationMode.REDIS_LEDGER);
+		ReflectionTestUtils.setField(productService, "redisStockLedger", redisStockLedger);
 		final UUID orderId = UUID.randomUUID();
 		final UUID productId = UUID.randomUUID();
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(orderId)
+				.products(List.of(Product.builder().productId(productId).quantity(2).build())).build();
 
-		final ProductOrderReservation reservation = ProductOrderReservation.builder()
-				.orderId(orderId)
-				.productId(productId)
-				.reservedQuantity(4)
-				.build();
+		Mockito.when(redisStockLedger.reserve(orderId, Map.of(productId, 2))).thenReturn(true);
 
-		Mockito.when(reservationRepository.findAllByOrderId(orderId))
-				.thenReturn(List.of(reservation));
+		Mockito.when(processedPaymentEventRepository.findProcessedOrderIds(ArgumentMatchers.anyCollection())).thenReturn(Set.of());
 
+		Assertions.assertTrue(productService.validateAndReserveProduct(orderProduct));
 		productService.updateProductStockForSuccessfulOrder(orderId);
 
-		Mockito.verify(productRepository).deductQuantityByProductId(productId, 4);
-		Mockito.verify(reservationRepository).deleteByOrderId(orderId);
+		Mockito.verify(redisStockLedger).commit(orderId);
+		Mockito.verifyNoInteractions(redissonClient, productRepository);
+		Mockito.verify(reservationRepository, Mockito.never()).transitionState(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
+	}
+
+	// Test validateAndReserveProduct() never hands a negative line to the redis ledger script
+	@Test
+	void shouldRejectNegativeQuantityBeforeTheRedisLedger() {
+		final RedisStockLedger redisStockLedger = Mockito.mock(RedisStockLedger.class);
+		ReflectionTestUtils.setField(productService, "reservationMode", ReservationMode.REDIS_LEDGER);
+		ReflectionTestUtils.setField(productService, "redisStockLedger", redisStockLedger);
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(UUID.randomUUID())
+				.products(List.of(Product.builder().productId(UUID.randomUUID()).quantity(-3).build())).build();
+
+		Assertions.assertFalse(productService.validateAndReserveProduct(orderProduct));
+		Mockito.verifyNoInteractions(redisStockLedger);
+	}
+
+	// Test for updateProductStockForSuccessfulOrder()
+	@Test
+	void shouldUpdateStockAndDeleteReservationOnSuccess() {
+		final UUID orderId = UUID.randomUUID();
+		final List<UUID> orderIds = List.of(orderId);
+
+		Mockito.when(processedPaymentEventRepository.findProcessedOrderIds(ArgumentMatchers.anyCollection())).thenReturn(Set.of());
+
+		productService.updateProductStockForSuccessfulOrder(orderId);
+
+		Mockito.verify(processedPaymentEventRepository).saveAll(ArgumentMatchers.<List<ProcessedPaymentEvent>>argThat(events ->
+				events.size() == 1 && events.get(0).getOutcome() == ReservationState.COMMITTED));
+		Mockito.verify(reservationRepository).transitionState(Set.copyOf(orderIds), ReservationState.RESERVED, ReservationState.COMMITTED);
+		Mockito.verify(productRepository).commitReservedQuantityForOrders(Set.copyOf(orderIds));
+		// journaled while the committed rows still exist
+		final InOrder journalBeforeDelete = Mockito.inOrder(stockMovementJournal, reservationRepository);
+		journalBeforeDelete.verify(stockMovementJournal).journalSettlement(Set.copyOf(orderIds), ReservationState.COMMITTED);
+		Mockito.verify(stockOutbox).ordersSettled(Set.copyOf(orderIds), ReservationState.COMMITTED);
+		journalBeforeDelete.verify(reservationRepository).deleteAllByOrderIdInAndState(Set.copyOf(orderIds), ReservationState.COMMITTED);
 	}
 
 	// Test for rollbackProductStockForUnsuccessfulOrder()
 	@Test
-	void shouldDeleteReservationOnOrderFailure() {
+	void shouldReleaseReservedQuantityOnOrderFailure() {
+		final UUID orderId = UUID.randomUUID();
+
+		Mockito.when(processedPaymentEventRepository.findProcessedOrderIds(ArgumentMatchers.anyCollection())).thenReturn(Set.of());
+
+		productService.removeReservedProductStock(orderId);
+
+		Mockito.verify(reservationRepository).transitionState(Set.of(orderId), ReservationState.RESERVED, ReservationState.RELEASED);
+		Mockito.verify(productRepository).releaseReservedQuantityForOrders(Set.of(orderId));
+		Mockito.verify(reservationRepository).deleteAllByOrderIdInAndState(Set.of(orderId), ReservationState.RELEASED);
+		Mockito.verify(productRepository, Mockito.never()).commitReservedQuantityForOrders(ArgumentMatchers.any());
+	}
+
+	// Test validateAndReserveProduct() leaves earlier reservations of a retried order alone when the write fails
+	@Test
+	void shouldOnlyRollBackTheFailedAttemptWhenReservationFails() throws Exception {
+		final UUID productId = UUID.randomUUID();
+		final UUID orderId = UUID.randomUUID();
+		final OrderProduct orderProduct = OrderProduct.builder().orderId(orderId)
+				.products(List.of(Product.builder().productId(productId).quantity(4).build())).build();
+
+		Mockito.when(redissonClient.getLock(ArgumentMatchers.anyString())).thenReturn(rLock);
+		Mockito.when(redissonClient.getMultiLock(ArgumentMatchers.any(RLock[].class))).thenReturn(rLock);
+		Mockito.when(rLock.tryLock(ArgumentMatchers.anyLong(), ArgumentMatchers.anyLong(), ArgumentMatchers.any())).thenReturn(true);
+		Mockito.when(productRepository.findAllById(ArgumentMatchers.anyIterable())).thenReturn(List.of(Product.builder().productId(productId).quantity(10).build()));
+		Mockito.when(productStockBatchRepository.reserveQuantities(ArgumentMatchers.anyMap())).thenThrow(new IllegalStateException("connection reset"));
+
+		Assertions.assertFalse(productService.validateAndReserveProduct(orderProduct));
+
+		Mockito.verify(transactionManager).rollback(ArgumentMatchers.any());
+		Mockito.verify(reservationRepository, Mockito.never()).transitionState(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
+		Mockito.verify(productRepository, Mockito.never()).releaseReservedQuantityForOrders(ArgumentMatchers.any());
+		Mockito.verify(reservationRepository, Mockito.never()).deleteAllByOrderIdInAndState(ArgumentMatchers.any(), ArgumentMatchers.any());
+		// a failed reservation attempt is not a payment result, the order may still be paid or failed later
+		Mockito.verifyNoInteractions(processedPaymentEventRepository);
+	}
+
+	// Test for applyPaymentResults()
+	@Test
+	void shouldApplyPaymentResultsAsSetBasedStatements() {
+		final List<UUID> successfulOrderIds = List.of(UUID.randomUUID(), UUID.randomUUID());
+		final List<UUID> failedOrderIds = List.of(UUID.randomUUID());
+
+		Mockito.when(processedPaymentEventRepository.findProcessedOrderIds(ArgumentMatchers.anyCollection())).thenReturn(Set.of());
+
+		productService.applyPaymentResults(successfulOrderIds, failedOrderIds);
+
+		Mockito.verify(productRepository).commitReservedQuantityForOrders(Set.copyOf(successfulOrderIds));
+		Mockito.verify(reservationRepository).deleteAllByOrderIdInAndState(Set.copyOf(successfulOrderIds), ReservationState.COMMITTED);
+		Mockito.verify(productRepository).releaseReservedQuantityForOrders(Set.copyOf(failedOrderIds));
+		Mockito.verify(reservationRepository).deleteAllByOrderIdInAndState(Set.copyOf(failedOrderIds), ReservationState.RELEASED);
+	}
+
+	// Test applyPaymentResults() skips orders that were already processed
+	@Test
+	void shouldSkipPaymentResultsAlreadyProcessed() {
+		final UUID processedOrderId = UUID.randomUUID();
+		final UUID newOrderId = UUID.randomUUID();
+
+		Mockito.when(processedPaymentEventRepository.findProcessedOrderIds(ArgumentMatchers.anyCollection())).thenReturn(Set.of(processedOrderId));
+
+		productService.applyPaymentResults(List.of(processedOrderId, newOrderId), List.of());
+
+		Mockito.verify(productRepository).commitReservedQuantityForOrders(Set.of(newOrderId));
+		Mockito.verify(productRepository, Mockito.never()).releaseReservedQuantityForOrders(ArgumentMatchers.any());
+	}
+
+	// Test a redelivered payment result is rejected from the in memory registry without another DB lookup
+	@Test
+	void shouldRejectRedeliveredPaymentResult() {
 		final UUID orderId = UUID.randomUUID();
 
+		Mockito.when(processedPaymentEventRepository.findProcessedOrderIds(ArgumentMatchers.anyCollection())).thenReturn(Set.of());
+
+		productService.updateProductStockForSuccessfulOrder(orderId);
+		productService.updateProductStockForSuccessfulOrder(orderId);
 		productService.removeReservedProductStock(orderId);
 
-		Mockito.verify(reservationRepository).deleteByOrderId(orderId);
+		Mockito.verify(processedPaymentEventRepository, Mockito.times(1)).findProcessedOrderIds(ArgumentMatchers.anyCollection());
+		Mockito.verify(productRepository, Mockito.times(1)).commitReservedQuantityForOrders(ArgumentMatchers.any());
+		Mockito.verify(productRepository, Mockito.never()).releaseReservedQuantityForOrders(ArgumentMatchers.any());
+	}
+
+	// Test a success and a failure for the same order in one batch only commits
+	@Test
+	void shouldCommitWhenBatchHasSuccessAndFailureForSameOrder() {
+		final UUID orderId = UUID.randomUUID();
+
+		Mockito.when(processedPaymentEventRepository.findProcessedOrderIds(ArgumentMatchers.anyCollection())).thenReturn(Set.of());
+
+		productService.applyPaymentResults(List.of(orderId), List.of(orderId));
+
+		Mockito.verify(productRepository).commitReservedQuantityForOrders(Set.of(orderId));
+		Mockito.verify(productRepository, Mockito.never()).releaseReservedQuantityForOrders(ArgumentMatchers.any());
+	}
+
+	// Test for expireReservations()
+	@Test
+	void shouldReleaseExpiredReservationsAndRecordUnprocessedOrders() {
+		final UUID processedOrderId = UUID.randomUUID();
+		final UUID abandonedOrderId = UUID.randomUUID();
+		final List<UUID> expiredOrderIds = List.of(processedOrderId, abandonedOrderId);
+
+		Mockito.when(processedPaymentEventRepository.findProcessedOrderIds(ArgumentMatchers.anyCollection())).thenReturn(Set.of(processedOrderId));
+
+		Assertions.assertEquals(2, productService.expireReservations(expiredOrderIds));
+
+		// only the order without a payment result is recorded, a late result for it is then skipped
+		Mockito.verify(processedPaymentEventRepository).saveAll(ArgumentMatchers.<List<ProcessedPaymentEvent>>argThat(events ->
+				events.size() == 1 && events.get(0).getOrderId().equals(abandonedOrderId) && events.get(0).getOutcome() == ReservationState.RELEASED));
+		Mockito.verify(reservationRepository).transitionState(Set.copyOf(expiredOrderIds), ReservationState.RESERVED, ReservationState.RELEASED);
+		Mockito.verify(productRepository).releaseReservedQuantityForOrders(Set.copyOf(expiredOrderIds));
+		Mockito.verify(reservationRepository).deleteAllByOrderIdInAndState(Set.copyOf(expiredOrderIds), ReservationState.RELEASED);
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,227 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nayan.obai.inventory.entity.LedgerCheckpoint;
+import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.repository.LedgerCheckpointRepository;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.ReservationRepository;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.redisson.api.RList;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+@ExtendWith(MockitoExtension.class)
+class RedisStockLedgerTest
+{
+	@Mock
+	private RedissonClient redissonClient;
+
+	@Mock
+	private RScript rScript;
+
+	@Mock
+	private RList<String> journal;
+
+	@Mock
+	private ProductRepository productRepository;
+
+	@Mock
+	private ReservationRepository reservationRepository;
+
+	@Mock
+	private LedgerCheckpointRepository ledgerCheckpointRepository;
+
+	@Mock
+	private StockMovementJournal stockMovementJournal;
+
+	@Mock
+	private StockOutbox stockOutbox;
+
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	private RedisStockLedger redisStockLedger;
+
+	private final UUID orderId = UUID.randomUUID();
+
+	@BeforeEach
+	void setup()
+	{
+		this.redisStockLedger = new RedisStockLedger(redissonClient, productRepository, reservationRepository, ledgerCheckpointRepository,
+				stockMovementJournal, stockOutbox, new TransactionTemplate(transactionManager), new ObjectMapper());
+	}
+
+	@Test
+	void shouldReserveAllLinesWithOneScriptCallInProductIdOrder()
+	{
+		final UUID firstProductId = new UUID(0, 1);
+		final UUID secondProductId = new UUID(0, 2);
+		final List<Object> keys = List.of(RedisStockLedger.ORDER_KEY_PREFIX + orderId, RedisStockLedger.JOURNAL_KEY, RedisStockLedger.JOURNAL_SEQUENCE_KEY,
+				RedisStockLedger.STOCK_KEY_PREFIX + firstProductId, RedisStockLedger.STOCK_KEY_PREFIX + secondProductId);
+		Mockito.when(redissonClient.getScript(StringCodec.INSTANCE)).thenReturn(rScript);
+		Mockito.when(rScript.eval(ArgumentMatchers.eq(RScript.Mode.READ_WRITE), ArgumentMatchers.eq(RedisStockLedger.RESERVE_SCRIPT),
+				ArgumentMatchers.eq(RScript.ReturnType.INTEGER), ArgumentMatchers.eq(keys), ArgumentMatchers.any(Object[].class))).thenReturn(1L);
+
+		Assertions.assertTrue(redisStockLedger.reserve(orderId, Map.of(secondProductId, 1, firstProductId, 3)));
+
+		Mockito.verify(rScript).eval(ArgumentMatchers.eq(RScript.Mode.READ_WRITE), ArgumentMatchers.eq(RedisStockLedger.RESERVE_SCRIPT),
+				ArgumentMatchers.eq(RScript.ReturnType.INTEGER), ArgumentMatchers.eq(keys), ArgumentMatchers.eq(orderId.toString()), ArgumentMatchers.anyString(),
+				ArgumentMatchers.eq(firstProductId.toString()), ArgumentMatchers.eq("3"), ArgumentMatchers.eq(secondProductId.toString()), ArgumentMatchers.eq("1"));
+	}
+
+	@Test
+	void shouldReportShortOrUnloadedProductAsNotReserved()
+	{
+		Mockito.when(redissonClient.getScript(StringCodec.INSTANCE)).thenReturn(rScript);
+		Mockito.when(rScript.eval(ArgumentMatchers.eq(RScript.Mode.READ_WRITE), ArgumentMatchers.eq(RedisStockLedger.RESERVE_SCRIPT),
+				ArgumentMatchers.eq(RScript.ReturnType.INTEGER), ArgumentMatchers.anyList(), ArgumentMatchers.any(Object[].class))).thenReturn(0L, -1L);
+
+		Assertions.assertFalse(redisStockLedger.reserve(orderId, Map.of(UUID.randomUUID(), 5)));
+		Assertions.assertFalse(redisStockLedger.reserve(orderId, Map.of(UUID.randomUUID(), 5)));
+	}
+
+	// an order without lines would journal lines = {}, an entry the flush cannot read
+	@Test
+	void shouldRefuseOrderWithoutLinesBeforeTheScript()
+	{
+		Assertions.assertThrows(IllegalArgumentException.class, () -> redisStockLedger.reserve(orderId, Map.of()));
+
+		Mockito.verifyNoInteractions(redissonClient);
+	}
+
+	@Test
+	void shouldSettleOrderWithCommitOrRelease()
+	{
+		final List<Object> keys = List.of(RedisStockLedger.ORDER_KEY_PREFIX + orderId, RedisStockLedger.JOURNAL_KEY, RedisStockLedger.JOURNAL_SEQUENCE_KEY);
+		Mockito.when(redissonClient.getScript(StringCodec.INSTANCE)).thenReturn(rScript);
+		Mockito.when(rScript.eval(ArgumentMatchers.eq(RScript.Mode.READ_WRITE), ArgumentMatchers.eq(RedisStockLedger.SETTLE_SCRIPT),
+				ArgumentMatchers.eq(RScript.ReturnType.INTEGER), ArgumentMatchers.eq(keys), ArgumentMatchers.any(Object[].class))).thenReturn(1L, 0L);
+
+		redisStockLedger.commit(orderId);
+		redisStockLedger.release(orderId);
+
+		Mockito.verify(rScript).eval(RScript.Mode.READ_WRITE, RedisStockLedger.SETTLE_SCRIPT, RScript.ReturnType.INTEGER, keys,
+				orderId.toString(), "COMMIT", RedisStockLedger.STOCK_KEY_PREFIX);
+		Mockito.verify(rScript).eval(RScript.Mode.READ_WRITE, RedisStockLedger.SETTLE_SCRIPT, RScript.ReturnType.INTEGER, keys,
+				orderId.toString(), "RELEASE", RedisStockLedger.STOCK_KEY_PREFIX);
+	}
+
+	// a settlement whose transaction rolls back never reaches the ledger
+	@Test
+	void shouldSettleOnlyOnceTheTransactionCommits()
+	{
+		Mockito.when(redissonClient.getScript(StringCodec.INSTANCE)).thenReturn(rScript);
+		Mockito.when(rScript.eval(ArgumentMatchers.eq(RScript.Mode.READ_WRITE), ArgumentMatchers.eq(RedisStockLedger.SETTLE_SCRIPT),
+				ArgumentMatchers.eq(RScript.ReturnType.INTEGER), ArgumentMatchers.anyList(), ArgumentMatchers.any(Object[].class))).thenReturn(1L);
+		TransactionSynchronizationManager.initSynchronization();
+		try
+		{
+			redisStockLedger.commit(orderId);
+
+			Mockito.verifyNoInteractions(rScript);
+			TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+		} finally
+		{
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		Mockito.verify(rScript).eval(RScript.Mode.READ_WRITE, RedisStockLedger.SETTLE_SCRIPT, RScript.ReturnType.INTEGER,
+				List.of(RedisStockLedger.ORDER_KEY_PREFIX + orderId, RedisStockLedger.JOURNAL_KEY, RedisStockLedger.JOURNAL_SEQUENCE_KEY),
+				orderId.toString(), "COMMIT", RedisStockLedger.STOCK_KEY_PREFIX);
+	}
+
+	// entries up to the checkpoint were applied by an earlier flush, the journal is trimmed only after the DB commit
+	@Test
+	void shouldApplyEntriesPastTheCheckpointAndTrimAfterCommit()
+	{
+		final UUID appliedProductId = UUID.randomUUID();
+		final UUID productId = UUID.randomUUID();
+		final LedgerCheckpoint checkpoint = LedgerCheckpoint.builder().name("redis-ledger").lastSequence(1).build();
+		Mockito.when(redissonClient.<String>getList(RedisStockLedger.JOURNAL_KEY, StringCodec.INSTANCE)).thenReturn(journal);
+		Mockito.when(redissonClient.getScript(StringCodec.INSTANCE)).thenReturn(rScript);
+		Mockito.when(journal.range(0, 499)).thenReturn(List.of(
+				reserveEntry(1, UUID.randomUUID(), appliedProductId, 4),
+				reserveEntry(2, orderId, productId, 3),
+				"{\"type\":\"COMMIT\",\"sequence\":3,\"orderId\":\"" + orderId + "\"}"));
+		Mockito.when(ledgerCheckpointRepository.findByNameForUpdate("redis-ledger")).thenReturn(Optional.of(checkpoint));
+
+		redisStockLedger.flushJournal();
+
+		Mockito.verify(productRepository, Mockito.never()).reserveQuantityByProductId(ArgumentMatchers.eq(appliedProductId), ArgumentMatchers.anyInt());
+		Mockito.verify(productRepository).reserveQuantityByProductId(productId, 3);
+		Mockito.verify(reservationRepository).save(ArgumentMatchers.<ProductOrderReservation>argThat(reservation ->
+				orderId.equals(reservation.getOrderId()) && reservation.getReservedQuantity() == 3));
+		Mockito.verify(reservationRepository).transitionState(Set.of(orderId), ReservationState.RESERVED, ReservationState.COMMITTED);
+		Mockito.verify(productRepository).commitReservedQuantityForOrders(Set.of(orderId));
+		Assertions.assertEquals(3, checkpoint.getLastSequence());
+		final InOrder commitBeforeTrim = Mockito.inOrder(transactionManager, rScript);
+		commitBeforeTrim.verify(transactionManager).commit(ArgumentMatchers.any());
+		commitBeforeTrim.verify(rScript).eval(RScript.Mode.READ_WRITE, RedisStockLedger.TRIM_JOURNAL_SCRIPT, RScript.ReturnType.INTEGER,
+				List.of(RedisStockLedger.JOURNAL_KEY), "3");
+	}
+
+	// one bad entry must not hold back every entry behind it
+	@Test
+	void shouldDeadLetterUnreadableEntryAndApplyTheRest()
+	{
+		final UUID productId = UUID.randomUUID();
+		final String unreadable = "{\"type\":\"RESERVE\",\"sequence\":2,\"orderId\":\"" + UUID.randomUUID() + "\",\"timestamp\":100,\"lines\":{}}";
+		final LedgerCheckpoint checkpoint = LedgerCheckpoint.builder().name("redis-ledger").lastSequence(1).build();
+		Mockito.when(redissonClient.<String>getList(RedisStockLedger.JOURNAL_KEY, StringCodec.INSTANCE)).thenReturn(journal);
+		Mockito.when(redissonClient.getScript(StringCodec.INSTANCE)).thenReturn(rScript);
+		Mockito.when(journal.range(0, 499)).thenReturn(List.of(unreadable, reserveEntry(3, orderId, productId, 2)));
+		Mockito.when(ledgerCheckpointRepository.findByNameForUpdate("redis-ledger")).thenReturn(Optional.of(checkpoint));
+
+		redisStockLedger.flushJournal();
+
+		Mockito.verify(productRepository).reserveQuantityByProductId(productId, 2);
+		Assertions.assertEquals(3, checkpoint.getLastSequence());
+		final InOrder deadLetterBeforeTrim = Mockito.inOrder(rScript);
+		deadLetterBeforeTrim.verify(rScript).eval(RScript.Mode.READ_WRITE, RedisStockLedger.DEAD_LETTER_SCRIPT, RScript.ReturnType.INTEGER,
+				List.of(RedisStockLedger.JOURNAL_KEY, RedisStockLedger.DEAD_LETTER_KEY), unreadable);
+		deadLetterBeforeTrim.verify(rScript).eval(RScript.Mode.READ_WRITE, RedisStockLedger.TRIM_JOURNAL_SCRIPT, RScript.ReturnType.INTEGER,
+				List.of(RedisStockLedger.JOURNAL_KEY), "3");
+	}
+
+	// the entries stay in the journal and the next flush applies them again
+	@Test
+	void shouldNotTrimWhenTheFlushTransactionFails()
+	{
+		Mockito.when(redissonClient.<String>getList(RedisStockLedger.JOURNAL_KEY, StringCodec.INSTANCE)).thenReturn(journal);
+		Mockito.when(journal.range(0, 499)).thenReturn(List.of(reserveEntry(2, orderId, UUID.randomUUID(), 1)));
+		Mockito.when(ledgerCheckpointRepository.findByNameForUpdate("redis-ledger"))
+				.thenReturn(Optional.of(LedgerCheckpoint.builder().name("redis-ledger").lastSequence(1).build()));
+		Mockito.doThrow(new TransactionSystemException("commit failed")).when(transactionManager).commit(ArgumentMatchers.any());
+
+		Assertions.assertThrows(TransactionSystemException.class, () -> redisStockLedger.flushJournal());
+
+		Mockito.verifyNoInteractions(rScript);
+	}
+
+	private static String reserveEntry(final long sequence, final UUID orderId, final UUID productId, final int quantity)
+	{
+		return "{\"type\":\"RESERVE\",\"sequence\":" + sequence + ",\"orderId\":\"" + orderId + "\",\"timestamp\":100,"
+				+ "\"lines\":[{\"productId\":\"" + productId + "\",\"quantity\":" + quantity + "}]}";
+	}
+}
@@ -0,0 +1,185 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.StockMovement;
+import com.nayan.obai.inventory.entity.StockMovementType;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.repository.ReservationRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@ExtendWith(MockitoExtension.class)
+class ReservationGroupCommitterTest
+{
+	@Mock
+	private ReservationRepository reservationRepository;
+
+	@Mock
+	private ProductStockBatchRepository productStockBatchRepository;
+
+	@Mock
+	private StockMovementJournal stockMovementJournal;
+
+	@Mock
+	private StockOutbox stockOutbox;
+
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	private ReservationGroupCommitter committer;
+
+	@BeforeEach
+	void setup()
+	{
+		this.meterRegistry = new SimpleMeterRegistry();
+		this.committer = new ReservationGroupCommitter(reservationRepository, productStockBatchRepository, stockMovementJournal, stockOutbox,
+				new TransactionTemplate(transactionManager), meterRegistry, 100);
+		// wide window so every order queued below lands in the same group
+		ReflectionTestUtils.setField(committer, "maxDelayMillis", 200L);
+	}
+
+	@AfterEach
+	void tearDown() throws InterruptedException
+	{
+		committer.stop();
+	}
+
+	@Test
+	void shouldWriteQueuedOrdersInOneTransaction() throws Exception
+	{
+		final UUID productId = UUID.randomUUID();
+		final List<CompletableFuture<String>> results = new ArrayList<>();
+		for (int i = 0; i < 5; i++)
+		{
+			results.add(committer.submit(UUID.randomUUID(), Map.of(productId, 2), false));
+		}
+		committer.start();
+
+		for (CompletableFuture<String> result : results)
+		{
+			Assertions.assertNull(result.get(5, TimeUnit.SECONDS));
+		}
+		Mockito.verify(transactionManager, Mockito.times(1)).commit(ArgumentMatchers.any());
+		Mockito.verify(productStockBatchRepository).reserveQuantities(Map.of(productId, 10));
+		Mockito.verify(reservationRepository).saveAll(ArgumentMatchers.<List<ProductOrderReservation>>argThat(reservations -> reservations.size() == 5));
+		Assertions.assertEquals(5, meterRegistry.get("inventory.reservation.group-commit.batch-size").summary().totalAmount());
+	}
+
+	// the short order gives back the line it already took and is rejected, its neighbour still commits
+	@Test
+	void shouldRejectShortConditionalOrderWithoutFailingTheGroup() throws Exception
+	{
+		final UUID firstProductId = new UUID(0, 1);
+		final UUID secondProductId = new UUID(0, 2);
+		final Map<UUID, Integer> shortOrder = Map.of(firstProductId, 1, secondProductId, 9);
+		final Map<UUID, Integer> fittingOrder = Map.of(firstProductId, 1);
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(ArgumentMatchers.anyMap()))
+				.thenAnswer(invocation -> invocation.<Map<UUID, Integer>>getArgument(0).size() == 2 ? new int[]{1, 0} : new int[]{1});
+
+		final CompletableFuture<String> shortResult = committer.submit(UUID.randomUUID(), new TreeMap<>(shortOrder), true);
+		final CompletableFuture<String> fittingResult = committer.submit(UUID.randomUUID(), fittingOrder, true);
+		committer.start();
+
+		Assertions.assertTrue(shortResult.get(5, TimeUnit.SECONDS).contains("Insufficient stock"));
+		Assertions.assertNull(fittingResult.get(5, TimeUnit.SECONDS));
+		Mockito.verify(productStockBatchRepository).reserveQuantities(Map.of(firstProductId, -1));
+		Mockito.verify(reservationRepository).saveAll(ArgumentMatchers.<List<ProductOrderReservation>>argThat(reservations -> reservations.size() == 1));
+		Mockito.verify(transactionManager, Mockito.times(1)).commit(ArgumentMatchers.any());
+	}
+
+	@Test
+	void shouldWriteOrdersOneByOneWhenTheGroupFails() throws Exception
+	{
+		final UUID goodProductId = UUID.randomUUID();
+		final UUID badProductId = UUID.randomUUID();
+		Mockito.when(productStockBatchRepository.reserveQuantities(ArgumentMatchers.anyMap())).thenAnswer(invocation -> {
+			if (invocation.<Map<UUID, Integer>>getArgument(0).containsKey(badProductId))
+			{
+				throw new IllegalStateException("deadlock");
+			}
+			return new int[]{1};
+		});
+
+		final CompletableFuture<String> goodResult = committer.submit(UUID.randomUUID(), Map.of(goodProductId, 1), false);
+		final CompletableFuture<String> badResult = committer.submit(UUID.randomUUID(), Map.of(badProductId, 1), false);
+		committer.start();
+
+		Assertions.assertNull(goodResult.get(5, TimeUnit.SECONDS));
+		Assertions.assertThrows(Exception.class, () -> badResult.get(5, TimeUnit.SECONDS));
+		// the group and the bad order roll back, the good order commits alone
+		Mockito.verify(transactionManager, Mockito.times(2)).rollback(ArgumentMatchers.any());
+		Mockito.verify(transactionManager, Mockito.times(1)).commit(ArgumentMatchers.any());
+	}
+
+	// the caller gave up before the committer got to the order, it is skipped
+	@Test
+	void shouldSkipOrderCancelledWhileQueued() throws Exception
+	{
+		ReflectionTestUtils.setField(committer, "timeoutMillis", 50L);
+		final UUID productId = UUID.randomUUID();
+
+		Assertions.assertNotNull(committer.reserve(UUID.randomUUID(), Map.of(productId, 2), false));
+		committer.start();
+
+		Mockito.verify(transactionManager, Mockito.timeout(5000)).commit(ArgumentMatchers.any());
+		Mockito.verify(productStockBatchRepository, Mockito.never()).reserveQuantities(ArgumentMatchers.anyMap());
+		Mockito.verify(reservationRepository, Mockito.never()).saveAll(ArgumentMatchers.<List<ProductOrderReservation>>argThat(reservations -> !reservations.isEmpty()));
+	}
+
+	// the caller gave up while the order was being written, it is released right after the commit
+	@Test
+	void shouldReleaseOrderThatCommitsAfterItsCallerGaveUp() throws Exception
+	{
+		ReflectionTestUtils.setField(committer, "timeoutMillis", 50L);
+		ReflectionTestUtils.setField(committer, "maxDelayMillis", 0L);
+		final UUID productId = UUID.randomUUID();
+		final UUID orderId = UUID.randomUUID();
+		final CountDownLatch lateWrite = new CountDownLatch(1);
+		Mockito.when(productStockBatchRepository.reserveQuantities(ArgumentMatchers.anyMap())).thenAnswer(invocation -> {
+			if (invocation.<Map<UUID, Integer>>getArgument(0).get(productId) > 0)
+			{
+				lateWrite.await(5, TimeUnit.SECONDS);
+			}
+			return new int[]{1};
+		});
+		Mockito.when(reservationRepository.deleteReservedByReservationIds(ArgumentMatchers.anyCollection())).thenReturn(1);
+		committer.start();
+
+		try
+		{
+			final CompletableFuture<String> result = CompletableFuture.supplyAsync(() -> committer.reserve(orderId, Map.of(productId, 2), false));
+			Mockito.verify(productStockBatchRepository, Mockito.timeout(5000)).reserveQuantities(Map.of(productId, 2));
+			Assertions.assertNotNull(result.get(5, TimeUnit.SECONDS));
+		} finally
+		{
+			lateWrite.countDown();
+		}
+
+		Mockito.verify(productStockBatchRepository, Mockito.timeout(5000)).reserveQuantities(Map.of(productId, -2));
+		Mockito.verify(transactionManager, Mockito.timeout(5000).times(2)).commit(ArgumentMatchers.any());
+		Mockito.verify(stockMovementJournal).append(ArgumentMatchers.<List<StockMovement>>argThat(movements -> movements.size() == 1
+				&& movements.get(0).getType() == StockMovementType.RELEASE && movements.get(0).getReservedDelta() == -2 && orderId.equals(movements.get(0).getOrderId())));
+	}
+}
@@ -0,0 +1,252 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.entity.ProductOrderReservation;
+import com.nayan.obai.inventory.entity.ReservationState;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.repository.ReservationRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@ExtendWith(MockitoExtension.class)
+class ShardedStockEngineTest
+{
+	@Mock
+	private ProductRepository productRepository;
+
+	@Mock
+	private ReservationRepository reservationRepository;
+
+	@Mock
+	private ProductStockBatchRepository productStockBatchRepository;
+
+	@Mock
+	private StockMovementJournal stockMovementJournal;
+
+	@Mock
+	private StockOutbox stockOutbox;
+
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	private ReservationGroupCommitter reservationGroupCommitter;
+
+	private ShardedStockEngine engine;
+
+	private final Map<UUID, Product> products = new ConcurrentHashMap<>();
+
+	@BeforeEach
+	void setup()
+	{
+		final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		this.reservationGroupCommitter = new ReservationGroupCommitter(reservationRepository, productStockBatchRepository, stockMovementJournal, stockOutbox,
+				new TransactionTemplate(transactionManager), meterRegistry, 1000);
+		this.engine = new ShardedStockEngine(productRepository, reservationGroupCommitter, meterRegistry, 2, 1000);
+		Mockito.when(productRepository.findAllById(ArgumentMatchers.anyIterable())).thenAnswer(invocation -> {
+			final List<Product> found = new ArrayList<>();
+			invocation.<Iterable<UUID>>getArgument(0).forEach(productId -> {
+				if (products.containsKey(productId))
+				{
+					found.add(products.get(productId));
+				}
+			});
+			return found;
+		});
+		reservationGroupCommitter.start();
+		engine.start();
+	}
+
+	@AfterEach
+	void tearDown() throws InterruptedException
+	{
+		engine.stop();
+		reservationGroupCommitter.stop();
+	}
+
+	@Test
+	void shouldHoldLinesOnEveryShardAndWriteTheOrder()
+	{
+		final UUID firstProductId = UUID.randomUUID();
+		final UUID secondProductId = productOnOtherShard(firstProductId);
+		products.put(firstProductId, Product.builder().productId(firstProductId).quantity(10).reservedQuantity(0).build());
+		products.put(secondProductId, Product.builder().productId(secondProductId).quantity(5).reservedQuantity(1).build());
+
+		final String rejection = engine.reserve(UUID.randomUUID(), lines(firstProductId, 3, secondProductId, 4));
+
+		Assertions.assertNull(rejection);
+		Assertions.assertEquals(7, engine.getAvailableQuantity(firstProductId));
+		Assertions.assertEquals(0, engine.getAvailableQuantity(secondProductId));
+		Mockito.verify(productStockBatchRepository).reserveQuantities(lines(firstProductId, 3, secondProductId, 4));
+		Mockito.verify(reservationRepository).saveAll(ArgumentMatchers.<List<ProductOrderReservation>>argThat(reservations -> reservations.size() == 2));
+		Mockito.verify(transactionManager).commit(ArgumentMatchers.any());
+	}
+
+	// a short line on one shard must give back what the other shard already held
+	@Test
+	void shouldGiveBackHeldLinesWhenAnotherShardRejects()
+	{
+		final UUID availableProductId = UUID.randomUUID();
+		final UUID shortProductId = productOnOtherShard(availableProductId);
+		products.put(availableProductId, Product.builder().productId(availableProductId).quantity(10).reservedQuantity(0).build());
+		products.put(shortProductId, Product.builder().productId(shortProductId).quantity(2).reservedQuantity(0).build());
+
+		final String rejection = engine.reserve(UUID.randomUUID(), lines(availableProductId, 10, shortProductId, 3));
+
+		Assertions.assertTrue(rejection.contains("Insufficient stock"));
+		Assertions.assertEquals(10, engine.getAvailableQuantity(availableProductId));
+		Assertions.assertEquals(2, engine.getAvailableQuantity(shortProductId));
+		Mockito.verifyNoInteractions(productStockBatchRepository, reservationRepository);
+	}
+
+	@Test
+	void shouldGiveBackHeldLinesWhenTheWriteFails()
+	{
+		final UUID productId = UUID.randomUUID();
+		products.put(productId, Product.builder().productId(productId).quantity(10).reservedQuantity(0).build());
+		Mockito.when(productStockBatchRepository.reserveQuantities(ArgumentMatchers.anyMap())).thenThrow(new IllegalStateException("db down"));
+
+		final String rejection = engine.reserve(UUID.randomUUID(), lines(productId, 4));
+
+		Assertions.assertNotNull(rejection);
+		Assertions.assertEquals(10, engine.getAvailableQuantity(productId));
+	}
+
+	// the caller was told the order failed: the late write is released and only then are the holds given back
+	@Test
+	void shouldGiveBackHeldLinesWhenTheWriteCommitsAfterTheTimeout() throws Exception
+	{
+		ReflectionTestUtils.setField(reservationGroupCommitter, "timeoutMillis", 50L);
+		final UUID productId = UUID.randomUUID();
+		products.put(productId, Product.builder().productId(productId).quantity(10).reservedQuantity(0).build());
+		final CountDownLatch lateWrite = new CountDownLatch(1);
+		Mockito.when(productStockBatchRepository.reserveQuantities(ArgumentMatchers.anyMap())).thenAnswer(invocation -> {
+			if (invocation.<Map<UUID, Integer>>getArgument(0).get(productId) > 0)
+			{
+				lateWrite.await(5, TimeUnit.SECONDS);
+			}
+			return new int[]{1};
+		});
+		Mockito.when(reservationRepository.deleteReservedByReservationIds(ArgumentMatchers.anyCollection())).thenReturn(1);
+
+		final String rejection;
+		try
+		{
+			rejection = engine.reserve(UUID.randomUUID(), lines(productId, 4));
+			// still held while the late write may commit
+			Assertions.assertEquals(6, engine.getAvailableQuantity(productId));
+		} finally
+		{
+			lateWrite.countDown();
+		}
+
+		Assertions.assertNotNull(rejection);
+		Mockito.verify(productStockBatchRepository, Mockito.timeout(5000)).reserveQuantities(lines(productId, -4));
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (engine.getAvailableQuantity(productId) != 10 && System.nanoTime() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		Assertions.assertEquals(10, engine.getAvailableQuantity(productId));
+	}
+
+	@Test
+	void shouldApplyCommitAndReleaseToTheCounters()
+	{
+		final UUID productId = UUID.randomUUID();
+		products.put(productId, Product.builder().productId(productId).quantity(10).reservedQuantity(0).build());
+		final UUID committedOrderId = UUID.randomUUID();
+		final UUID releasedOrderId = UUID.randomUUID();
+		Assertions.assertNull(engine.reserve(committedOrderId, lines(productId, 3)));
+		Assertions.assertNull(engine.reserve(releasedOrderId, lines(productId, 2)));
+
+		engine.settle(List.of(reservation(committedOrderId, productId, 3)), ReservationState.COMMITTED);
+		engine.settle(List.of(reservation(releasedOrderId, productId, 2)), ReservationState.RELEASED);
+		// on-hand dropped to 7 with the commit, recount to 9 leaves nothing reserved
+		engine.syncOnHandQuantity(productId, 9);
+
+		Assertions.assertEquals(9, engine.getAvailableQuantity(productId));
+	}
+
+	// concurrent orders for one product never reserve more than is on hand, and their writes are grouped
+	@Test
+	void shouldNeverOversellUnderConcurrentOrders() throws Exception
+	{
+		final UUID productId = UUID.randomUUID();
+		products.put(productId, Product.builder().productId(productId).quantity(100).reservedQuantity(0).build());
+		final List<Integer> writeBatchSizes = Collections.synchronizedList(new ArrayList<>());
+		Mockito.when(reservationRepository.saveAll(ArgumentMatchers.anyIterable())).thenAnswer(invocation -> {
+			writeBatchSizes.add(((Collection<?>) invocation.getArgument(0)).size());
+			return List.of();
+		});
+		final AtomicInteger reserved = new AtomicInteger();
+		final ExecutorService callers = Executors.newFixedThreadPool(16);
+		final CountDownLatch done = new CountDownLatch(300);
+		for (int i = 0; i < 300; i++)
+		{
+			callers.execute(() -> {
+				if (engine.reserve(UUID.randomUUID(), lines(productId, 1)) == null)
+				{
+					reserved.incrementAndGet();
+				}
+				done.countDown();
+			});
+		}
+		Assertions.assertTrue(done.await(30, TimeUnit.SECONDS));
+		callers.shutdown();
+
+		Assertions.assertEquals(100, reserved.get());
+		Assertions.assertEquals(0, engine.getAvailableQuantity(productId));
+		Assertions.assertEquals(100, writeBatchSizes.stream().mapToInt(Integer::intValue).sum());
+	}
+
+	private UUID productOnOtherShard(final UUID productId)
+	{
+		UUID other = UUID.randomUUID();
+		while (engine.shardOf(other) == engine.shardOf(productId))
+		{
+			other = UUID.randomUUID();
+		}
+		return other;
+	}
+
+	private Map<UUID, Integer> lines(final Object... productIdAndQuantity)
+	{
+		final Map<UUID, Integer> lines = new TreeMap<>();
+		for (int i = 0; i < productIdAndQuantity.length; i += 2)
+		{
+			lines.put((UUID) productIdAndQuantity[i], (Integer) productIdAndQuantity[i + 1]);
+		}
+		return lines;
+	}
+
+	private ProductOrderReservation reservation(final UUID orderId, final UUID productId, final int quantity)
+	{
+		return ProductOrderReservation.builder().orderId(orderId).productId(productId).reservedQuantity(quantity).build();
+	}
+}
@@ -0,0 +1,118 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.repository.ProductStockBucketRepository;
+import com.nayan.obai.inventory.service.ReservationMode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.RepeatedTest;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Orders racing for the last units of a striped product, each in its own committed transaction against MySQL.
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import({ProductStockBucketRepository.class, ProductStockBatchRepository.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class StockBucketsConcurrencyTest
+{
+	private static final int ORDERS = 4;
+
+	@Autowired
+	private ProductRepository productRepository;
+
+	@Autowired
+	private ProductStockBucketRepository productStockBucketRepository;
+
+	@Autowired
+	private ProductStockBatchRepository productStockBatchRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private StockBuckets stockBuckets;
+
+	private TransactionTemplate reservations;
+
+	private UUID productId;
+
+	@BeforeEach
+	void setup()
+	{
+		final TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		this.stockBuckets = new StockBuckets(productStockBucketRepository, productStockBatchRepository, Mockito.mock(StockMovementJournal.class),
+				transactionTemplate, new SimpleMeterRegistry(), ReservationMode.CONDITIONAL_UPDATE);
+		// as ProductServiceImpl runs reservations of striped products
+		this.reservations = new TransactionTemplate(transactionManager);
+		this.reservations.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+		this.productId = productRepository.save(Product.builder().quantity(8).build()).getProductId();
+		// 4 on the row, one parked in each of 4 buckets
+		transactionTemplate.executeWithoutResult(status -> {
+			productStockBucketRepository.replaceBuckets(productId, ORDERS);
+			productStockBucketRepository.setQuantities(productId, new int[]{1, 1, 1, 1});
+			productStockBatchRepository.reserveQuantities(Map.of(productId, 4));
+		});
+		ReflectionTestUtils.setField(stockBuckets, "bucketCounts", Map.of(productId, ORDERS));
+	}
+
+	@AfterEach
+	void tearDown()
+	{
+		productStockBucketRepository.replaceBuckets(productId, 0);
+		productRepository.deleteById(productId);
+	}
+
+	// no bucket holds a line of 2, so every order fails its probes and drains, together they fit exactly
+	@RepeatedTest(10)
+	void shouldReserveTheLastUnitsConcurrentlyWithoutDeadlock() throws Exception
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool(ORDERS);
+		final CyclicBarrier start = new CyclicBarrier(ORDERS);
+		try
+		{
+			final List<Future<Boolean>> reserved = new ArrayList<>();
+			for (int order = 0; order < ORDERS; order++)
+			{
+				reserved.add(executor.submit(() -> {
+					start.await();
+					return reservations.execute(status -> stockBuckets.reserve(productId, 2));
+				}));
+			}
+			for (Future<Boolean> outcome : reserved)
+			{
+				// a deadlock victim surfaces here as the exception of its order
+				assertTrue(outcome.get(30, TimeUnit.SECONDS));
+			}
+		} finally
+		{
+			executor.shutdownNow();
+		}
+
+		assertEquals(0, productStockBucketRepository.findRowAvailableQuantity(productId));
+		assertArrayEquals(new int[ORDERS], productStockBucketRepository.findQuantities(productId));
+	}
+}
@@ -0,0 +1,158 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.StockMovement;
+import com.nayan.obai.inventory.entity.StockMovementType;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.repository.ProductStockBucketRepository;
+import com.nayan.obai.inventory.service.ReservationMode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@ExtendWith(MockitoExtension.class)
+class StockBucketsTest
+{
+	@Mock
+	private ProductStockBucketRepository productStockBucketRepository;
+
+	@Mock
+	private ProductStockBatchRepository productStockBatchRepository;
+
+	@Mock
+	private StockMovementJournal stockMovementJournal;
+
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	private StockBuckets stockBuckets;
+
+	private final UUID productId = UUID.randomUUID();
+
+	@BeforeEach
+	void setup()
+	{
+		this.meterRegistry = new SimpleMeterRegistry();
+		this.stockBuckets = new StockBuckets(productStockBucketRepository, productStockBatchRepository, stockMovementJournal,
+				new TransactionTemplate(transactionManager), meterRegistry, ReservationMode.CONDITIONAL_UPDATE);
+		ReflectionTestUtils.setField(stockBuckets, "bucketCounts", Map.of(productId, 4));
+	}
+
+	@Test
+	void shouldReserveFromOneBucketWithoutTouchingTheProductRow()
+	{
+		Mockito.when(productStockBucketRepository.takeQuantity(ArgumentMatchers.eq(productId), ArgumentMatchers.anyInt(), ArgumentMatchers.eq(3))).thenReturn(1);
+
+		Assertions.assertTrue(stockBuckets.reserve(productId, 3));
+
+		Mockito.verify(productStockBucketRepository, Mockito.times(1)).takeQuantity(ArgumentMatchers.eq(productId), ArgumentMatchers.anyInt(), ArgumentMatchers.eq(3));
+		Mockito.verifyNoInteractions(productStockBatchRepository);
+		// parked stock became reserved, the Product row counter stays as it is
+		Mockito.verify(stockMovementJournal).record(ArgumentMatchers.<List<StockMovement>>argThat(movements ->
+				movements.get(0).getType() == StockMovementType.PARK && movements.get(0).getReservedDelta() == -3));
+		Assertions.assertEquals(1, meterRegistry.get("inventory.stock-buckets.lines").tag("from", "bucket").counter().count());
+	}
+
+	// no bucket holds the line on its own, together with the row they do
+	@Test
+	void shouldDrainBucketsIntoTheRowWhenNoBucketHoldsTheLine()
+	{
+		Mockito.when(productStockBucketRepository.takeQuantity(ArgumentMatchers.eq(productId), ArgumentMatchers.anyInt(), ArgumentMatchers.eq(4))).thenReturn(0);
+		Mockito.when(productStockBucketRepository.lockQuantities(productId)).thenReturn(new int[]{2, 1, 2, 0});
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(productId, 4))).thenReturn(new int[]{1});
+
+		Assertions.assertTrue(stockBuckets.reserve(productId, 4));
+
+		// the picked bucket and two neighbours
+		Mockito.verify(productStockBucketRepository, Mockito.times(3)).takeQuantity(ArgumentMatchers.eq(productId), ArgumentMatchers.anyInt(), ArgumentMatchers.eq(4));
+		Mockito.verify(productStockBucketRepository).setQuantities(productId, new int[4]);
+		Mockito.verify(productStockBatchRepository).reserveQuantities(Map.of(productId, -5));
+		Assertions.assertEquals(1, meterRegistry.get("inventory.stock-buckets.lines").tag("from", "row").counter().count());
+	}
+
+	// probes take bucket locks in the same order as the drain after them
+	@Test
+	void shouldProbeUpwardsWithoutWrappingPastTheLastBucket()
+	{
+		((AtomicInteger) ReflectionTestUtils.getField(stockBuckets, "cursor")).set(2);
+		Mockito.when(productStockBucketRepository.takeQuantity(ArgumentMatchers.eq(productId), ArgumentMatchers.anyInt(), ArgumentMatchers.eq(4))).thenReturn(0);
+		Mockito.when(productStockBucketRepository.lockQuantities(productId)).thenReturn(new int[]{2, 1, 2, 0});
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(productId, 4))).thenReturn(new int[]{1});
+
+		Assertions.assertTrue(stockBuckets.reserve(productId, 4));
+
+		final InOrder inOrder = Mockito.inOrder(productStockBucketRepository);
+		inOrder.verify(productStockBucketRepository).takeQuantity(productId, 2, 4);
+		inOrder.verify(productStockBucketRepository).takeQuantity(productId, 3, 4);
+		inOrder.verify(productStockBucketRepository).lockQuantities(productId);
+		Mockito.verify(productStockBucketRepository, Mockito.never()).takeQuantity(productId, 0, 4);
+	}
+
+	@Test
+	void shouldRejectLineWhenRowAndBucketsAreShortTogether()
+	{
+		Mockito.when(productStockBucketRepository.takeQuantity(ArgumentMatchers.eq(productId), ArgumentMatchers.anyInt(), ArgumentMatchers.eq(9))).thenReturn(0);
+		Mockito.when(productStockBucketRepository.lockQuantities(productId)).thenReturn(new int[]{2, 1, 2, 0});
+		Mockito.when(productStockBatchRepository.reserveQuantitiesIfAvailable(Map.of(productId, 9))).thenReturn(new int[]{0});
+
+		Assertions.assertFalse(stockBuckets.reserve(productId, 9));
+	}
+
+	// a short row of a product this instance does not know as striped is only retried when there was parked stock
+	@Test
+	void shouldNotRetryShortRowWithoutParkedStock()
+	{
+		Mockito.when(productStockBucketRepository.lockQuantities(productId)).thenReturn(new int[0]);
+
+		Assertions.assertFalse(stockBuckets.reserveAfterShortRow(productId, 2));
+
+		Mockito.verifyNoInteractions(productStockBatchRepository);
+	}
+
+	@Test
+	void shouldSpreadStockEvenlyAndParkTheDifference()
+	{
+		Mockito.when(productStockBucketRepository.findBucketCounts()).thenReturn(Map.of(productId, 3));
+		Mockito.when(productStockBucketRepository.lockQuantities(productId)).thenReturn(new int[]{0, 5, 0});
+		Mockito.when(productStockBucketRepository.lockRowAvailableQuantity(productId)).thenReturn(27);
+
+		stockBuckets.rebalance();
+
+		Mockito.verify(productStockBucketRepository).setQuantities(productId, new int[]{11, 11, 10});
+		Mockito.verify(productStockBatchRepository).reserveQuantities(Map.of(productId, 27));
+		Mockito.verify(stockMovementJournal).append(ArgumentMatchers.<List<StockMovement>>argThat(movements ->
+				movements.get(0).getType() == StockMovementType.PARK && movements.get(0).getReservedDelta() == 27));
+		Mockito.verify(transactionManager).commit(ArgumentMatchers.any());
+	}
+
+	@Test
+	void shouldKeepLowStockOnTheRow()
+	{
+		Assertions.assertArrayEquals(new int[4], stockBuckets.spread(39, 4));
+		Assertions.assertArrayEquals(new int[]{10, 10, 10, 10}, stockBuckets.spread(40, 4));
+	}
+
+	@Test
+	void shouldRejectBucketCountOutOfRange()
+	{
+		Assertions.assertThrows(IllegalArgumentException.class, () -> stockBuckets.configure(productId, 0));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> stockBuckets.configure(productId, 65));
+		Mockito.verifyNoInteractions(productStockBucketRepository);
+	}
+}
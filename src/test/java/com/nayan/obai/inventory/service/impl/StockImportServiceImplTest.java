@@ -0,0 +1,96 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.rest.StockImportResult;
+import com.nayan.obai.inventory.service.StockImportFormat;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.redisson.api.RedissonClient;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+
+@ExtendWith(MockitoExtension.class)
+class StockImportServiceImplTest
+{
+
+	@Mock
+	private ProductStockBatchRepository productStockBatchRepository;
+
+	@Mock
+	private StockMovementJournal stockMovementJournal;
+
+	@Mock
+	private StockOutbox stockOutbox;
+
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	@Mock
+	private RedissonClient redissonClient;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	private StockImportServiceImpl stockImportService;
+
+	@BeforeEach
+	void setup()
+	{
+		this.meterRegistry = new SimpleMeterRegistry();
+		this.stockImportService = new StockImportServiceImpl(productStockBatchRepository, new TransactionTemplate(transactionManager), new ObjectMapper(),
+				new ProductAvailabilityCache(redissonClient, meterRegistry, true, 1000, 60000, false), stockMovementJournal, stockOutbox, meterRegistry);
+		ReflectionTestUtils.setField(stockImportService, "chunkSize", 2);
+		ReflectionTestUtils.setField(stockImportService, "parallelism", 2);
+	}
+
+	@Test
+	void shouldUpsertCsvInChunksAndReportBadRows()
+	{
+		final UUID first = new UUID(0, 1);
+		final UUID second = new UUID(0, 2);
+		final UUID third = new UUID(0, 3);
+		final String body = "productId,quantity\n" + first + ",10\nnot-a-uuid,5\n" + second + ",-1\n" + second + ",20\n" + third + ",30\n";
+
+		final StockImportResult result = stockImportService.importStock(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), StockImportFormat.CSV);
+
+		Assertions.assertEquals(5, result.getRowsRead());
+		Assertions.assertEquals(3, result.getRowsUpserted());
+		Assertions.assertEquals(2, result.getRowsFailed());
+		Assertions.assertEquals(3, result.getErrors().get(0).getLine());
+		Mockito.verify(productStockBatchRepository).upsertQuantities(Map.of(first, 10, second, 20));
+		Mockito.verify(productStockBatchRepository).upsertQuantities(Map.of(third, 30));
+		Assertions.assertEquals(3, meterRegistry.get("inventory.import.rows").tag("outcome", "upserted").counter().count());
+		Assertions.assertEquals(1, meterRegistry.get("inventory.import.throughput").summary().count());
+	}
+
+	@Test
+	void shouldRejectNdjsonRowsBelowReservedQuantity()
+	{
+		final UUID reservedProduct = new UUID(0, 1);
+		final UUID newProduct = new UUID(0, 2);
+		final String body = "{\"productId\":\"" + reservedProduct + "\",\"quantity\":3}\n{\"productId\":\"" + newProduct + "\",\"quantity\":7}\n";
+
+		Mockito.when(productStockBatchRepository.lockReservedQuantities(ArgumentMatchers.anyCollection())).thenReturn(Map.of(reservedProduct, 5));
+
+		final StockImportResult result = stockImportService.importStock(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), StockImportFormat.NDJSON);
+
+		Assertions.assertEquals(1, result.getRowsUpserted());
+		Assertions.assertEquals(1, result.getRowsFailed());
+		Assertions.assertEquals(1, result.getErrors().get(0).getLine());
+		Mockito.verify(productStockBatchRepository).upsertQuantities(Map.of(newProduct, 7));
+	}
+
+}
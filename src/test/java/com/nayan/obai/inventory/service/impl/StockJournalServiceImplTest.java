@@ -0,0 +1,154 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.Product;
+import com.nayan.obai.inventory.entity.ProductSnapshot;
+import com.nayan.obai.inventory.entity.StockMovement;
+import com.nayan.obai.inventory.entity.StockMovementType;
+import com.nayan.obai.inventory.exception.InventoryServiceException;
+import com.nayan.obai.inventory.repository.ProductRepository;
+import com.nayan.obai.inventory.repository.ProductSnapshotRepository;
+import com.nayan.obai.inventory.repository.ProductStockBatchRepository;
+import com.nayan.obai.inventory.repository.StockMovementBatchRepository;
+import com.nayan.obai.inventory.repository.StockMovementRepository;
+import com.nayan.obai.inventory.rest.StockReplayResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.redisson.api.RedissonClient;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+@ExtendWith(MockitoExtension.class)
+class StockJournalServiceImplTest
+{
+
+	@Mock
+	private ProductRepository productRepository;
+
+	@Mock
+	private ProductSnapshotRepository productSnapshotRepository;
+
+	@Mock
+	private StockMovementRepository stockMovementRepository;
+
+	@Mock
+	private StockMovementBatchRepository stockMovementBatchRepository;
+
+	@Mock
+	private ProductStockBatchRepository productStockBatchRepository;
+
+	@Mock
+	private StockOutbox stockOutbox;
+
+	@Mock
+	private RedissonClient redissonClient;
+
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	private StockJournalServiceImpl stockJournalService;
+
+	private final UUID productId = UUID.randomUUID();
+
+	@BeforeEach
+	void setup()
+	{
+		this.stockJournalService = new StockJournalServiceImpl(productRepository, productSnapshotRepository, stockMovementRepository, stockMovementBatchRepository,
+				productStockBatchRepository, new ProductAvailabilityCache(redissonClient, new SimpleMeterRegistry(), true, 1000, 60000, false),
+				stockOutbox, new TransactionTemplate(transactionManager));
+	}
+
+	// snapshot at movement 10: quantity 50, reserved 5. Movements after it: reserve 3, commit 5, cycle count to 40, receipt 7
+	private void journal()
+	{
+		Mockito.when(productSnapshotRepository.findLatestTakenAtOrBefore(ArgumentMatchers.eq(List.of(productId)), ArgumentMatchers.anyLong()))
+				.thenReturn(List.of(ProductSnapshot.builder().productId(productId).quantity(50).reservedQuantity(5).lastMovementId(10).takenAt(1000).build()));
+		Mockito.when(stockMovementRepository.findByProductIdInAndMovementIdGreaterThanOrderByMovementIdAsc(List.of(productId), 10L)).thenReturn(List.of(
+				movement(11, StockMovementType.RESERVE, 0, 3, null, 2000),
+				movement(12, StockMovementType.COMMIT, -5, -5, null, 3000),
+				movement(13, StockMovementType.ADJUST, 0, 0, 40, 4000),
+				movement(14, StockMovementType.ADJUST, 7, 0, null, 5000)));
+	}
+
+	private StockMovement movement(final long movementId, final StockMovementType type, final int quantityDelta, final int reservedDelta, final Integer quantityAfter, final long timestamp)
+	{
+		return StockMovement.builder().movementId(movementId).productId(productId).type(type)
+				.quantityDelta(quantityDelta).reservedDelta(reservedDelta).quantityAfter(quantityAfter).timestamp(timestamp).build();
+	}
+
+	@Test
+	void shouldReplayMovementsOverLatestSnapshot()
+	{
+		journal();
+
+		final Product product = stockJournalService.getProductAt(productId, null);
+
+		Assertions.assertEquals(47, product.getQuantity());
+		Assertions.assertEquals(3, product.getReservedQuantity());
+	}
+
+	@Test
+	void shouldIgnoreMovementsAfterRequestedTime()
+	{
+		journal();
+
+		final Product product = stockJournalService.getProductAt(productId, Instant.ofEpochMilli(3500));
+
+		Assertions.assertEquals(45, product.getQuantity());
+		Assertions.assertEquals(3, product.getReservedQuantity());
+	}
+
+	@Test
+	void shouldFailForProductWithoutJournal()
+	{
+		Assertions.assertThrows(InventoryServiceException.class, () -> stockJournalService.getProductAt(productId, null));
+	}
+
+	@Test
+	void shouldRewriteOnlyDifferingQuantitiesWhenApplied()
+	{
+		journal();
+		Mockito.when(productRepository.findAllByOrderByProductIdAsc(ArgumentMatchers.any()))
+				.thenReturn(List.of(Product.builder().productId(productId).quantity(45).reservedQuantity(3).version(9L).build()));
+		Mockito.when(productStockBatchRepository.overwriteQuantities(Map.of(productId, 47), Map.of(productId, 9L))).thenReturn(new int[]{1});
+
+		final StockReplayResult result = stockJournalService.replay(null, true);
+
+		Assertions.assertEquals(1, result.getProductsReplayed());
+		Assertions.assertEquals(1, result.getQuantityMismatches());
+		Assertions.assertEquals(0, result.getReservedQuantityMismatches());
+		Assertions.assertEquals(1, result.getProductsUpdated());
+	}
+
+	@Test
+	void shouldNotApplyPointInTimeReplay()
+	{
+		Assertions.assertThrows(IllegalArgumentException.class, () -> stockJournalService.replay(Instant.now(), true));
+		Mockito.verifyNoInteractions(productRepository);
+	}
+
+	@Test
+	void shouldSnapshotProductsMovedSinceLastRun()
+	{
+		journal();
+		Mockito.when(stockMovementRepository.findLastMovementIdBefore(ArgumentMatchers.anyLong())).thenReturn(14L);
+		Mockito.when(productSnapshotRepository.findLastSnapshotMovementId()).thenReturn(10L);
+		Mockito.when(stockMovementRepository.findProductIdsMovedBetween(10L, 14L)).thenReturn(List.of(productId));
+
+		Assertions.assertEquals(1, stockJournalService.takeSnapshots());
+
+		Mockito.verify(stockMovementBatchRepository).insertSnapshots(ArgumentMatchers.<List<ProductSnapshot>>argThat(snapshots -> snapshots.size() == 1
+				&& snapshots.get(0).getQuantity() == 47 && snapshots.get(0).getReservedQuantity() == 3 && snapshots.get(0).getLastMovementId() == 14));
+	}
+}
@@ -0,0 +1,68 @@
+package com.nayan.obai.inventory.service.impl;
+
+import com.nayan.obai.inventory.entity.StockMovement;
+import com.nayan.obai.inventory.repository.StockMovementBatchRepository;
+import com.nayan.obai.inventory.repository.StockMovementRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+@ExtendWith(MockitoExtension.class)
+class StockMovementJournalTest
+{
+	@Mock
+	private StockMovementBatchRepository stockMovementBatchRepository;
+
+	@Mock
+	private StockMovementRepository stockMovementRepository;
+
+	private StockMovementJournal stockMovementJournal;
+
+	@BeforeEach
+	void setup()
+	{
+		this.stockMovementJournal = new StockMovementJournal(stockMovementBatchRepository, stockMovementRepository, new SimpleMeterRegistry());
+	}
+
+	// everything one transaction recorded goes out in one batch before it commits, nothing waits in memory after
+	@Test
+	void shouldWriteRecordedMovementsOnceBeforeTheTransactionCommits()
+	{
+		final List<StockMovement> reserved = StockMovementJournal.reserved(UUID.randomUUID(), Map.of(UUID.randomUUID(), 2));
+		final List<StockMovement> parked = List.of(StockMovementJournal.parked(UUID.randomUUID(), -3));
+		TransactionSynchronizationManager.initSynchronization();
+		try
+		{
+			stockMovementJournal.record(reserved);
+			stockMovementJournal.record(parked);
+
+			Mockito.verifyNoInteractions(stockMovementBatchRepository);
+			TransactionSynchronizationManager.getSynchronizations().forEach(synchronization -> synchronization.beforeCommit(false));
+		} finally
+		{
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		Mockito.verify(stockMovementBatchRepository).insertMovements(ArgumentMatchers.<List<StockMovement>>argThat(movements ->
+				movements.size() == 2 && movements.contains(reserved.get(0)) && movements.contains(parked.get(0))));
+	}
+
+	@Test
+	void shouldWriteRightAwayWithoutTransaction()
+	{
+		final List<StockMovement> reserved = StockMovementJournal.reserved(UUID.randomUUID(), Map.of(UUID.randomUUID(), 2));
+
+		stockMovementJournal.record(reserved);
+
+		Mockito.verify(stockMovementBatchRepository).insertMovements(reserved);
+	}
+}